@@ -0,0 +1,118 @@
+package com.giannoules.proxstor.api;
+
+import java.util.Date;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * ProxStor representation of one co-location: a time window during which
+ * another user was at the same location as the user a query was submitted
+ * for. The window is the overlap of the two users' localities there,
+ * clipped to the query's date range.
+ *
+ * This class is augmented with annotations
+ * identifying it for Java Architecture for XML Binding.
+ *
+ * @author James Giannoules
+ */
+@XmlRootElement
+public class Colocation {
+
+    /**
+     * id of the other user
+     */
+    public String userId;
+    /**
+     * id of the location both users were at
+     */
+    public String locationId;
+    /**
+     * id of the other user's locality
+     */
+    public String localityId;
+    /**
+     * id of the submitting user's locality
+     */
+    public String withLocalityId;
+    /**
+     * beginning of the overlap
+     */
+    public Date start;
+    /**
+     * end of the overlap
+     */
+    public Date end;
+
+    public Colocation() {
+    }
+
+    public Colocation(String userId, String locationId, String localityId, String withLocalityId, Date start, Date end) {
+        this.userId = userId;
+        this.locationId = locationId;
+        this.localityId = localityId;
+        this.withLocalityId = withLocalityId;
+        this.start = start;
+        this.end = end;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getLocationId() {
+        return locationId;
+    }
+
+    public void setLocationId(String locationId) {
+        this.locationId = locationId;
+    }
+
+    public String getLocalityId() {
+        return localityId;
+    }
+
+    public void setLocalityId(String localityId) {
+        this.localityId = localityId;
+    }
+
+    public String getWithLocalityId() {
+        return withLocalityId;
+    }
+
+    public void setWithLocalityId(String withLocalityId) {
+        this.withLocalityId = withLocalityId;
+    }
+
+    public Date getStart() {
+        return start;
+    }
+
+    public void setStart(Date start) {
+        this.start = start;
+    }
+
+    public Date getEnd() {
+        return end;
+    }
+
+    public void setEnd(Date end) {
+        this.end = end;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Colocation {\n");
+        sb.append("\tuserId: ").append(userId).append("\n");
+        sb.append("\tlocationId: ").append(locationId).append("\n");
+        sb.append("\tlocalityId: ").append(localityId).append("\n");
+        sb.append("\twithLocalityId: ").append(withLocalityId).append("\n");
+        sb.append("\tstart: ").append(start).append("\n");
+        sb.append("\tend: ").append(end).append("\n");
+        sb.append("}").append("\n");
+        return sb.toString();
+    }
+}
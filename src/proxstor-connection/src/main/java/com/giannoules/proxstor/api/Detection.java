@@ -0,0 +1,94 @@
+package com.giannoules.proxstor.api;
+
+import java.util.Date;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * ProxStor representation of a single device detection event, as submitted in
+ * a batch to the bulk device detection endpoint. The detected Environmental
+ * is identified either by environmentalId or, when that is not set, by a
+ * partial Environmental (e.g. type and identifier of a WiFi BSSID).
+ *
+ * This class is augmented with annotations
+ * identifying it for Java Architecture for XML Binding.
+ *
+ * @author James Giannoules
+ */
+@XmlRootElement
+public class Detection {
+    /**
+     * id of the device reporting the detection
+     */
+    public String devId;
+    /**
+     * id of the detected environmental (if known)
+     */
+    public String environmentalId;
+    /**
+     * partial environmental to match when environmentalId is not known
+     */
+    public Environmental environmental;
+    /**
+     * date/time the device made the detection. orders events per device
+     */
+    public Date timestamp;
+
+    public Detection() {
+    }
+
+    public Detection(String devId, String environmentalId, Date timestamp) {
+        this.devId = devId;
+        this.environmentalId = environmentalId;
+        this.timestamp = timestamp;
+    }
+
+    public String getDevId() {
+        return devId;
+    }
+
+    public void setDevId(String devId) {
+        this.devId = devId;
+    }
+
+    public String getEnvironmentalId() {
+        return environmentalId;
+    }
+
+    public void setEnvironmentalId(String environmentalId) {
+        this.environmentalId = environmentalId;
+    }
+
+    public Environmental getEnvironmental() {
+        return environmental;
+    }
+
+    public void setEnvironmental(Environmental environmental) {
+        this.environmental = environmental;
+    }
+
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(Date timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Detection {\n");
+        sb.append("\tdevId: ").append(devId).append("\n");
+        if (environmentalId != null) {
+            sb.append("\tenvironmentalId: ").append(environmentalId).append("\n");
+        }
+        if (environmental != null) {
+            sb.append("\tenvironmental: ").append(environmental).append("\n");
+        }
+        if (timestamp != null) {
+            sb.append("\ttimestamp: ").append(timestamp).append("\n");
+        }
+        sb.append("}").append("\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,80 @@
+package com.giannoules.proxstor.api;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * ProxStor representation of the outcome of one Detection in a batch. Results
+ * are returned in the same order as the submitted Detections.
+ *
+ * status mirrors the response the single detection endpoint would have
+ * given: 201 when a new Locality was created, 400 when the detection was
+ * rejected (message names the reason), 500 on internal failure.
+ *
+ * This class is augmented with annotations
+ * identifying it for Java Architecture for XML Binding.
+ *
+ * @author James Giannoules
+ */
+@XmlRootElement
+public class DetectionResult {
+    /**
+     * HTTP style status of this detection
+     */
+    public int status;
+    /**
+     * Locality created by this detection (if any)
+     */
+    public Locality locality;
+    /**
+     * reason the detection was rejected (if any)
+     */
+    public String message;
+
+    public DetectionResult() {
+    }
+
+    public DetectionResult(int status, Locality locality, String message) {
+        this.status = status;
+        this.locality = locality;
+        this.message = message;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public Locality getLocality() {
+        return locality;
+    }
+
+    public void setLocality(Locality locality) {
+        this.locality = locality;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("DetectionResult {\n");
+        sb.append("\tstatus: ").append(status).append("\n");
+        if (locality != null) {
+            sb.append("\tlocality: ").append(locality.getLocalityId()).append("\n");
+        }
+        if (message != null) {
+            sb.append("\tmessage: ").append(message).append("\n");
+        }
+        sb.append("}").append("\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package com.giannoules.proxstor.api;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * ProxStor representation of a User reached over one or more knows
+ * relationships, with the number of hops and the strength of the strongest
+ * path reaching it.
+ *
+ * This class is augmented with annotations
+ * identifying it for Java Architecture for XML Binding.
+ *
+ * @author James Giannoules
+ */
+@XmlRootElement
+public class KnownUser {
+
+    /**
+     * the User reached
+     */
+    public User user;
+    /**
+     * number of knows relationships followed: 1 for friends, 2 for friends
+     * of friends, ...
+     */
+    public Integer degree;
+    /**
+     * strength of the path, 0..100
+     */
+    public Integer strength;
+
+    public KnownUser() {
+    }
+
+    public KnownUser(User user, Integer degree, Integer strength) {
+        this.user = user;
+        this.degree = degree;
+        this.strength = strength;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public void setUser(User user) {
+        this.user = user;
+    }
+
+    public Integer getDegree() {
+        return degree;
+    }
+
+    public void setDegree(Integer degree) {
+        this.degree = degree;
+    }
+
+    public Integer getStrength() {
+        return strength;
+    }
+
+    public void setStrength(Integer strength) {
+        this.strength = strength;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("KnownUser {\n");
+        if (user != null) {
+            sb.append("\tuser: ").append(user.getUserId()).append("\n");
+        }
+        sb.append("\tdegree: ").append(degree).append("\n");
+        sb.append("\tstrength: ").append(strength).append("\n");
+        sb.append("}").append("\n");
+        return sb.toString();
+    }
+}
@@ -1,7 +1,109 @@
 package com.giannoules.proxstor.api;
 
-// @TODO figure out why proxstor-webapp won't build without this token class
+import javax.xml.bind.annotation.XmlRootElement;
 
+/**
+ * ProxStor representation of a locality change pushed to a subscribing User.
+ * A Notification is sent when a User the subscriber knows arrives at or
+ * departs from a Location.
+ *
+ * This class is augmented with annotations
+ * identifying it for Java Architecture for XML Binding.
+ *
+ * @author James Giannoules
+ */
+@XmlRootElement
 public class Notification {
-    
+
+    public static final String ARRIVAL = "arrival";
+    public static final String DEPARTURE = "departure";
+
+    /**
+     * ARRIVAL or DEPARTURE
+     */
+    public String type;
+    /**
+     * id of the User whose locality changed
+     */
+    public String userId;
+    /**
+     * Locality arrived at, or departed from
+     */
+    public Locality locality;
+    /**
+     * strength with which the subscriber knows userId
+     */
+    public Integer strength;
+    /**
+     * distance from the subscriber's current Location (if known)
+     */
+    public Double distance;
+
+    public Notification() {
+    }
+
+    public Notification(String type, Locality locality) {
+        this.type = type;
+        this.locality = locality;
+        this.userId = locality.getUserId();
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public Locality getLocality() {
+        return locality;
+    }
+
+    public void setLocality(Locality locality) {
+        this.locality = locality;
+    }
+
+    public Integer getStrength() {
+        return strength;
+    }
+
+    public void setStrength(Integer strength) {
+        this.strength = strength;
+    }
+
+    public Double getDistance() {
+        return distance;
+    }
+
+    public void setDistance(Double distance) {
+        this.distance = distance;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Notification {\n");
+        sb.append("\ttype: ").append(type).append("\n");
+        sb.append("\tuserId: ").append(userId).append("\n");
+        if (locality != null) {
+            sb.append("\tlocality: ").append(locality.getLocalityId()).append("\n");
+        }
+        if (strength != null) {
+            sb.append("\tstrength: ").append(strength).append("\n");
+        }
+        if (distance != null) {
+            sb.append("\tdistance: ").append(distance).append("\n");
+        }
+        sb.append("}").append("\n");
+        return sb.toString();
+    }
 }
@@ -0,0 +1,67 @@
+package com.giannoules.proxstor.api;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * ProxStor representation of one Environmental observed by a device as part
+ * of a fingerprint, i.e. the set of Environmentals a device senses at once
+ * (several WiFi BSSIDs plus a BLE beacon, say). The fingerprint is scored as
+ * a whole to resolve the most likely containing Location.
+ *
+ * The Environmental is identified by environmentalId or, when that is not
+ * set, by type and identifier. signal is the received signal strength in dBm
+ * (e.g. -45 strong, -90 weak) and is optional; stronger observations weigh
+ * more in the scoring.
+ *
+ * This class is augmented with annotations
+ * identifying it for Java Architecture for XML Binding.
+ *
+ * @author James Giannoules
+ */
+@XmlRootElement
+public class Observation {
+    /**
+     * the observed environmental
+     */
+    public Environmental environmental;
+    /**
+     * received signal strength in dBm (if known)
+     */
+    public Integer signal;
+
+    public Observation() {
+    }
+
+    public Observation(Environmental environmental, Integer signal) {
+        this.environmental = environmental;
+        this.signal = signal;
+    }
+
+    public Environmental getEnvironmental() {
+        return environmental;
+    }
+
+    public void setEnvironmental(Environmental environmental) {
+        this.environmental = environmental;
+    }
+
+    public Integer getSignal() {
+        return signal;
+    }
+
+    public void setSignal(Integer signal) {
+        this.signal = signal;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Observation {\n");
+        sb.append("\tenvironmental: ").append(environmental).append("\n");
+        if (signal != null) {
+            sb.append("\tsignal: ").append(signal).append("\n");
+        }
+        sb.append("}").append("\n");
+        return sb.toString();
+    }
+}
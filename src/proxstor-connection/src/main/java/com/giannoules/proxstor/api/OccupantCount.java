@@ -0,0 +1,72 @@
+package com.giannoules.proxstor.api;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * ProxStor representation of the number of Users currently checked into a
+ * Location, optionally including those at Locations within it.
+ *
+ * This class is augmented with annotations
+ * identifying it for Java Architecture for XML Binding.
+ *
+ * @author James Giannoules
+ */
+@XmlRootElement
+public class OccupantCount {
+    /**
+     * id of the Location counted
+     */
+    public String locationId;
+    /**
+     * whether Users at Locations within locationId are counted
+     */
+    public boolean includeWithin;
+    /**
+     * number of Users
+     */
+    public int count;
+
+    public OccupantCount() {
+    }
+
+    public OccupantCount(String locationId, boolean includeWithin, int count) {
+        this.locationId = locationId;
+        this.includeWithin = includeWithin;
+        this.count = count;
+    }
+
+    public String getLocationId() {
+        return locationId;
+    }
+
+    public void setLocationId(String locationId) {
+        this.locationId = locationId;
+    }
+
+    public boolean isIncludeWithin() {
+        return includeWithin;
+    }
+
+    public void setIncludeWithin(boolean includeWithin) {
+        this.includeWithin = includeWithin;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("OccupantCount {\n");
+        sb.append("\tlocationId: ").append(locationId).append("\n");
+        sb.append("\tincludeWithin: ").append(includeWithin).append("\n");
+        sb.append("\tcount: ").append(count).append("\n");
+        sb.append("}").append("\n");
+        return sb.toString();
+    }
+}
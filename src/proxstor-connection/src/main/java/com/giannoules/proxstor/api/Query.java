@@ -40,6 +40,20 @@ public class Query {
      * ending date/time constraining query. must also specify dateStart
      */
     public Date dateEnd;    
+    /**
+     * hops of knows relationships from userId to follow with strength
+     * (if any); null or 1 for direct relationships only
+     */
+    public Integer depth;
+    /**
+     * how edge strengths combine along a path of depth > 1: "minimum"
+     * (the default) or "product"
+     */
+    public String pathStrength;
+    /**
+     * minimum overlap, in milliseconds, of a co-location (if any)
+     */
+    public Long minOverlap;
 
     public String getUserId() {
         return userId;
@@ -88,6 +102,30 @@ public class Query {
     public void setDateEnd(Date dateEnd) {
         this.dateEnd = dateEnd;
     }
+
+    public Integer getDepth() {
+        return depth;
+    }
+
+    public void setDepth(Integer depth) {
+        this.depth = depth;
+    }
+
+    public String getPathStrength() {
+        return pathStrength;
+    }
+
+    public void setPathStrength(String pathStrength) {
+        this.pathStrength = pathStrength;
+    }
+
+    public Long getMinOverlap() {
+        return minOverlap;
+    }
+
+    public void setMinOverlap(Long minOverlap) {
+        this.minOverlap = minOverlap;
+    }
     
     @Override
     public String toString() {
@@ -111,6 +149,15 @@ public class Query {
         if (dateEnd != null) {
             sb.append("\tdateEnd: ").append(dateEnd).append("\n");
         }
+        if (depth != null) {
+            sb.append("\tdepth: ").append(depth).append("\n");
+        }
+        if (pathStrength != null) {
+            sb.append("\tpathStrength: ").append(pathStrength).append("\n");
+        }
+        if (minOverlap != null) {
+            sb.append("\tminOverlap: ").append(minOverlap).append("\n");
+        }
         sb.append("}").append("\n");
         return sb.toString();
      }
@@ -136,6 +183,15 @@ public class Query {
         if (dateEnd != null) {
             hash *= dateEnd.hashCode();
         }
+        if (depth != null) {
+            hash *= depth.hashCode();
+        }
+        if (pathStrength != null) {
+            hash *= pathStrength.hashCode();
+        }
+        if (minOverlap != null) {
+            hash *= minOverlap.hashCode();
+        }
         return hash;
     }
     
@@ -178,6 +234,21 @@ public class Query {
                 return false;
             }
         }
+        if (this.depth != null) {
+            if ((other.getDepth()== null) || (!other.getDepth().equals(this.depth))) {
+                return false;
+            }
+        }
+        if (this.pathStrength != null) {
+            if ((other.getPathStrength()== null) || (!other.getPathStrength().equals(this.pathStrength))) {
+                return false;
+            }
+        }
+        if (this.minOverlap != null) {
+            if ((other.getMinOverlap()== null) || (!other.getMinOverlap().equals(this.minOverlap))) {
+                return false;
+            }
+        }
         
         return true;
     }
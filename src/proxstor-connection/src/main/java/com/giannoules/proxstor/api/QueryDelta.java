@@ -0,0 +1,66 @@
+package com.giannoules.proxstor.api;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * ProxStor representation of one change to the matches of a StandingQuery.
+ * ADDED and MOVED carry the Locality now matching; REMOVED carries the
+ * Locality which no longer matches.
+ *
+ * This class is augmented with annotations
+ * identifying it for Java Architecture for XML Binding.
+ *
+ * @author James Giannoules
+ */
+@XmlRootElement
+public class QueryDelta {
+
+    public static final String ADDED = "added";
+    public static final String MOVED = "moved";
+    public static final String REMOVED = "removed";
+
+    /**
+     * ADDED, MOVED or REMOVED
+     */
+    public String type;
+    /**
+     * the Locality added, moved to or removed
+     */
+    public Locality locality;
+
+    public QueryDelta() {
+    }
+
+    public QueryDelta(String type, Locality locality) {
+        this.type = type;
+        this.locality = locality;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public Locality getLocality() {
+        return locality;
+    }
+
+    public void setLocality(Locality locality) {
+        this.locality = locality;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("QueryDelta {\n");
+        sb.append("\ttype: ").append(type).append("\n");
+        if (locality != null) {
+            sb.append("\tlocality: ").append(locality.getLocalityId()).append("\n");
+        }
+        sb.append("}").append("\n");
+        return sb.toString();
+    }
+}
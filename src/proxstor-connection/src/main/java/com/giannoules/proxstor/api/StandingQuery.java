@@ -0,0 +1,63 @@
+package com.giannoules.proxstor.api;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * ProxStor representation of a Query registered as a standing subscription.
+ * The service keeps the Query's matches up to date as Users check in and out
+ * and queues the changes (QueryDelta) for the subscriber to collect, rather
+ * than the subscriber re-submitting the Query every poll.
+ *
+ * Only Queries over current localities may stand, i.e. those without
+ * dateStart or dateEnd.
+ *
+ * This class is augmented with annotations
+ * identifying it for Java Architecture for XML Binding.
+ *
+ * @author James Giannoules
+ */
+@XmlRootElement
+public class StandingQuery {
+    /**
+     * id assigned by the service at registration
+     */
+    public String standingQueryId;
+    /**
+     * the registered Query
+     */
+    public Query query;
+
+    public StandingQuery() {
+    }
+
+    public StandingQuery(String standingQueryId, Query query) {
+        this.standingQueryId = standingQueryId;
+        this.query = query;
+    }
+
+    public String getStandingQueryId() {
+        return standingQueryId;
+    }
+
+    public void setStandingQueryId(String standingQueryId) {
+        this.standingQueryId = standingQueryId;
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    public void setQuery(Query query) {
+        this.query = query;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("StandingQuery {\n");
+        sb.append("\tstandingQueryId: ").append(standingQueryId).append("\n");
+        sb.append("\tquery: ").append(query).append("\n");
+        sb.append("}").append("\n");
+        return sb.toString();
+    }
+}
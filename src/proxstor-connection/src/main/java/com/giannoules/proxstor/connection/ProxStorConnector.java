@@ -1,20 +1,41 @@
 package com.giannoules.proxstor.connection;
 
+import com.giannoules.proxstor.api.Colocation;
+import com.giannoules.proxstor.api.Detection;
+import com.giannoules.proxstor.api.DetectionResult;
 import com.giannoules.proxstor.api.Device;
+import com.giannoules.proxstor.api.KnownUser;
 import com.giannoules.proxstor.api.Locality;
 import com.giannoules.proxstor.api.Location;
+import com.giannoules.proxstor.api.Notification;
+import com.giannoules.proxstor.api.OccupantCount;
+import com.giannoules.proxstor.api.Observation;
 import com.giannoules.proxstor.api.Query;
+import com.giannoules.proxstor.api.QueryDelta;
+import com.giannoules.proxstor.api.StandingQuery;
 import com.giannoules.proxstor.api.Environmental;
 import com.giannoules.proxstor.api.User;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -37,6 +58,15 @@ import org.glassfish.jersey.server.ResourceConfig;
 
 public class ProxStorConnector {
 
+    /**
+     * Response header carrying the cursor of the next page of a list
+     * endpoint. The Collection returning methods follow it to the last page;
+     * the iterate methods follow it lazily, one page at a time.
+     */
+    public static final String NEXT_CURSOR = "ProxStor-Next-Cursor";
+
+    private static final String SERVER_SENT_EVENTS = "text/event-stream";
+
     WebTarget target;
     Gson gson;
 
@@ -155,6 +185,8 @@ public class ProxStorConnector {
      *  /{s}/{user2}    PUT	Accept: application/json    update knows relationship with strength s from userid to user2
      *  /{s}/{user2}	DELETE	Accept: application/json    delete knows relationshipfrom userid to user2; strength ignored
      *  /{s}/reverse	GET	Accept: application/json    get users who know userid with min strength s (0 for all)
+     *  /{s}/depth/{d}	GET	Accept: application/json    get users reached from userid over up to d (1..3) knows
+     *                                                  relationships along paths of min strength s
      *
      */
     
@@ -167,18 +199,25 @@ public class ProxStorConnector {
      */
     public Collection<User> getKnows(String userId, Integer strength) {
         String path = cleanPath("user/" + userId + "/knows/strength/" + strength);
-        Response response = target.path(path)
-                .request(MediaType.APPLICATION_JSON).get();
-        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
-            String json = response.readEntity(String.class);
-
-            Type collectionType = new TypeToken<Collection<User>>() {
-            }.getType();
-            Collection<User> users = gson.fromJson(json, collectionType);
+        Type collectionType = new TypeToken<Collection<User>>() {
+        }.getType();
+        return getAll(path, null, collectionType);
+    }
 
-            return users;
-        }
-        return null;
+    /**
+     * iterate over the users userId knows with at least strength, fetching
+     * pageSize users at a time
+     * 
+     * @param userId
+     * @param strength
+     * @param pageSize
+     * @return 
+     */
+    public Iterator<User> iterateKnows(String userId, Integer strength, int pageSize) {
+        String path = cleanPath("user/" + userId + "/knows/strength/" + strength);
+        Type collectionType = new TypeToken<Collection<User>>() {
+        }.getType();
+        return new PageIterator<User>(path, null, collectionType, pageSize);
     }
 
     /**
@@ -191,19 +230,44 @@ public class ProxStorConnector {
     public Collection<User> getKnowsReverse(String userId, Integer strength) {
         String path = cleanPath("user/" + userId + "/knows/strength/" 
                 + strength + "/reverse");
-        Response response = target.path(path)
-                .request(MediaType.APPLICATION_JSON)
-                .get();
-        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
-            String json = response.readEntity(String.class);
+        Type collectionType = new TypeToken<Collection<User>>() {
+        }.getType();
+        return getAll(path, null, collectionType);
+    }
 
-            Type collectionType = new TypeToken<Collection<User>>() {
-            }.getType();
-            Collection<User> users = gson.fromJson(json, collectionType);
+    /**
+     * iterate over the users known by userId with at least strength,
+     * fetching pageSize users at a time
+     * 
+     * @param userId
+     * @param strength
+     * @param pageSize
+     * @return 
+     */
+    public Iterator<User> iterateKnowsReverse(String userId, Integer strength, int pageSize) {
+        String path = cleanPath("user/" + userId + "/knows/strength/" 
+                + strength + "/reverse");
+        Type collectionType = new TypeToken<Collection<User>>() {
+        }.getType();
+        return new PageIterator<User>(path, null, collectionType, pageSize);
+    }
 
-            return users;
-        }
-        return null;
+    /**
+     * return collection of users reached from userId over up to depth knows
+     * relationships, along paths whose weakest relationship has at least
+     * strength, in order of degree then descending path strength. returns
+     * null if none are reached
+     * 
+     * @param userId
+     * @param strength
+     * @param depth number of hops, 1..3
+     * @return 
+     */
+    public Collection<KnownUser> getKnowsToDepth(String userId, Integer strength, int depth) {
+        String path = cleanPath("user/" + userId + "/knows/strength/" + strength + "/depth/" + depth);
+        Type collectionType = new TypeToken<Collection<KnownUser>>() {
+        }.getType();
+        return getAll(path, null, collectionType);
     }
 
     /**
@@ -448,17 +512,22 @@ public class ProxStorConnector {
      */
     public Collection<Environmental> getEnvironmentals(String locId) {
         String path = cleanPath("/location/" + locId + "/environmental");
-        Response response = target.path(path)
-                .request(MediaType.APPLICATION_JSON_TYPE)
-                .get();
-        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
-            String json = response.readEntity(String.class);
-            Type collectionType = new TypeToken<Collection<Environmental>>() {
-            }.getType();
-            Collection<Environmental> environmentals = gson.fromJson(json, collectionType);
-            return environmentals;
-        }
-        return null;
+        Type collectionType = new TypeToken<Collection<Environmental>>() {
+        }.getType();
+        return getAll(path, null, collectionType);
+    }
+
+    /**
+     * 
+     * @param locId
+     * @param pageSize
+     * @return 
+     */
+    public Iterator<Environmental> iterateEnvironmentals(String locId, int pageSize) {
+        String path = cleanPath("/location/" + locId + "/environmental");
+        Type collectionType = new TypeToken<Collection<Environmental>>() {
+        }.getType();
+        return new PageIterator<Environmental>(path, null, collectionType, pageSize);
     }
     
     /**
@@ -497,17 +566,22 @@ public class ProxStorConnector {
      */
     public Collection<Location> getLocationsWithin(String locId) {
         String path = cleanPath("/location/" + locId + "/within");
-        Response response = target.path(path)
-                .request(MediaType.APPLICATION_JSON_TYPE)
-                .get();
-        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
-            String json = response.readEntity(String.class);
-            Type collectionType = new TypeToken<Collection<Location>>() {
-            }.getType();
-            Collection<Location> locations = gson.fromJson(json, collectionType);
-            return locations;
-        }
-        return null;
+        Type collectionType = new TypeToken<Collection<Location>>() {
+        }.getType();
+        return getAll(path, null, collectionType);
+    }
+
+    /**
+     * 
+     * @param locId
+     * @param pageSize
+     * @return 
+     */
+    public Iterator<Location> iterateLocationsWithin(String locId, int pageSize) {
+        String path = cleanPath("/location/" + locId + "/within");
+        Type collectionType = new TypeToken<Collection<Location>>() {
+        }.getType();
+        return new PageIterator<Location>(path, null, collectionType, pageSize);
     }
 
     /**
@@ -517,17 +591,22 @@ public class ProxStorConnector {
      */
     public Collection<Location> getLocationsWithinReverse(String locId) {
         String path = cleanPath("/location/" + locId + "/within/reverse");
-        Response response = target.path(path)
-                .request(MediaType.APPLICATION_JSON_TYPE)
-                .get();
-        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
-            String json = response.readEntity(String.class);
-            Type collectionType = new TypeToken<Collection<Location>>() {
-            }.getType();
-            Collection<Location> locations = gson.fromJson(json, collectionType);
-            return locations;
-        }
-        return null;
+        Type collectionType = new TypeToken<Collection<Location>>() {
+        }.getType();
+        return getAll(path, null, collectionType);
+    }
+
+    /**
+     * 
+     * @param locId
+     * @param pageSize
+     * @return 
+     */
+    public Iterator<Location> iterateLocationsWithinReverse(String locId, int pageSize) {
+        String path = cleanPath("/location/" + locId + "/within/reverse");
+        Type collectionType = new TypeToken<Collection<Location>>() {
+        }.getType();
+        return new PageIterator<Location>(path, null, collectionType, pageSize);
     }
 
     /**
@@ -606,17 +685,23 @@ public class ProxStorConnector {
      */
     public Collection<Location> getLocationsNearby(String locId, long distance) {
         String path = cleanPath("/location/" + locId + "/nearby/distance/" + distance);
-        Response response = target.path(path)
-                .request(MediaType.APPLICATION_JSON_TYPE)
-                .get();
-        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
-            String json = response.readEntity(String.class);
-            Type collectionType = new TypeToken<Collection<Location>>() {
-            }.getType();
-            Collection<Location> locations = gson.fromJson(json, collectionType);
-            return locations;
-        }
-        return null;
+        Type collectionType = new TypeToken<Collection<Location>>() {
+        }.getType();
+        return getAll(path, null, collectionType);
+    }
+
+    /**
+     * 
+     * @param locId
+     * @param distance
+     * @param pageSize
+     * @return 
+     */
+    public Iterator<Location> iterateLocationsNearby(String locId, long distance, int pageSize) {
+        String path = cleanPath("/location/" + locId + "/nearby/distance/" + distance);
+        Type collectionType = new TypeToken<Collection<Location>>() {
+        }.getType();
+        return new PageIterator<Location>(path, null, collectionType, pageSize);
     }
 
     /**
@@ -652,18 +737,21 @@ public class ProxStorConnector {
      * @return 
      */
     public Collection<User> searchUsers(User search) {
-        Response response = target.path("search/users")
-                .request(MediaType.APPLICATION_JSON_TYPE)
-                .post(Entity.entity(search, MediaType.APPLICATION_JSON_TYPE));
-        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
-            String json = response.readEntity(String.class);
-            Type collectionType = new TypeToken<Collection<User>>() {
-            }.getType();
-            Collection<User> users = gson.fromJson(json, collectionType);
+        Type collectionType = new TypeToken<Collection<User>>() {
+        }.getType();
+        return getAll("search/users", search, collectionType);
+    }
 
-            return users;
-        }
-        return null;
+    /**
+     * 
+     * @param search
+     * @param pageSize
+     * @return 
+     */
+    public Iterator<User> iterateSearchUsers(User search, int pageSize) {
+        Type collectionType = new TypeToken<Collection<User>>() {
+        }.getType();
+        return new PageIterator<User>("search/users", search, collectionType, pageSize);
     }
         
      /**
@@ -732,6 +820,46 @@ public class ProxStorConnector {
         return response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL;
     }
     
+    /**
+     * retrieve the users currently checked into a location
+     * 
+     * @param locId location id
+     * @param includeWithin also include users at locations within locId
+     * @return Collection of Users if successful; null otherwise
+     */
+    public Collection<User> getLocationOccupants(String locId, boolean includeWithin) {
+        String path = cleanPath("/location/" + locId + "/occupants" + (includeWithin ? "/within" : ""));
+        Response response = target.path(path)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .get();
+        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
+            String json = response.readEntity(String.class);
+            Type collectionType = new TypeToken<Collection<User>>() {
+            }.getType();
+            Collection<User> users = gson.fromJson(json, collectionType);
+            return users;
+        }
+        return null;
+    }
+    
+    /**
+     * count the users currently checked into a location
+     * 
+     * @param locId location id
+     * @param includeWithin also count users at locations within locId
+     * @return number of Users if successful; null otherwise
+     */
+    public Integer getLocationOccupantCount(String locId, boolean includeWithin) {
+        String path = cleanPath("/location/" + locId + "/occupants" + (includeWithin ? "/within" : "") + "/count");
+        Response response = target.path(path)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .get();
+        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
+            return response.readEntity(OccupantCount.class).getCount();
+        }
+        return null;
+    }
+    
     /**
      * check into location when user manually specifies location
      * @param userId user id checking in
@@ -832,6 +960,45 @@ public class ProxStorConnector {
         return response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL;
     }
     
+    /**
+     * submit a batch of device detections, applied by ProxStor in a single
+     * transaction
+     * 
+     * @param detections detections to submit (at most 1024)
+     * @return one DetectionResult per detection, in the same order; null if
+     * the batch was rejected
+     */
+    public List<DetectionResult> deviceDetectsEnvironmentals(List<Detection> detections) {
+        String path = "/checkin/detections";
+        Response response = target.path(path)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(detections.toArray(new Detection[detections.size()]), MediaType.APPLICATION_JSON_TYPE));
+        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
+            return response.readEntity(new GenericType<List<DetectionResult>>() {
+            });
+        }
+        return null;
+    }
+    
+    /**
+     * check in to the location best matching a fingerprint of environmentals
+     * a device observes at once
+     * 
+     * @param devId device id performing the detection
+     * @param observations environmentals observed, with optional signal strength
+     * @return Locality if successful; null otherwise
+     */
+    public Locality deviceDetectsFingerprint(String devId, List<Observation> observations) {
+        String path = cleanPath("/checkin/device/" + devId + "/fingerprint");
+        Response response = target.path(path)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(observations.toArray(new Observation[observations.size()]), MediaType.APPLICATION_JSON_TYPE));
+        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
+            return response.readEntity(Locality.class);
+        }
+        return null;
+    }
+    
     /**
      * submit Query to proxstor
      * 
@@ -853,6 +1020,180 @@ public class ProxStorConnector {
         return null;
     }
     
+    /**
+     * iterate over the results of Query, fetching pageSize Localities at a
+     * time. Later pages are only evaluated as the iteration reaches them.
+     * 
+     * @param q Query to submit
+     * @param pageSize
+     * @return results of query
+     */
+    public Iterator<Locality> iterateQuery(Query q, int pageSize) {
+        Type collectionType = new TypeToken<Collection<Locality>>() {
+        }.getType();
+        return new PageIterator<Locality>("/query", q, collectionType, pageSize);
+    }
+    
+    /**
+     * submit Query as a co-location query: the windows between dateStart and
+     * dateEnd during which other users (those userId knows with at least
+     * strength, if given) were at the same location as userId, each lasting
+     * at least minOverlap milliseconds. users still checked in count as
+     * staying until dateEnd
+     * 
+     * @param q Query to submit. must have userId and dateStart
+     * @return co-locations ordered by start; null if none or unsuccessful
+     */
+    public Collection<Colocation> getColocated(Query q) {
+        Type collectionType = new TypeToken<Collection<Colocation>>() {
+        }.getType();
+        return getAll("/query/colocated", q, collectionType);
+    }
+    
+    /**
+     * iterate over the co-locations of Query (see getColocated), fetching
+     * pageSize at a time
+     * 
+     * @param q Query to submit
+     * @param pageSize
+     * @return co-locations ordered by start
+     */
+    public Iterator<Colocation> iterateColocated(Query q, int pageSize) {
+        Type collectionType = new TypeToken<Collection<Colocation>>() {
+        }.getType();
+        return new PageIterator<Colocation>("/query/colocated", q, collectionType, pageSize);
+    }
+    
+    /**
+     * describe how proxstor would evaluate Query, without evaluating it
+     * 
+     * @param q Query to explain
+     * @return plain text query plan if successful; null otherwise
+     */
+    public String explainQuery(Query q) {
+        String path = "/query/explain";
+        Response response = target.path(path)
+                .request(MediaType.TEXT_PLAIN)
+                .post(Entity.entity(q, MediaType.APPLICATION_JSON_TYPE));
+        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
+            return response.readEntity(String.class);
+        }
+        return null;
+    }
+    
+    /**
+     * evaluate the first page of Query and describe how proxstor evaluated
+     * it: the plan, the work and time of each stage, and the number of
+     * results
+     * 
+     * @param q Query to profile
+     * @return plain text query profile if successful; null otherwise
+     */
+    public String profileQuery(Query q) {
+        String path = "/query/profile";
+        Response response = target.path(path)
+                .request(MediaType.TEXT_PLAIN)
+                .post(Entity.entity(q, MediaType.APPLICATION_JSON_TYPE));
+        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
+            return response.readEntity(String.class);
+        }
+        return null;
+    }
+    
+    /**
+     * register Query as a standing query whose matches proxstor keeps up to
+     * date as users check in and out
+     * 
+     * @param q Query to register. must not have dateStart or dateEnd
+     * @return StandingQuery carrying the standingQueryId if successful; null otherwise
+     */
+    public StandingQuery addStandingQuery(Query q) {
+        String path = "/query/standing";
+        Response response = target.path(path)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .post(Entity.entity(q, MediaType.APPLICATION_JSON_TYPE));
+        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
+            return response.readEntity(StandingQuery.class);
+        }
+        return null;
+    }
+    
+    /**
+     * retrieve the current matches of a standing query
+     * 
+     * @param standingQueryId id of the standing query
+     * @return matching Localities (null if none) if successful; null otherwise
+     */
+    public Collection<Locality> getStandingQueryMatches(String standingQueryId) {
+        String path = cleanPath("/query/standing/" + standingQueryId);
+        Response response = target.path(path)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .get();
+        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
+            String json = response.readEntity(String.class);
+            Type collectionType = new TypeToken<Collection<Locality>>() {
+            }.getType();
+            Collection<Locality> localities = gson.fromJson(json, collectionType);
+            return localities;
+        }
+        return null;
+    }
+    
+    /**
+     * retrieve, and clear, the changes to a standing query's matches since the
+     * last call
+     * 
+     * @param standingQueryId id of the standing query
+     * @return QueryDeltas oldest first (null if none) if successful; null otherwise
+     */
+    public List<QueryDelta> getStandingQueryDeltas(String standingQueryId) {
+        String path = cleanPath("/query/standing/" + standingQueryId + "/deltas");
+        Response response = target.path(path)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .get();
+        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
+            String json = response.readEntity(String.class);
+            Type listType = new TypeToken<List<QueryDelta>>() {
+            }.getType();
+            List<QueryDelta> deltas = gson.fromJson(json, listType);
+            return deltas;
+        }
+        return null;
+    }
+    
+    /**
+     * remove a standing query
+     * 
+     * @param standingQueryId id of the standing query
+     * @return true if successful; false otherwise
+     */
+    public boolean deleteStandingQuery(String standingQueryId) {
+        String path = cleanPath("/query/standing/" + standingQueryId);
+        Response response = target.path(path).request().delete();
+        return response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL;
+    }
+    
+    /**
+     * open a stream of Notifications of the arrivals and departures of users
+     * userId knows with at least strength
+     * 
+     * @param userId id of the subscribing user
+     * @param strength least strength of the knows relationship (0-100)
+     * @return NotificationStream if successful; null otherwise
+     */
+    public NotificationStream openNotifications(String userId, int strength) {
+        String path = cleanPath("/user/" + userId + "/notifications");
+        Response response = target.path(path)
+                .queryParam("strength", strength)
+                .request(SERVER_SENT_EVENTS)
+                .get();
+        if (response.getStatusInfo().getFamily() == Status.Family.SUCCESSFUL) {
+            return new NotificationStream(response, gson);
+        }
+        response.close();
+        return null;
+    }
+    
     /**
      * @TODO
      * not implemented
@@ -975,6 +1316,184 @@ public class ProxStorConnector {
         return null;
     }
 
-}
 
+    /*
+     * fetch one page of a list endpoint: GET, or POST of entity if not null
+     */
+    private Response getPage(String path, Object entity, Integer limit, String cursor) {
+        WebTarget t = target.path(path);
+        if (limit != null) {
+            t = t.queryParam("limit", limit);
+        }
+        if (cursor != null) {
+            t = t.queryParam("cursor", cursor);
+        }
+        Invocation.Builder request = t.request(MediaType.APPLICATION_JSON_TYPE);
+        if (entity == null) {
+            return request.get();
+        }
+        return request.post(Entity.entity(entity, MediaType.APPLICATION_JSON_TYPE));
+    }
+
+    /*
+     * every page of a list endpoint as one Collection; null if a page is not
+     * successful or the first is empty (204)
+     */
+    private <T> Collection<T> getAll(String path, Object entity, Type collectionType) {
+        Collection<T> all = null;
+        String cursor = null;
+        do {
+            Response response = getPage(path, entity, null, cursor);
+            if (response.getStatusInfo().getFamily() != Status.Family.SUCCESSFUL) {
+                return null;
+            }
+            String json = response.readEntity(String.class);
+            Collection<T> items = gson.fromJson(json, collectionType);
+            if (items == null) {
+                return all;
+            }
+            if (all == null) {
+                all = items;
+            } else {
+                all.addAll(items);
+            }
+            cursor = response.getHeaderString(NEXT_CURSOR);
+        } while (cursor != null);
+        return all;
+    }
+
+    /*
+     * lazily follows NEXT_CURSOR, holding one page at a time. nothing is
+     * returned if the first page is not successful; a later page failing
+     * ends the iteration with an IllegalStateException rather than cutting
+     * it short
+     */
+    private class PageIterator<T> implements Iterator<T> {
+
+        private final String path;
+        private final Object entity;
+        private final Type collectionType;
+        private final int pageSize;
+        private String cursor;
+        private boolean last;
+        private Iterator<T> page = Collections.emptyIterator();
 
+        PageIterator(String path, Object entity, Type collectionType, int pageSize) {
+            this.path = path;
+            this.entity = entity;
+            this.collectionType = collectionType;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!page.hasNext() && !last) {
+                fetch();
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fetch() {
+            Response response = getPage(path, entity, pageSize, cursor);
+            if (response.getStatusInfo().getFamily() != Status.Family.SUCCESSFUL) {
+                last = true;
+                if (cursor != null) {
+                    throw new IllegalStateException("page request failed: " + response.getStatus());
+                }
+                return;
+            }
+            String json = response.readEntity(String.class);
+            Collection<T> items = gson.fromJson(json, collectionType);
+            page = (items == null) ? Collections.<T>emptyIterator() : items.iterator();
+            cursor = response.getHeaderString(NEXT_CURSOR);
+            last = (cursor == null);
+        }
+    }
+
+    /**
+     * Open stream of Notifications returned by openNotifications(). hasNext()
+     * blocks until the next Notification arrives, and returns false once the
+     * stream has ended or been closed.
+     */
+    public static class NotificationStream implements Iterator<Notification>, Closeable {
+
+        private final Response response;
+        private final BufferedReader reader;
+        private final Gson gson;
+        private Notification next;
+
+        NotificationStream(Response response, Gson gson) {
+            this.response = response;
+            this.reader = new BufferedReader(new InputStreamReader(response.readEntity(InputStream.class), StandardCharsets.UTF_8));
+            this.gson = gson;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = read();
+                } catch (IOException ex) {
+                    next = null;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Notification next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Notification n = next;
+            next = null;
+            return n;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            response.close();
+        }
+
+        /*
+         * the next event carrying data, skipping comments (heartbeats); null
+         * at the end of the stream
+         */
+        private Notification read() throws IOException {
+            StringBuilder data = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    if (data.length() > 0) {
+                        return gson.fromJson(data.toString(), Notification.class);
+                    }
+                } else if (line.startsWith("data:")) {
+                    if (data.length() > 0) {
+                        data.append('\n');
+                    }
+                    data.append(line.substring(line.startsWith("data: ") ? 6 : 5));
+                }
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.giannoules.proxstor.connection;
+
+import com.giannoules.proxstor.api.Colocation;
+import com.giannoules.proxstor.api.Location;
+import com.giannoules.proxstor.api.LocationType;
+import com.giannoules.proxstor.api.Query;
+import com.giannoules.proxstor.api.User;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for ProxStorConnector's co-location query methods
+ *
+ * @author James Giannoules
+ */
+public class ColocationConnectorTester {
+
+    private static ProxStorConnector conn;
+    private Location cafe;
+    private Location park;
+    private User a;
+    private User b;
+    private User c;
+    private User d;
+    private Date before;
+
+    public ColocationConnectorTester() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        conn = new ProxStorConnector(ConnectionSettings.ConnectionString);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /**
+     * two locations and four users, whose visits to cafe relate to a's:
+     * - b overlaps a for at least 1.5 seconds
+     * - d overlaps a for a moment only
+     * - c arrives once a has left, then visits the park
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        Location l = new Location();
+        l.setAddress("300 Congress Ave.");
+        l.setDescription("Corner Cafe");
+        l.setType(LocationType.BUSINESS);
+        cafe = conn.addLocation(l);
+        assertNotNull(cafe);
+        l = new Location();
+        l.setAddress("400 Riverside Dr.");
+        l.setDescription("City Park");
+        l.setType(LocationType.BUSINESS);
+        park = conn.addLocation(l);
+        assertNotNull(park);
+        a = conn.addUser(new User("a", "last", "a_last@msn.com"));
+        b = conn.addUser(new User("b", "last", "b_last@msn.com"));
+        c = conn.addUser(new User("c", "last", "c_last@msn.com"));
+        d = conn.addUser(new User("d", "last", "d_last@msn.com"));
+        before = new Date(System.currentTimeMillis() - 60 * 60 * 1000);
+        assertNotNull(conn.userCheckinLocation(a.getUserId(), cafe.getLocId()));
+        assertNotNull(conn.userCheckinLocation(b.getUserId(), cafe.getLocId()));
+        assertNotNull(conn.userCheckinLocation(d.getUserId(), cafe.getLocId()));
+        Thread.sleep(100);
+        assertTrue(conn.userCheckoutLocation(d.getUserId(), cafe.getLocId()));
+        Thread.sleep(1500);
+        assertTrue(conn.userCheckoutLocation(b.getUserId(), cafe.getLocId()));
+        assertTrue(conn.userCheckoutLocation(a.getUserId(), cafe.getLocId()));
+        assertNotNull(conn.userCheckinLocation(c.getUserId(), cafe.getLocId()));
+        assertNotNull(conn.userCheckinLocation(c.getUserId(), park.getLocId()));
+        assertTrue(conn.userCheckoutLocation(c.getUserId(), park.getLocId()));
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * co-locations of a since before the visits
+     * - expect b and d at cafe, ordered by start, and never c
+     */
+    @Test
+    public void getColocated() {
+        Query q = new Query();
+        q.setUserId(a.getUserId());
+        q.setDateStart(before);
+        Collection<Colocation> found = conn.getColocated(q);
+        assertNotNull(found);
+        assertEquals(2, found.size());
+        Iterator<Colocation> it = found.iterator();
+        Colocation first = it.next();
+        Colocation second = it.next();
+        assertEquals(b.getUserId(), first.getUserId());
+        assertEquals(d.getUserId(), second.getUserId());
+        assertFalse(first.getStart().after(second.getStart()));
+        for (Colocation co : found) {
+            assertEquals(cafe.getLocId(), co.getLocationId());
+            assertTrue(co.getEnd().after(co.getStart()));
+        }
+    }
+
+    /**
+     * co-locations of a lasting at least a second
+     * - expect b alone, d's moment falls short
+     */
+    @Test
+    public void getColocatedMinOverlap() {
+        Query q = new Query();
+        q.setUserId(a.getUserId());
+        q.setDateStart(before);
+        q.setMinOverlap(1000L);
+        Collection<Colocation> found = conn.getColocated(q);
+        assertNotNull(found);
+        assertEquals(1, found.size());
+        Colocation co = found.iterator().next();
+        assertEquals(b.getUserId(), co.getUserId());
+        assertTrue(co.getEnd().getTime() - co.getStart().getTime() >= 1000);
+    }
+
+    /**
+     * co-locations of c, who arrived at cafe after everyone else had left
+     * - expect none (null)
+     */
+    @Test
+    public void getColocatedNonOverlapping() {
+        Query q = new Query();
+        q.setUserId(c.getUserId());
+        q.setDateStart(before);
+        assertNull(conn.getColocated(q));
+    }
+
+    /**
+     * a and b both check into the park and stay
+     * - expect their current localities to be co-located until now
+     */
+    @Test
+    public void getColocatedCurrent() {
+        assertNotNull(conn.userCheckinLocation(a.getUserId(), park.getLocId()));
+        assertNotNull(conn.userCheckinLocation(b.getUserId(), park.getLocId()));
+        Query q = new Query();
+        q.setUserId(b.getUserId());
+        q.setDateStart(before);
+        q.setLocationId(park.getLocId());
+        Collection<Colocation> found = conn.getColocated(q);
+        assertNotNull(found);
+        assertEquals(1, found.size());
+        assertEquals(a.getUserId(), found.iterator().next().getUserId());
+    }
+
+    /**
+     * iterate over a's co-locations one per page
+     * - expect the same co-locations as getColocated, in the same order
+     */
+    @Test
+    public void iterateColocated() {
+        Query q = new Query();
+        q.setUserId(a.getUserId());
+        q.setDateStart(before);
+        List<String> paged = new ArrayList<>();
+        Iterator<Colocation> it = conn.iterateColocated(q, 1);
+        while (it.hasNext()) {
+            paged.add(it.next().getUserId());
+        }
+        List<String> all = new ArrayList<>();
+        for (Colocation co : conn.getColocated(q)) {
+            all.add(co.getUserId());
+        }
+        assertEquals(all, paged);
+        assertEquals(2, paged.size());
+    }
+}
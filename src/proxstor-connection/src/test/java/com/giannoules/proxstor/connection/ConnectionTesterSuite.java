@@ -14,10 +14,14 @@ import org.junit.runners.Suite;
    LocationConnectorTester.class,
    LocationNearbyConnectorTester.class,
    LocationWithinConnectorTester.class,
+   LocationOccupantsConnectorTester.class,
    EnvironmentalConnectorTester.class,
    UserConnectorTester.class,
    UserKnowsConnectorTester.class,
-   LocalityConnectorTester.class
+   LocalityConnectorTester.class,
+   ColocationConnectorTester.class,
+   StandingQueryConnectorTester.class,
+   NotificationConnectorTester.class
 })
 public class ConnectionTesterSuite {
   
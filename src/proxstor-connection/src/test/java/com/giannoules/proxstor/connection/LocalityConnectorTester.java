@@ -1,13 +1,18 @@
 package com.giannoules.proxstor.connection;
 
+import com.giannoules.proxstor.api.Detection;
+import com.giannoules.proxstor.api.DetectionResult;
 import com.giannoules.proxstor.api.Device;
 import com.giannoules.proxstor.api.Locality;
 import com.giannoules.proxstor.api.Location;
+import com.giannoules.proxstor.api.Observation;
 import com.giannoules.proxstor.api.LocationType;
 import com.giannoules.proxstor.api.Environmental;
 import com.giannoules.proxstor.api.EnvironmentalType;
 import com.giannoules.proxstor.api.User;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -188,5 +193,63 @@ public class LocalityConnectorTester  {
         m.setLocationId(l.getLocationId());
         assertEquals(l, m);        
     }    
+    
+    /**
+     * submit a batch detecting goodEnvironmental twice and an invalid device
+     * - expect first detection to check in (201)
+     * - expect repeat detection and invalid device to be rejected (400)
+     */
+    @Test
+    public void deviceDetectsEnvironmentalsBatch() {
+        List<Detection> batch = new ArrayList<>();
+        batch.add(new Detection(goodDevice.getDevId(), goodEnvironmental.getEnvironmentalId(), new Date()));
+        batch.add(new Detection(goodDevice.getDevId(), goodEnvironmental.getEnvironmentalId(), new Date()));
+        batch.add(new Detection(goodDevice.getDevId() + 1, goodEnvironmental.getEnvironmentalId(), new Date()));
+        List<DetectionResult> results = conn.deviceDetectsEnvironmentals(batch);
+        assertNotNull(results);
+        assertEquals(3, results.size());
+        assertEquals(201, results.get(0).getStatus());
+        assertEquals(goodLocation.getLocId(), results.get(0).getLocality().getLocationId());
+        assertEquals(400, results.get(1).getStatus());
+        assertEquals(400, results.get(2).getStatus());
+    }
+    
+    /**
+     * fingerprint of two environmentals in a second location plus a weak
+     * goodEnvironmental
+     * - expect check in to the second location
+     * - expect fingerprint of unknown identifiers to be rejected (null)
+     */
+    @Test
+    public void deviceDetectsFingerprint() {
+        Location l = new Location();
+        l.setAddress("12347 Main St.");
+        l.setDescription("Coffee Shop Next Door");
+        l.setType(LocationType.BUSINESS);
+        Location other = conn.addLocation(l);
+        assertNotNull(other);
+        List<Observation> fingerprint = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Environmental s = new Environmental();
+            s.setDescription("WiFi in Coffee Shop");
+            s.setType(EnvironmentalType.WIFI_BSSID);
+            s.setIdentifier(UUID.randomUUID().toString());
+            assertNotNull(conn.addEnvironmental(other.getLocId(), s));
+            fingerprint.add(new Observation(s, -55));
+        }
+        Environmental weak = new Environmental();
+        weak.setType(goodEnvironmental.getType());
+        weak.setIdentifier(goodEnvironmental.getIdentifier());
+        fingerprint.add(new Observation(weak, -90));
+        Locality loc = conn.deviceDetectsFingerprint(goodDevice.getDevId(), fingerprint);
+        assertNotNull(loc);
+        assertEquals(other.getLocId(), loc.getLocationId());
+        Environmental unknown = new Environmental();
+        unknown.setType(EnvironmentalType.WIFI_BSSID);
+        unknown.setIdentifier(UUID.randomUUID().toString());
+        List<Observation> none = new ArrayList<>();
+        none.add(new Observation(unknown, null));
+        assertNull(conn.deviceDetectsFingerprint(goodDevice.getDevId(), none));
+    }
   
 }
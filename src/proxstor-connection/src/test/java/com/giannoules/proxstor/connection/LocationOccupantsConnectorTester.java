@@ -0,0 +1,139 @@
+package com.giannoules.proxstor.connection;
+
+import com.giannoules.proxstor.api.Location;
+import com.giannoules.proxstor.api.LocationType;
+import com.giannoules.proxstor.api.User;
+import java.util.Collection;
+import org.junit.After;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for ProxStorConnector's Location occupancy methods
+ *
+ * @author James Giannoules
+ */
+public class LocationOccupantsConnectorTester {
+
+    private static ProxStorConnector conn;
+    private Location outer;
+    private Location inner;
+    private User a;
+    private User b;
+    private String invalidLocId;
+
+    public LocationOccupantsConnectorTester() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        conn = new ProxStorConnector(ConnectionSettings.ConnectionString);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /**
+     * create two locations, inner within outer, and check user a into outer
+     * and user b into inner
+     */
+    @Before
+    public void setUp() {
+        Location l = new Location();
+        l.setAddress("500 Mall Dr.");
+        l.setDescription("Shopping Mall");
+        l.setLatitude(30.267153);
+        l.setLongitude(-97.7430608);
+        l.setType(LocationType.BUSINESS);
+        outer = conn.addLocation(l);
+        assertNotNull(outer);
+
+        l = new Location();
+        l.setAddress("500 Mall Dr. Suite 12");
+        l.setDescription("Food Court Coffee Shop");
+        l.setLatitude(30.267153);
+        l.setLongitude(-97.7430608);
+        l.setType(LocationType.BUSINESS);
+        inner = conn.addLocation(l);
+        assertNotNull(inner);
+        assertTrue(conn.addLocationWithin(inner.getLocId(), outer.getLocId()));
+
+        a = conn.addUser(new User("first", "last", "f_last@msn.com"));
+        b = conn.addUser(new User("second", "last", "s_last@msn.com"));
+        assertNotNull(conn.userCheckinLocation(a.getUserId(), outer.getLocId()));
+        assertNotNull(conn.userCheckinLocation(b.getUserId(), inner.getLocId()));
+
+        invalidLocId = inner.getLocId() + 1;
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * occupants of outer and inner
+     * - expect {a} and {b}
+     */
+    @Test
+    public void getOccupants() {
+        Collection<User> users = conn.getLocationOccupants(outer.getLocId(), false);
+        assertEquals(1, users.size());
+        assertEquals(a, users.iterator().next());
+        users = conn.getLocationOccupants(inner.getLocId(), false);
+        assertEquals(1, users.size());
+        assertEquals(b, users.iterator().next());
+        assertEquals(Integer.valueOf(1), conn.getLocationOccupantCount(outer.getLocId(), false));
+    }
+
+    /**
+     * occupants of outer including locations within it
+     * - expect {a, b}
+     */
+    @Test
+    public void getOccupantsWithin() {
+        Collection<User> users = conn.getLocationOccupants(outer.getLocId(), true);
+        assertEquals(2, users.size());
+        assertTrue(users.contains(a));
+        assertTrue(users.contains(b));
+        assertEquals(Integer.valueOf(2), conn.getLocationOccupantCount(outer.getLocId(), true));
+    }
+
+    /**
+     * check b out of inner
+     * - expect inner to be empty and outer (within) to hold only a
+     */
+    @Test
+    public void checkoutLeavesLocation() {
+        assertTrue(conn.userCheckoutLocation(b.getUserId(), inner.getLocId()));
+        assertEquals(Integer.valueOf(0), conn.getLocationOccupantCount(inner.getLocId(), false));
+        assertEquals(Integer.valueOf(1), conn.getLocationOccupantCount(outer.getLocId(), true));
+    }
+
+    /**
+     * move a from outer into inner
+     * - expect outer empty, inner {a, b}
+     */
+    @Test
+    public void checkinMovesOccupant() {
+        assertNotNull(conn.userCheckinLocation(a.getUserId(), inner.getLocId()));
+        assertEquals(Integer.valueOf(0), conn.getLocationOccupantCount(outer.getLocId(), false));
+        assertEquals(Integer.valueOf(2), conn.getLocationOccupantCount(inner.getLocId(), false));
+    }
+
+    /**
+     * occupants of invalid location id
+     * - expect null
+     */
+    @Test
+    public void getOccupantsInvalid() {
+        assertNull(conn.getLocationOccupants(invalidLocId, false));
+        assertNull(conn.getLocationOccupantCount(invalidLocId, true));
+    }
+}
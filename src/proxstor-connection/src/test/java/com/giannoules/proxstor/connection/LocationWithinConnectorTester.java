@@ -2,8 +2,10 @@ package com.giannoules.proxstor.connection;
 
 import com.giannoules.proxstor.api.Location;
 import com.giannoules.proxstor.api.LocationType;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -160,6 +162,25 @@ public class LocationWithinConnectorTester {
         assertNull(conn.getLocationsWithinReverse(invalidLocId)); 
     }
     
+    /**
+     * iterate over locations which d is within, one per page
+     * - expect {b, c}
+     * iterate over locations which invalidid is within
+     * - expect nothing
+     */
+    @Test
+    public void iterateWithinReverse() {
+        Iterator<Location> it = conn.iterateLocationsWithinReverse(d.getLocId(), 1);
+        Collection<Location> locations = new ArrayList<>();
+        while (it.hasNext()) {
+            locations.add(it.next());
+        }
+        assertEquals(locations.size(), 2);
+        assertTrue(locations.contains(c));
+        assertTrue(locations.contains(b));
+        assertFalse(conn.iterateLocationsWithinReverse(invalidLocId, 1).hasNext());
+    }
+    
     /**
      * test that c is within d
      * test that b is within d
@@ -0,0 +1,108 @@
+package com.giannoules.proxstor.connection;
+
+import com.giannoules.proxstor.api.Location;
+import com.giannoules.proxstor.api.LocationType;
+import com.giannoules.proxstor.api.Notification;
+import com.giannoules.proxstor.api.User;
+import com.giannoules.proxstor.connection.ProxStorConnector.NotificationStream;
+import org.junit.After;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for ProxStorConnector's notification stream
+ *
+ * @author James Giannoules
+ */
+public class NotificationConnectorTester {
+
+    private static ProxStorConnector conn;
+    private Location cafe;
+    private User me;
+    private User friend;
+    private NotificationStream stream;
+
+    public NotificationConnectorTester() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        conn = new ProxStorConnector(ConnectionSettings.ConnectionString);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /**
+     * a location, a friend me knows with strength 80, and me subscribed to
+     * notifications of friends of strength 50 or more
+     */
+    @Before
+    public void setUp() {
+        Location l = new Location();
+        l.setAddress("500 Congress Ave.");
+        l.setDescription("Corner Cafe");
+        l.setType(LocationType.BUSINESS);
+        cafe = conn.addLocation(l);
+        assertNotNull(cafe);
+        me = conn.addUser(new User("first", "last", "f_last@msn.com"));
+        friend = conn.addUser(new User("second", "last", "s_last@msn.com"));
+        assertTrue(conn.addUserKnows(me, friend, 80));
+        stream = conn.openNotifications(me.getUserId(), 50);
+        assertNotNull(stream);
+    }
+
+    @After
+    public void tearDown() {
+        stream.close();
+    }
+
+    /**
+     * friend checks into cafe
+     * - expect an arrival of friend at cafe, with strength 80
+     */
+    @Test(timeout = 10000)
+    public void notifiedOfArrival() {
+        assertNotNull(conn.userCheckinLocation(friend.getUserId(), cafe.getLocId()));
+        assertTrue(stream.hasNext());
+        Notification n = stream.next();
+        assertEquals(Notification.ARRIVAL, n.getType());
+        assertEquals(friend.getUserId(), n.getUserId());
+        assertEquals(cafe.getLocId(), n.getLocality().getLocationId());
+        assertEquals(Integer.valueOf(80), n.getStrength());
+    }
+
+    /**
+     * friend checks into cafe and out again
+     * - expect an arrival, then a departure from cafe
+     */
+    @Test(timeout = 10000)
+    public void notifiedOfDeparture() {
+        assertNotNull(conn.userCheckinLocation(friend.getUserId(), cafe.getLocId()));
+        assertTrue(conn.userCheckoutLocation(friend.getUserId(), cafe.getLocId()));
+        assertTrue(stream.hasNext());
+        assertEquals(Notification.ARRIVAL, stream.next().getType());
+        assertTrue(stream.hasNext());
+        Notification n = stream.next();
+        assertEquals(Notification.DEPARTURE, n.getType());
+        assertEquals(cafe.getLocId(), n.getLocality().getLocationId());
+    }
+
+    /**
+     * subscribe a deleted user
+     * - expect failure (null)
+     */
+    @Test
+    public void openNotificationsInvalidUser() {
+        User gone = conn.addUser(new User("third", "last", "t_last@msn.com"));
+        assertTrue(conn.deleteUser(gone.getUserId()));
+        assertNull(conn.openNotifications(gone.getUserId(), 0));
+    }
+}
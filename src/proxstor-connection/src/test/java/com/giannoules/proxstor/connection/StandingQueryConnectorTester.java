@@ -0,0 +1,157 @@
+package com.giannoules.proxstor.connection;
+
+import com.giannoules.proxstor.api.Locality;
+import com.giannoules.proxstor.api.Location;
+import com.giannoules.proxstor.api.LocationType;
+import com.giannoules.proxstor.api.Query;
+import com.giannoules.proxstor.api.QueryDelta;
+import com.giannoules.proxstor.api.StandingQuery;
+import com.giannoules.proxstor.api.User;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for ProxStorConnector's standing query methods
+ *
+ * @author James Giannoules
+ */
+public class StandingQueryConnectorTester {
+
+    private static ProxStorConnector conn;
+    private Location cafe;
+    private Location park;
+    private User me;
+    private User friend;
+    private StandingQuery standing;
+
+    public StandingQueryConnectorTester() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        conn = new ProxStorConnector(ConnectionSettings.ConnectionString);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    /**
+     * two locations, a friend me knows with strength 80 checked into cafe,
+     * and a standing query for me's friends of strength 50 or more at cafe
+     */
+    @Before
+    public void setUp() {
+        Location l = new Location();
+        l.setAddress("100 Congress Ave.");
+        l.setDescription("Corner Cafe");
+        l.setType(LocationType.BUSINESS);
+        cafe = conn.addLocation(l);
+        assertNotNull(cafe);
+        l = new Location();
+        l.setAddress("200 Riverside Dr.");
+        l.setDescription("City Park");
+        l.setType(LocationType.BUSINESS);
+        park = conn.addLocation(l);
+        assertNotNull(park);
+        me = conn.addUser(new User("first", "last", "f_last@msn.com"));
+        friend = conn.addUser(new User("second", "last", "s_last@msn.com"));
+        assertTrue(conn.addUserKnows(me, friend, 80));
+        assertNotNull(conn.userCheckinLocation(friend.getUserId(), cafe.getLocId()));
+        Query q = new Query();
+        q.setUserId(me.getUserId());
+        q.setStrength(50);
+        q.setLocationId(cafe.getLocId());
+        standing = conn.addStandingQuery(q);
+        assertNotNull(standing);
+        assertNotNull(standing.getStandingQueryId());
+    }
+
+    @After
+    public void tearDown() {
+        conn.deleteStandingQuery(standing.getStandingQueryId());
+    }
+
+    /**
+     * retrieve matches of the standing query
+     * - expect friend's locality at cafe
+     */
+    @Test
+    public void getStandingQueryMatches() {
+        Collection<Locality> matches = conn.getStandingQueryMatches(standing.getStandingQueryId());
+        assertNotNull(matches);
+        assertEquals(1, matches.size());
+        assertEquals(friend.getUserId(), matches.iterator().next().getUserId());
+    }
+
+    /**
+     * friend moves to the park and back again
+     * - expect removed then added deltas, in that order
+     */
+    @Test
+    public void getStandingQueryDeltas() {
+        assertNull(conn.getStandingQueryDeltas(standing.getStandingQueryId()));
+        assertNotNull(conn.userCheckinLocation(friend.getUserId(), park.getLocId()));
+        assertNotNull(conn.userCheckinLocation(friend.getUserId(), cafe.getLocId()));
+        List<QueryDelta> deltas = awaitDeltas(2);
+        assertEquals(2, deltas.size());
+        assertEquals(QueryDelta.REMOVED, deltas.get(0).getType());
+        assertEquals(QueryDelta.ADDED, deltas.get(1).getType());
+        assertEquals(cafe.getLocId(), deltas.get(1).getLocality().getLocationId());
+    }
+
+    /**
+     * standing query with a date range
+     * - expect rejection (null)
+     */
+    @Test
+    public void addStandingQueryDateRange() {
+        Query q = new Query();
+        q.setUserId(me.getUserId());
+        q.setStrength(50);
+        q.setDateStart(new Date());
+        assertNull(conn.addStandingQuery(q));
+    }
+
+    /**
+     * delete the standing query twice
+     * - expect true then false
+     */
+    @Test
+    public void deleteStandingQuery() {
+        assertTrue(conn.deleteStandingQuery(standing.getStandingQueryId()));
+        assertFalse(conn.deleteStandingQuery(standing.getStandingQueryId()));
+    }
+
+    /*
+     * deltas are delivered asynchronously, so collect for up to 2 seconds
+     */
+    private List<QueryDelta> awaitDeltas(int count) {
+        List<QueryDelta> deltas = new ArrayList<>();
+        for (int i = 0; (i < 20) && (deltas.size() < count); i++) {
+            List<QueryDelta> more = conn.getStandingQueryDeltas(standing.getStandingQueryId());
+            if (more != null) {
+                deltas.addAll(more);
+            } else {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return deltas;
+    }
+}
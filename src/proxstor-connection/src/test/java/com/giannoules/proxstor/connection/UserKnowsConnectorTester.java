@@ -1,8 +1,11 @@
 package com.giannoules.proxstor.connection;
 
+import com.giannoules.proxstor.api.KnownUser;
 import com.giannoules.proxstor.api.User;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import org.junit.After;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
@@ -93,6 +96,26 @@ public class UserKnowsConnectorTester {
         assertEquals(users.size(), 0);
     }
     
+    /**
+     * get the users reached from user "d" over up to two knows relationships
+     * of strength 60 or more. d --knows:20--> c is too weak, but c is reached
+     * through a
+     * - expect a at degree 1, then b and c at degree 2, all at strength 60
+     */
+    @Test
+    public void getKnowsToDepth() {
+        List<KnownUser> users = new ArrayList<>(conn.getKnowsToDepth(d.getUserId(), 60, 2));
+        assertEquals(users.size(), 3);
+        assertEquals(users.get(0).getUser(), a);
+        assertEquals(users.get(0).getDegree(), Integer.valueOf(1));
+        for (KnownUser k : users.subList(1, 3)) {
+            assertEquals(k.getDegree(), Integer.valueOf(2));
+            assertEquals(k.getStrength(), Integer.valueOf(60));
+            assertTrue(k.getUser().equals(b) || k.getUser().equals(c));
+        }
+        assertNull(conn.getKnowsToDepth(invalidUserId, 60, 2));
+    }
+
     /**
      * use a strength value above the known users
      * - expect []
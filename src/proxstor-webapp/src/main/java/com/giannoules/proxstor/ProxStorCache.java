@@ -0,0 +1,230 @@
+package com.giannoules.proxstor;
+
+import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
+import com.giannoules.proxstor.exception.ProxStorGraphNonExistentObjectID;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Vertex;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded read cache of entity vertex properties, keyed by vertex id.
+ *
+ * Only User, Location, Device and Environmental vertices are cached. Each
+ * entry is a read-only snapshot of the vertex properties taken when it was
+ * loaded; DAOs decode a fresh api object from the snapshot on every read so
+ * callers never share state through the cache.
+ *
+ * Entries are evicted least recently used first once the estimated size of
+ * all snapshots exceeds the configured byte budget. DAOs must invalidate() an
+ * id after committing a change to it.
+ *
+ * @author Jim Giannoules
+ */
+public enum ProxStorCache {
+    instance;
+
+    /**
+     * Configuration key giving the cache budget in bytes. 0 disables the
+     * cache. Defaults to DEFAULT_BYTES.
+     */
+    public static final String BYTES = "proxstor.cache.bytes";
+
+    public static final long DEFAULT_BYTES = 16L * 1024 * 1024;
+
+    // access ordered so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Snapshot> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private long bytes;
+    private volatile long budget = DEFAULT_BYTES;
+
+    // bumped by every invalidation so loads racing a write are not cached
+    private final AtomicLong generation = new AtomicLong();
+
+    // stats emitted in toString()
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Read-only copy of an entity vertex's id and properties.
+     */
+    public static class Snapshot implements Element {
+        private final Object id;
+        private final Map<String, Object> properties;
+        private final long weight;
+
+        private Snapshot(Vertex v) {
+            id = v.getId();
+            properties = new HashMap<>();
+            long w = 48;
+            for (String key : v.getPropertyKeys()) {
+                Object value = v.getProperty(key);
+                properties.put(key, value);
+                w += 32 + 2 * key.length();
+                w += (value instanceof String) ? 40 + 2 * ((String) value).length() : 16;
+            }
+            weight = w;
+        }
+
+        @Override
+        public <T> T getProperty(String key) {
+            return (T) properties.get(key);
+        }
+
+        @Override
+        public Set<String> getPropertyKeys() {
+            return Collections.unmodifiableSet(properties.keySet());
+        }
+
+        @Override
+        public void setProperty(String key, Object value) {
+            throw new UnsupportedOperationException("cached snapshot is read-only");
+        }
+
+        @Override
+        public <T> T removeProperty(String key) {
+            throw new UnsupportedOperationException("cached snapshot is read-only");
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("cached snapshot is read-only");
+        }
+
+        @Override
+        public Object getId() {
+            return id;
+        }
+    }
+
+    /**
+     * Set the cache budget from the graph configuration and empty the cache.
+     *
+     * @param conf Configuration Map the graph was started with
+     */
+    public void configure(Map<String, String> conf) {
+        long b = DEFAULT_BYTES;
+        if (conf.containsKey(BYTES)) {
+            try {
+                b = Long.parseLong(conf.get(BYTES));
+            } catch (NumberFormatException ex) {
+                Logger.getLogger(ProxStorCache.class.getName()).log(Level.WARNING, "ignoring invalid " + BYTES, ex);
+            }
+        }
+        budget = b;
+        clear();
+    }
+
+    /**
+     * Returns the properties of vertex id, from the cache when possible.
+     *
+     * @param id Vertex object ID
+     * @return cached Snapshot, or the Vertex itself if it cannot be cached
+     * @throws ProxStorGraphDatabaseNotRunningException If database connection not already established.
+     * @throws ProxStorGraphNonExistentObjectID If id does not exist in the graph.
+     */
+    public Element get(String id) throws ProxStorGraphDatabaseNotRunningException, ProxStorGraphNonExistentObjectID {
+        if ((budget <= 0) || (id == null)) {
+            return ProxStorGraph.instance.getVertex(id);
+        }
+        Snapshot s;
+        synchronized (this) {
+            s = entries.get(id);
+        }
+        if (s != null) {
+            hits.incrementAndGet();
+            return s;
+        }
+        misses.incrementAndGet();
+        long gen = generation.get();
+        Vertex v = ProxStorGraph.instance.getVertex(id);
+        if (!cacheable(v) || ProxStorGraph.instance.inUnitOfWork()) {
+            // uncommitted writes may be visible inside a unit of work
+            return v;
+        }
+        s = new Snapshot(v);
+        put(id, s, gen);
+        return s;
+    }
+
+    /**
+     * Drop any cached snapshot of the given ids.
+     *
+     * @param ids Vertex object IDs
+     */
+    public void invalidate(String... ids) {
+        generation.incrementAndGet();
+        synchronized (this) {
+            for (String id : ids) {
+                Snapshot s = entries.remove(id);
+                if (s != null) {
+                    bytes -= s.weight;
+                }
+            }
+        }
+    }
+
+    /**
+     * Empty the cache and reset its stats.
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        synchronized (this) {
+            entries.clear();
+            bytes = 0;
+        }
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Entity cache: ");
+        if (budget <= 0) {
+            sb.append("disabled\n");
+            return sb.toString();
+        }
+        synchronized (this) {
+            sb.append(entries.size()).append(" entries, ");
+            sb.append(bytes).append(" of ").append(budget).append(" bytes\n");
+        }
+        sb.append("\thits: ").append(hits.get());
+        sb.append(", misses: ").append(misses.get());
+        sb.append(", evictions: ").append(evictions.get()).append("\n");
+        return sb.toString();
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    private boolean cacheable(Vertex v) {
+        Object type = v.getProperty("_type");
+        return "user".equals(type) || "location".equals(type)
+                || "device".equals(type) || "environmental".equals(type);
+    }
+
+    private synchronized void put(String id, Snapshot s, long gen) {
+        if (generation.get() != gen) {
+            return;     // invalidated while loading
+        }
+        Snapshot old = entries.put(id, s);
+        bytes += s.weight;
+        if (old != null) {
+            bytes -= old.weight;
+        }
+        Iterator<Snapshot> it = entries.values().iterator();
+        while ((bytes > budget) && it.hasNext()) {
+            bytes -= it.next().weight;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+}
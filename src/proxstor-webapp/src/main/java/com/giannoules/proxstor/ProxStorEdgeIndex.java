@@ -0,0 +1,170 @@
+package com.giannoules.proxstor;
+
+import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
+import com.giannoules.proxstor.exception.ProxStorGraphNonExistentObjectID;
+import static com.tinkerpop.blueprints.Direction.IN;
+import static com.tinkerpop.blueprints.Direction.OUT;
+import com.tinkerpop.blueprints.Edge;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory (label, out vertex id, in vertex id) to edge id index for the
+ * knows, nearby and within relationships.
+ *
+ * Replaces the scan of a vertex's adjacency filtered on _target with a single
+ * hash lookup followed by getEdge(). The index is built by warm() when the
+ * graph is started and maintained by the owning DAOs, which put() edges after
+ * committing them and remove() them when deleting. Entries whose edge has
+ * since disappeared (e.g. removed along with a deleted vertex) are detected
+ * and dropped on lookup.
+ *
+ * A hit is authoritative, a miss is not: an edge whose put() never ran (its
+ * DAO call failed after the commit, say) is simply absent. DAOs confirm a
+ * miss in the graph and put() any edge they find there.
+ *
+ * Until warm() has completed isWarm() is false and DAOs must fall back to
+ * querying the graph.
+ *
+ * @author Jim Giannoules
+ */
+public enum ProxStorEdgeIndex {
+    instance;
+
+    /**
+     * Configuration key which disables the index when set to "false".
+     */
+    public static final String ENABLED = "proxstor.edgeindex";
+
+    // relationships covered by the index
+    private static final List<String> LABELS = Arrays.asList("knows", "nearby", "within");
+
+    private final Map<String, Object> edges = new ConcurrentHashMap<>();
+    private volatile boolean warm;
+
+    // stats emitted in toString()
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+
+    /**
+     * Build the index from every knows/nearby/within edge in the graph.
+     *
+     * @param conf Configuration Map the graph was started with
+     */
+    public void warm(Map<String, String> conf) {
+        clear();
+        if ("false".equalsIgnoreCase(conf.get(ENABLED))) {
+            return;
+        }
+        try {
+            for (Edge e : ProxStorGraph.instance.getEdges()) {
+                if (LABELS.contains(e.getLabel())) {
+                    edges.put(key(e.getLabel(), e.getVertex(OUT).getId().toString(),
+                            e.getVertex(IN).getId().toString()), e.getId());
+                }
+            }
+            warm = true;
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
+            Logger.getLogger(ProxStorEdgeIndex.class.getName()).log(Level.SEVERE, null, ex);
+            clear();
+        }
+    }
+
+    /**
+     * Empty the index. Lookups fall back to the graph until warm() is called.
+     */
+    public void clear() {
+        warm = false;
+        edges.clear();
+        hits.set(0);
+        misses.set(0);
+        stale.set(0);
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * Find the label edge from outId to inId.
+     *
+     * @param label edge label
+     * @param outId id of the out (source) vertex
+     * @param inId id of the in (target) vertex
+     * @return Edge if one is indexed, null otherwise (which does not prove
+     * there is none)
+     */
+    public Edge get(String label, String outId, String inId) {
+        String k = key(label, outId, inId);
+        Object id = edges.get(k);
+        if (id == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            Edge e = ProxStorGraph.instance.getEdge(id);
+            if (label.equals(e.getLabel()) && inId.equals(e.getProperty("_target"))) {
+                hits.incrementAndGet();
+                return e;
+            }
+        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+            // fall through: edge no longer exists
+        }
+        stale.incrementAndGet();
+        edges.remove(k, id);
+        return null;
+    }
+
+    /**
+     * Record a committed edge. Must be called after commit so the edge id is
+     * final.
+     *
+     * @param label edge label
+     * @param outId id of the out (source) vertex
+     * @param inId id of the in (target) vertex
+     * @param e the Edge
+     */
+    public void put(String label, String outId, String inId, Edge e) {
+        if (warm) {
+            edges.put(key(label, outId, inId), e.getId());
+        }
+    }
+
+    /**
+     * Forget the label edge from outId to inId.
+     *
+     * @param label edge label
+     * @param outId id of the out (source) vertex
+     * @param inId id of the in (target) vertex
+     */
+    public void remove(String label, String outId, String inId) {
+        edges.remove(key(label, outId, inId));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Edge index: ");
+        if (!warm) {
+            sb.append("disabled\n");
+            return sb.toString();
+        }
+        sb.append(edges.size()).append(" edges\n");
+        sb.append("\thits: ").append(hits.get());
+        sb.append(", misses: ").append(misses.get());
+        sb.append(", stale: ").append(stale.get()).append("\n");
+        return sb.toString();
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    private static String key(String label, String outId, String inId) {
+        return label + '|' + outId + '|' + inId;
+    }
+}
@@ -12,6 +12,7 @@ import com.tinkerpop.blueprints.KeyIndexableGraph;
 import com.tinkerpop.blueprints.TransactionalGraph;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +33,8 @@ import java.util.logging.Logger;
  * 
  * provides:
  *   - transactional related method independent of whether graph instance of TransactionalGraph
+ *   - optional pooled mode handing each thread its own Graph handle
+ *   - unit of work scopes so nested DAO commits collapse into a single commit
  * 
  * manages:
  *   - indexes
@@ -41,9 +44,26 @@ import java.util.logging.Logger;
 public enum ProxStorGraph {
     instance;
     
+    /**
+     * Configuration key selecting pooled mode. When set to a positive integer
+     * each thread is handed its own Graph handle drawn from a pool of at most
+     * this many connections.
+     */
+    public static final String POOL_SIZE = "proxstor.pool.size";
+    
     // Graph instance held and managed by this class
     public Graph graph;
     
+    // pooled mode: factory handing out Graph handles (null when not pooled)
+    private OrientGraphFactory pool;
+    private int poolSize;
+    
+    // Graph handle bound to the calling thread while in pooled mode
+    private final ThreadLocal<PooledHandle> handle = new ThreadLocal<>();
+    
+    // unit of work opened by the calling thread (null when none open)
+    private final ThreadLocal<UnitOfWork> work = new ThreadLocal<>();
+    
     // stats & statsPrev used to track the method call count emitted in toString()
     private final Map<String, AtomicInteger> stats = new ConcurrentHashMap<>();
     private final Map<String, Integer> statsPrev = new ConcurrentHashMap<>();
@@ -57,6 +77,11 @@ public enum ProxStorGraph {
      * This is the preferred method to create a new Graph connection instance. Uses
      * a GraphFactory to allow connection to any one of a multitude of back-end 
      * graph relational databases.
+     * <p>
+     * If the configuration contains POOL_SIZE and the back-end is OrientDB then
+     * a connection pool is created and every thread works against its own
+     * Graph handle (and thus its own transaction). Back-ends without a
+     * connection pool continue to share the single Graph instance.
      * 
      * @param conf Configuration Map to be passed to GraphFactory
      * @throws com.giannoules.proxstor.exception.ProxStorGraphDatabaseAlreadyRunning If a connection to a database already exists.
@@ -84,6 +109,31 @@ public enum ProxStorGraph {
                 ((OrientGraph) graph).createEdgeType("nearby");
                 ((OrientGraph) graph).createEdgeType("within");
         }
+        poolSize = 0;
+        if (conf.containsKey(POOL_SIZE)) {
+            try {
+                poolSize = Integer.parseInt(conf.get(POOL_SIZE));
+            } catch (NumberFormatException ex) {
+                Logger.getLogger(ProxStorGraph.class.getName()).log(Level.WARNING, "ignoring invalid " + POOL_SIZE, ex);
+            }
+        }
+        if (poolSize > 0) {
+            if (graph instanceof OrientGraph) {
+                String url = conf.get("blueprints.orientdb.url");
+                String username = conf.get("blueprints.orientdb.username");
+                String password = conf.get("blueprints.orientdb.password");
+                if ((username != null) && (password != null)) {
+                    pool = new OrientGraphFactory(url, username, password);
+                } else {
+                    pool = new OrientGraphFactory(url);
+                }
+                pool.setupPool(1, poolSize);
+                ProxStorDebug.println("pooled mode enabled with " + poolSize + " connections");
+            } else {
+                ProxStorDebug.println("pooled mode not supported by back-end; sharing single Graph");
+                poolSize = 0;
+            }
+        }
     }     
      
     /**
@@ -96,13 +146,129 @@ public enum ProxStorGraph {
     public void shutdown() throws ProxStorGraphDatabaseNotRunningException {
         incCounter("shutdown()");
         _isRunningOrException();        
+        release();
         if (graph instanceof TransactionalGraph) {
             incCounter("shutdown() - TransactionalGraph");
             ((TransactionalGraph) graph).commit();
         }
         graph.shutdown();
         graph = null;    
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
     } 
+    
+    /**
+     * Return the calling thread's Graph handle to the pool. Any pending
+     * transaction on the handle is committed first. Threads which are not
+     * holding a handle, or a graph not running in pooled mode, make this
+     * method a no-op.
+     * <p>
+     * Called at the end of every request (see ProxStorGraphFilter) and should
+     * be called by any worker thread which used ProxStorGraph before exiting.
+     */
+    public void release() {
+        boolean abandoned = discardUnitOfWork();
+        PooledHandle h = handle.get();
+        if (h == null) {
+            return;
+        }
+        handle.remove();
+        if (h.source != pool) {
+            return;     // pool closed since handle was acquired
+        }
+        incCounter("release()");
+        try {
+            if (abandoned) {
+                ((TransactionalGraph) h.graph).rollback();
+            } else {
+                ((TransactionalGraph) h.graph).commit();
+            }
+        } finally {
+            h.graph.shutdown();     // returns the connection to the pool
+        }
+    }
+    
+    /**
+     * Opens (or joins) a unit of work on the calling thread. While a unit of
+     * work is open calls to commit() are deferred until the outermost
+     * complete(), so a series of DAO calls results in a single commit.
+     * <p>
+     * Every begin() must be paired with a complete(), typically in a finally
+     * block.
+     * <p>
+     * Note OrientDB only assigns permanent ids to new vertices when the
+     * transaction commits. Ids of vertices created inside a unit of work must
+     * be read back from the Vertex after complete().
+     */
+    public void begin() {
+        UnitOfWork uow = work.get();
+        if (uow == null) {
+            incCounter("begin()");
+            uow = new UnitOfWork();
+            work.set(uow);
+        }
+        uow.depth++;
+    }
+    
+    /**
+     * Marks the calling thread's unit of work so that it is rolled back, rather
+     * than committed, when the outermost complete() is reached. No-op when no
+     * unit of work is open.
+     */
+    public void setRollbackOnly() {
+        UnitOfWork uow = work.get();
+        if (uow != null) {
+            uow.rollbackOnly = true;
+        }
+    }
+    
+    /**
+     * Tests whether the calling thread has a unit of work open.
+     * 
+     * @return true if a unit of work is open
+     */
+    public boolean inUnitOfWork() {
+        return work.get() != null;
+    }
+    
+    /**
+     * Tests whether the calling thread's unit of work will be rolled back.
+     * 
+     * @return true if a unit of work is open and marked rollback-only
+     */
+    public boolean isRollbackOnly() {
+        UnitOfWork uow = work.get();
+        return (uow != null) && uow.rollbackOnly;
+    }
+    
+    /**
+     * Closes one level of the calling thread's unit of work. When the
+     * outermost level is closed any deferred commit is issued, or the
+     * transaction rolled back if rollback was requested inside the unit of
+     * work. If the database connection has gone away the unit of work is
+     * simply discarded.
+     */
+    public void complete() {
+        UnitOfWork uow = work.get();
+        if (uow == null) {
+            return;
+        }
+        if (--uow.depth > 0) {
+            return;
+        }
+        work.remove();
+        if (!isRunning()) {
+            return;
+        }
+        incCounter("complete()");
+        if (uow.rollbackOnly) {
+            _rollback();
+        } else if (uow.commitRequested) {
+            _commit();
+        }
+    }
 
     /**
      * Tests whether a database connection is already established.
@@ -123,7 +289,7 @@ public enum ProxStorGraph {
     public Vertex addVertex() throws ProxStorGraphDatabaseNotRunningException {
         incCounter("addVertex()");        
         _isRunningOrException();
-        return graph.addVertex(null);
+        return _graph().addVertex(null);
     }
     
     /**
@@ -141,7 +307,7 @@ public enum ProxStorGraph {
     public Edge addEdge(Vertex outVertex, Vertex inVertex, String label) throws ProxStorGraphDatabaseNotRunningException {
         incCounter("addEdge()");
         _isRunningOrException();
-        return graph.addEdge(null, outVertex, inVertex, label);
+        return _graph().addEdge(null, outVertex, inVertex, label);
     }
  
     /**
@@ -159,7 +325,7 @@ public enum ProxStorGraph {
          * getVertex() returns null if no Vertex exists (no Exception from Blueprints)
          * in this case throw our own exception
          */
-        Vertex v = graph.getVertex(id);
+        Vertex v = _graph().getVertex(id);
         if (v == null)
             throw new ProxStorGraphNonExistentObjectID("Invalid Vertex ID: " + id.toString());
         return v;
@@ -177,7 +343,20 @@ public enum ProxStorGraph {
     public Iterable<Vertex> getVertices(String key, Object value) throws ProxStorGraphDatabaseNotRunningException {
         incCounter("getVertices()");
         _isRunningOrException();
-        return graph.getVertices(key, value);
+        return _graph().getVertices(key, value);
+    }
+    
+    /**
+     * Return all Edges in the Graph. Intended for building in-memory indexes
+     * at startup; the whole Graph is scanned.
+     * 
+     * @return      Iterable containing all Edge instances
+     * @throws ProxStorGraphDatabaseNotRunningException If database connection not already established.
+     */
+    public Iterable<Edge> getEdges() throws ProxStorGraphDatabaseNotRunningException {
+        incCounter("getEdges()");
+        _isRunningOrException();
+        return _graph().getEdges();
     }
     
     /**
@@ -191,7 +370,7 @@ public enum ProxStorGraph {
     public GraphQuery _query() throws ProxStorGraphDatabaseNotRunningException {
         incCounter("_query()");
         _isRunningOrException();
-        return graph.query();
+        return _graph().query();
     }
     
     /**
@@ -209,7 +388,7 @@ public enum ProxStorGraph {
          * getEdge() returns null if no Edege exists (no Exception from Blueprints)
          * in this case throw our own exception
          */
-        Edge e = graph.getEdge(id);
+        Edge e = _graph().getEdge(id);
         if (e == null)
             throw new ProxStorGraphNonExistentObjectID("Invalid Edge ID: " + id.toString());
         return e;
@@ -217,32 +396,38 @@ public enum ProxStorGraph {
     
     /**
      * For pending transactions to be committed to the database. If the graph
-     * instance is not transactional this method simply exits.
+     * instance is not transactional this method simply exits. In pooled mode
+     * only the calling thread's transaction is committed. Inside a unit of
+     * work the commit is deferred until the unit of work completes.
      * 
      * @throws ProxStorGraphDatabaseNotRunningException If database connection not already established.
      */
     public void commit() throws ProxStorGraphDatabaseNotRunningException {
         incCounter("commit()");
         _isRunningOrException();
-        if (graph instanceof TransactionalGraph) {
-                incCounter("TransactionalGraph commit()");
-                ((TransactionalGraph) graph).commit();
+        UnitOfWork uow = work.get();
+        if (uow != null) {
+            incCounter("commit() - deferred");
+            uow.commitRequested = true;
+            return;
         }
+        _commit();
     } 
    
     /**
      * Rollback outstanding transactions from the database. If the graph
-     * instance is not transactional this method simply exits.
+     * instance is not transactional this method simply exits. In pooled mode
+     * only the calling thread's transaction is rolled back. Inside a unit of
+     * work the whole unit of work is also marked rollback-only so later writes
+     * in the same scope are discarded too.
      * 
      * @throws ProxStorGraphDatabaseNotRunningException If database connection not already established.
      */   
     public void rollback() throws ProxStorGraphDatabaseNotRunningException {
         incCounter("rollback()");
         _isRunningOrException();
-        if (graph instanceof TransactionalGraph) {
-                incCounter("TransactionalGraph rollback()");
-                ((TransactionalGraph) graph).rollback();
-        }
+        setRollbackOnly();
+        _rollback();
     }
     
     /**
@@ -265,6 +450,9 @@ public enum ProxStorGraph {
         sb.append(graph.toString());
         sb.append("\n\nFeatures:\n\n");
         sb.append(graph.getFeatures());
+        if (pool != null) {
+            sb.append("\n\nPooled mode: ").append(poolSize).append(" connections max");
+        }
         sb.append("\n\nProxStorGraph Internal Stats:\n\n");
         for (String k : stats.keySet()) {
             sb.append(k).append(": ").append(stats.get(k));
@@ -282,6 +470,87 @@ public enum ProxStorGraph {
     
     // ------------> PRIVATE METHODS BELOW <--------------
     
+    /**
+     * Graph handle bound to a thread along with the pool it was drawn from.
+     */
+    private static class PooledHandle {
+        final OrientGraphFactory source;
+        final Graph graph;
+        
+        PooledHandle(OrientGraphFactory source, Graph graph) {
+            this.source = source;
+            this.graph = graph;
+        }
+    }
+    
+    /**
+     * Per-thread unit of work state.
+     */
+    private static class UnitOfWork {
+        int depth;
+        boolean commitRequested;
+        boolean rollbackOnly;
+    }
+    
+    /**
+     * Commit the calling thread's transaction if the graph is transactional.
+     */
+    private void _commit() {
+        Graph g = _graph();
+        if (g instanceof TransactionalGraph) {
+                incCounter("TransactionalGraph commit()");
+                ((TransactionalGraph) g).commit();
+        }
+    }
+    
+    /**
+     * Rollback the calling thread's transaction if the graph is transactional.
+     */
+    private void _rollback() {
+        Graph g = _graph();
+        if (g instanceof TransactionalGraph) {
+                incCounter("TransactionalGraph rollback()");
+                ((TransactionalGraph) g).rollback();
+        }
+    }
+    
+    /**
+     * Drops any unit of work left open on the calling thread (e.g. a caller
+     * which failed before its complete() ran).
+     * 
+     * @return true if an open unit of work was discarded
+     */
+    private boolean discardUnitOfWork() {
+        if (work.get() == null) {
+            return false;
+        }
+        incCounter("discardUnitOfWork()");
+        work.remove();
+        return true;
+    }
+    
+    /**
+     * Returns the Graph handle to be used by the calling thread. Outside of
+     * pooled mode this is the single shared Graph instance. In pooled mode
+     * a handle is acquired from the pool on first use and held by the thread
+     * until release().
+     * 
+     * @return Graph handle for the calling thread
+     */
+    private Graph _graph() {
+        OrientGraphFactory p = pool;
+        if (p == null) {
+            return graph;
+        }
+        PooledHandle h = handle.get();
+        if ((h == null) || (h.source != p)) {
+            incCounter("acquire()");
+            h = new PooledHandle(p, p.getTx());
+            handle.set(h);
+        }
+        return h.graph;
+    }
+    
   
     /**
      * Internal helper method checking for running graph and throw exception.
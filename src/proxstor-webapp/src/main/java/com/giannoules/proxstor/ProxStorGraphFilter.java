@@ -0,0 +1,29 @@
+package com.giannoules.proxstor;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Returns the request thread's Graph handle to the pool once the response
+ * has been produced. Without this a pooled handle would stay bound to the
+ * servlet container thread between requests.
+ *
+ * @author Jim Giannoules
+ */
+@Provider
+public class ProxStorGraphFilter implements ContainerResponseFilter {
+
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+        try {
+            ProxStorGraph.instance.release();
+        } catch (RuntimeException ex) {
+            Logger.getLogger(ProxStorGraphFilter.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
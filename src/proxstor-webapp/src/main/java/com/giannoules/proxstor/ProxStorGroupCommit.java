@@ -0,0 +1,358 @@
+package com.giannoules.proxstor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Group commit coordinator for write-heavy traffic.
+ *
+ * When enabled, writers hand their mutation to execute() instead of committing
+ * it themselves. A single flusher thread drains the queued mutations, applies
+ * them in one ProxStorGraph unit of work and commits the whole batch at once.
+ * A batch is flushed when either BATCH_SIZE mutations are queued or WINDOW
+ * milliseconds have passed since the first one arrived. Each caller blocks
+ * until the batch holding its mutation has committed.
+ *
+ * If any mutation in a batch fails the batch is rolled back and each of its
+ * mutations re-run with its own commit, so one bad write cannot fail its
+ * neighbours.
+ *
+ * When disabled (the default) execute() runs the mutation on the calling
+ * thread in its own unit of work.
+ *
+ * @author Jim Giannoules
+ */
+public enum ProxStorGroupCommit {
+    instance;
+
+    /**
+     * Configuration key enabling group commit and giving the maximum number of
+     * mutations committed together.
+     */
+    public static final String BATCH_SIZE = "proxstor.groupcommit.batch";
+
+    /**
+     * Configuration key giving the longest time (in milliseconds) a mutation
+     * waits for others to join its batch. Defaults to DEFAULT_WINDOW.
+     */
+    public static final String WINDOW = "proxstor.groupcommit.window";
+
+    public static final int DEFAULT_WINDOW = 2;
+
+    // upper bounds (ms) of the flush latency histogram buckets; last bucket open ended
+    private static final long[] LATENCY_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 250 };
+
+    private final BlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<>();
+    private volatile Thread flusher;
+    private int batchSize;
+    private long window;
+
+    // stats emitted in toString()
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong mutations = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private AtomicLongArray batchSizes = new AtomicLongArray(0);
+    private AtomicLongArray flushLatency = new AtomicLongArray(0);
+
+    /**
+     * A unit of graph work submitted through execute().
+     *
+     * run() is invoked inside a unit of work and may call ProxStorGraph.commit()
+     * as usual. committed() is invoked once the enclosing transaction has been
+     * committed, which is the point at which OrientDB vertex ids become final.
+     *
+     * @param <T> result type
+     */
+    public static abstract class Mutation<T> {
+
+        public abstract T run() throws Exception;
+
+        public T committed(T result) {
+            return result;
+        }
+    }
+
+    /**
+     * Enable group commit if conf contains BATCH_SIZE greater than 1.
+     *
+     * @param conf Configuration Map the graph was started with
+     */
+    public synchronized void start(Map<String, String> conf) {
+        stop();
+        batchSize = 0;
+        window = DEFAULT_WINDOW;
+        try {
+            if (conf.containsKey(BATCH_SIZE)) {
+                batchSize = Integer.parseInt(conf.get(BATCH_SIZE));
+            }
+            if (conf.containsKey(WINDOW)) {
+                window = Long.parseLong(conf.get(WINDOW));
+            }
+        } catch (NumberFormatException ex) {
+            Logger.getLogger(ProxStorGroupCommit.class.getName()).log(Level.WARNING, "group commit disabled", ex);
+            batchSize = 0;
+        }
+        if (batchSize > 1) {
+            batches.set(0);
+            mutations.set(0);
+            retries.set(0);
+            batchSizes = new AtomicLongArray(batchSize + 1);
+            flushLatency = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+            flusher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushLoop();
+                }
+            }, "proxstor-group-commit");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Flush any queued mutations and stop the flusher thread.
+     */
+    public synchronized void stop() {
+        Thread t = flusher;
+        if (t == null) {
+            return;
+        }
+        flusher = null;
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        // anything which raced in after the flusher exited
+        List<Pending<?>> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        for (Pending<?> p : batch) {
+            runSingle(p);
+            p.done();
+        }
+    }
+
+    public boolean isEnabled() {
+        return flusher != null;
+    }
+
+    /**
+     * Apply mutation m and return once it has been committed.
+     *
+     * @param <T> result type
+     * @param m mutation to apply
+     * @return result of m.run(), as passed through m.committed()
+     * @throws ExecutionException wrapping any exception thrown by m.run()
+     */
+    public <T> T execute(Mutation<T> m) throws ExecutionException {
+        Pending<T> p = new Pending<>(m);
+        if (isEnabled()) {
+            queue.add(p);
+            try {
+                while (!p.latch.await(100, TimeUnit.MILLISECONDS)) {
+                    // coordinator stopped before picking up p
+                    if (!isEnabled() && queue.remove(p)) {
+                        runSingle(p);
+                        break;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ExecutionException(ex);
+            }
+        } else {
+            runSingle(p);
+        }
+        p.done();
+        if (p.error != null) {
+            throw new ExecutionException(p.error);
+        }
+        return p.result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Group commit: ");
+        if (!isEnabled()) {
+            sb.append("disabled\n");
+            return sb.toString();
+        }
+        sb.append("batch ").append(batchSize).append(", window ").append(window).append("ms\n");
+        sb.append("\tbatches: ").append(batches.get());
+        sb.append(", mutations: ").append(mutations.get());
+        sb.append(", individual retries: ").append(retries.get()).append("\n");
+        sb.append("\tcommits per batch:\n");
+        AtomicLongArray sizes = batchSizes;
+        for (int i = 1; i < sizes.length(); i++) {
+            if (sizes.get(i) > 0) {
+                sb.append("\t\t").append(i).append(": ").append(sizes.get(i)).append("\n");
+            }
+        }
+        sb.append("\tflush latency:\n");
+        for (int i = 0; i < flushLatency.length(); i++) {
+            if (i < LATENCY_BOUNDS.length) {
+                sb.append("\t\t<").append(LATENCY_BOUNDS[i]).append("ms: ");
+            } else {
+                sb.append("\t\t>=").append(LATENCY_BOUNDS[i - 1]).append("ms: ");
+            }
+            sb.append(flushLatency.get(i)).append("\n");
+        }
+        return sb.toString();
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    /**
+     * Mutation queued for commit along with its outcome.
+     */
+    private static class Pending<T> {
+        final Mutation<T> mutation;
+        final CountDownLatch latch = new CountDownLatch(1);
+        T result;
+        Exception error;
+
+        Pending(Mutation<T> mutation) {
+            this.mutation = mutation;
+        }
+
+        void apply() {
+            try {
+                result = mutation.run();
+                error = null;
+            } catch (Exception ex) {
+                result = null;
+                error = ex;
+            }
+        }
+
+        void done() {
+            if ((error == null) && (latch.getCount() > 0)) {
+                result = mutation.committed(result);
+            }
+            latch.countDown();
+        }
+    }
+
+    private void flushLoop() {
+        List<Pending<?>> batch = new ArrayList<>();
+        try {
+            while (flusher == Thread.currentThread()) {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(window);
+                while (batch.size() < batchSize) {
+                    long wait = deadline - System.nanoTime();
+                    Pending<?> p = (wait > 0) ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (p == null) {
+                        break;
+                    }
+                    batch.add(p);
+                }
+                flush(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            // stop() requested
+        } finally {
+            for (Pending<?> p : batch) {
+                runSingle(p);
+                p.done();
+            }
+            ProxStorGraph.instance.release();
+        }
+    }
+
+    private void flush(List<Pending<?>> batch) {
+        long start = System.nanoTime();
+        boolean failed = false;
+        ProxStorGraph.instance.begin();
+        try {
+            for (Pending<?> p : batch) {
+                p.apply();
+                if ((p.error != null) || ProxStorGraph.instance.isRollbackOnly()) {
+                    failed = true;
+                    ProxStorGraph.instance.setRollbackOnly();
+                    break;
+                }
+            }
+            ProxStorGraph.instance.commit();
+        } catch (Exception ex) {
+            Logger.getLogger(ProxStorGroupCommit.class.getName()).log(Level.SEVERE, null, ex);
+            failed = true;
+            ProxStorGraph.instance.setRollbackOnly();
+        } finally {
+            try {
+                ProxStorGraph.instance.complete();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(ProxStorGroupCommit.class.getName()).log(Level.SEVERE, null, ex);
+                failed = true;
+                rollbackQuietly();
+            }
+        }
+        if (failed) {
+            for (Pending<?> p : batch) {
+                retries.incrementAndGet();
+                runSingle(p);
+            }
+        }
+        for (Pending<?> p : batch) {
+            p.done();
+        }
+        batches.incrementAndGet();
+        mutations.addAndGet(batch.size());
+        batchSizes.incrementAndGet(Math.min(batch.size(), batchSizes.length() - 1));
+        recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Run a single mutation in its own unit of work on the calling thread.
+     */
+    private void runSingle(Pending<?> p) {
+        ProxStorGraph.instance.begin();
+        try {
+            p.apply();
+            if (p.error != null) {
+                ProxStorGraph.instance.setRollbackOnly();
+            } else {
+                ProxStorGraph.instance.commit();
+            }
+        } catch (Exception ex) {
+            p.error = ex;
+            ProxStorGraph.instance.setRollbackOnly();
+        } finally {
+            try {
+                ProxStorGraph.instance.complete();
+            } catch (RuntimeException ex) {
+                p.error = ex;
+                rollbackQuietly();
+            }
+        }
+    }
+
+    private void rollbackQuietly() {
+        try {
+            ProxStorGraph.instance.rollback();
+        } catch (Exception ex) {
+            Logger.getLogger(ProxStorGroupCommit.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void recordLatency(long ms) {
+        int i = 0;
+        while ((i < LATENCY_BOUNDS.length) && (ms >= LATENCY_BOUNDS[i])) {
+            i++;
+        }
+        flushLatency.incrementAndGet(i);
+    }
+}
@@ -0,0 +1,245 @@
+package com.giannoules.proxstor;
+
+import com.giannoules.proxstor.exception.InvalidParameter;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * One page of a list endpoint, addressed by an opaque continuation cursor.
+ * <p>
+ * List endpoints take optional LIMIT and CURSOR query parameters. A response
+ * holds at most limit items (MAX_LIMIT when not given). While more remain the
+ * NEXT_CURSOR response header carries the cursor of the following page; no
+ * header means the list is complete, so results are never silently
+ * truncated.
+ * <p>
+ * A cursor records a position in the underlying iteration and is bound to
+ * the request it was issued for (its scope) by an HMAC-SHA256 of the scope
+ * and position, keyed with a secret drawn when the server starts. Replaying
+ * it against another request, or altering its position, is rejected as an
+ * InvalidParameter; cursors do not survive a restart. DAOs fetch limit + 1
+ * items from the position, skipping the vertices before it without
+ * materializing them, so each request holds at most one page in memory.
+ *
+ * @author Jim Giannoules
+ */
+public class ProxStorPage {
+
+    /**
+     * Query parameter giving the maximum number of items per page.
+     */
+    public static final String LIMIT = "limit";
+
+    /**
+     * Query parameter carrying the cursor returned with the previous page.
+     */
+    public static final String CURSOR = "cursor";
+
+    /**
+     * Response header carrying the cursor of the next page, if any.
+     */
+    public static final String NEXT_CURSOR = "ProxStor-Next-Cursor";
+
+    public static final int MAX_LIMIT = 1024;
+
+    private static final String MAC = "HmacSHA256";
+    private static final SecretKeySpec KEY;
+
+    static {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        KEY = new SecretKeySpec(secret, MAC);
+    }
+
+    private final String scope;
+    private final String position;
+    private final int limit;
+
+    private ProxStorPage(String scope, String position, int limit) {
+        this.scope = scope;
+        this.position = position;
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the page addressed by limit and cursor.
+     *
+     * @param scope identifies the request; a cursor is only valid for the
+     * scope it was issued in
+     * @param limit page size, null for MAX_LIMIT
+     * @param cursor cursor from the previous page, null or empty for the first
+     * @return ProxStorPage
+     * @throws InvalidParameter If limit is out of range or cursor is not a
+     * cursor of scope
+     */
+    public static ProxStorPage of(String scope, Integer limit, String cursor) throws InvalidParameter {
+        int l = (limit == null) ? MAX_LIMIT : limit;
+        if ((l < 1) || (l > MAX_LIMIT)) {
+            throw new InvalidParameter("limit must be 1.." + MAX_LIMIT);
+        }
+        if ((cursor == null) || cursor.isEmpty()) {
+            return new ProxStorPage(scope, null, l);
+        }
+        String decoded;
+        try {
+            decoded = new String(DatatypeConverter.parseHexBinary(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+            throw new InvalidParameter("malformed cursor");
+        }
+        int bar = decoded.lastIndexOf('|');
+        if ((bar < 1) || !MessageDigest.isEqual(decoded.substring(bar + 1).getBytes(StandardCharsets.UTF_8),
+                sign(scope, decoded.substring(0, bar)).getBytes(StandardCharsets.UTF_8))) {
+            throw new InvalidParameter("cursor does not belong to this request");
+        }
+        return new ProxStorPage(scope, decoded.substring(0, bar), l);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return number of items a DAO should fetch: one more than limit, to
+     * learn whether another page follows
+     */
+    public int getFetch() {
+        return limit + 1;
+    }
+
+    /**
+     * @return position recorded in the cursor, null on the first page
+     */
+    public String getPosition() {
+        return position;
+    }
+
+    /**
+     * @return number of items preceding this page, for simple offset cursors
+     * @throws InvalidParameter If the cursor does not hold an offset
+     */
+    public int getOffset() throws InvalidParameter {
+        if (position == null) {
+            return 0;
+        }
+        try {
+            int offset = Integer.parseInt(position);
+            if (offset >= 0) {
+                return offset;
+            }
+        } catch (NumberFormatException ex) {
+        }
+        throw new InvalidParameter("malformed cursor");
+    }
+
+    /**
+     * Cursor addressing position within this page's scope.
+     *
+     * @param position DAO specific position
+     * @return opaque cursor
+     */
+    public String cursor(String position) {
+        String s = position + "|" + sign(scope, position);
+        return DatatypeConverter.printHexBinary(s.getBytes(StandardCharsets.UTF_8)).toLowerCase();
+    }
+
+    /**
+     * 200 (Ok) response carrying up to limit of the items fetched from this
+     * page's offset, and the next cursor if more were fetched.
+     *
+     * @param fetched up to getFetch() items from getOffset()
+     * @param type empty array of the item type
+     * @return Response
+     * @throws InvalidParameter If the cursor does not hold an offset
+     */
+    public <T> Response ok(List<T> fetched, T[] type) throws InvalidParameter {
+        if (fetched.size() > limit) {
+            return ok(fetched.subList(0, limit), Integer.toString(getOffset() + limit), type);
+        }
+        return ok(fetched, null, type);
+    }
+
+    /**
+     * 200 (Ok) response carrying items, and a cursor to next if not null.
+     *
+     * @param items items of this page
+     * @param next position of the next page, null if this page is the last
+     * @param type empty array of the item type
+     * @return Response
+     */
+    public <T> Response ok(List<T> items, String next, T[] type) {
+        Response.ResponseBuilder rb = Response.ok(items.toArray(type));
+        if (next != null) {
+            rb.header(NEXT_CURSOR, cursor(next));
+        }
+        return rb.build();
+    }
+
+    /**
+     * Lazily skip the first offset items and stop after count more.
+     *
+     * @param items underlying items, e.g. GraphQuery vertices
+     * @param offset items to skip
+     * @param count maximum items to return
+     * @return windowed view of items
+     */
+    public static <T> Iterable<T> window(final Iterable<T> items, final int offset, final int count) {
+        return new Iterable<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                final Iterator<T> it = items.iterator();
+                for (int i = 0; (i < offset) && it.hasNext(); i++) {
+                    it.next();
+                }
+                return new Iterator<T>() {
+                    private int returned;
+
+                    @Override
+                    public boolean hasNext() {
+                        return (returned < count) && it.hasNext();
+                    }
+
+                    @Override
+                    public T next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        returned++;
+                        return it.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    /*
+     * hex HMAC binding position to scope
+     */
+    private static String sign(String scope, String position) {
+        try {
+            Mac mac = Mac.getInstance(MAC);
+            mac.init(KEY);
+            mac.update(scope.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return DatatypeConverter.printHexBinary(mac.doFinal(position.getBytes(StandardCharsets.UTF_8))).toLowerCase();
+        } catch (GeneralSecurityException ex) {
+            // every Java platform provides HmacSHA256
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.giannoules.proxstor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel for very large numbers of coarse timers.
+ *
+ * The wheel is a ring of buckets, each holding a doubly linked list of
+ * Timeouts; a single worker thread advances one bucket every tick and expires
+ * the Timeouts due in it. A Timeout further away than one revolution waits out
+ * its remaining rounds in its bucket. schedule() and cancel() are O(1) and
+ * never take a lock: both hand the Timeout to the worker through a queue.
+ * extend() only moves the deadline forward; the worker re-files the Timeout
+ * when it reaches its old bucket, so refreshing a timer is a single volatile
+ * write.
+ *
+ * Timeouts fire up to one tick late. Expired Timeouts are passed to the
+ * Handler on the worker thread in batches of at most batchSize; time spent in
+ * the Handler shows up as expiry lag, which is measured.
+ *
+ * @param <K> key identifying what a Timeout is for
+ *
+ * @author Jim Giannoules
+ */
+public class ProxStorTimingWheel<K> {
+
+    /**
+     * Receives expired Timeouts on the worker thread.
+     *
+     * @param <K> key type
+     */
+    public interface Handler<K> {
+
+        void expired(List<Timeout<K>> batch);
+    }
+
+    /**
+     * A scheduled timer.
+     *
+     * @param <K> key type
+     */
+    public static final class Timeout<K> {
+        private final ProxStorTimingWheel<K> wheel;
+        private final K key;
+        private volatile long deadline;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        // bucket membership, only touched by the worker thread
+        private Bucket<K> bucket;
+        private Timeout<K> prev;
+        private Timeout<K> next;
+        private long rounds;
+
+        private Timeout(ProxStorTimingWheel<K> wheel, K key, long deadline) {
+            this.wheel = wheel;
+            this.key = key;
+            this.deadline = deadline;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * @return time (ms since epoch) the Timeout is due
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Push the deadline back to delay milliseconds from now. Has no effect
+         * if that is earlier than the current deadline.
+         *
+         * @param delay milliseconds from now
+         */
+        public void extend(long delay) {
+            long d = System.currentTimeMillis() + delay;
+            if (d > deadline) {
+                deadline = d;
+            }
+        }
+
+        /**
+         * @return true if this call cancelled the Timeout; false if it had
+         * already been cancelled or had expired
+         */
+        public boolean cancel() {
+            if (!cancelled.compareAndSet(false, true)) {
+                return false;
+            }
+            wheel.pending.decrementAndGet();
+            wheel.cancellations.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+    }
+
+    private static final class Bucket<K> {
+        private Timeout<K> head;
+        private Timeout<K> tail;
+
+        void add(Timeout<K> t) {
+            t.bucket = this;
+            t.prev = tail;
+            t.next = null;
+            if (tail == null) {
+                head = t;
+            } else {
+                tail.next = t;
+            }
+            tail = t;
+        }
+
+        void remove(Timeout<K> t) {
+            if (t.prev == null) {
+                head = t.next;
+            } else {
+                t.prev.next = t.next;
+            }
+            if (t.next == null) {
+                tail = t.prev;
+            } else {
+                t.next.prev = t.prev;
+            }
+            t.bucket = null;
+            t.prev = null;
+            t.next = null;
+        }
+    }
+
+    private final String name;
+    private final long tickMs;
+    private final int batchSize;
+    private final Handler<K> handler;
+    private final Bucket<K>[] wheel;
+    private final int mask;
+    private final Queue<Timeout<K>> additions = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout<K>> cancellations = new ConcurrentLinkedQueue<>();
+    private volatile Thread worker;
+    private long startTime;
+    private long tick;      // worker thread only
+
+    // stats
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong lagTotal = new AtomicLong();
+    private final AtomicLong lagMax = new AtomicLong();
+
+    /**
+     * @param name worker thread name
+     * @param tickMs tick duration in milliseconds
+     * @param wheelSize number of buckets, rounded up to a power of two
+     * @param batchSize most Timeouts passed to handler at once
+     * @param handler receives expired Timeouts
+     */
+    @SuppressWarnings("unchecked")
+    public ProxStorTimingWheel(String name, long tickMs, int wheelSize, int batchSize, Handler<K> handler) {
+        this.name = name;
+        this.tickMs = Math.max(1, tickMs);
+        this.batchSize = Math.max(1, batchSize);
+        this.handler = handler;
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket<>();
+        }
+        mask = size - 1;
+    }
+
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        startTime = System.currentTimeMillis();
+        tick = 0;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                workLoop();
+            }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stop the worker. Timeouts still pending never fire.
+     */
+    public synchronized void stop() {
+        Thread t = worker;
+        if (t == null) {
+            return;
+        }
+        worker = null;
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (Bucket<K> b : wheel) {
+            b.head = null;
+            b.tail = null;
+        }
+        additions.clear();
+        cancellations.clear();
+        pending.set(0);
+    }
+
+    /**
+     * Schedule a Timeout for key delay milliseconds from now.
+     *
+     * @param key what the Timeout is for
+     * @param delay milliseconds from now
+     * @return Timeout which may be extended or cancelled
+     */
+    public Timeout<K> schedule(K key, long delay) {
+        Timeout<K> t = new Timeout<>(this, key, System.currentTimeMillis() + Math.max(0, delay));
+        pending.incrementAndGet();
+        additions.add(t);
+        return t;
+    }
+
+    public long getPending() {
+        return pending.get();
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    /**
+     * @return mean milliseconds between deadline and expiry
+     */
+    public long getMeanLag() {
+        long n = expired.get();
+        return (n == 0) ? 0 : lagTotal.get() / n;
+    }
+
+    /**
+     * @return worst milliseconds between deadline and expiry
+     */
+    public long getMaxLag() {
+        return lagMax.get();
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    private void workLoop() {
+        List<Timeout<K>> batch = new ArrayList<>();
+        List<Timeout<K>> refile = new ArrayList<>();
+        while (worker == Thread.currentThread()) {
+            long tickEnd = startTime + (tick + 1) * tickMs;
+            long sleep = tickEnd - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+            Timeout<K> t;
+            while ((t = cancellations.poll()) != null) {
+                if (t.bucket != null) {
+                    t.bucket.remove(t);
+                }
+            }
+            while ((t = additions.poll()) != null) {
+                if (!t.isCancelled()) {
+                    place(t);
+                }
+            }
+            expire(wheel[(int) (tick & mask)], tickEnd, batch, refile);
+            tick++;
+        }
+    }
+
+    /*
+     * file t in the bucket of its deadline, counting the revolutions to wait
+     */
+    private void place(Timeout<K> t) {
+        long due = Math.max(tick, (t.deadline - startTime) / tickMs);
+        t.rounds = (due - tick) >> Integer.numberOfTrailingZeros(wheel.length);
+        wheel[(int) (due & mask)].add(t);
+    }
+
+    /*
+     * expire the Timeouts in b due by tickEnd; extended ones are filed again
+     * once the sweep is done, since their new bucket may be b itself
+     */
+    private void expire(Bucket<K> b, long tickEnd, List<Timeout<K>> batch, List<Timeout<K>> refile) {
+        Timeout<K> t = b.head;
+        while (t != null) {
+            Timeout<K> next = t.next;
+            if (t.rounds > 0) {
+                t.rounds--;
+            } else if (t.deadline >= tickEnd) {
+                // extended since it was filed
+                b.remove(t);
+                refile.add(t);
+            } else {
+                b.remove(t);
+                if (t.cancelled.compareAndSet(false, true)) {
+                    pending.decrementAndGet();
+                    long lag = Math.max(0, System.currentTimeMillis() - t.deadline);
+                    expired.incrementAndGet();
+                    lagTotal.addAndGet(lag);
+                    long max;
+                    while ((lag > (max = lagMax.get())) && !lagMax.compareAndSet(max, lag)) {
+                    }
+                    batch.add(t);
+                    if (batch.size() == batchSize) {
+                        fire(batch);
+                    }
+                }
+            }
+            t = next;
+        }
+        for (Timeout<K> r : refile) {
+            place(r);
+        }
+        refile.clear();
+        if (!batch.isEmpty()) {
+            fire(batch);
+        }
+    }
+
+    private void fire(List<Timeout<K>> batch) {
+        try {
+            handler.expired(new ArrayList<>(batch));
+        } catch (RuntimeException ex) {
+            Logger.getLogger(ProxStorTimingWheel.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        batch.clear();
+    }
+}
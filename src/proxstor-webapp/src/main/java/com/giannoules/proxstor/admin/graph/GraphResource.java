@@ -1,7 +1,21 @@
 package com.giannoules.proxstor.admin.graph;
 
 import com.giannoules.proxstor.ProxStorDebug;
+import com.giannoules.proxstor.ProxStorCache;
+import com.giannoules.proxstor.ProxStorEdgeIndex;
 import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.ProxStorGroupCommit;
+import com.giannoules.proxstor.checkin.CheckinHistory;
+import com.giannoules.proxstor.checkin.CurrentLocalityIndex;
+import com.giannoules.proxstor.checkin.DetectionWindow;
+import com.giannoules.proxstor.checkin.FriendsView;
+import com.giannoules.proxstor.checkin.InactivityExpiry;
+import com.giannoules.proxstor.device.DeviceOwnerIndex;
+import com.giannoules.proxstor.environmental.EnvironmentalIndex;
+import com.giannoules.proxstor.notification.LocalityEventBus;
+import com.giannoules.proxstor.query.QueryCache;
+import com.giannoules.proxstor.query.QueryFanout;
+import com.giannoules.proxstor.query.StandingQueries;
 import com.giannoules.proxstor.exception.ProxStorGraphDatabaseAlreadyRunning;
 import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
 import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
@@ -44,7 +58,24 @@ public class GraphResource {
         if (!ProxStorGraph.instance.isRunning()) {
             return Response.status(503).entity("no running graph instance").build();
         }
-        return Response.ok().entity(ProxStorGraph.instance.toString()).build();
+        StringBuilder sb = new StringBuilder();
+        sb.append(ProxStorGraph.instance.toString());
+        sb.append("\n");
+        sb.append(ProxStorGroupCommit.instance.toString());
+        sb.append(ProxStorCache.instance.toString());
+        sb.append(ProxStorEdgeIndex.instance.toString());
+        sb.append(CurrentLocalityIndex.instance.toString());
+        sb.append(FriendsView.instance.toString());
+        sb.append(CheckinHistory.instance.toString());
+        sb.append(DetectionWindow.instance.toString());
+        sb.append(InactivityExpiry.instance.toString());
+        sb.append(EnvironmentalIndex.instance.toString());
+        sb.append(DeviceOwnerIndex.instance.toString());
+        sb.append(LocalityEventBus.instance.toString());
+        sb.append(QueryFanout.instance.toString());
+        sb.append(QueryCache.instance.toString());
+        sb.append(StandingQueries.instance.toString());
+        return Response.ok().entity(sb.toString()).build();
     }
 
     /**
@@ -60,7 +91,20 @@ public class GraphResource {
     @Produces(MediaType.TEXT_PLAIN)
     public Response deleteGraph() {        
         try {
+            DetectionWindow.instance.stop();
+            InactivityExpiry.instance.stop();
+            ProxStorGroupCommit.instance.stop();
+            LocalityEventBus.instance.stop();
+            QueryFanout.instance.stop();
+            QueryCache.instance.clear();
+            StandingQueries.instance.clear();
             ProxStorGraph.instance.shutdown();
+            ProxStorCache.instance.clear();
+            ProxStorEdgeIndex.instance.clear();
+            CurrentLocalityIndex.instance.clear();
+            CheckinHistory.instance.clear();
+            EnvironmentalIndex.instance.clear();
+            DeviceOwnerIndex.instance.clear();
             return Response.ok().entity("graph instance shutdown complete").build();
         } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(GraphResource.class.getName()).log(Level.SEVERE, null, ex);
@@ -96,6 +140,19 @@ public class GraphResource {
             }
             ProxStorGraph.instance.start(conf);
             if (ProxStorGraph.instance.isRunning()) {
+                ProxStorCache.instance.configure(conf);
+                FriendsView.instance.configure(conf);
+                ProxStorEdgeIndex.instance.warm(conf);
+                CurrentLocalityIndex.instance.rebuild();
+                CheckinHistory.instance.rebuild();
+                EnvironmentalIndex.instance.warm();
+                DeviceOwnerIndex.instance.warm();
+                LocalityEventBus.instance.start(conf);
+                QueryFanout.instance.start(conf);
+                QueryCache.instance.configure(conf);
+                ProxStorGroupCommit.instance.start(conf);
+                DetectionWindow.instance.start(conf);
+                InactivityExpiry.instance.start(conf);
                 return Response.ok().entity("graph instance now running").build();
             } else {
                 return Response.serverError().entity("unable to create graph instance").build();
@@ -1,5 +1,6 @@
 package com.giannoules.proxstor.admin.testing;
 
+import com.giannoules.proxstor.ProxStorGraph;
 import com.giannoules.proxstor.api.Environmental;
 import com.giannoules.proxstor.api.Location;
 import com.giannoules.proxstor.environmental.EnvironmentalDao;
@@ -111,5 +112,7 @@ public class LocationWorker implements Runnable {
             
             count--;
         }
+        // hand pooled graph connection back before thread is reused
+        ProxStorGraph.instance.release();
     }
 }
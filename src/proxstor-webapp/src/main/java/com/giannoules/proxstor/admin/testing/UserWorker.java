@@ -1,5 +1,6 @@
 package com.giannoules.proxstor.admin.testing;
 
+import com.giannoules.proxstor.ProxStorGraph;
 import com.giannoules.proxstor.api.Device;
 import com.giannoules.proxstor.api.User;
 import com.giannoules.proxstor.device.DeviceDao;
@@ -110,5 +111,7 @@ public class UserWorker implements Runnable {
 
             count--;
         }
+        // hand pooled graph connection back before thread is reused
+        ProxStorGraph.instance.release();
     }
 }
@@ -1,8 +1,15 @@
 package com.giannoules.proxstor.checkin;
 
 import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.ProxStorGroupCommit;
+import com.giannoules.proxstor.api.Colocation;
+import com.giannoules.proxstor.api.Detection;
+import com.giannoules.proxstor.api.DetectionResult;
 import com.giannoules.proxstor.api.Locality;
 import com.giannoules.proxstor.api.Environmental;
+import com.giannoules.proxstor.api.Location;
+import com.giannoules.proxstor.api.Notification;
+import com.giannoules.proxstor.api.Observation;
 import com.giannoules.proxstor.device.DeviceDao;
 import com.giannoules.proxstor.exception.InvalidDeviceId;
 import com.giannoules.proxstor.exception.InvalidLocalityId;
@@ -10,14 +17,17 @@ import com.giannoules.proxstor.exception.InvalidLocationId;
 import com.giannoules.proxstor.exception.InvalidEnvironmentalId;
 import com.giannoules.proxstor.exception.InvalidUserId;
 import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
-import com.giannoules.proxstor.exception.ProxStorGraphNonExistentObjectID;
 import com.giannoules.proxstor.exception.EnvironmentalNotContainedWithinLocation;
 import com.giannoules.proxstor.exception.UserAlreadyInLocation;
 import com.giannoules.proxstor.locality.LocalityDao;
 import com.giannoules.proxstor.location.LocationDao;
 import com.giannoules.proxstor.environmental.EnvironmentalDao;
+import com.giannoules.proxstor.knows.KnowsDao;
 import com.giannoules.proxstor.nearby.NearbyDao;
+import com.giannoules.proxstor.notification.LocalityEventBus;
+import com.giannoules.proxstor.query.QueryCache;
 import com.giannoules.proxstor.user.UserDao;
+import com.giannoules.proxstor.within.WithinDao;
 import static com.tinkerpop.blueprints.Compare.EQUAL;
 import static com.tinkerpop.blueprints.Compare.GREATER_THAN_EQUAL;
 import static com.tinkerpop.blueprints.Compare.LESS_THAN_EQUAL;
@@ -27,11 +37,21 @@ import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.VertexQuery;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.joda.time.DateTime;
@@ -52,7 +72,8 @@ public enum CheckinDao {
     
     /**
      * Given a user return their current Locality (and thus Location), or null
-     * when there is no current Locality.
+     * when there is no current Locality. Served from CurrentLocalityIndex
+     * when it is warm.
      *
      * @param userId Object ID of the User
      * @return Locality if userId has current Locality; null otherwise
@@ -60,9 +81,23 @@ public enum CheckinDao {
      * a valid User object id.
      */
     public Locality getCurrentLocality(String userId) throws InvalidUserId {
-        UserDao.instance.validOrException(userId);        
+        if (CurrentLocalityIndex.instance.isWarm()) {
+            UserDao.instance.validOrException(userId);
+            return CurrentLocalityIndex.instance.get(userId);
+        }
+        return getCurrentLocality(UserDao.instance.resolve(userId));
+    }
+    
+    /**
+     * Given an already resolved User vertex return their current Locality, or
+     * null when there is no current Locality.
+     * 
+     * @param user Vertex of the User
+     * @return Locality if user has current Locality; null otherwise
+     */
+    private Locality getCurrentLocality(Vertex user) {
         try {
-            Vertex v = getCurrentLocalityVertex(userId);
+            Vertex v = getCurrentLocalityVertex(user);
             if (v != null) {
                 return LocalityDao.instance.get(v);
             }
@@ -73,34 +108,29 @@ public enum CheckinDao {
     }
       
     /**
-     * Lookup and retrieve the current Locality of userId
+     * Lookup and retrieve the current Locality of user
      *
-     * @param userId The User userId to reference
-     * @return Vertex of userId if active Locality, null otherwise
-     * @throws com.giannoules.proxstor.exception.InvalidUserId if provided
-     * userId is not valid
+     * @param u The User vertex to reference
+     * @return Vertex of active Locality, null otherwise
      */
-    private Vertex getCurrentLocalityVertex(String userId) throws InvalidUserId {
-        UserDao.instance.validOrException(userId);
-        try {
-            Vertex u = ProxStorGraph.instance.getVertex(userId);
-            Iterable<Vertex> i = u.getVertices(OUT, "currently_at");
-            Iterator<Vertex> it = i.iterator();
-            if (it.hasNext()) {
-                return it.next();
-            }
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(CheckinDao.class.getName()).log(Level.SEVERE, null, ex);
+    private Vertex getCurrentLocalityVertex(Vertex u) {
+        Iterable<Vertex> i = u.getVertices(OUT, "currently_at");
+        Iterator<Vertex> it = i.iterator();
+        if (it.hasNext()) {
+            return it.next();
         }
         return null;
     }
   
     public List<Locality> getPreviousLocalitiesDateRange(String userId, Date start, Date end, int max) throws InvalidUserId {
-        UserDao.instance.validOrException(userId);        
+        if (CheckinHistory.instance.isWarm()) {
+            return getPreviousLocalitiesFromHistory(userId, start, end, null, max);
+        }
+        Vertex u = UserDao.instance.resolve(userId);
         if ((start != null) && (end != null)) {
             List<Locality> localities = new ArrayList<>();
             try {
-                VertexQuery vq = ProxStorGraph.instance.getVertex(userId).query();
+                VertexQuery vq = u.query();
                 vq.direction(OUT);
                 vq.labels("previously_at");
                 vq.has("arrival", LESS_THAN_EQUAL, new DateTime(end).getMillis());
@@ -109,7 +139,7 @@ public enum CheckinDao {
                 for (Vertex v : vq.vertices()) {                    
                     localities.add(LocalityDao.instance.get(v));                    
                 }
-            } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID | InvalidLocalityId ex) {
+            } catch (InvalidLocalityId ex) {
                 Logger.getLogger(CheckinDao.class.getName()).log(Level.SEVERE, null, ex);
                 return null;
             }
@@ -119,11 +149,14 @@ public enum CheckinDao {
     }
     
      public List<Locality> getPreviousLocalitiesDateRangeLocation(String userId, Date start, Date end, String locId, int max) throws InvalidUserId {
-        UserDao.instance.validOrException(userId);
+        if (CheckinHistory.instance.isWarm()) {
+            return getPreviousLocalitiesFromHistory(userId, start, end, locId, max);
+        }
+        Vertex u = UserDao.instance.resolve(userId);
         if ((start != null) && (end != null)) {
             List<Locality> localities = new ArrayList<>();
             try {
-                VertexQuery vq = ProxStorGraph.instance.getVertex(userId).query();
+                VertexQuery vq = u.query();
                 vq.direction(OUT);
                 vq.labels("previously_at");
                 vq.has("arrival", LESS_THAN_EQUAL, new DateTime(end).getMillis());
@@ -133,7 +166,7 @@ public enum CheckinDao {
                 for (Vertex v : vq.vertices()) {
                     localities.add(LocalityDao.instance.get(v));
                 }
-            } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID | InvalidLocalityId ex) {
+            } catch (InvalidLocalityId ex) {
                 Logger.getLogger(CheckinDao.class.getName()).log(Level.SEVERE, null, ex);
                 return null;
             }
@@ -142,9 +175,92 @@ public enum CheckinDao {
         return null;        
      }
     
-    public List<Locality> getPreviousLocalities(String userId) throws InvalidUserId {
+    /*
+     * date range lookup served by CheckinHistory, with the same null handling
+     * as the graph based lookups above. Localities deleted since they became
+     * previous are skipped.
+     */
+    private List<Locality> getPreviousLocalitiesFromHistory(String userId, Date start, Date end, String locId, int max) throws InvalidUserId {
         UserDao.instance.validOrException(userId);
-        List<Vertex> localityVertices = getPreviousLocalityVertices(userId);
+        if ((start == null) || (end == null)) {
+            return null;
+        }
+        List<Locality> localities = new ArrayList<>();
+        for (String localityId : CheckinHistory.instance.range(userId, start.getTime(), end.getTime(), locId, max)) {
+            try {
+                localities.add(LocalityDao.instance.get(localityId));
+            } catch (InvalidLocalityId ex) {
+                // deleted
+            }
+        }
+        return localities;
+    }
+    
+    /**
+     * Returns the windows between start and end during which another User
+     * was at the same Location as userId, ordered by start (see
+     * CheckinHistory.colocated()). Co-locations with a Locality deleted
+     * since it became previous are still included; see exists().
+     *
+     * @param userId Object ID of the User
+     * @param start range start
+     * @param end range end
+     * @param locId only consider this Location; null for any
+     * @param strength only include Users userId knows with at least this
+     * strength; null for any User
+     * @param minOverlap minimum length of a co-location, in milliseconds
+     * @return Colocations, or null if start or end is null or CheckinHistory
+     * is not warm
+     * @throws InvalidUserId If the userId is invalid
+     */
+    public List<Colocation> getColocated(String userId, Date start, Date end, String locId, Integer strength, long minOverlap) throws InvalidUserId {
+        UserDao.instance.validOrException(userId);
+        if ((start == null) || (end == null) || !CheckinHistory.instance.isWarm()) {
+            return null;
+        }
+        Set<String> users = null;
+        if (strength != null) {
+            users = new HashSet<>(KnowsDao.instance.getUserKnowsIds(userId, strength, OUT));
+            if (users.isEmpty()) {
+                return new ArrayList<>();
+            }
+        }
+        return CheckinHistory.instance.colocated(userId, start.getTime(), end.getTime(), locId, minOverlap, users);
+    }
+
+    /**
+     * Returns whether neither Locality of c has been deleted. Meant for the
+     * co-locations actually returned, rather than every one getColocated()
+     * finds.
+     *
+     * @param c Colocation from getColocated()
+     * @param exists Locality ids already checked, to whether they exist;
+     * updated
+     * @return true if both Localities exist
+     */
+    public boolean exists(Colocation c, Map<String, Boolean> exists) {
+        return exists(c.getLocalityId(), exists) && exists(c.getWithLocalityId(), exists);
+    }
+
+    /*
+     * whether localityId has not been deleted, remembered in exists
+     */
+    private boolean exists(String localityId, Map<String, Boolean> exists) {
+        Boolean e = exists.get(localityId);
+        if (e == null) {
+            try {
+                LocalityDao.instance.get(localityId);
+                e = true;
+            } catch (InvalidLocalityId ex) {
+                e = false;
+            }
+            exists.put(localityId, e);
+        }
+        return e;
+    }
+
+    public List<Locality> getPreviousLocalities(String userId) throws InvalidUserId {
+        List<Vertex> localityVertices = getPreviousLocalityVertices(UserDao.instance.resolve(userId));
         List<Locality> localities = new ArrayList<>();
         try {            
             for (Vertex v : localityVertices) {
@@ -157,39 +273,32 @@ public enum CheckinDao {
         return localities;        
     }
 
-    private List<Vertex> getPreviousLocalityVertices(String userId) throws InvalidUserId {
-        UserDao.instance.validOrException(userId);
+    private List<Vertex> getPreviousLocalityVertices(Vertex u) {
         List<Vertex> localities = new ArrayList<>();
-        try {
-            VertexQuery vq = ProxStorGraph.instance.getVertex(userId).query();
-            vq.direction(OUT);
-            vq.labels("previously_at");                      
-            for (Vertex v : vq.vertices()) {
-                localities.add(v);
-            }
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(CheckinDao.class.getName()).log(Level.SEVERE, null, ex);
-            return null;
+        VertexQuery vq = u.query();
+        vq.direction(OUT);
+        vq.labels("previously_at");                      
+        for (Vertex v : vq.vertices()) {
+            localities.add(v);
         }
         return localities;      
     }
 
     /**
      * Turn a currently_at Locality into a previously_at one
-     * @param current
-     * @return
+     * @param userId
+     * @return the Locality vertex made previous, or null if there was none
      * @throws InvalidUserId 
      */
-    private boolean userCurrentLocalityToPrevious(String userId) throws InvalidUserId {
-        UserDao.instance.validOrException(userId);        
-        Vertex current = getCurrentLocalityVertex(userId);
+    private Vertex userCurrentLocalityToPrevious(String userId) throws InvalidUserId {
+        Vertex u = UserDao.instance.resolve(userId);
+        Vertex current = getCurrentLocalityVertex(u);
         if (current != null) {            
             // update Locality to inactive and the date now
             DateTime now = new DateTime();
             current.setProperty("active", false);
             current.setProperty("departure", now.toString());
             try {
-                Vertex u = ProxStorGraph.instance.getVertex(userId);
                 // remove all currently_at edges (Yes, there should never be >1)
                 for (Edge e : u.getEdges(OUT, "currently_at")) {
                     e.remove();
@@ -207,13 +316,238 @@ public enum CheckinDao {
                 e.setProperty("locationId", current.getProperty("locationId"));
                 
                 ProxStorGraph.instance.commit();
-                return true;
-            } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+                return current;
+            } catch (ProxStorGraphDatabaseNotRunningException ex) {
                 Logger.getLogger(CheckinDao.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+        return null;
+    }
+
+    /**
+     * Move user's current Locality (if any) into a previously_at relationship
+     * and make the new Locality l current. All of the steps run in a single
+     * unit of work so the check-in is committed once, and not at all if any
+     * step fails. With group commit enabled the unit of work is shared with
+     * other concurrent writers.
+     * 
+     * @param userId Object ID of the User checking in
+     * @param l new Locality to add
+     * @return the added Locality, or null if the check-in failed
+     * @throws InvalidUserId
+     * @throws InvalidLocationId
+     * @throws InvalidDeviceId
+     * @throws InvalidEnvironmentalId
+     * @throws EnvironmentalNotContainedWithinLocation 
+     */
+    private Locality checkin(String userId, Locality l) throws InvalidUserId, InvalidLocationId, InvalidDeviceId, InvalidEnvironmentalId, EnvironmentalNotContainedWithinLocation {
+        final Checkin c = new Checkin(userId, l);
+        try {
+            return ProxStorGroupCommit.instance.execute(new ProxStorGroupCommit.Mutation<Locality>() {
+                @Override
+                public Locality run() throws Exception {
+                    return c.apply();
+                }
+                
+                @Override
+                public Locality committed(Locality added) {
+                    return c.committed();
+                }
+            });
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            if (t instanceof InvalidUserId) {
+                throw (InvalidUserId) t;
+            } else if (t instanceof InvalidLocationId) {
+                throw (InvalidLocationId) t;
+            } else if (t instanceof InvalidDeviceId) {
+                throw (InvalidDeviceId) t;
+            } else if (t instanceof InvalidEnvironmentalId) {
+                throw (InvalidEnvironmentalId) t;
+            } else if (t instanceof EnvironmentalNotContainedWithinLocation) {
+                throw (EnvironmentalNotContainedWithinLocation) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            Logger.getLogger(CheckinDao.class.getName()).log(Level.SEVERE, null, t);
+        }
+        return null;
+    }
+    
+    /**
+     * The graph steps of one check-in, split so that several check-ins can
+     * share a unit of work. apply() runs inside the unit of work; committed()
+     * must be called once it has committed.
+     */
+    private static class Checkin {
+        private final String userId;
+        private final Locality l;
+        private Vertex v;
+        private Vertex previous;
+        private Locality added;
+        
+        Checkin(String userId, Locality l) {
+            this.userId = userId;
+            this.l = l;
+        }
+        
+        /*
+         * returns the added Locality, or null (and the unit of work marked
+         * rollback only) if it could not be added
+         */
+        Locality apply() throws Exception {
+            previous = CheckinDao.instance.userCurrentLocalityToPrevious(userId);
+            added = LocalityDao.instance.add(l);
+            if (added == null) {
+                ProxStorGraph.instance.setRollbackOnly();
+                return null;
+            }
+            v = ProxStorGraph.instance.getVertex(added.getLocalityId());
+            ProxStorGraph.instance.getVertex(userId).addEdge("currently_at", v);
+            ProxStorGraph.instance.commit();
+            return added;
+        }
+        
+        Locality committed() {
+            // vertex id is only final once the transaction has committed
+            if (added != null) {
+                added.setLocalityId(v.getId().toString());
+                CurrentLocalityIndex.instance.put(added);
+                if (previous != null) {
+                    CheckinHistory.instance.append(userId, previous);
+                    CheckinDao.instance.historyChanged(userId, previous);
+                }
+                QueryCache.instance.localityChanged(userId, added.getLocationId(), added.getArrival());
+                InactivityExpiry.instance.checkedIn(added);
+                if (LocalityEventBus.instance.hasSubscribers()) {
+                    LocalityEventBus.instance.publish(new Notification(Notification.ARRIVAL, added));
+                }
+            }
+            return added;
+        }
+    }
+    
+    /**
+     * Check out userId from their current Locality, via the group commit
+     * coordinator.
+     * 
+     * @param userId Object ID of the User checking out
+     * @return true if a current Locality was moved to previous; false otherwise
+     * @throws InvalidUserId 
+     */
+    private boolean checkout(final String userId) throws InvalidUserId {
+        try {
+            return ProxStorGroupCommit.instance.execute(new ProxStorGroupCommit.Mutation<Boolean>() {
+                private Vertex previous;
+                
+                @Override
+                public Boolean run() throws Exception {
+                    previous = userCurrentLocalityToPrevious(userId);
+                    return (previous != null);
+                }
+                
+                @Override
+                public Boolean committed(Boolean moved) {
+                    if (moved) {
+                        checkedOut(userId, previous);
+                    }
+                    return moved;
+                }
+            });
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            if (t instanceof InvalidUserId) {
+                throw (InvalidUserId) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            Logger.getLogger(CheckinDao.class.getName()).log(Level.SEVERE, null, t);
+        }
         return false;
     }
+    
+    /*
+     * bookkeeping once userId's checkout (of Locality previous) has committed
+     */
+    private void checkedOut(String userId, Vertex previous) {
+        CurrentLocalityIndex.instance.remove(userId, previous.getId().toString());
+        CheckinHistory.instance.append(userId, previous);
+        historyChanged(userId, previous);
+        InactivityExpiry.instance.checkedOut(userId, previous.getId().toString());
+        if (LocalityEventBus.instance.hasSubscribers()) {
+            LocalityEventBus.instance.publish(new Notification(Notification.DEPARTURE, LocalityDao.instance.toLocality(previous)));
+        }
+    }
+    
+    /*
+     * userId's Locality previous has moved from current to previous
+     */
+    private void historyChanged(String userId, Vertex previous) {
+        if (QueryCache.instance.isEnabled()) {
+            Locality l = LocalityDao.instance.toLocality(previous);
+            QueryCache.instance.localityChanged(userId, l.getLocationId(), l.getArrival());
+        }
+    }
+    
+    /*
+     * check out a batch of Users from their expired Localities, in a single
+     * unit of work; run by InactivityExpiry. A User who has checked in
+     * elsewhere since is left alone. Should the batch fail as a whole each
+     * User is checked out on its own.
+     */
+    void checkoutInactive(final List<Locality> expired) {
+        try {
+            ProxStorGroupCommit.instance.execute(new ProxStorGroupCommit.Mutation<Void>() {
+                private final Map<String, Vertex> moved = new LinkedHashMap<>();
+                
+                @Override
+                public Void run() throws Exception {
+                    moved.clear();
+                    for (Locality l : expired) {
+                        try {
+                            if (!stillCurrent(l)) {
+                                continue;
+                            }
+                            Vertex previous = userCurrentLocalityToPrevious(l.getUserId());
+                            if (previous != null) {
+                                moved.put(l.getUserId(), previous);
+                            }
+                        } catch (InvalidUserId ex) {
+                            // User deleted since the check-in
+                        }
+                    }
+                    return null;
+                }
+                
+                @Override
+                public Void committed(Void result) {
+                    for (Map.Entry<String, Vertex> e : moved.entrySet()) {
+                        checkedOut(e.getKey(), e.getValue());
+                    }
+                    return null;
+                }
+            });
+        } catch (ExecutionException ex) {
+            Logger.getLogger(CheckinDao.class.getName()).log(Level.SEVERE, null, ex.getCause());
+            for (Locality l : expired) {
+                try {
+                    if (stillCurrent(l)) {
+                        checkout(l.getUserId());
+                    }
+                } catch (InvalidUserId | RuntimeException ex1) {
+                    Logger.getLogger(CheckinDao.class.getName()).log(Level.SEVERE, null, ex1);
+                }
+            }
+        }
+    }
+    
+    /*
+     * is l still its User's current Locality
+     */
+    private boolean stillCurrent(Locality l) throws InvalidUserId {
+        Locality c = getCurrentLocality(l.getUserId());
+        return (c != null) && c.getLocalityId().equals(l.getLocalityId());
+    }
 
     /*
      * methods related to devices detecting environmentals
@@ -233,21 +567,182 @@ public enum CheckinDao {
      * @throws EnvironmentalNotContainedWithinLocation
      */
     public Locality deviceDetectEnvironmental(String devId, Environmental partial) throws InvalidEnvironmentalId, InvalidDeviceId, InvalidUserId, InvalidLocationId, EnvironmentalNotContainedWithinLocation, UserAlreadyInLocation {
-        Vertex user = DeviceDao.instance.getDeviceUserVertex(devId);
+        if (DetectionWindow.instance.absorbDetection(devId, partial)) {
+            throw new UserAlreadyInLocation();
+        }
+        Locality l = prepareDetection(devId, partial, null);
+        if (l == null) {
+            return null;
+        }
+        Locality added = checkin(l.getUserId(), l);
+        if (added != null) {
+            DetectionWindow.instance.detected(devId, partial, added.getUserId(), added.getLocationId());
+        }
+        return added;
+    }
+    
+    /**
+     * Check the User of Device devId into the Location best matching a
+     * fingerprint of Environmentals the Device observes at once. The
+     * fingerprint is scored by EnvironmentalDao.resolveFingerprint() and the
+     * check-in is then made as for a detection of the strongest Environmental
+     * of the winning Location.
+     *
+     * @param devId Object ID of the detecting Device
+     * @param observations Environmentals observed together
+     * @return Locality created, or null if the fingerprint does not resolve to
+     * a single Location
+     * @throws InvalidEnvironmentalId
+     * @throws InvalidDeviceId
+     * @throws InvalidUserId
+     * @throws InvalidLocationId
+     * @throws EnvironmentalNotContainedWithinLocation
+     * @throws UserAlreadyInLocation
+     */
+    public Locality deviceDetectFingerprint(String devId, Collection<Observation> observations) throws InvalidEnvironmentalId, InvalidDeviceId, InvalidUserId, InvalidLocationId, EnvironmentalNotContainedWithinLocation, UserAlreadyInLocation {
+        DeviceDao.instance.validOrException(devId);
+        String environmentalId = EnvironmentalDao.instance.resolveFingerprint(observations);
+        if (environmentalId == null) {
+            return null;
+        }
+        Environmental partial = new Environmental();
+        partial.setEnvironmentalId(environmentalId);
+        return deviceDetectEnvironmental(devId, partial);
+    }
+    
+    /**
+     * Apply a batch of Device detections in a single unit of work, and so a
+     * single commit. Detections are applied in timestamp order per Device.
+     * A detection rejected before it touches the graph does not affect the
+     * others. Should the batch's unit of work fail as a whole, including a
+     * check-in failing part way, each detection is retried on its own
+     * through deviceDetectEnvironmental().
+     * 
+     * @param detections Detections to apply
+     * @return one DetectionResult per Detection, in submission order
+     */
+    public List<DetectionResult> deviceDetectEnvironmentals(List<Detection> detections) {
+        final List<Detection> batch = new ArrayList<>(detections);
+        final DetectionResult[] results = new DetectionResult[batch.size()];
+        final List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            order.add(i);
+        }
+        // stable, so equal timestamps keep their submission order
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                Detection x = batch.get(a);
+                Detection y = batch.get(b);
+                int c = String.valueOf(x.getDevId()).compareTo(String.valueOf(y.getDevId()));
+                if (c != 0) {
+                    return c;
+                }
+                long tx = (x.getTimestamp() == null) ? 0 : x.getTimestamp().getTime();
+                long ty = (y.getTimestamp() == null) ? 0 : y.getTimestamp().getTime();
+                return (tx < ty) ? -1 : ((tx == ty) ? 0 : 1);
+            }
+        });
+        // outside the unit of work, which a failed group commit runs again
+        final boolean[] absorbed = new boolean[batch.size()];
+        for (int i : order) {
+            absorbed[i] = DetectionWindow.instance.absorbDetection(batch.get(i).getDevId(), toPartial(batch.get(i)));
+            if (absorbed[i]) {
+                results[i] = new DetectionResult(400, null, UserAlreadyInLocation.class.getSimpleName());
+            }
+        }
+        try {
+            ProxStorGroupCommit.instance.execute(new ProxStorGroupCommit.Mutation<Void>() {
+                private final Map<Integer, Checkin> applied = new LinkedHashMap<>();
+                
+                @Override
+                public Void run() throws Exception {
+                    applied.clear();
+                    // locations of check-ins applied earlier in this batch
+                    Map<String, String> pending = new HashMap<>();
+                    for (int i : order) {
+                        if (absorbed[i]) {
+                            continue;
+                        }
+                        Locality l;
+                        try {
+                            l = prepareDetection(batch.get(i).getDevId(), toPartial(batch.get(i)), pending);
+                        } catch (InvalidDeviceId | InvalidEnvironmentalId | InvalidUserId | InvalidLocationId | EnvironmentalNotContainedWithinLocation | UserAlreadyInLocation ex) {
+                            results[i] = new DetectionResult(400, null, ex.getClass().getSimpleName());
+                            continue;
+                        }
+                        if (l == null) {
+                            results[i] = new DetectionResult(400, null, "no single matching environmental");
+                            continue;
+                        }
+                        // apply() has started mutating the graph: a failure
+                        // from here on must not commit with the batch
+                        Checkin c = new Checkin(l.getUserId(), l);
+                        try {
+                            c.apply();
+                        } catch (Exception ex) {
+                            ProxStorGraph.instance.setRollbackOnly();
+                            throw ex;
+                        }
+                        if (ProxStorGraph.instance.isRollbackOnly()) {
+                            throw new IllegalStateException("batch unit of work rolled back");
+                        }
+                        applied.put(i, c);
+                        pending.put(l.getUserId(), l.getLocationId());
+                    }
+                    return null;
+                }
+                
+                @Override
+                public Void committed(Void result) {
+                    for (Map.Entry<Integer, Checkin> e : applied.entrySet()) {
+                        Detection d = batch.get(e.getKey());
+                        Locality added = e.getValue().committed();
+                        results[e.getKey()] = new DetectionResult(201, added, null);
+                        DetectionWindow.instance.detected(d.getDevId(), toPartial(d), added.getUserId(), added.getLocationId());
+                    }
+                    return null;
+                }
+            });
+        } catch (ExecutionException ex) {
+            Logger.getLogger(CheckinDao.class.getName()).log(Level.SEVERE, null, ex.getCause());
+            for (int i : order) {
+                if (!absorbed[i]) {
+                    results[i] = detectOne(batch.get(i));
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+    
+    /*
+     * resolve devId detecting partial into the Locality it would check the
+     * Device's User into, or null if partial does not match exactly one
+     * Environmental. pending (may be null) overrides the current Location of
+     * Users checked in earlier in the same, not yet committed, batch.
+     */
+    private Locality prepareDetection(String devId, Environmental partial, Map<String, String> pending) throws InvalidEnvironmentalId, InvalidDeviceId, InvalidUserId, InvalidLocationId, EnvironmentalNotContainedWithinLocation, UserAlreadyInLocation {
+        String userId = DeviceDao.instance.getDeviceUserId(devId);
+        if (userId == null) {
+            throw new InvalidUserId();
+        }
         Collection<Environmental> matches = EnvironmentalDao.instance.getMatching(partial);
         if ((matches == null) || (matches.size() != 1)) {
             return null;    // only one match allowed
         }
         String environmentalId = matches.iterator().next().getEnvironmentalId();        
         String locId = EnvironmentalDao.instance.getEnvironmentalLocation(environmentalId);
-        String userId = user.getId().toString();        
 
-        if (userInLocation(userId, locId)) {
+        if ((pending != null) && pending.containsKey(userId)) {
+            if (locId.equals(pending.get(userId))) {
+                throw new UserAlreadyInLocation();
+            }
+        } else if (userInLocation(userId, locId)) {
+            DetectionWindow.instance.detected(devId, partial, userId, locId);
+            InactivityExpiry.instance.refresh(userId);
             throw new UserAlreadyInLocation();
         }
         
-        userCurrentLocalityToPrevious(userId);
-
         Locality l = new Locality();
         l.setActive(true);
         l.setArrival(new Date());
@@ -256,18 +751,37 @@ public enum CheckinDao {
         l.setLocationId(locId);
         l.setEnvironmentalId(environmentalId);
         l.setManual(false);
-
-        l = LocalityDao.instance.add(l);
-
+        return l;
+    }
+    
+    /*
+     * the Environmental identified by a Detection, by id when given
+     */
+    private Environmental toPartial(Detection d) {
+        if ((d.getEnvironmentalId() != null) || (d.getEnvironmental() == null)) {
+            Environmental partial = new Environmental();
+            partial.setEnvironmentalId(d.getEnvironmentalId());
+            return partial;
+        }
+        return d.getEnvironmental();
+    }
+    
+    /*
+     * apply a single Detection with its own commit
+     */
+    private DetectionResult detectOne(Detection d) {
         try {
-            Vertex v = ProxStorGraph.instance.getVertex(l.getLocalityId());
-            user.addEdge("currently_at", v);
-            ProxStorGraph.instance.commit();
-            return l;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+            Locality l = deviceDetectEnvironmental(d.getDevId(), toPartial(d));
+            if (l == null) {
+                return new DetectionResult(400, null, "no single matching environmental");
+            }
+            return new DetectionResult(201, l, null);
+        } catch (InvalidDeviceId | InvalidEnvironmentalId | InvalidUserId | InvalidLocationId | EnvironmentalNotContainedWithinLocation | UserAlreadyInLocation ex) {
+            return new DetectionResult(400, null, ex.getClass().getSimpleName());
+        } catch (RuntimeException ex) {
             Logger.getLogger(CheckinDao.class.getName()).log(Level.SEVERE, null, ex);
+            return new DetectionResult(500, null, ex.getClass().getSimpleName());
         }
-        return null;
     }
 
     /**
@@ -283,27 +797,60 @@ public enum CheckinDao {
      * @throws com.giannoules.proxstor.exception.InvalidUserId
      */
     public boolean deviceUndetectEnvironmental(String devId, Environmental partial) throws InvalidDeviceId, InvalidEnvironmentalId, InvalidUserId {
-        Vertex user = DeviceDao.instance.getDeviceUserVertex(devId);
+        if (DetectionWindow.instance.absorbUndetection(devId, partial)) {
+            return true;    // checkout deferred
+        }
+        String userId = DeviceDao.instance.getDeviceUserId(devId);
+        if (userId == null) {
+            throw new InvalidUserId();
+        }
         Collection<Environmental> matches = EnvironmentalDao.instance.getMatching(partial);
         if ((matches == null) || (matches.size() != 1)) {
             return false;   // only one match allowed
         }
         String environmentalId = matches.iterator().next().getEnvironmentalId();
         String locId = EnvironmentalDao.instance.getEnvironmentalLocation(environmentalId);
-        String userId = user.getId().toString();
 
-        if (userInLocation(userId, locId)) {        
-            return userCurrentLocalityToPrevious(userId);
+        if (userInLocation(userId, locId) && checkout(userId)) {
+            DetectionWindow.instance.forget(devId);
+            return true;
         }
         return false;
     }
     
+    /*
+     * checkout userId if still at locId; run by DetectionWindow once a
+     * deferred undetect has not been followed by a re-detection
+     */
+    void checkoutIfInLocation(String userId, String locId) {
+        try {
+            if (userInLocation(UserDao.instance.resolve(userId), locId)) {
+                checkout(userId);
+            }
+        } catch (InvalidUserId ex) {
+            Logger.getLogger(CheckinDao.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
     /*
      * the following methods are used when a user manually specifies a location
      */
     
     private boolean userInLocation(String userId, String locId) throws InvalidUserId {
-        Locality l = getCurrentLocality(userId);
+        if (CurrentLocalityIndex.instance.isWarm()) {
+            Locality l = CurrentLocalityIndex.instance.get(userId);
+            return (l != null) && (l.getLocationId().equals(locId));
+        }
+        return userInLocation(UserDao.instance.resolve(userId), locId);
+    }
+    
+    private boolean userInLocation(Vertex user, String locId) {
+        Locality l;
+        if (CurrentLocalityIndex.instance.isWarm()) {
+            l = CurrentLocalityIndex.instance.get(user.getId().toString());
+        } else {
+            l = getCurrentLocality(user);
+        }
         return (l != null) && (l.getLocationId().equals(locId));
     }
 
@@ -319,15 +866,11 @@ public enum CheckinDao {
      */
     public Locality setUserLocation(String userId, String locId) throws InvalidUserId, InvalidLocationId, UserAlreadyInLocation {
         LocationDao.instance.validOrException(locId);
-        Vertex user;
         try {
-            if (userInLocation(userId, locId)) {
+            if (userInLocation(UserDao.instance.resolve(userId), locId)) {
                 throw new UserAlreadyInLocation();
             }
 
-            user = ProxStorGraph.instance.getVertex(userId);
-            userCurrentLocalityToPrevious(userId);
-
             Locality l = new Locality();
             l.setUserId(userId);
             l.setActive(true);
@@ -335,13 +878,8 @@ public enum CheckinDao {
             l.setLocationId(locId);
             l.setManual(true);
 
-            l = LocalityDao.instance.add(l);
-
-            user.addEdge("currently_at", ProxStorGraph.instance.getVertex(l.getLocalityId()));            
-                        
-            ProxStorGraph.instance.commit();
-            return l;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID | InvalidDeviceId | InvalidEnvironmentalId | EnvironmentalNotContainedWithinLocation ex) {
+            return checkin(userId, l);
+        } catch (InvalidDeviceId | InvalidEnvironmentalId | EnvironmentalNotContainedWithinLocation ex) {
             Logger.getLogger(CheckinDao.class.getName()).log(Level.SEVERE, null, ex);
         }
         return null;
@@ -356,8 +894,96 @@ public enum CheckinDao {
      * @throws InvalidLocationId 
      */
     public boolean unsetUserLocation(String userId, String locId) throws InvalidUserId, InvalidLocationId {
-        return (userInLocation(userId, locId)) 
-                && (userCurrentLocalityToPrevious(userId));
+        return (userInLocation(UserDao.instance.resolve(userId), locId)) 
+                && (checkout(userId));
+    }
+
+    /*
+     * methods related to Location occupancy
+     */
+    
+    /**
+     * Returns the ids of the Users currently at locId. When includeWithin is
+     * set Users at any Location (transitively) within locId are included.
+     * 
+     * @param locId Object ID of the Location
+     * @param includeWithin include occupants of Locations within locId
+     * @return occupant User ids
+     * @throws InvalidLocationId 
+     */
+    public Collection<String> getOccupants(String locId, boolean includeWithin) throws InvalidLocationId {
+        Set<String> userIds = new LinkedHashSet<>();
+        for (String id : getOccupiableLocations(locId, includeWithin)) {
+            userIds.addAll(getOccupants(id));
+        }
+        return userIds;
+    }
+    
+    /**
+     * Returns the number of Users currently at locId, and optionally at any
+     * Location within it. A User is only ever at one Location so the per
+     * Location counts are simply summed.
+     * 
+     * @param locId Object ID of the Location
+     * @param includeWithin include occupants of Locations within locId
+     * @return number of occupants
+     * @throws InvalidLocationId 
+     */
+    public int getOccupantCount(String locId, boolean includeWithin) throws InvalidLocationId {
+        int count = 0;
+        for (String id : getOccupiableLocations(locId, includeWithin)) {
+            if (CurrentLocalityIndex.instance.isWarm()) {
+                count += OccupancyIndex.instance.getOccupantCount(id);
+            } else {
+                count += getOccupants(id).size();
+            }
+        }
+        return count;
+    }
+    
+    /*
+     * occupants of a single Location, from OccupancyIndex when it is warm and
+     * by scanning for active Localities otherwise
+     */
+    private Collection<String> getOccupants(String locId) {
+        if (CurrentLocalityIndex.instance.isWarm()) {
+            return OccupancyIndex.instance.getOccupants(locId);
+        }
+        List<String> userIds = new ArrayList<>();
+        Locality partial = new Locality();
+        partial.setLocationId(locId);
+        Collection<Locality> localities = LocalityDao.instance.getMatching(partial);
+        if (localities != null) {
+            for (Locality l : localities) {
+                if (l.isActive() && (l.getUserId() != null)) {
+                    userIds.add(l.getUserId());
+                }
+            }
+        }
+        return userIds;
+    }
+    
+    /*
+     * locId itself plus, if includeWithin, every Location reachable from it
+     * through reverse within relationships
+     */
+    private Collection<String> getOccupiableLocations(String locId, boolean includeWithin) throws InvalidLocationId {
+        LocationDao.instance.validOrException(locId);
+        Set<String> locIds = new LinkedHashSet<>();
+        locIds.add(locId);
+        if (includeWithin) {
+            List<String> pending = new ArrayList<>();
+            pending.add(locId);
+            while (!pending.isEmpty()) {
+                String id = pending.remove(pending.size() - 1);
+                for (Location inner : WithinDao.instance.getContaining(id)) {
+                    if (locIds.add(inner.getLocId())) {
+                        pending.add(inner.getLocId());
+                    }
+                }
+            }
+        }
+        return locIds;
     }
 
 }
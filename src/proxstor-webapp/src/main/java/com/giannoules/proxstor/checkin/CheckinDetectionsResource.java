@@ -0,0 +1,42 @@
+package com.giannoules.proxstor.checkin;
+
+import com.giannoules.proxstor.ProxStorDebug;
+import com.giannoules.proxstor.api.Detection;
+import com.giannoules.proxstor.api.DetectionResult;
+import java.util.List;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/*
+ * bulk device detections: /checkin/detections
+ */
+public class CheckinDetectionsResource {
+
+    /**
+     * Largest number of Detections accepted in one request.
+     */
+    public static final int MAX_BATCH = 1024;
+
+    /*
+     * apply a batch of device detections in one transaction
+     *
+     * success - return 200 (Ok) and JSON array of DetectionResult, one per
+     *           Detection in submission order
+     * failure - return 400 (Bad Request) if the batch is empty or too large
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response postDetections(List<Detection> detections) {
+        long start = ProxStorDebug.startTimer();
+        if ((detections == null) || detections.isEmpty() || (detections.size() > MAX_BATCH)) {
+            return Response.status(400).build();
+        }
+        List<DetectionResult> results = CheckinDao.instance.deviceDetectEnvironmentals(detections);
+        ProxStorDebug.endTimer("postDetections", start);
+        return Response.ok((DetectionResult[]) results.toArray(new DetectionResult[results.size()])).build();
+    }
+}
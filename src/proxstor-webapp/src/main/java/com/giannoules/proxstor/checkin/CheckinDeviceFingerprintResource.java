@@ -0,0 +1,68 @@
+package com.giannoules.proxstor.checkin;
+
+import com.giannoules.proxstor.api.Locality;
+import com.giannoules.proxstor.api.Observation;
+import com.giannoules.proxstor.exception.EnvironmentalNotContainedWithinLocation;
+import com.giannoules.proxstor.exception.InvalidDeviceId;
+import com.giannoules.proxstor.exception.InvalidEnvironmentalId;
+import com.giannoules.proxstor.exception.InvalidLocationId;
+import com.giannoules.proxstor.exception.InvalidUserId;
+import com.giannoules.proxstor.exception.UserAlreadyInLocation;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/*
+ * multi-signal device detection: /checkin/device/{devid}/fingerprint
+ */
+public class CheckinDeviceFingerprintResource {
+
+    /**
+     * Largest number of Observations accepted in one fingerprint.
+     */
+    public static final int MAX_OBSERVATIONS = 64;
+
+    private final String devId;
+
+    public CheckinDeviceFingerprintResource(String devId) {
+        this.devId = devId;
+    }
+
+    /*
+     * check device's user into the location best matching the fingerprint
+     *
+     * success - return 201 (Created) and JSON representation of the Locality
+     * failure - return 400 (Bad Request) if the fingerprint is empty or too
+     *           large, does not resolve to a single location, or the user is
+     *           already there
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response postCheckinDeviceFingerprint(List<Observation> observations) {
+        if ((observations == null) || observations.isEmpty() || (observations.size() > MAX_OBSERVATIONS)) {
+            return Response.status(400).build();
+        }
+        try {
+            Locality l = CheckinDao.instance.deviceDetectFingerprint(devId, observations);
+            if (l == null) {
+                return Response.status(400).build();
+            }
+            URI createdUri = new URI("locality/" + l.getLocalityId());
+            return Response.created(createdUri).entity(l).build();
+        } catch (InvalidDeviceId | InvalidLocationId | InvalidEnvironmentalId | InvalidUserId | EnvironmentalNotContainedWithinLocation | UserAlreadyInLocation ex) {
+            Logger.getLogger(CheckinDeviceFingerprintResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
+        } catch (URISyntaxException ex) {
+            Logger.getLogger(CheckinDeviceFingerprintResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.serverError().build();
+        }
+    }
+}
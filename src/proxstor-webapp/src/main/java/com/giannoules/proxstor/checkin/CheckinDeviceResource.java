@@ -15,4 +15,9 @@ public class CheckinDeviceResource {
         return new CheckinDeviceEnvironmentalResource(devId);
     }
     
+    @Path("fingerprint")
+    public CheckinDeviceFingerprintResource getCheckinDeviceFingerprintResource() {
+        return new CheckinDeviceFingerprintResource(devId);
+    }
+    
 }
@@ -0,0 +1,725 @@
+package com.giannoules.proxstor.checkin;
+
+import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.api.Colocation;
+import com.giannoules.proxstor.api.Locality;
+import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
+import static com.tinkerpop.blueprints.Direction.IN;
+import static com.tinkerpop.blueprints.Direction.OUT;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * Append-only per-User history of previous Localities.
+ *
+ * Each User's history is held in parallel primitive arrays of (arrival,
+ * departure, locationId, localityId), sorted by departure. A User is only in
+ * one Locality at a time so arrivals are sorted too, which lets a date range
+ * lookup binary search to the first Locality departing at or after the start
+ * and stop at the first one arriving after the end: O(log n + output).
+ *
+ * Built from the previously_at edges when the graph is started and appended
+ * to by CheckinDao once a Locality has been moved to previous and committed.
+ * The Users with any history at each Location are tracked alongside, giving
+ * QueryDao the cardinalities it plans with, as are each Location's visits
+ * (the same Localities, sorted by arrival) for co-location joins.
+ *
+ * The graph remains the system of record; until rebuild() has completed
+ * isWarm() is false and CheckinDao queries previously_at edges instead.
+ *
+ * @author Jim Giannoules
+ */
+public enum CheckinHistory {
+    instance;
+
+    private final ConcurrentMap<String, History> histories = new ConcurrentHashMap<>();
+    // locationId to the ids of the Users with a previous Locality there
+    private final ConcurrentMap<String, Set<String>> visitors = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Visits> visits = new ConcurrentHashMap<>();
+    private volatile boolean warm;
+
+    // stats emitted in toString()
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong joins = new AtomicLong();
+    private final AtomicLong swept = new AtomicLong();
+
+    /**
+     * One previous Locality of a User.
+     */
+    private static class Stay {
+        final long arrival;
+        final long departure;
+        final String locId;
+        final String localityId;
+
+        Stay(long arrival, long departure, String locId, String localityId) {
+            this.arrival = arrival;
+            this.departure = departure;
+            this.locId = locId;
+            this.localityId = localityId;
+        }
+    }
+
+    /**
+     * One User's previous Localities, ordered by departure and, among equal
+     * departures, by arrival. Arrivals are then in order too unless one stay
+     * spans another, which arrivalsSorted records.
+     */
+    private static class History {
+        private long[] arrivals = new long[4];
+        private long[] departures = new long[4];
+        private String[] locationIds = new String[4];
+        private String[] localityIds = new String[4];
+        private int size;
+        private boolean arrivalsSorted = true;
+
+        synchronized void append(long arrival, long departure, String locId, String localityId) {
+            grow();
+            // appends are almost always in departure order
+            int i = size;
+            while ((i > 0) && ((departures[i - 1] > departure)
+                    || ((departures[i - 1] == departure) && (arrivals[i - 1] > arrival)))) {
+                i--;
+            }
+            if (i < size) {
+                System.arraycopy(arrivals, i, arrivals, i + 1, size - i);
+                System.arraycopy(departures, i, departures, i + 1, size - i);
+                System.arraycopy(locationIds, i, locationIds, i + 1, size - i);
+                System.arraycopy(localityIds, i, localityIds, i + 1, size - i);
+            }
+            arrivals[i] = arrival;
+            departures[i] = departure;
+            locationIds[i] = locId;
+            localityIds[i] = localityId;
+            size++;
+            if (((i > 0) && (arrivals[i - 1] > arrival))
+                    || ((i + 1 < size) && (arrivals[i + 1] < arrival))) {
+                arrivalsSorted = false;
+            }
+        }
+
+        /*
+         * add a Locality in any order; sort() must follow the last load()
+         */
+        void load(long arrival, long departure, String locId, String localityId) {
+            grow();
+            arrivals[size] = arrival;
+            departures[size] = departure;
+            locationIds[size] = locId;
+            localityIds[size] = localityId;
+            size++;
+        }
+
+        /*
+         * restore departure (then arrival) order once loading is done
+         */
+        synchronized void sort() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int c = Long.compare(departures[a], departures[b]);
+                    return (c != 0) ? c : Long.compare(arrivals[a], arrivals[b]);
+                }
+            });
+            long[] a = new long[arrivals.length];
+            long[] d = new long[departures.length];
+            String[] loc = new String[locationIds.length];
+            String[] lty = new String[localityIds.length];
+            arrivalsSorted = true;
+            for (int i = 0; i < size; i++) {
+                int j = order[i];
+                a[i] = arrivals[j];
+                d[i] = departures[j];
+                loc[i] = locationIds[j];
+                lty[i] = localityIds[j];
+                if ((i > 0) && (a[i - 1] > a[i])) {
+                    arrivalsSorted = false;
+                }
+            }
+            arrivals = a;
+            departures = d;
+            locationIds = loc;
+            localityIds = lty;
+        }
+
+        /*
+         * append every Locality of other, which was loaded concurrently
+         */
+        synchronized void merge(History other) {
+            for (int i = 0; i < other.size; i++) {
+                append(other.arrivals[i], other.departures[i], other.locationIds[i], other.localityIds[i]);
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized List<String> range(long start, long end, String locId, int max) {
+            List<String> ids = new ArrayList<>();
+            for (int i = first(start); (i < size) && (ids.size() < max); i++) {
+                if (arrivals[i] > end) {
+                    if (arrivalsSorted) {
+                        break;
+                    }
+                    continue;
+                }
+                if ((locId == null) || locId.equals(locationIds[i])) {
+                    ids.add(localityIds[i]);
+                }
+            }
+            return ids;
+        }
+
+        /*
+         * the Localities overlapping start..end, at locId if not null,
+         * grouped by Location and sorted by arrival within each
+         */
+        synchronized Map<String, List<Stay>> stays(long start, long end, String locId) {
+            Map<String, List<Stay>> byLocation = new HashMap<>();
+            for (int i = first(start); i < size; i++) {
+                if (arrivals[i] > end) {
+                    if (arrivalsSorted) {
+                        break;
+                    }
+                    continue;
+                }
+                if ((locationIds[i] == null) || ((locId != null) && !locId.equals(locationIds[i]))) {
+                    continue;
+                }
+                List<Stay> l = byLocation.get(locationIds[i]);
+                if (l == null) {
+                    l = new ArrayList<>();
+                    byLocation.put(locationIds[i], l);
+                }
+                l.add(new Stay(arrivals[i], departures[i], locationIds[i], localityIds[i]));
+            }
+            if (!arrivalsSorted) {
+                for (List<Stay> l : byLocation.values()) {
+                    Collections.sort(l, BY_ARRIVAL);
+                }
+            }
+            return byLocation;
+        }
+
+        private void grow() {
+            if (size == departures.length) {
+                int n = size * 2;
+                arrivals = Arrays.copyOf(arrivals, n);
+                departures = Arrays.copyOf(departures, n);
+                locationIds = Arrays.copyOf(locationIds, n);
+                localityIds = Arrays.copyOf(localityIds, n);
+            }
+        }
+
+        /*
+         * first Locality departing at or after start
+         */
+        private int first(long start) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (departures[mid] < start) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private static final Comparator<Stay> BY_ARRIVAL = new Comparator<Stay>() {
+        @Override
+        public int compare(Stay a, Stay b) {
+            return Long.compare(a.arrival, b.arrival);
+        }
+    };
+
+    /**
+     * Every User's previous Localities at one Location, in parallel
+     * primitive arrays sorted by arrival. maxStay, the longest of them,
+     * bounds how early a Locality still present at some time can have
+     * arrived, so a time window is found by binary search on arrival alone.
+     */
+    private static class Visits {
+        private long[] arrivals = new long[4];
+        private long[] departures = new long[4];
+        private String[] userIds = new String[4];
+        private String[] localityIds = new String[4];
+        private int size;
+        private long maxStay;
+
+        synchronized void add(long arrival, long departure, String userId, String localityId) {
+            grow();
+            // check outs arrive roughly in arrival order
+            int i = size;
+            while ((i > 0) && (arrivals[i - 1] > arrival)) {
+                i--;
+            }
+            if (i < size) {
+                System.arraycopy(arrivals, i, arrivals, i + 1, size - i);
+                System.arraycopy(departures, i, departures, i + 1, size - i);
+                System.arraycopy(userIds, i, userIds, i + 1, size - i);
+                System.arraycopy(localityIds, i, localityIds, i + 1, size - i);
+            }
+            arrivals[i] = arrival;
+            departures[i] = departure;
+            userIds[i] = userId;
+            localityIds[i] = localityId;
+            size++;
+            maxStay = Math.max(maxStay, departure - arrival);
+        }
+
+        /*
+         * add a visit in any order; sort() must follow the last load()
+         */
+        synchronized void load(long arrival, long departure, String userId, String localityId) {
+            grow();
+            arrivals[size] = arrival;
+            departures[size] = departure;
+            userIds[size] = userId;
+            localityIds[size] = localityId;
+            size++;
+            maxStay = Math.max(maxStay, departure - arrival);
+        }
+
+        /*
+         * restore arrival order once loading is done
+         */
+        synchronized void sort() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(arrivals[a], arrivals[b]);
+                }
+            });
+            long[] a = new long[arrivals.length];
+            long[] d = new long[departures.length];
+            String[] u = new String[userIds.length];
+            String[] lty = new String[localityIds.length];
+            for (int i = 0; i < size; i++) {
+                int j = order[i];
+                a[i] = arrivals[j];
+                d[i] = departures[j];
+                u[i] = userIds[j];
+                lty[i] = localityIds[j];
+            }
+            arrivals = a;
+            departures = d;
+            userIds = u;
+            localityIds = lty;
+        }
+
+        private void grow() {
+            if (size == arrivals.length) {
+                int n = size * 2;
+                arrivals = Arrays.copyOf(arrivals, n);
+                departures = Arrays.copyOf(departures, n);
+                userIds = Arrays.copyOf(userIds, n);
+                localityIds = Arrays.copyOf(localityIds, n);
+            }
+        }
+
+        /*
+         * sort-merge sweep of stays (one User's Localities here, by arrival)
+         * against the visits overlapping start..end. both sides are merged
+         * in arrival order; each keeps the intervals still present at the
+         * current arrival, and every new interval is paired with the other
+         * side's. returns the number of visits swept
+         */
+        synchronized int join(String userId, String locId, List<Stay> stays, long start, long end,
+                long minOverlap, Set<String> users, List<Colocation> out) {
+            int j = firstArrival(start - maxStay);
+            int last = firstArrival(end + 1);
+            int from = j;
+            int i = 0;
+            Stay[] openStays = new Stay[stays.size()];
+            int nStays = 0;
+            int[] openVisits = new int[8];
+            int nVisits = 0;
+            while ((i < stays.size()) || ((j < last) && (nStays > 0))) {
+                if ((j >= last) || ((i < stays.size()) && (stays.get(i).arrival <= arrivals[j]))) {
+                    if ((j >= last) && (nVisits == 0)) {
+                        break;      // no visit left to pair the remaining stays with
+                    }
+                    Stay st = stays.get(i++);
+                    int n = 0;
+                    for (int k = 0; k < nVisits; k++) {
+                        int v = openVisits[k];
+                        if (departures[v] > st.arrival) {
+                            openVisits[n++] = v;
+                            pair(locId, st, v, start, end, minOverlap, out);
+                        }
+                    }
+                    nVisits = n;
+                    openStays[nStays++] = st;
+                } else {
+                    int v = j++;
+                    if ((departures[v] < start) || userId.equals(userIds[v])
+                            || ((users != null) && !users.contains(userIds[v]))) {
+                        continue;
+                    }
+                    int n = 0;
+                    for (int k = 0; k < nStays; k++) {
+                        Stay st = openStays[k];
+                        if (st.departure > arrivals[v]) {
+                            openStays[n++] = st;
+                            pair(locId, st, v, start, end, minOverlap, out);
+                        }
+                    }
+                    nStays = n;
+                    if (nVisits == openVisits.length) {
+                        openVisits = Arrays.copyOf(openVisits, nVisits * 2);
+                    }
+                    openVisits[nVisits++] = v;
+                }
+            }
+            return j - from;
+        }
+
+        private void pair(String locId, Stay st, int v, long start, long end, long minOverlap, List<Colocation> out) {
+            long from = Math.max(start, Math.max(st.arrival, arrivals[v]));
+            long to = Math.min(end, Math.min(st.departure, departures[v]));
+            if ((to > from) && (to - from >= minOverlap)) {
+                out.add(new Colocation(userIds[v], locId, localityIds[v], st.localityId, new Date(from), new Date(to)));
+            }
+        }
+
+        /*
+         * first visit arriving at or after t
+         */
+        private int firstArrival(long t) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (arrivals[mid] < t) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * Load every User's history from the previously_at edges of each User
+     * vertex. The edges come back in no particular order, so each User's
+     * history, and each Location's visits, are loaded unsorted and sorted
+     * once.
+     */
+    public void rebuild() {
+        clear();
+        try {
+            for (Vertex u : ProxStorGraph.instance.getVertices("_type", "user")) {
+                String userId = u.getId().toString();
+                History h = new History();
+                for (Edge e : u.getEdges(OUT, "previously_at")) {
+                    Long arrival = e.getProperty("arrival");
+                    Long departure = e.getProperty("departure");
+                    if ((arrival != null) && (departure != null)) {
+                        String locId = e.getProperty("locationId");
+                        String localityId = e.getVertex(IN).getId().toString();
+                        h.load(arrival, departure, locId, localityId);
+                        visited(userId, arrival, departure, locId, localityId, true);
+                    }
+                }
+                if (h.size() == 0) {
+                    continue;
+                }
+                h.sort();
+                entries.addAndGet(h.size());
+                History prior = histories.putIfAbsent(userId, h);
+                if (prior != null) {
+                    prior.merge(h);
+                }
+            }
+            for (Visits v : visits.values()) {
+                v.sort();
+            }
+            warm = true;
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
+            Logger.getLogger(CheckinHistory.class.getName()).log(Level.SEVERE, null, ex);
+            clear();
+        }
+    }
+
+    /**
+     * Empty the store. Lookups fall back to the graph until rebuild() is called.
+     */
+    public void clear() {
+        warm = false;
+        histories.clear();
+        visitors.clear();
+        visits.clear();
+        entries.set(0);
+        lookups.set(0);
+        joins.set(0);
+        swept.set(0);
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * Record a committed, now inactive, Locality in its User's history.
+     *
+     * @param userId Object ID of the User
+     * @param locality the Locality vertex, after the commit which made it
+     * previous
+     */
+    public void append(String userId, Vertex locality) {
+        Object arrival = locality.getProperty("arrival");
+        Object departure = locality.getProperty("departure");
+        if ((arrival != null) && (departure != null)) {
+            append(userId, new DateTime(arrival).getMillis(), new DateTime(departure).getMillis(),
+                    (String) locality.getProperty("locationId"), locality.getId().toString());
+        }
+    }
+
+    /**
+     * Returns the ids of userId's previous Localities overlapping the start to
+     * end range, oldest first.
+     *
+     * @param userId Object ID of the User
+     * @param start range start, in milliseconds
+     * @param end range end, in milliseconds
+     * @param locId only include Localities at this Location; null for any
+     * @param max maximum number of ids returned
+     * @return Locality ids, empty if there are none
+     */
+    public List<String> range(String userId, long start, long end, String locId, int max) {
+        lookups.incrementAndGet();
+        History h = histories.get(userId);
+        if (h == null) {
+            return new ArrayList<>();
+        }
+        return h.range(start, end, locId, max);
+    }
+
+    /**
+     * Returns the co-locations of userId between start and end: the windows
+     * during which another User had a Locality at a Location where userId
+     * had one too. Only the Locations userId visited in the range are
+     * joined, each by one sort-merge sweep of userId's Localities there
+     * against that Location's visits, so the cost follows the visits to
+     * those Locations rather than the size of the history.
+     * <p>
+     * Current Localities, taken from CurrentLocalityIndex while it is warm,
+     * count as stays lasting until end: userId's own is joined with the
+     * visits like a previous one, and the current occupants of each Location
+     * joined are paired with every one of userId's Localities there.
+     *
+     * @param userId Object ID of the User
+     * @param start range start, in milliseconds
+     * @param end range end, in milliseconds
+     * @param locId only join at this Location; null for any
+     * @param minOverlap minimum length of a co-location, in milliseconds
+     * @param users only include these Users; null for any
+     * @return Colocations ordered by start, then User, empty if there are none
+     */
+    public List<Colocation> colocated(String userId, long start, long end, String locId, long minOverlap, Set<String> users) {
+        joins.incrementAndGet();
+        List<Colocation> found = new ArrayList<>();
+        History h = histories.get(userId);
+        Map<String, List<Stay>> stays = (h == null) ? new HashMap<String, List<Stay>>() : h.stays(start, end, locId);
+        boolean current = CurrentLocalityIndex.instance.isWarm();
+        if (current) {
+            Locality mine = CurrentLocalityIndex.instance.get(userId);
+            if (open(mine, end, locId)) {
+                // arrived after every previous Locality, so last by arrival
+                List<Stay> l = stays.get(mine.getLocationId());
+                if (l == null) {
+                    l = new ArrayList<>();
+                    stays.put(mine.getLocationId(), l);
+                }
+                l.add(new Stay(mine.getArrival().getTime(), Long.MAX_VALUE, mine.getLocationId(), mine.getLocalityId()));
+            }
+        }
+        for (Map.Entry<String, List<Stay>> e : stays.entrySet()) {
+            Visits v = visits.get(e.getKey());
+            if (v != null) {
+                swept.addAndGet(v.join(userId, e.getKey(), e.getValue(), start, end, minOverlap, users, found));
+            }
+            if (current) {
+                occupied(userId, e.getKey(), e.getValue(), start, end, minOverlap, users, found);
+            }
+        }
+        Collections.sort(found, new Comparator<Colocation>() {
+            @Override
+            public int compare(Colocation a, Colocation b) {
+                int c = a.getStart().compareTo(b.getStart());
+                if (c == 0) {
+                    c = a.getUserId().compareTo(b.getUserId());
+                }
+                if (c == 0) {
+                    c = a.getLocalityId().compareTo(b.getLocalityId());
+                }
+                return c;
+            }
+        });
+        return found;
+    }
+
+    /**
+     * Returns the number of previous Localities in userId's history.
+     *
+     * @param userId Object ID of the User
+     * @return history size
+     */
+    public int getSize(String userId) {
+        History h = histories.get(userId);
+        return (h == null) ? 0 : h.size();
+    }
+
+    /**
+     * Returns the ids of the Users with a previous Locality at locId.
+     *
+     * @param locId Object ID of the Location
+     * @return User ids, empty if there are none
+     */
+    public Collection<String> getVisitors(String locId) {
+        Set<String> ids = visitors.get(locId);
+        if (ids == null) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Returns the number of Users with a previous Locality at locId.
+     *
+     * @param locId Object ID of the Location
+     * @return visitor count
+     */
+    public int getVisitorCount(String locId) {
+        Set<String> ids = visitors.get(locId);
+        return (ids == null) ? 0 : ids.size();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Checkin history: ");
+        if (!warm) {
+            sb.append("cold\n");
+            return sb.toString();
+        }
+        sb.append(histories.size()).append(" users, ");
+        sb.append(entries.get()).append(" localities\n");
+        sb.append("\tlookups: ").append(lookups.get());
+        sb.append(", co-location joins: ").append(joins.get());
+        sb.append(", visits swept: ").append(swept.get()).append("\n");
+        return sb.toString();
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    /*
+     * pair userId's stays at locId with the current Localities of the other
+     * Users there
+     */
+    private static void occupied(String userId, String locId, List<Stay> stays, long start, long end,
+            long minOverlap, Set<String> users, List<Colocation> out) {
+        for (String other : OccupancyIndex.instance.getOccupants(locId)) {
+            if (other.equals(userId) || ((users != null) && !users.contains(other))) {
+                continue;
+            }
+            Locality theirs = CurrentLocalityIndex.instance.get(other);
+            if (!open(theirs, end, locId)) {
+                continue;   // moved on since the occupants were read
+            }
+            long arrival = theirs.getArrival().getTime();
+            for (Stay st : stays) {
+                long from = Math.max(start, Math.max(st.arrival, arrival));
+                long to = Math.min(end, st.departure);
+                if ((to > from) && (to - from >= minOverlap)) {
+                    out.add(new Colocation(other, locId, theirs.getLocalityId(), st.localityId, new Date(from), new Date(to)));
+                }
+            }
+        }
+    }
+
+    /*
+     * whether current Locality l, if any, is at locId (any Location if null)
+     * and arrived by end
+     */
+    private static boolean open(Locality l, long end, String locId) {
+        return (l != null) && (l.getLocationId() != null) && (l.getArrival() != null)
+                && (l.getArrival().getTime() <= end)
+                && ((locId == null) || locId.equals(l.getLocationId()));
+    }
+
+    private void append(String userId, long arrival, long departure, String locId, String localityId) {
+        History h = histories.get(userId);
+        if (h == null) {
+            History created = new History();
+            h = histories.putIfAbsent(userId, created);
+            if (h == null) {
+                h = created;
+            }
+        }
+        h.append(arrival, departure, locId, localityId);
+        entries.incrementAndGet();
+        visited(userId, arrival, departure, locId, localityId, false);
+    }
+
+    /*
+     * index a previous Locality by its Location; unsorted if loading
+     */
+    private void visited(String userId, long arrival, long departure, String locId, String localityId, boolean loading) {
+        if (locId != null) {
+            Set<String> ids = visitors.get(locId);
+            if (ids == null) {
+                Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                ids = visitors.putIfAbsent(locId, created);
+                if (ids == null) {
+                    ids = created;
+                }
+            }
+            ids.add(userId);
+            Visits v = visits.get(locId);
+            if (v == null) {
+                Visits created = new Visits();
+                v = visits.putIfAbsent(locId, created);
+                if (v == null) {
+                    v = created;
+                }
+            }
+            if (loading) {
+                v.load(arrival, departure, userId, localityId);
+            } else {
+                v.add(arrival, departure, userId, localityId);
+            }
+        }
+    }
+}
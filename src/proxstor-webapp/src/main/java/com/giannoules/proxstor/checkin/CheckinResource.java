@@ -15,5 +15,10 @@ public class CheckinResource {
     public CheckinUserResource getCheckinUserResource(@PathParam("userid") String userId) {
         return new CheckinUserResource(userId);
     }    
+    
+    @Path("detections")
+    public CheckinDetectionsResource getCheckinDetectionsResource() {
+        return new CheckinDetectionsResource();
+    }
    
 }
@@ -0,0 +1,236 @@
+package com.giannoules.proxstor.checkin;
+
+import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.api.Locality;
+import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
+import com.giannoules.proxstor.locality.LocalityDao;
+import com.tinkerpop.blueprints.Vertex;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory table of each User's current (active) Locality, keyed by userId.
+ *
+ * Built from the active locality vertices when the graph is started and kept
+ * up to date write-through by CheckinDao once each check-in or checkout has
+ * committed. While warm, a User without an entry has no current Locality.
+ *
+ * Every change of a User's entry is applied to OccupancyIndex, and pushed to
+ * FriendsView, under the same per-User lock, so they stay consistent with
+ * each other.
+ *
+ * Until rebuild() has completed isWarm() is false and CheckinDao falls back
+ * to traversing currently_at in the graph.
+ *
+ * @author Jim Giannoules
+ */
+public enum CurrentLocalityIndex {
+    instance;
+
+    private final Map<String, Locality> current = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[64];
+    private volatile boolean warm;
+
+    // stats emitted in toString()
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    private CurrentLocalityIndex() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Load the current Locality of every User from the graph.
+     */
+    public void rebuild() {
+        clear();
+        try {
+            for (Vertex v : ProxStorGraph.instance.getVertices("_type", "locality")) {
+                if (Boolean.TRUE.equals(v.getProperty("active")) && (v.getProperty("userId") != null)) {
+                    put(LocalityDao.instance.toLocality(v));
+                }
+            }
+            warm = true;
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
+            Logger.getLogger(CurrentLocalityIndex.class.getName()).log(Level.SEVERE, null, ex);
+            clear();
+        }
+    }
+
+    /**
+     * Empty the table. Lookups fall back to the graph until rebuild() is called.
+     */
+    public void clear() {
+        warm = false;
+        current.clear();
+        OccupancyIndex.instance.clear();
+        FriendsView.instance.clear();
+        reads.set(0);
+        writes.set(0);
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * Returns a copy of userId's current Locality.
+     *
+     * @param userId Object ID of the User
+     * @return Locality if userId has a current Locality; null otherwise
+     */
+    public Locality get(String userId) {
+        reads.incrementAndGet();
+        return copy(current.get(userId));
+    }
+
+    /**
+     * Returns copies of every current Locality.
+     *
+     * @return current Localities
+     */
+    Collection<Locality> getAll() {
+        List<Locality> all = new ArrayList<>(current.size());
+        for (Locality l : current.values()) {
+            all.add(copy(l));
+        }
+        return all;
+    }
+
+    /**
+     * Record l as the current Locality of its User. An older Locality never
+     * replaces a newer one, so writers racing on the same User settle on the
+     * latest arrival.
+     *
+     * @param l committed, active Locality
+     */
+    public void put(Locality l) {
+        Locality c = copy(l);
+        writes.incrementAndGet();
+        synchronized (lockFor(c.getUserId())) {
+            Locality old = current.get(c.getUserId());
+            if ((old != null) && newer(old, c)) {
+                return;
+            }
+            current.put(c.getUserId(), c);
+            moved(c.getUserId(), old, c);
+        }
+    }
+
+    /**
+     * Replace userId's entry with l if it refers to the same Locality, e.g.
+     * after the Locality has been updated.
+     *
+     * @param l updated Locality
+     */
+    public void refresh(Locality l) {
+        synchronized (lockFor(l.getUserId())) {
+            Locality old = current.get(l.getUserId());
+            if ((old != null) && old.getLocalityId().equals(l.getLocalityId())) {
+                Locality c = copy(l);
+                current.put(l.getUserId(), c);
+                moved(l.getUserId(), old, c);
+            }
+        }
+    }
+
+    /**
+     * Forget userId's current Locality.
+     *
+     * @param userId Object ID of the User
+     */
+    public void remove(String userId) {
+        writes.incrementAndGet();
+        synchronized (lockFor(userId)) {
+            moved(userId, current.remove(userId), null);
+        }
+    }
+
+    /**
+     * Forget userId's current Locality only if it is localityId.
+     *
+     * @param userId Object ID of the User
+     * @param localityId Object ID of the Locality
+     */
+    public void remove(String userId, String localityId) {
+        synchronized (lockFor(userId)) {
+            Locality old = current.get(userId);
+            if ((old != null) && old.getLocalityId().equals(localityId)) {
+                writes.incrementAndGet();
+                current.remove(userId);
+                moved(userId, old, null);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Current locality table: ");
+        if (!warm) {
+            sb.append("cold\n");
+            return sb.toString();
+        }
+        sb.append(current.size()).append(" users\n");
+        sb.append("\treads: ").append(reads.get());
+        sb.append(", writes: ").append(writes.get()).append("\n");
+        return sb.toString();
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    private Object lockFor(String userId) {
+        return locks[(userId.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    /*
+     * caller holds lockFor(userId)
+     */
+    private void moved(String userId, Locality from, Locality to) {
+        if ((from != null) && (from.getLocationId() != null)) {
+            OccupancyIndex.instance.remove(from.getLocationId(), userId);
+        }
+        if ((to != null) && (to.getLocationId() != null)) {
+            OccupancyIndex.instance.add(to.getLocationId(), userId);
+        }
+        FriendsView.instance.moved(userId, to);
+    }
+
+    private static boolean newer(Locality a, Locality b) {
+        return (a.getArrival() != null) && (b.getArrival() != null)
+                && a.getArrival().after(b.getArrival());
+    }
+
+    /*
+     * entries are private copies; Locality is mutable and handed to callers
+     */
+    static Locality copy(Locality l) {
+        if (l == null) {
+            return null;
+        }
+        Locality c = new Locality();
+        c.setLocalityId(l.getLocalityId());
+        c.setUserId(l.getUserId());
+        c.setLocationId(l.getLocationId());
+        c.setDeviceId(l.getDeviceId());
+        c.setEnvironmentalId(l.getEnvironmentalId());
+        c.setManual(l.isManual());
+        c.setActive(l.isActive());
+        if (l.getArrival() != null) {
+            c.setArrival(new Date(l.getArrival().getTime()));
+        }
+        if (l.getDeparture() != null) {
+            c.setDeparture(new Date(l.getDeparture().getTime()));
+        }
+        return c;
+    }
+}
@@ -0,0 +1,336 @@
+package com.giannoules.proxstor.checkin;
+
+import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.api.Environmental;
+import com.giannoules.proxstor.api.Locality;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-Device window of the last Environmental detected, used to absorb
+ * repeated detections before they reach the graph.
+ *
+ * After a Device's detection has checked its User in (or been rejected
+ * because the User was already there) the window remembers the Environmental,
+ * Location and User for TTL milliseconds. Within that time:
+ * <ul>
+ * <li>a repeat detection of the same Environmental is rejected as
+ * UserAlreadyInLocation without any graph access, provided
+ * CurrentLocalityIndex (when warm) still places the User there
+ * <li>an undetect does not check out straight away; the checkout is deferred
+ * by TTL and cancelled should the Environmental be detected again, so a
+ * Device flapping at the edge of a signal causes no writes at all
+ * </ul>
+ * Every absorbed detection refreshes the window.
+ *
+ * Disabled unless the graph is started with TTL greater than 0.
+ *
+ * @author Jim Giannoules
+ */
+public enum DetectionWindow {
+    instance;
+
+    /**
+     * Configuration key giving the window length in milliseconds. 0 (the
+     * default) disables the window.
+     */
+    public static final String TTL = "proxstor.detection.window";
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile long ttl;
+    private volatile ScheduledThreadPoolExecutor scheduler;
+
+    // stats emitted in toString()
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong flaps = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * Last Environmental detected by one Device.
+     */
+    private static class Entry {
+        final String devId;
+        final String environmental;
+        final String locId;
+        final String userId;
+        long seen;
+        ScheduledFuture<?> checkout;    // pending deferred checkout, if any
+
+        Entry(String devId, String environmental, String locId, String userId) {
+            this.devId = devId;
+            this.environmental = environmental;
+            this.locId = locId;
+            this.userId = userId;
+        }
+    }
+
+    /**
+     * Set the window length from the graph configuration and start the
+     * scheduler running deferred checkouts.
+     *
+     * @param conf Configuration Map the graph was started with
+     */
+    public synchronized void start(Map<String, String> conf) {
+        stop();
+        long t = 0;
+        if (conf.containsKey(TTL)) {
+            try {
+                t = Long.parseLong(conf.get(TTL));
+            } catch (NumberFormatException ex) {
+                Logger.getLogger(DetectionWindow.class.getName()).log(Level.WARNING, "ignoring invalid " + TTL, ex);
+            }
+        }
+        duplicates.set(0);
+        flaps.set(0);
+        deferred.set(0);
+        expired.set(0);
+        if (t > 0) {
+            scheduler = new ScheduledThreadPoolExecutor(1);
+            scheduler.setRemoveOnCancelPolicy(true);
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    purge();
+                }
+            }, t, t, TimeUnit.MILLISECONDS);
+            ttl = t;
+        }
+    }
+
+    /**
+     * Run any deferred checkouts now, then disable the window.
+     */
+    public synchronized void stop() {
+        ttl = 0;
+        if (scheduler == null) {
+            return;
+        }
+        for (Entry e : entries.values()) {
+            boolean pending;
+            synchronized (e) {
+                pending = (e.checkout != null) && e.checkout.cancel(false);
+            }
+            if (pending) {
+                expire(e);
+            }
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        entries.clear();
+    }
+
+    public boolean isEnabled() {
+        return ttl > 0;
+    }
+
+    /**
+     * Absorb a detection which repeats the Device's last one.
+     *
+     * @param devId Object ID of the detecting Device
+     * @param partial the detected Environmental
+     * @return true if the detection is a repeat and must not reach the graph
+     */
+    public boolean absorbDetection(String devId, Environmental partial) {
+        Entry e = current(devId, partial);
+        if (e == null) {
+            return false;
+        }
+        synchronized (e) {
+            if (!stillThere(e)) {
+                // moved on since; a pending checkout of locId would be a no-op
+                entries.remove(devId, e);
+                if (e.checkout != null) {
+                    e.checkout.cancel(false);
+                    e.checkout = null;
+                }
+                return false;
+            }
+            if (e.checkout != null) {
+                if (!e.checkout.cancel(false)) {
+                    return false;   // deferred checkout already running
+                }
+                e.checkout = null;
+                flaps.incrementAndGet();
+            } else {
+                duplicates.incrementAndGet();
+            }
+            e.seen = System.currentTimeMillis();
+        }
+        InactivityExpiry.instance.refresh(e.userId);
+        return true;
+    }
+
+    /**
+     * Defer an undetect of the Device's last detected Environmental.
+     *
+     * @param devId Object ID of the undetecting Device
+     * @param partial the undetected Environmental
+     * @return true if the undetect has been deferred (or repeats one already
+     * deferred) and must not reach the graph
+     */
+    public boolean absorbUndetection(String devId, Environmental partial) {
+        final Entry e = current(devId, partial);
+        if (e == null) {
+            return false;
+        }
+        synchronized (e) {
+            if (e.checkout == null) {
+                try {
+                    e.checkout = scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            expire(e);
+                        }
+                    }, ttl, TimeUnit.MILLISECONDS);
+                } catch (RuntimeException ex) {
+                    return false;   // window stopped concurrently
+                }
+                deferred.incrementAndGet();
+            } else {
+                duplicates.incrementAndGet();
+            }
+            e.seen = System.currentTimeMillis();
+        }
+        return true;
+    }
+
+    /**
+     * Record that devId detecting partial placed userId at locId.
+     *
+     * @param devId Object ID of the detecting Device
+     * @param partial the detected Environmental
+     * @param userId Object ID of the Device's User
+     * @param locId Object ID of the Location containing the Environmental
+     */
+    public void detected(String devId, Environmental partial, String userId, String locId) {
+        String key = key(partial);
+        if (!isEnabled() || (key == null)) {
+            return;
+        }
+        Entry e = new Entry(devId, key, locId, userId);
+        e.seen = System.currentTimeMillis();
+        forget(devId);
+        entries.put(devId, e);
+    }
+
+    /**
+     * Drop devId's window, cancelling any deferred checkout.
+     *
+     * @param devId Object ID of the Device
+     */
+    public void forget(String devId) {
+        Entry e = entries.remove(devId);
+        if (e != null) {
+            synchronized (e) {
+                if (e.checkout != null) {
+                    e.checkout.cancel(false);
+                    e.checkout = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Detection window: ");
+        if (!isEnabled()) {
+            sb.append("disabled\n");
+            return sb.toString();
+        }
+        sb.append(ttl).append("ms, ").append(entries.size()).append(" devices\n");
+        sb.append("\tsuppressed duplicates: ").append(duplicates.get());
+        sb.append(", suppressed flaps: ").append(flaps.get());
+        sb.append(", deferred checkouts: ").append(deferred.get());
+        sb.append(", expired checkouts: ").append(expired.get()).append("\n");
+        return sb.toString();
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    /*
+     * devId's window if it is live and for the same Environmental as partial
+     */
+    private Entry current(String devId, Environmental partial) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Entry e = entries.get(devId);
+        if ((e == null) || !e.environmental.equals(key(partial))) {
+            return null;
+        }
+        synchronized (e) {
+            if ((e.checkout == null) && (System.currentTimeMillis() - e.seen > ttl)) {
+                return null;
+            }
+        }
+        return e;
+    }
+
+    /*
+     * the window must not hide a move made by another Device or manually
+     */
+    private boolean stillThere(Entry e) {
+        if (!CurrentLocalityIndex.instance.isWarm()) {
+            return true;
+        }
+        Locality l = CurrentLocalityIndex.instance.get(e.userId);
+        return (l != null) && e.locId.equals(l.getLocationId());
+    }
+
+    /*
+     * deferred checkout fired without a re-detection
+     */
+    private void expire(Entry e) {
+        synchronized (e) {
+            e.checkout = null;
+        }
+        entries.remove(e.devId, e);
+        expired.incrementAndGet();
+        try {
+            CheckinDao.instance.checkoutIfInLocation(e.userId, e.locId);
+        } finally {
+            ProxStorGraph.instance.release();
+        }
+    }
+
+    /*
+     * drop windows which have lapsed without a pending checkout
+     */
+    private void purge() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            Entry e = it.next();
+            synchronized (e) {
+                if ((e.checkout == null) && (now - e.seen > ttl)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /*
+     * identify an Environmental by id, or else by type and identifier
+     */
+    private static String key(Environmental partial) {
+        if (partial == null) {
+            return null;
+        }
+        if ((partial.getEnvironmentalId() != null) && !partial.getEnvironmentalId().isEmpty()) {
+            return partial.getEnvironmentalId();
+        }
+        if ((partial.getType() != null) && (partial.getIdentifier() != null)) {
+            return partial.getType() + "|" + partial.getIdentifier();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,531 @@
+package com.giannoules.proxstor.checkin;
+
+import com.giannoules.proxstor.api.Locality;
+import com.giannoules.proxstor.api.Location;
+import com.giannoules.proxstor.exception.InvalidLocationId;
+import com.giannoules.proxstor.exception.InvalidUserId;
+import com.giannoules.proxstor.knows.KnowsDao;
+import com.giannoules.proxstor.location.LocationDao;
+import com.giannoules.proxstor.nearby.NearbyDao;
+import static com.tinkerpop.blueprints.Direction.OUT;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Materialized view, per querying User, of each friend's knows strength and
+ * current Locality, so "where are my friends right now" is answered by a
+ * scan in memory instead of a knows traversal plus a lookup per friend.
+ *
+ * A User's view is built from their knows relationships on their first
+ * query and kept up to date from then on:
+ * <ul>
+ * <li>CurrentLocalityIndex pushes every change of a User's current Locality
+ * to the views listing that User as a friend (the materialized counterpart
+ * of the User's IN knows relationships), under the same per-User lock as
+ * its own update. The views to update are looked up under the registry's
+ * lock, but each is updated under its own, so check-ins by Users with no
+ * friend in common do not wait on each other
+ * <li>KnowsDao and UserDao report changed and removed relationships
+ * </ul>
+ * The coordinates of friends' Locations are kept alongside, so a distance
+ * filter needs no Location reads either.
+ *
+ * Views are weighed by their number of friends. Once the total exceeds the
+ * configured byte budget the views of the Users who queried least recently
+ * are dropped; they are rebuilt from the graph on their next query. A view
+ * which would not fit at all is not built.
+ *
+ * Disabled while CurrentLocalityIndex is cold, or if the graph is started
+ * with BYTES of 0.
+ *
+ * @author Jim Giannoules
+ */
+public enum FriendsView {
+    instance;
+
+    /**
+     * Configuration key giving the budget of all views in bytes. 0 disables
+     * the views. Defaults to DEFAULT_BYTES.
+     */
+    public static final String BYTES = "proxstor.friends.view.bytes";
+
+    public static final long DEFAULT_BYTES = 8L * 1024 * 1024;
+
+    // estimated size of a view, and of each friend in it
+    private static final long VIEW_BYTES = 160;
+    private static final long ROW_BYTES = 112;
+
+    // access ordered so iteration starts at the least recently queried view
+    private final LinkedHashMap<String, View> views = new LinkedHashMap<>(256, 0.75f, true);
+    // friend to the views listing them
+    private final Map<String, Set<View>> watchers = new HashMap<>();
+    private final ConcurrentMap<String, Location> locations = new ConcurrentHashMap<>();
+    // views registered by load() whose friends are still being read
+    private final Set<View> building = new HashSet<>();
+    private long bytes;
+    private volatile long budget = DEFAULT_BYTES;
+
+    // stats emitted in toString()
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong pushes = new AtomicLong();
+    private final AtomicLong oversized = new AtomicLong();
+
+    /**
+     * One friend in a view.
+     */
+    private static class Row {
+        int strength;
+        Locality current;   // CurrentLocalityIndex's copy, never modified
+
+        Row(int strength, Locality current) {
+            this.strength = strength;
+            this.current = current;
+        }
+    }
+
+    /**
+     * The friends of one User. Its rows, and their current Localities, are
+     * guarded by the View itself; adding or removing rows also needs the
+     * FriendsView lock, taken first.
+     */
+    private static class View {
+        final String ownerId;
+        final Map<String, Row> rows = new HashMap<>();
+        // while loading, the friends watched and the localities pushed
+        // before the rows were filled in
+        Collection<String> loading;
+        final Map<String, Locality> pending = new HashMap<>();
+        boolean stale;
+
+        View(String ownerId) {
+            this.ownerId = ownerId;
+        }
+
+        long weight() {
+            return VIEW_BYTES + rows.size() * ROW_BYTES;
+        }
+    }
+
+    /**
+     * Set the budget from the graph configuration and drop all views.
+     *
+     * @param conf Configuration Map the graph was started with
+     */
+    public void configure(Map<String, String> conf) {
+        long b = DEFAULT_BYTES;
+        if (conf.containsKey(BYTES)) {
+            try {
+                b = Long.parseLong(conf.get(BYTES));
+            } catch (NumberFormatException ex) {
+                Logger.getLogger(FriendsView.class.getName()).log(Level.WARNING, "ignoring invalid " + BYTES, ex);
+            }
+        }
+        budget = b;
+        clear();
+    }
+
+    /**
+     * Drop all views and reset the stats.
+     */
+    public void clear() {
+        synchronized (this) {
+            views.clear();
+            watchers.clear();
+            building.clear();
+            bytes = 0;
+        }
+        locations.clear();
+        hits.set(0);
+        builds.set(0);
+        evictions.set(0);
+        pushes.set(0);
+        oversized.set(0);
+    }
+
+    public boolean isEnabled() {
+        return (budget > 0) && CurrentLocalityIndex.instance.isWarm();
+    }
+
+    /**
+     * Returns the current Localities of the friends ownerId knows with at
+     * least strength, from ownerId's view (built if need be).
+     *
+     * @param ownerId Object ID of the querying User
+     * @param strength minimum knows strength
+     * @param locId only friends at this Location, if not null
+     * @param near only friends within distance of this Location, if not null
+     * @param distance maximum distance from near
+     * @param friends if not null, receives the ids of all friends with at
+     * least strength, located or not
+     * @return friend ids to their current Locality, or null if ownerId has
+     * no view and none can be built
+     * @throws InvalidUserId If ownerId is invalid
+     */
+    public SortedMap<String, Locality> getFriendLocalities(String ownerId, int strength, String locId,
+            Location near, Double distance, Collection<String> friends) throws InvalidUserId {
+        if (!isEnabled()) {
+            return null;
+        }
+        Map<String, Locality> located = new HashMap<>();
+        View v;
+        synchronized (this) {
+            v = views.get(ownerId);
+            if (v != null) {
+                if (v.loading != null) {
+                    return null;    // being built by another query
+                }
+                hits.incrementAndGet();
+                select(v, strength, locId, friends, located);
+            }
+        }
+        if (v == null) {
+            v = load(ownerId);
+            if (v == null) {
+                return null;
+            }
+            synchronized (this) {
+                select(v, strength, locId, friends, located);
+            }
+        }
+        SortedMap<String, Locality> found = new TreeMap<>();
+        for (Map.Entry<String, Locality> e : located.entrySet()) {
+            if ((near != null) && (distance != null)) {
+                Location at = location(e.getValue().getLocationId());
+                if ((at == null) || (NearbyDao.instance.distanceBetweenLocations(near, at) > distance)) {
+                    continue;
+                }
+            }
+            found.put(e.getKey(), CurrentLocalityIndex.copy(e.getValue()));
+        }
+        return found;
+    }
+
+    /**
+     * The knows relationship from ownerId to friendId was added or changed
+     * to strength, or removed if strength is null.
+     *
+     * @param ownerId Object ID of the knowing User
+     * @param friendId Object ID of the known User
+     * @param strength new strength, null if removed
+     */
+    public void knowsChanged(String ownerId, String friendId, Integer strength) {
+        if (budget <= 0) {
+            return;
+        }
+        synchronized (this) {
+            View v = views.get(ownerId);
+            if (v == null) {
+                return;
+            }
+            synchronized (v) {
+                if (v.loading != null) {
+                    v.stale = true;     // dropped once loaded
+                    return;
+                }
+                Row r = v.rows.get(friendId);
+                if (strength == null) {
+                    if (r != null) {
+                        v.rows.remove(friendId);
+                        unwatch(friendId, v);
+                        bytes -= ROW_BYTES;
+                    }
+                    return;
+                }
+                if (r != null) {
+                    r.strength = strength;
+                    return;
+                }
+                // watch first, so a concurrent move is pushed after this read
+                watch(friendId, v);
+                v.rows.put(friendId, new Row(strength, CurrentLocalityIndex.instance.get(friendId)));
+                bytes += ROW_BYTES;
+            }
+            evict(v);
+        }
+    }
+
+    /**
+     * userId was deleted: drop their view, and them from other views.
+     *
+     * @param userId Object ID of the User
+     */
+    public void userRemoved(String userId) {
+        if (budget <= 0) {
+            return;
+        }
+        synchronized (this) {
+            View own = views.remove(userId);
+            if (own != null) {
+                drop(own);
+            }
+            // userId may be among the friends a building view has read
+            for (View v : building) {
+                synchronized (v) {
+                    v.stale = true;
+                }
+            }
+            Set<View> listing = watchers.remove(userId);
+            if (listing != null) {
+                for (View v : listing) {
+                    synchronized (v) {
+                        if (v.loading != null) {
+                            v.stale = true;
+                        } else if (v.rows.remove(userId) != null) {
+                            bytes -= ROW_BYTES;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * locId was updated or deleted; forget its coordinates.
+     *
+     * @param locId Object ID of the Location
+     */
+    public void locationChanged(String locId) {
+        locations.remove(locId);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Friends view: ");
+        if (budget <= 0) {
+            sb.append("disabled\n");
+            return sb.toString();
+        }
+        synchronized (this) {
+            sb.append(views.size()).append(" users, ").append(watchers.size()).append(" friends, ");
+            sb.append(bytes).append(" of ").append(budget).append(" bytes\n");
+        }
+        sb.append("\thits: ").append(hits.get());
+        sb.append(", builds: ").append(builds.get());
+        sb.append(", evictions: ").append(evictions.get());
+        sb.append(", too large: ").append(oversized.get());
+        sb.append(", pushed moves: ").append(pushes.get()).append("\n");
+        return sb.toString();
+    }
+
+    /**
+     * userId's current Locality changed to l (null if none). Called by
+     * CurrentLocalityIndex holding userId's lock, which orders the moves of
+     * one User. A View starting to watch userId after the lookup below reads
+     * l from CurrentLocalityIndex itself.
+     *
+     * @param userId Object ID of the User
+     * @param l new current Locality, null if none
+     */
+    void moved(String userId, Locality l) {
+        if (budget <= 0) {
+            return;
+        }
+        View[] listing;
+        synchronized (this) {
+            Set<View> s = watchers.get(userId);
+            if (s == null) {
+                return;
+            }
+            listing = s.toArray(new View[s.size()]);
+        }
+        for (View v : listing) {
+            synchronized (v) {
+                if (v.loading != null) {
+                    v.pending.put(userId, l);
+                } else {
+                    Row r = v.rows.get(userId);
+                    if (r != null) {
+                        r.current = l;
+                    }
+                }
+            }
+            pushes.incrementAndGet();
+        }
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    /*
+     * build ownerId's view. it is registered before ownerId's friends are
+     * read, so a change to ownerId's knows relationships (or a friend being
+     * deleted) while loading marks it stale and it is discarded; its friends
+     * are watched before their current localities are read, so no move is
+     * missed
+     */
+    private View load(String ownerId) throws InvalidUserId {
+        View v = new View(ownerId);
+        v.loading = Collections.emptySet();
+        synchronized (this) {
+            if (views.containsKey(ownerId)) {
+                return null;    // lost a race; evaluate without the view this time
+            }
+            views.put(ownerId, v);
+            building.add(v);
+        }
+        Map<String, Integer> strengths;
+        try {
+            strengths = KnowsDao.instance.getUserKnowsStrengths(ownerId, OUT);
+        } catch (InvalidUserId ex) {
+            synchronized (this) {
+                discard(v);
+            }
+            throw ex;
+        }
+        long weight = VIEW_BYTES + strengths.size() * ROW_BYTES;
+        synchronized (this) {
+            building.remove(v);
+            if (weight > budget) {
+                oversized.incrementAndGet();
+                discard(v);
+                return null;
+            }
+            if ((views.get(ownerId) != v) || v.stale) {
+                discard(v);
+                return null;    // changed while reading; evaluate without the view this time
+            }
+            synchronized (v) {
+                v.loading = strengths.keySet();
+            }
+            for (String friendId : strengths.keySet()) {
+                watch(friendId, v);
+            }
+        }
+        Map<String, Row> rows = new HashMap<>();
+        for (Map.Entry<String, Integer> e : strengths.entrySet()) {
+            rows.put(e.getKey(), new Row(e.getValue(), CurrentLocalityIndex.instance.get(e.getKey())));
+        }
+        synchronized (this) {
+            if (views.get(ownerId) != v) {
+                return null;    // removed while loading
+            }
+            if (v.stale) {
+                views.remove(ownerId);
+                drop(v);
+                return null;
+            }
+            synchronized (v) {
+                v.rows.putAll(rows);
+                for (Map.Entry<String, Locality> e : v.pending.entrySet()) {
+                    v.rows.get(e.getKey()).current = e.getValue();
+                }
+                v.pending.clear();
+                v.loading = null;
+            }
+            bytes += v.weight();
+            builds.incrementAndGet();
+            evict(v);
+            return views.containsKey(ownerId) ? v : null;
+        }
+    }
+
+    /*
+     * caller holds this, so v is not dropped while being read
+     */
+    private static void select(View v, int strength, String locId, Collection<String> friends, Map<String, Locality> located) {
+        synchronized (v) {
+            for (Map.Entry<String, Row> e : v.rows.entrySet()) {
+                Row r = e.getValue();
+                if (r.strength < strength) {
+                    continue;
+                }
+                if (friends != null) {
+                    friends.add(e.getKey());
+                }
+                if ((r.current != null) && ((locId == null) || locId.equals(r.current.getLocationId()))) {
+                    located.put(e.getKey(), r.current);
+                }
+            }
+        }
+    }
+
+    /*
+     * caller holds this. drop the least recently queried views until within
+     * budget, keeping v if it fits alone
+     */
+    private void evict(View v) {
+        Iterator<View> it = views.values().iterator();
+        while ((bytes > budget) && it.hasNext()) {
+            View old = it.next();
+            if ((old == v) && (bytes - v.weight() <= 0)) {
+                break;
+            }
+            it.remove();
+            drop(old);
+            evictions.incrementAndGet();
+        }
+    }
+
+    /*
+     * caller holds this; forget v, a view that did not finish loading
+     */
+    private void discard(View v) {
+        building.remove(v);
+        if (views.get(v.ownerId) == v) {
+            views.remove(v.ownerId);
+            drop(v);
+        }
+    }
+
+    /*
+     * caller holds this; v has already been removed from views
+     */
+    private void drop(View v) {
+        for (String friendId : (v.loading != null) ? v.loading : v.rows.keySet()) {
+            unwatch(friendId, v);
+        }
+        if (v.loading == null) {
+            bytes -= v.weight();
+        }
+    }
+
+    private void watch(String friendId, View v) {
+        Set<View> s = watchers.get(friendId);
+        if (s == null) {
+            s = new HashSet<>();
+            watchers.put(friendId, s);
+        }
+        s.add(v);
+    }
+
+    private void unwatch(String friendId, View v) {
+        Set<View> s = watchers.get(friendId);
+        if (s != null) {
+            s.remove(v);
+            if (s.isEmpty()) {
+                watchers.remove(friendId);
+            }
+        }
+    }
+
+    private Location location(String locId) {
+        if (locId == null) {
+            return null;
+        }
+        Location l = locations.get(locId);
+        if (l == null) {
+            try {
+                l = LocationDao.instance.get(locId);
+                locations.put(locId, l);
+            } catch (InvalidLocationId ex) {
+                return null;
+            }
+        }
+        return l;
+    }
+}
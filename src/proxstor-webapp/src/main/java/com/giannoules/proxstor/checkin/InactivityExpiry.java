@@ -0,0 +1,203 @@
+package com.giannoules.proxstor.checkin;
+
+import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.ProxStorTimingWheel;
+import com.giannoules.proxstor.ProxStorTimingWheel.Timeout;
+import com.giannoules.proxstor.api.Locality;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Automatic checkout of Users whose Devices have gone silent.
+ *
+ * Every device (non-manual) check-in arms an inactivity timer of TTL
+ * milliseconds, pushed back by each repeated detection of the same Location.
+ * Should it run out the User is checked out, as if the Device had undetected
+ * the Environmental. Manual check-ins are never expired.
+ *
+ * Timers live in a ProxStorTimingWheel, so arming, refreshing and cancelling
+ * them is O(1) however many are pending, and expired Users are checked out in
+ * batches of up to BATCH in one unit of work. Expiry lag (how late timers
+ * fire) is reported in toString().
+ *
+ * Disabled unless the graph is started with TTL greater than 0.
+ *
+ * @author Jim Giannoules
+ */
+public enum InactivityExpiry {
+    instance;
+
+    /**
+     * Configuration key giving the inactivity TTL in milliseconds. 0 (the
+     * default) disables automatic checkout.
+     */
+    public static final String TTL = "proxstor.checkin.ttl";
+
+    private static final int WHEEL_SIZE = 512;
+    private static final int BATCH = 256;
+
+    private final ConcurrentMap<String, Timeout<Locality>> timers = new ConcurrentHashMap<>();
+    private volatile ProxStorTimingWheel<Locality> wheel;
+    private volatile long ttl;
+
+    /**
+     * Set the TTL from the graph configuration, start the wheel and arm a
+     * timer for every current device check-in.
+     *
+     * @param conf Configuration Map the graph was started with
+     */
+    public synchronized void start(Map<String, String> conf) {
+        stop();
+        long t = 0;
+        if (conf.containsKey(TTL)) {
+            try {
+                t = Long.parseLong(conf.get(TTL));
+            } catch (NumberFormatException ex) {
+                Logger.getLogger(InactivityExpiry.class.getName()).log(Level.WARNING, "ignoring invalid " + TTL, ex);
+            }
+        }
+        if (t <= 0) {
+            return;
+        }
+        // a tick of 1/64th of the TTL (10ms to 1s) bounds the lateness
+        long tick = Math.max(10, Math.min(1000, t / 64));
+        ProxStorTimingWheel<Locality> w = new ProxStorTimingWheel<>("proxstor-inactivity", tick, WHEEL_SIZE, BATCH,
+                new ProxStorTimingWheel.Handler<Locality>() {
+                    @Override
+                    public void expired(List<Timeout<Locality>> batch) {
+                        expire(batch);
+                    }
+                });
+        ttl = t;
+        wheel = w;
+        long now = System.currentTimeMillis();
+        for (Locality l : CurrentLocalityIndex.instance.getAll()) {
+            if (!l.isManual()) {
+                long arrival = (l.getArrival() == null) ? now : l.getArrival().getTime();
+                timers.put(l.getUserId(), w.schedule(l, arrival + t - now));
+            }
+        }
+        w.start();
+    }
+
+    /**
+     * Stop the wheel and forget every timer.
+     */
+    public synchronized void stop() {
+        ProxStorTimingWheel<Locality> w = wheel;
+        ttl = 0;
+        wheel = null;
+        if (w != null) {
+            w.stop();
+        }
+        timers.clear();
+    }
+
+    public boolean isEnabled() {
+        return ttl > 0;
+    }
+
+    /**
+     * (Re-)arm the timer of l's User after l has been committed. A manual
+     * check-in just cancels it.
+     *
+     * @param l committed, current Locality
+     */
+    public void checkedIn(Locality l) {
+        ProxStorTimingWheel<Locality> w = wheel;
+        if (w == null) {
+            return;
+        }
+        Timeout<Locality> old;
+        if (l.isManual()) {
+            old = timers.remove(l.getUserId());
+        } else {
+            old = timers.put(l.getUserId(), w.schedule(l, ttl));
+        }
+        if (old != null) {
+            old.cancel();
+        }
+    }
+
+    /**
+     * Push userId's timer back by a whole TTL; called on a repeated detection
+     * of the Location userId is checked into.
+     *
+     * @param userId Object ID of the User
+     */
+    public void refresh(String userId) {
+        if (!isEnabled()) {
+            return;
+        }
+        Timeout<Locality> t = timers.get(userId);
+        if (t != null) {
+            t.extend(ttl);
+        }
+    }
+
+    /**
+     * Cancel userId's timer after a committed checkout of localityId. A timer
+     * armed for a later check-in is left alone.
+     *
+     * @param userId Object ID of the User
+     * @param localityId Object ID of the checked-out Locality
+     */
+    public void checkedOut(String userId, String localityId) {
+        Timeout<Locality> t = timers.get(userId);
+        if ((t != null) && t.getKey().getLocalityId().equals(localityId) && timers.remove(userId, t)) {
+            t.cancel();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Inactivity expiry: ");
+        ProxStorTimingWheel<Locality> w = wheel;
+        if (w == null) {
+            sb.append("disabled\n");
+            return sb.toString();
+        }
+        sb.append(ttl).append("ms, ").append(w.getPending()).append(" pending\n");
+        sb.append("\texpired: ").append(w.getExpired());
+        sb.append(", mean lag: ").append(w.getMeanLag()).append("ms");
+        sb.append(", max lag: ").append(w.getMaxLag()).append("ms\n");
+        return sb.toString();
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    /*
+     * check out the Users of a batch of expired timers
+     */
+    private void expire(List<Timeout<Locality>> batch) {
+        List<Locality> expired = new ArrayList<>(batch.size());
+        long now = System.currentTimeMillis();
+        ProxStorTimingWheel<Locality> w = wheel;
+        for (Timeout<Locality> t : batch) {
+            String userId = t.getKey().getUserId();
+            if (t.getDeadline() > now) {
+                // refreshed just as it expired
+                if ((w != null) && timers.replace(userId, t, w.schedule(t.getKey(), t.getDeadline() - now))) {
+                    continue;
+                }
+            }
+            if (timers.remove(userId, t)) {
+                expired.add(t.getKey());
+            }
+        }
+        if (expired.isEmpty()) {
+            return;
+        }
+        try {
+            CheckinDao.instance.checkoutInactive(expired);
+        } finally {
+            ProxStorGraph.instance.release();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.giannoules.proxstor.checkin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reverse index of locationId to the ids of the Users currently at that
+ * Location.
+ *
+ * Maintained exclusively by CurrentLocalityIndex, which applies each change
+ * of a User's current Locality here while holding that User's lock. Readers
+ * never block writers; a reader racing a check-in sees the User either at
+ * the old Location or at the new one.
+ *
+ * Sets emptied by checkouts are kept rather than removed so that a concurrent
+ * add() can never land in a set which has just been dropped from the map.
+ *
+ * @author Jim Giannoules
+ */
+public enum OccupancyIndex {
+    instance;
+
+    private final ConcurrentMap<String, Set<String>> occupants = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the ids of the Users currently at locId.
+     *
+     * @param locId Object ID of the Location
+     * @return snapshot of the occupant User ids, empty if there are none
+     */
+    public Collection<String> getOccupants(String locId) {
+        Set<String> s = occupants.get(locId);
+        if (s == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(s);
+    }
+
+    /**
+     * Returns the number of Users currently at locId.
+     *
+     * @param locId Object ID of the Location
+     * @return number of occupants
+     */
+    public int getOccupantCount(String locId) {
+        Set<String> s = occupants.get(locId);
+        return (s == null) ? 0 : s.size();
+    }
+
+    void add(String locId, String userId) {
+        Set<String> s = occupants.get(locId);
+        if (s == null) {
+            Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            s = occupants.putIfAbsent(locId, created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        s.add(userId);
+    }
+
+    void remove(String locId, String userId) {
+        Set<String> s = occupants.get(locId);
+        if (s != null) {
+            s.remove(userId);
+        }
+    }
+
+    void clear() {
+        occupants.clear();
+    }
+}
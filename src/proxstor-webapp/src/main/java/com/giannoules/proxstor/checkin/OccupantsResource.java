@@ -0,0 +1,86 @@
+package com.giannoules.proxstor.checkin;
+
+import com.giannoules.proxstor.api.OccupantCount;
+import com.giannoules.proxstor.api.User;
+import com.giannoules.proxstor.exception.InvalidLocationId;
+import com.giannoules.proxstor.exception.InvalidUserId;
+import com.giannoules.proxstor.user.UserDao;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/*
+ * Users currently at a Location
+ *
+ *   /location/{locid}/occupants              Users at locid
+ *   /location/{locid}/occupants/count        number of Users at locid
+ *   /location/{locid}/occupants/within       Users at locid or any Location within it
+ *   /location/{locid}/occupants/within/count number of those Users
+ */
+public class OccupantsResource {
+
+    private final String locId;
+    private final boolean includeWithin;
+
+    public OccupantsResource(String locId, boolean includeWithin) {
+        this.locId = locId;
+        this.includeWithin = includeWithin;
+    }
+
+    /*
+     * return the Users currently at the Location
+     *
+     * success - return 200 (Ok) and JSON array of Users
+     * failure - return 404 (Not Found) if locId is invalid
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getOccupants() {
+        try {
+            Collection<String> userIds = CheckinDao.instance.getOccupants(locId, includeWithin);
+            List<User> users = new ArrayList<>();
+            for (String userId : userIds) {
+                try {
+                    users.add(UserDao.instance.get(userId));
+                } catch (InvalidUserId ex) {
+                    // User removed since checking in
+                }
+            }
+            return Response.ok((User[]) users.toArray(new User[users.size()])).build();
+        } catch (InvalidLocationId ex) {
+            Logger.getLogger(OccupantsResource.class.getName()).log(Level.FINE, null, ex);
+            return Response.status(404).build();
+        }
+    }
+
+    /*
+     * return the number of Users currently at the Location
+     *
+     * success - return 200 (Ok) and JSON representation OccupantCount
+     * failure - return 404 (Not Found) if locId is invalid
+     */
+    @Path("count")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getOccupantCount() {
+        try {
+            int count = CheckinDao.instance.getOccupantCount(locId, includeWithin);
+            return Response.ok(new OccupantCount(locId, includeWithin, count)).build();
+        } catch (InvalidLocationId ex) {
+            Logger.getLogger(OccupantsResource.class.getName()).log(Level.FINE, null, ex);
+            return Response.status(404).build();
+        }
+    }
+
+    @Path("within")
+    public OccupantsResource getOccupantsWithinResource() {
+        return new OccupantsResource(locId, true);
+    }
+}
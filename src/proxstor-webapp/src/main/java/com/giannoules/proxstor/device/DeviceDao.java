@@ -2,10 +2,12 @@ package com.giannoules.proxstor.device;
 
 import com.giannoules.proxstor.ProxStorDebug;
 import com.giannoules.proxstor.api.Device;
+import com.giannoules.proxstor.ProxStorCache;
 import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.ProxStorPage;
+import com.giannoules.proxstor.checkin.DetectionWindow;
 import com.giannoules.proxstor.exception.DeviceNotOwnedByUser;
 import com.giannoules.proxstor.exception.InvalidDeviceId;
-import com.giannoules.proxstor.exception.InvalidParameter;
 import com.giannoules.proxstor.exception.InvalidUserId;
 import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
 import com.giannoules.proxstor.exception.ProxStorGraphNonExistentObjectID;
@@ -13,6 +15,7 @@ import com.giannoules.proxstor.user.UserDao;
 import static com.tinkerpop.blueprints.Direction.IN;
 import static com.tinkerpop.blueprints.Direction.OUT;
 import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
 import com.tinkerpop.blueprints.GraphQuery;
 import com.tinkerpop.blueprints.Vertex;
 import java.util.ArrayList;
@@ -53,9 +56,9 @@ public enum DeviceDao {
      */
     public Device getUserDevice(String userId, String devId) throws InvalidDeviceId, InvalidUserId, DeviceNotOwnedByUser {
         UserDao.instance.validOrException(userId);
-        validOrException(devId);        
-        if (isUserDev(userId, devId)) {
-            return DeviceDao.this.get(devId);
+        Vertex v = resolve(devId);
+        if (isUserDev(userId, v)) {
+            return toDevice(v);
         } else {
             throw new DeviceNotOwnedByUser();
         }
@@ -71,14 +74,7 @@ public enum DeviceDao {
      * @throws InvalidUserId If the userId is invalid 
      */
     public Collection<Device> getAllUserDevices(String userId) throws InvalidUserId {
-        UserDao.instance.validOrException(userId);
-        Vertex v;
-        try {
-            v = ProxStorGraph.instance.getVertex(userId);
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(DeviceDao.class.getName()).log(Level.SEVERE, null, ex);
-            return null;
-        }
+        Vertex v = UserDao.instance.resolve(userId);
         List<Device> devices = new ArrayList<>();
         for (Edge e : v.getEdges(OUT, "uses")) {
             devices.add(DeviceDao.instance.toDevice(e.getVertex(IN)));
@@ -102,11 +98,20 @@ public enum DeviceDao {
      * @return Collection of Device objects matching partial, or null if none
      */
     public Collection<Device> getMatching(Device partial) {
+        return getMatching(partial, 0, Integer.MAX_VALUE);
+    }
+
+    /*
+     * one page of getMatching(): count Devices after skipping the first offset
+     */
+    public List<Device> getMatching(Device partial, int offset, int count) {
         List<Device> devices = new ArrayList<>();
         if ((partial.getDevId() != null) && (!partial.getDevId().isEmpty())) {
             try {                
                 validOrException(partial.getDevId());
-                devices.add(DeviceDao.this.get(partial.getDevId()));
+                if (offset == 0) {
+                    devices.add(DeviceDao.this.get(partial.getDevId()));
+                }
                 return devices;  
             } catch (InvalidDeviceId ex) {
                 // invalid devId is not an exception, it is just no match condition
@@ -134,7 +139,7 @@ public enum DeviceDao {
         if ((partial.getOs()!= null) && (!partial.getOs().isEmpty())) {
             q.has("os", partial.getOs());
         }
-        for (Vertex v : q.vertices()) {
+        for (Vertex v : ProxStorPage.window(q.vertices(), offset, count)) {
             if (valid(v)) {
                 devices.add(toDevice(v));
             }
@@ -154,9 +159,8 @@ public enum DeviceDao {
      * @throws InvalidUserId If the userId parameter does not match a valid user
      */
     public Device add(String userId, Device d) throws InvalidUserId {
-        UserDao.instance.validOrException(userId);
+        Vertex out = UserDao.instance.resolve(userId);
         try {
-            Vertex out = ProxStorGraph.instance.getVertex(userId);
             Vertex in = ProxStorGraph.instance.addVertex();
             in.setProperty("description", d.getDescription());
             in.setProperty("manufacturer", d.getManufacturer());
@@ -166,8 +170,9 @@ public enum DeviceDao {
             ProxStorGraph.instance.addEdge(out, in, "uses");
             ProxStorGraph.instance.commit();
             d.setDevId(in.getId().toString());
+            DeviceOwnerIndex.instance.put(d.getDevId(), out.getId().toString());
             return d;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(DeviceDao.class.getName()).log(Level.SEVERE, null, ex);
             try {
                 ProxStorGraph.instance.rollback();
@@ -198,13 +203,11 @@ public enum DeviceDao {
      */
     public boolean update(String userId, Device d) throws InvalidUserId, InvalidDeviceId, DeviceNotOwnedByUser {
         UserDao.instance.validOrException(userId);
-        validOrException(d.getDevId());
-        if (!isUserDev(userId, d.getDevId())) {
+        Vertex v = resolve(d.getDevId());
+        if (!isUserDev(userId, v)) {
             throw new DeviceNotOwnedByUser();
         }
-        Vertex v;
         try {
-            v = ProxStorGraph.instance.getVertex(d.getDevId());
             if (d.getDescription() != null) {
                 v.setProperty("description", d.getDescription());
                 v.setProperty("manufacturer", d.getManufacturer());
@@ -212,8 +215,9 @@ public enum DeviceDao {
                 v.setProperty("os", d.getOs());
             }
             ProxStorGraph.instance.commit();
+            ProxStorCache.instance.invalidate(d.getDevId());
             return true;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(DeviceDao.class.getName()).log(Level.SEVERE, null, ex);
             try {
                 ProxStorGraph.instance.rollback();
@@ -241,15 +245,18 @@ public enum DeviceDao {
      */
     public boolean delete(String userId, String devId) throws InvalidUserId, InvalidDeviceId, DeviceNotOwnedByUser {
         UserDao.instance.validOrException(userId);
-        validOrException(devId);
-        if (!isUserDev(userId, devId)) {
+        Vertex v = resolve(devId);
+        if (!isUserDev(userId, v)) {
             throw new DeviceNotOwnedByUser();
         }
         try {
-            ProxStorGraph.instance.getVertex(devId).remove();
+            v.remove();
             ProxStorGraph.instance.commit();
+            ProxStorCache.instance.invalidate(devId);
+            DeviceOwnerIndex.instance.remove(devId);
+            DetectionWindow.instance.forget(devId);
             return true;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(DeviceDao.class.getName()).log(Level.SEVERE, null, ex);
             try {
                 ProxStorGraph.instance.rollback();
@@ -261,21 +268,42 @@ public enum DeviceDao {
     }
 
     public Vertex getDeviceUserVertex(String devId) throws InvalidDeviceId {
-        validOrException(devId);
         List<Vertex> vertices = new ArrayList<>();
-        try {
-            for (Vertex v : ProxStorGraph.instance.getVertex(devId).getVertices(IN, "uses")) {
-                vertices.add(v);
-            }
-            if (vertices.size() == 1) {
-                return vertices.get(0);
-            }            
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(DeviceDao.class.getName()).log(Level.SEVERE, null, ex);
+        for (Vertex v : resolve(devId).getVertices(IN, "uses")) {
+            vertices.add(v);
         }
+        if (vertices.size() == 1) {
+            return vertices.get(0);
+        }            
         return null;
     }
     
+    /**
+     * Returns the userId of the User of devId, without any graph access once
+     * DeviceOwnerIndex is warm.
+     *
+     * @param devId String representation of device id
+     *
+     * @return userId of the Device's User, or null if it does not have exactly
+     * one
+     *
+     * @throws InvalidDeviceId If devId is not a valid Device
+     */
+    public String getDeviceUserId(String devId) throws InvalidDeviceId {
+        if (DeviceOwnerIndex.instance.isWarm()) {
+            String userId = DeviceOwnerIndex.instance.get(devId);
+            if (userId != null) {
+                return userId;
+            }
+        }
+        // not indexed: invalid Device or one without a User
+        Vertex u = getDeviceUserVertex(devId);
+        if (u == null) {
+            return null;
+        }
+        return u.getId().toString();
+    }
+    
     /**
      * Helper method which accepts a device id strings and either returns
      * nothing to the caller or throws an InvalidDeviceId exception if any
@@ -291,6 +319,29 @@ public enum DeviceDao {
             throw new InvalidDeviceId();
         }
     }
+    
+    /**
+     * Resolve devId to its Device Vertex with a single back-end lookup.
+     * Methods which go on to use the Vertex should call this rather than
+     * validOrException() followed by ProxStorGraph.getVertex().
+     *
+     * @param devId The device id (object id) to resolve
+     * @return Vertex of the Device
+     * @throws InvalidDeviceId If devId is not a valid Device, or the database is not available
+     */
+    public Vertex resolve(String devId) throws InvalidDeviceId {
+        if (devId != null) {
+            try {
+                Vertex v = ProxStorGraph.instance.getVertex(devId);
+                if (valid(v)) {
+                    return v;
+                }
+            } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+                Logger.getLogger(DeviceDao.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        throw new InvalidDeviceId();
+    }
       
     /*
      * returns Device stored under devId
@@ -304,9 +355,9 @@ public enum DeviceDao {
         if (devId == null) {
             return null;
         }
-        Vertex v;
+        Element v;
         try {
-            v = ProxStorGraph.instance.getVertex(devId);
+            v = ProxStorCache.instance.get(devId);
         } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
             Logger.getLogger(DeviceDao.class.getName()).log(Level.SEVERE, null, ex);
             return null;
@@ -326,7 +377,7 @@ public enum DeviceDao {
      *
      * assumes sanity check already performed on vertex
      */
-    private Device toDevice(Vertex v) {
+    private Device toDevice(Element v) {
         if (v == null) {
             return null;
         }
@@ -361,6 +412,9 @@ public enum DeviceDao {
             try {
                 ProxStorGraph.instance.getVertex(devId).remove();
                 ProxStorGraph.instance.commit();
+                ProxStorCache.instance.invalidate(devId);
+                DeviceOwnerIndex.instance.remove(devId);
+                DetectionWindow.instance.forget(devId);
             } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
                 Logger.getLogger(DeviceDao.class.getName()).log(Level.SEVERE, null, ex);
                 try {
@@ -402,6 +456,7 @@ public enum DeviceDao {
                     v.setProperty("os", d.getOs());
                 }
                 ProxStorGraph.instance.commit();
+                ProxStorCache.instance.invalidate(d.getDevId());
             } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
                 Logger.getLogger(DeviceDao.class.getName()).log(Level.SEVERE, null, ex);
                 try {
@@ -420,8 +475,8 @@ public enum DeviceDao {
     /*
      * test Vertex for Device-ness
      */
-    private boolean valid(Vertex ... vertices) {
-        for (Vertex v : vertices) {
+    private boolean valid(Element ... vertices) {
+        for (Element v : vertices) {
             if ((v == null) || !v.getProperty("_type").equals("device")) {
                 return false;
             }
@@ -435,7 +490,7 @@ public enum DeviceDao {
     private boolean valid(String ... ids) {
         for (String id : ids) {
             try {
-                if ((id == null) || !valid(ProxStorGraph.instance.getVertex(id))) {
+                if ((id == null) || !valid(ProxStorCache.instance.get(id))) {
                     return false;
                 }
             } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
@@ -447,30 +502,20 @@ public enum DeviceDao {
     }
 
     /*
-     * tests for validity of devId ownership by userId
+     * tests for validity of resolved Device vertex ownership by userId
      * returns false if:
-     *   1 devId does not map to any graph vertex
-     *   2 userId does not map to any graph vertex
-     *   3 devId is not vertex of type Device
-     *   4 userId is not vertex of type User
      *   5 User is not Owner of Device     
+     *
+     * (conditions 1-4 covered by caller's resolve/validOrException)
      */
-    private boolean isUserDev(String userId, String devId) {       
-        try {
-            DeviceDao.instance.validOrException(devId);
-            UserDao.instance.validOrException(userId);
-        } catch (InvalidParameter ex) {
-            Logger.getLogger(DeviceDao.class.getName()).log(Level.SEVERE, null, ex);
-            return false;
-        }        
-        try {            
-            for (Edge e : ProxStorGraph.instance.getVertex(devId).getEdges(IN, "uses")) {
-                if (e.getVertex(OUT).getId().toString().equals(userId)) {
-                    return true;
-                }
+    private boolean isUserDev(String userId, Vertex dev) {       
+        /*
+         * callers have already validated userId and resolved dev
+         */
+        for (Edge e : dev.getEdges(IN, "uses")) {
+            if (e.getVertex(OUT).getId().toString().equals(userId)) {
+                return true;
             }
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(DeviceDao.class.getName()).log(Level.SEVERE, null, ex);
         }
         return false; // condition 5        
     }
@@ -0,0 +1,122 @@
+package com.giannoules.proxstor.device;
+
+import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
+import static com.tinkerpop.blueprints.Direction.IN;
+import com.tinkerpop.blueprints.Vertex;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reverse map of devId to the userId of the User using the Device.
+ *
+ * Every device detection needs the detecting Device's User. Ownership almost
+ * never changes, so rather than resolving the Device vertex and walking its
+ * 'uses' edges on each detection the answer is kept here. Built by warm() when
+ * the graph is started and maintained by DeviceDao add and delete and by
+ * UserDao delete.
+ *
+ * Until warm() has completed isWarm() is false and DeviceDao falls back to
+ * the graph.
+ *
+ * @author Jim Giannoules
+ */
+public enum DeviceOwnerIndex {
+    instance;
+
+    private final Map<String, String> owners = new ConcurrentHashMap<>();
+    private volatile boolean warm;
+
+    // stats emitted in toString()
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Index the User of every Device in the graph.
+     */
+    public void warm() {
+        clear();
+        try {
+            for (Vertex d : ProxStorGraph.instance.getVertices("_type", "device")) {
+                Iterator<Vertex> users = d.getVertices(IN, "uses").iterator();
+                if (users.hasNext()) {
+                    Vertex u = users.next();
+                    if (!users.hasNext()) {
+                        owners.put(d.getId().toString(), u.getId().toString());
+                    }
+                }
+            }
+            warm = true;
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
+            Logger.getLogger(DeviceOwnerIndex.class.getName()).log(Level.SEVERE, null, ex);
+            clear();
+        }
+    }
+
+    /**
+     * Empty the index. Lookups fall back to the graph until warm() is called.
+     */
+    public void clear() {
+        warm = false;
+        owners.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * Returns the userId of the User of devId, or null if devId is not indexed.
+     *
+     * @param devId Object ID of the Device
+     * @return userId or null
+     */
+    String get(String devId) {
+        String userId = owners.get(devId);
+        if (userId == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return userId;
+    }
+
+    /**
+     * Record userId as the User of devId. Must be called after commit.
+     *
+     * @param devId Object ID of the Device
+     * @param userId Object ID of the User
+     */
+    void put(String devId, String userId) {
+        owners.put(devId, userId);
+    }
+
+    /**
+     * Drop devId from the index.
+     *
+     * @param devId Object ID of the Device
+     */
+    public void remove(String devId) {
+        owners.remove(devId);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Device owner index: ");
+        if (!warm) {
+            sb.append("cold\n");
+            return sb.toString();
+        }
+        sb.append(owners.size()).append(" devices\n");
+        sb.append("\thits: ").append(hits.get());
+        sb.append(", misses: ").append(misses.get()).append("\n");
+        return sb.toString();
+    }
+}
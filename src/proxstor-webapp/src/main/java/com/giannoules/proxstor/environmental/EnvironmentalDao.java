@@ -3,8 +3,11 @@ package com.giannoules.proxstor.environmental;
 import com.giannoules.proxstor.ProxStorDebug;
 import com.giannoules.proxstor.api.Environmental;
 import com.giannoules.proxstor.api.EnvironmentalType;
+import com.giannoules.proxstor.ProxStorCache;
 import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.ProxStorPage;
 import com.giannoules.proxstor.api.Location;
+import com.giannoules.proxstor.api.Observation;
 import com.giannoules.proxstor.exception.InvalidLocationId;
 import com.giannoules.proxstor.exception.InvalidParameter;
 import com.giannoules.proxstor.exception.InvalidEnvironmentalId;
@@ -15,12 +18,15 @@ import com.giannoules.proxstor.location.LocationDao;
 import static com.tinkerpop.blueprints.Direction.IN;
 import static com.tinkerpop.blueprints.Direction.OUT;
 import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
 import com.tinkerpop.blueprints.GraphQuery;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.VertexQuery;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,6 +34,14 @@ public enum EnvironmentalDao {
 
     instance;
 
+    /**
+     * Fingerprint Observations whose identifier is shared by more
+     * Environmentals than this are ignored.
+     */
+    public static final int MAX_POSTINGS = 32;
+
+    private static final double TIE = 1e-9;
+
     private EnvironmentalDao() {
     }
 
@@ -50,9 +64,9 @@ public enum EnvironmentalDao {
             throws EnvironmentalNotContainedWithinLocation, InvalidEnvironmentalId, InvalidLocationId {
         ProxStorDebug.println("getLocationEnvironmental(" + locId + ", " + environmentalId + ")");
         LocationDao.instance.validOrException(locId);
-        validOrException(environmentalId);
-        if (isLocationEnvironmental(locId, environmentalId)) {
-            return get(environmentalId);
+        Vertex v = resolve(environmentalId);
+        if (isLocationEnvironmental(locId, v)) {
+            return toEnvironmental(v);
         } else {
             throw new EnvironmentalNotContainedWithinLocation();
         }
@@ -68,16 +82,24 @@ public enum EnvironmentalDao {
      * @throws InvalidLocationId If the locId is invalid
      */
     public Collection<Environmental> getAllLocationEnvironmentals(String locId) throws InvalidLocationId {
-        LocationDao.instance.validOrException(locId);
-        Vertex v;
-        try {
-            v = ProxStorGraph.instance.getVertex(locId);
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(EnvironmentalDao.class.getName()).log(Level.SEVERE, null, ex);
-            return null;
-        }
+        return getAllLocationEnvironmentals(locId, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns one page of the Environmentals contained in locId: count
+     * Environmentals after skipping the first offset.
+     *
+     * @param locId String representation of the Location
+     * @param offset number of Environmentals to skip
+     * @param count maximum number of Environmentals returned
+     * @return List of Environmentals, empty if no (more) are contained
+     * @throws InvalidLocationId If the locId parameter does not match a valid
+     * location
+     */
+    public List<Environmental> getAllLocationEnvironmentals(String locId, int offset, int count) throws InvalidLocationId {
+        Vertex v = LocationDao.instance.resolve(locId);
         List<Environmental> environmentals = new ArrayList<>();
-        for (Edge e : v.getEdges(OUT, "contains")) {
+        for (Edge e : ProxStorPage.window(v.getEdges(OUT, "contains"), offset, count)) {
             environmentals.add(EnvironmentalDao.instance.toEnvironmental(e.getVertex(IN)));
         }
         return environmentals;
@@ -101,11 +123,27 @@ public enum EnvironmentalDao {
      * @return Collection of Environmental objects matching partial, or null if none
      */
     public Collection<Environmental> getMatching(Environmental partial) {
+        return getMatching(partial, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns one page of getMatching(): count Environmentals after skipping
+     * the first offset.
+     *
+     * @param partial Partially completed Environmental object
+     * @param offset number of matching Environmentals to skip
+     * @param count maximum number of Environmentals returned
+     *
+     * @return List of Environmental objects matching partial, or null if none
+     */
+    public List<Environmental> getMatching(Environmental partial, int offset, int count) {
         List<Environmental> environmentals = new ArrayList<>();
         if ((partial.getEnvironmentalId() != null) && (!partial.getEnvironmentalId().isEmpty())) {
             try {
                 validOrException(partial.getEnvironmentalId());
-                environmentals.add(get(partial.getEnvironmentalId()));
+                if (offset == 0) {
+                    environmentals.add(get(partial.getEnvironmentalId()));
+                }
                 return environmentals;
             } catch (InvalidEnvironmentalId ex) {
                 // invalid environmentalId is not an exception, it is just no match condition
@@ -113,6 +151,23 @@ public enum EnvironmentalDao {
                 return null;
             }
         }
+        if (EnvironmentalIndex.instance.isWarm() && (partial.getType() != null) && (partial.getIdentifier() != null)) {
+            int skipped = 0;
+            for (String id : EnvironmentalIndex.instance.getMatching(partial.getType(), partial.getIdentifier())) {
+                Environmental e = get(id);
+                if ((e != null) && ((partial.getDescription() == null) || partial.getDescription().isEmpty()
+                        || partial.getDescription().equals(e.getDescription()))) {
+                    if (skipped++ < offset) {
+                        continue;
+                    }
+                    if (environmentals.size() == count) {
+                        break;
+                    }
+                    environmentals.add(e);
+                }
+            }
+            return environmentals;
+        }
         GraphQuery q;
         try {
             q = ProxStorGraph.instance._query();
@@ -130,7 +185,7 @@ public enum EnvironmentalDao {
         if (partial.getIdentifier()!= null) {
             q.has("typeIdentifier", partial.getIdentifier());
         }
-        for (Vertex v : q.vertices()) {
+        for (Vertex v : ProxStorPage.window(q.vertices(), offset, count)) {
             if (valid(v)) {
                 environmentals.add(toEnvironmental(v));
             }
@@ -151,12 +206,11 @@ public enum EnvironmentalDao {
      * location
      */
     public Environmental add(String locId, Environmental e) throws InvalidLocationId, InvalidParameter {
-        LocationDao.instance.validOrException(locId);
+        Vertex out = LocationDao.instance.resolve(locId);
         if ((e.getDescription() == null) || (e.getType() == null)) {
             throw new InvalidParameter();
         }
         try {
-            Vertex out = ProxStorGraph.instance.getVertex(locId);
             Vertex in = ProxStorGraph.instance.addVertex();
             in.setProperty("description", e.getDescription());
             in.setProperty("type", e.getType().toString());
@@ -165,8 +219,9 @@ public enum EnvironmentalDao {
             ProxStorGraph.instance.addEdge(out, in, "contains");
             ProxStorGraph.instance.commit();
             e.setEnvironmentalId(in.getId().toString());
+            EnvironmentalIndex.instance.put(e.getEnvironmentalId(), e.getType().toString(), e.getIdentifier(), out.getId().toString());
             return e;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(EnvironmentalDao.class.getName()).log(Level.SEVERE, null, ex);
             return null;
         }
@@ -193,13 +248,11 @@ public enum EnvironmentalDao {
      */
     public boolean update(String locId, Environmental e) throws EnvironmentalNotContainedWithinLocation, InvalidEnvironmentalId, InvalidLocationId {
         LocationDao.instance.validOrException(locId);
-        validOrException(e.getEnvironmentalId());
-        if (!isLocationEnvironmental(locId, e.getEnvironmentalId())) {
+        Vertex v = resolve(e.getEnvironmentalId());
+        if (!isLocationEnvironmental(locId, v)) {
             throw new EnvironmentalNotContainedWithinLocation();
         }        
-        Vertex v;
         try {
-            v = ProxStorGraph.instance.getVertex(e.getEnvironmentalId());
             if (e.getDescription() != null) {
                 v.setProperty("description", e.getDescription());
             }
@@ -210,8 +263,10 @@ public enum EnvironmentalDao {
                 v.setProperty("typeIdentifier", e.getIdentifier());
             }
             ProxStorGraph.instance.commit();
+            ProxStorCache.instance.invalidate(e.getEnvironmentalId());
+            reindex(v);
             return true;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(EnvironmentalDao.class.getName()).log(Level.SEVERE, null, ex);
             return false;
         }
@@ -237,8 +292,7 @@ public enum EnvironmentalDao {
      */
     public boolean delete(String locId, String environmentalId) throws InvalidEnvironmentalId, InvalidLocationId, EnvironmentalNotContainedWithinLocation {
         LocationDao.instance.validOrException(locId);
-        validOrException(environmentalId);
-        if (!isLocationEnvironmental(locId, environmentalId)) {
+        if (!isLocationEnvironmental(locId, resolve(environmentalId))) {
             throw new EnvironmentalNotContainedWithinLocation();
         }
         return delete(environmentalId);            
@@ -259,6 +313,29 @@ public enum EnvironmentalDao {
             throw new InvalidEnvironmentalId();
         }
     }
+    
+    /**
+     * Resolve environmentalId to its Environmental Vertex with a single back-end lookup.
+     * Methods which go on to use the Vertex should call this rather than
+     * validOrException() followed by ProxStorGraph.getVertex().
+     *
+     * @param environmentalId The environmental id (object id) to resolve
+     * @return Vertex of the Environmental
+     * @throws InvalidEnvironmentalId If environmentalId is not a valid Environmental, or the database is not available
+     */
+    public Vertex resolve(String environmentalId) throws InvalidEnvironmentalId {
+        if (environmentalId != null) {
+            try {
+                Vertex v = ProxStorGraph.instance.getVertex(environmentalId);
+                if (valid(v)) {
+                    return v;
+                }
+            } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+                Logger.getLogger(EnvironmentalDao.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        throw new InvalidEnvironmentalId();
+    }
             
     public Location getEnvironmentalLocation(Environmental e) {
         VertexQuery vq;
@@ -281,45 +358,112 @@ public enum EnvironmentalDao {
     }
 
     public String getEnvironmentalLocation(String environmentalId) throws InvalidEnvironmentalId {
-        EnvironmentalDao.instance.validOrException(environmentalId);
-        VertexQuery vq;
-        try {
-            vq = ProxStorGraph.instance.getVertex(environmentalId).query();
-            vq.direction(IN);
-            vq.labels("contains");
-            List<String> locations = new ArrayList<>();
-            for (Vertex vertex : vq.vertices()) {
-                locations.add(vertex.getId().toString());
+        if (EnvironmentalIndex.instance.isWarm()) {
+            EnvironmentalIndex.Entry e = EnvironmentalIndex.instance.get(environmentalId);
+            if (e == null) {
+                throw new InvalidEnvironmentalId();
             }
-            if (locations.size() != 1) {
+            // the Location may have been deleted since
+            if ((e.locId == null) || !LocationDao.instance.valid(e.locId)) {
                 return null;
             }
-            return locations.get(0);
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(LocationDao.class.getName()).log(Level.SEVERE, null, ex);
+            return e.locId;
         }
-        return null;
+        Vertex v = getEnvironmentalLocationVertex(resolve(environmentalId));
+        if (v == null) {
+            return null;
+        }
+        return v.getId().toString();
     }
-    
-     public Vertex getEnvironmentalLocationVertex(String environmentalId) throws InvalidEnvironmentalId {
-        EnvironmentalDao.instance.validOrException(environmentalId);
-        VertexQuery vq;
-        try {
-            vq = ProxStorGraph.instance.getVertex(environmentalId).query();
-            vq.direction(IN);
-            vq.labels("contains");
-            List<Vertex> locations = new ArrayList<>();
-            for (Vertex vertex : vq.vertices()) {
-                locations.add(vertex);
+
+    /**
+     * Resolve a fingerprint of Environmentals observed together by a device to
+     * the most likely containing Location.
+     * <p>
+     * Each Observation is looked up in EnvironmentalIndex (identifier to
+     * Environmentals to Location) and votes for the Locations it resolves to.
+     * A vote is weighted by the observed signal strength and divided among all
+     * the Environmentals sharing the identifier, so a common vendor SSID
+     * counts for little. Identifiers shared by more than MAX_POSTINGS
+     * Environmentals are skipped outright, which bounds the work per
+     * Observation no matter how many Locations share them.
+     *
+     * @param observations Environmentals observed together
+     *
+     * @return environmentalId of the heaviest Observation contained by the
+     * highest scoring Location, or null if no Location scores or the top two
+     * tie
+     */
+    public String resolveFingerprint(Collection<Observation> observations) {
+        Map<String, Double> scores = new HashMap<>();
+        Map<String, String> strongest = new HashMap<>();
+        Map<String, Double> strongestWeight = new HashMap<>();
+        for (Observation o : observations) {
+            if ((o == null) || (o.getEnvironmental() == null)) {
+                continue;
             }
-            if (locations.size() != 1) {
-                return null;
+            Collection<String> ids = getMatchingIds(o.getEnvironmental());
+            if (ids.isEmpty()) {
+                continue;
+            }
+            double weight = signalWeight(o.getSignal()) / ids.size();
+            for (String id : ids) {
+                String locId;
+                try {
+                    locId = getEnvironmentalLocation(id);
+                } catch (InvalidEnvironmentalId ex) {
+                    continue;   // removed since lookup
+                }
+                if (locId == null) {
+                    continue;
+                }
+                Double score = scores.get(locId);
+                scores.put(locId, (score == null) ? weight : score + weight);
+                Double w = strongestWeight.get(locId);
+                if ((w == null) || (weight > w)) {
+                    strongestWeight.put(locId, weight);
+                    strongest.put(locId, id);
+                }
             }
-            return locations.get(0);
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(LocationDao.class.getName()).log(Level.SEVERE, null, ex);
         }
-        return null;
+        String best = null;
+        double bestScore = 0;
+        double runnerUp = 0;
+        for (Map.Entry<String, Double> e : scores.entrySet()) {
+            if (e.getValue() > bestScore) {
+                runnerUp = bestScore;
+                bestScore = e.getValue();
+                best = e.getKey();
+            } else if (e.getValue() > runnerUp) {
+                runnerUp = e.getValue();
+            }
+        }
+        if ((best == null) || (bestScore - runnerUp < TIE)) {
+            return null;    // ambiguous
+        }
+        return strongest.get(best);
+    }
+    
+     public Vertex getEnvironmentalLocationVertex(String environmentalId) throws InvalidEnvironmentalId {
+        return getEnvironmentalLocationVertex(resolve(environmentalId));
+    }
+
+    /*
+     * returns the single Location Vertex containing already resolved
+     * Environmental Vertex v, or null if there is not exactly one
+     */
+    public Vertex getEnvironmentalLocationVertex(Vertex v) {
+        VertexQuery vq = v.query();
+        vq.direction(IN);
+        vq.labels("contains");
+        List<Vertex> locations = new ArrayList<>();
+        for (Vertex vertex : vq.vertices()) {
+            locations.add(vertex);
+        }
+        if (locations.size() != 1) {
+            return null;
+        }
+        return locations.get(0);
     }
 
 
@@ -331,7 +475,7 @@ public enum EnvironmentalDao {
      *
      * assumes sanity check already performed on vertex
      */
-    private Environmental toEnvironmental(Vertex v) {
+    private Environmental toEnvironmental(Element v) {
         if (v == null) {
             return null;
         }
@@ -348,6 +492,57 @@ public enum EnvironmentalDao {
         return s;
     }
 
+    /*
+     * ids of the Environmentals matching partial, or none if there are more
+     * than MAX_POSTINGS
+     */
+    private Collection<String> getMatchingIds(Environmental partial) {
+        List<String> ids = new ArrayList<>();
+        if ((partial.getEnvironmentalId() != null) && !partial.getEnvironmentalId().isEmpty()) {
+            if (valid(partial.getEnvironmentalId())) {
+                ids.add(partial.getEnvironmentalId());
+            }
+            return ids;
+        }
+        if ((partial.getType() == null) || (partial.getIdentifier() == null)) {
+            return ids;
+        }
+        if (EnvironmentalIndex.instance.isWarm()) {
+            if (EnvironmentalIndex.instance.getMatchingCount(partial.getType(), partial.getIdentifier()) <= MAX_POSTINGS) {
+                ids.addAll(EnvironmentalIndex.instance.getMatching(partial.getType(), partial.getIdentifier()));
+            }
+            return ids;
+        }
+        Collection<Environmental> matches = getMatching(partial);
+        if ((matches != null) && (matches.size() <= MAX_POSTINGS)) {
+            for (Environmental e : matches) {
+                ids.add(e.getEnvironmentalId());
+            }
+        }
+        return ids;
+    }
+
+    /*
+     * weight of an observation with signal strength in dBm: 1.0 at -50 dBm or
+     * stronger falling linearly to 0.1 at -95 dBm or weaker, 1.0 when unknown
+     */
+    private static double signalWeight(Integer signal) {
+        if (signal == null) {
+            return 1.0;
+        }
+        double w = (signal + 100) / 50.0;
+        return Math.max(0.1, Math.min(1.0, w));
+    }
+
+    /*
+     * refresh EnvironmentalIndex after committing a change to v
+     */
+    private void reindex(Vertex v) {
+        Vertex loc = getEnvironmentalLocationVertex(v);
+        EnvironmentalIndex.instance.put(v.getId().toString(), (String) v.getProperty("type"),
+                (String) v.getProperty("typeIdentifier"), (loc == null) ? null : loc.getId().toString());
+    }
+
     /*
      * abstract away setting of Vertex Environmental type
      */
@@ -368,6 +563,8 @@ public enum EnvironmentalDao {
             try {
                 ProxStorGraph.instance.getVertex(environmentalId).remove();
                 ProxStorGraph.instance.commit();
+                ProxStorCache.instance.invalidate(environmentalId);
+                EnvironmentalIndex.instance.remove(environmentalId);
                 return true;
             } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
                 Logger.getLogger(EnvironmentalDao.class.getName()).log(Level.SEVERE, null, ex);
@@ -394,6 +591,8 @@ public enum EnvironmentalDao {
                 v.setProperty("type", e.getType().toString());
                 v.setProperty("typeIdentifier", e.getIdentifier());
                 ProxStorGraph.instance.commit();
+                ProxStorCache.instance.invalidate(e.getEnvironmentalId());
+                reindex(v);
                 return true;
             } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
                 Logger.getLogger(EnvironmentalDao.class.getName()).log(Level.SEVERE, null, ex);
@@ -406,8 +605,8 @@ public enum EnvironmentalDao {
     /*
      * test Vertex for Environmental-ness
      */
-    private boolean valid(Vertex... vertices) {
-        for (Vertex v : vertices) {
+    private boolean valid(Element... vertices) {
+        for (Element v : vertices) {
             if ((v == null) || !v.getProperty("_type").equals("environmental")) {
                 return false;
             }
@@ -421,7 +620,7 @@ public enum EnvironmentalDao {
     private boolean valid(String... ids) {
         for (String id : ids) {
             try {
-                if ((id == null) || !valid(ProxStorGraph.instance.getVertex(id))) {
+                if ((id == null) || !valid(ProxStorCache.instance.get(id))) {
                     return false;
                 }
             } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
@@ -444,9 +643,9 @@ public enum EnvironmentalDao {
         if (environmentalId == null) {
             return null;
         }
-        Vertex v;
+        Element v;
         try {
-            v = ProxStorGraph.instance.getVertex(environmentalId);
+            v = ProxStorCache.instance.get(environmentalId);
         } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
             Logger.getLogger(EnvironmentalDao.class.getName()).log(Level.SEVERE, null, ex);
             return null;
@@ -458,27 +657,21 @@ public enum EnvironmentalDao {
     }
         
     /*
-     * tests for validity of environmentalId conatined by locId
+     * tests for validity of resolved Environmental vertex conatined by locId
      *
      * returns false if:
-     *   1 environmentalId does not map to any graph vertex
-     *   2 locId does not map to any graph vertex
-     *   3 environmentalId is not vertex of type Environmental
-     *   4 locId is not vertex of type Location
      *   5 Location is not container of Environmental     
+     *
+     * (conditions 1-4 covered by caller's resolve/validOrException)
      */
-    private boolean isLocationEnvironmental(String locId, String environmentalId) {       
+    private boolean isLocationEnvironmental(String locId, Vertex environmental) {       
        /*
         * this code protected by callers who already check validity
         */
-        try {
-            for (Edge e : ProxStorGraph.instance.getVertex(environmentalId).getEdges(IN, "contains")) {
-                if (e.getVertex(OUT).getId().toString().equals(locId)) {
-                    return true;
-                }
+        for (Edge e : environmental.getEdges(IN, "contains")) {
+            if (e.getVertex(OUT).getId().toString().equals(locId)) {
+                return true;
             }
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(EnvironmentalDao.class.getName()).log(Level.SEVERE, null, ex);
         }
         return false; // condition 5        
     }
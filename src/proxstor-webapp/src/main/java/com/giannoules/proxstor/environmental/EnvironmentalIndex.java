@@ -0,0 +1,184 @@
+package com.giannoules.proxstor.environmental;
+
+import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.api.EnvironmentalType;
+import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
+import com.tinkerpop.blueprints.Vertex;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exact-match index from (EnvironmentalType, identifier) to the ids of the
+ * Environmentals carrying that identifier, plus each indexed Environmental's
+ * containing Location id.
+ *
+ * Resolving a sensed BSSID or beacon UUID to its Environmental and Location is
+ * then two hash lookups instead of a GraphQuery over every environmental
+ * vertex. Built by warm() when the graph is started and maintained by
+ * EnvironmentalDao add, update and delete.
+ *
+ * Until warm() has completed isWarm() is false and EnvironmentalDao falls back
+ * to querying the graph.
+ *
+ * @author Jim Giannoules
+ */
+public enum EnvironmentalIndex {
+    instance;
+
+    /**
+     * Indexed state of one Environmental.
+     */
+    static class Entry {
+        final String key;
+        final String locId;    // null unless contained by exactly one Location
+
+        Entry(String key, String locId) {
+            this.key = key;
+            this.locId = locId;
+        }
+    }
+
+    // (type, identifier) key to the ids of the Environmentals carrying it;
+    // written only under the index lock, so an emptied set can be dropped
+    private final ConcurrentMap<String, Collection<String>> byIdentifier = new ConcurrentHashMap<>();
+    // environmentalId to its indexed state
+    private final Map<String, Entry> byId = new ConcurrentHashMap<>();
+    private volatile boolean warm;
+
+    // stats emitted in toString()
+    private final AtomicLong lookups = new AtomicLong();
+
+    /**
+     * Index every Environmental in the graph.
+     */
+    public void warm() {
+        clear();
+        try {
+            for (Vertex v : ProxStorGraph.instance.getVertices("_type", "environmental")) {
+                Vertex loc = EnvironmentalDao.instance.getEnvironmentalLocationVertex(v);
+                put(v.getId().toString(), (String) v.getProperty("type"), (String) v.getProperty("typeIdentifier"),
+                        (loc == null) ? null : loc.getId().toString());
+            }
+            warm = true;
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
+            Logger.getLogger(EnvironmentalIndex.class.getName()).log(Level.SEVERE, null, ex);
+            clear();
+        }
+    }
+
+    /**
+     * Empty the index. Lookups fall back to the graph until warm() is called.
+     */
+    public synchronized void clear() {
+        warm = false;
+        byIdentifier.clear();
+        byId.clear();
+        lookups.set(0);
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * Returns the ids of the Environmentals of the given type and identifier.
+     *
+     * @param type EnvironmentalType
+     * @param identifier type specific identifier (e.g. BSSID)
+     * @return environmental ids, empty if there are none
+     */
+    public Collection<String> getMatching(EnvironmentalType type, String identifier) {
+        lookups.incrementAndGet();
+        Collection<String> ids = byIdentifier.get(key(type.toString(), identifier));
+        if (ids == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Returns the number of Environmentals of the given type and identifier.
+     *
+     * @param type EnvironmentalType
+     * @param identifier type specific identifier (e.g. BSSID)
+     * @return count of environmentals
+     */
+    public int getMatchingCount(EnvironmentalType type, String identifier) {
+        Collection<String> ids = byIdentifier.get(key(type.toString(), identifier));
+        return (ids == null) ? 0 : ids.size();
+    }
+
+    /**
+     * Returns the indexed state of environmentalId, or null if it is not an
+     * Environmental.
+     *
+     * @param environmentalId Object ID of the Environmental
+     * @return Entry or null
+     */
+    Entry get(String environmentalId) {
+        lookups.incrementAndGet();
+        return byId.get(environmentalId);
+    }
+
+    /**
+     * Index (or re-index) an Environmental. Must be called after commit.
+     *
+     * @param environmentalId Object ID of the Environmental
+     * @param type EnvironmentalType name
+     * @param identifier type specific identifier
+     * @param locId Object ID of the containing Location
+     */
+    synchronized void put(String environmentalId, String type, String identifier, String locId) {
+        remove(environmentalId);
+        Entry e = new Entry(key(type, identifier), locId);
+        Collection<String> ids = byIdentifier.get(e.key);
+        if (ids == null) {
+            ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            byIdentifier.put(e.key, ids);
+        }
+        ids.add(environmentalId);
+        byId.put(environmentalId, e);
+    }
+
+    /**
+     * Drop an Environmental from the index.
+     *
+     * @param environmentalId Object ID of the Environmental
+     */
+    synchronized void remove(String environmentalId) {
+        Entry old = byId.remove(environmentalId);
+        if (old != null) {
+            Collection<String> ids = byIdentifier.get(old.key);
+            if ((ids != null) && ids.remove(environmentalId) && ids.isEmpty()) {
+                byIdentifier.remove(old.key);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Environmental index: ");
+        if (!warm) {
+            sb.append("cold\n");
+            return sb.toString();
+        }
+        sb.append(byId.size()).append(" environmentals, ");
+        sb.append(byIdentifier.size()).append(" identifiers\n");
+        sb.append("\tlookups: ").append(lookups.get()).append("\n");
+        return sb.toString();
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    private static String key(String type, String identifier) {
+        return type + '|' + identifier;
+    }
+}
@@ -1,13 +1,14 @@
 package com.giannoules.proxstor.environmental;
 
 import com.giannoules.proxstor.ProxStorDebug;
+import com.giannoules.proxstor.ProxStorPage;
 import com.giannoules.proxstor.ProxStorUtil;
 import com.giannoules.proxstor.api.Environmental;
 import com.giannoules.proxstor.exception.InvalidLocationId;
 import com.giannoules.proxstor.exception.InvalidParameter;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Collection;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ws.rs.Consumes;
@@ -16,6 +17,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -31,34 +33,34 @@ public class EnvironmentalsResource {
     }
 
     /*
-     * return the specific lcdId's Environmentals
+     * return the specific lcdId's Environmentals, one page at a time (see
+     * ProxStorPage)
      * 
      * success - return 200 (Ok) and JSON representation Environmental
      * success - return 204 (No Content) if locId has no Environmentals
+     * failure - return 400 (Bad Request) if limit or cursor is invalid
      * failure - return 404 (Not Found) if locId is invalid     
      */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getAllLocationEnvironmentals() {
-        Collection<Environmental> environmentals;
+    public Response getAllLocationEnvironmentals(@QueryParam(ProxStorPage.LIMIT) Integer limit,
+            @QueryParam(ProxStorPage.CURSOR) String cursor) {
+        List<Environmental> environmentals;
         try {
-            environmentals = EnvironmentalDao.instance.getAllLocationEnvironmentals(locId);
+            ProxStorPage p = ProxStorPage.of("environmentals|" + locId, limit, cursor);
+            environmentals = EnvironmentalDao.instance.getAllLocationEnvironmentals(locId, p.getOffset(), p.getFetch());
             
             /*
              * changing to return emtpy list for no environmentals insted of 204
              */    
             
-//            if (environmentals.isEmpty()) {
-//                return Response.noContent().build();
-//            }
-            
-            /*
-             * ok() will not take Collection directly, so convert to array
-             */
-            return Response.ok((Environmental[]) environmentals.toArray(new Environmental[environmentals.size()])).build();
+            return p.ok(environmentals, new Environmental[0]);
         } catch (InvalidLocationId ex) {
             Logger.getLogger(EnvironmentalsResource.class.getName()).log(Level.SEVERE, null, ex);
             return Response.status(404).build();
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(EnvironmentalsResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
         }
 
     }
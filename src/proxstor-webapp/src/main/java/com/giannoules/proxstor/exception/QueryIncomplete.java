@@ -0,0 +1,12 @@
+package com.giannoules.proxstor.exception;
+
+public class QueryIncomplete extends Exception {
+
+    public QueryIncomplete(String s) {
+        super(s);
+    }
+
+    public QueryIncomplete() {
+        super();
+    }
+}
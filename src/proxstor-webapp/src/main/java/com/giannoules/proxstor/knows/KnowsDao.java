@@ -1,22 +1,34 @@
 package com.giannoules.proxstor.knows;
 
+import com.giannoules.proxstor.ProxStorEdgeIndex;
 import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.ProxStorPage;
 import com.giannoules.proxstor.exception.InvalidModel;
 import com.giannoules.proxstor.exception.InvalidUserId;
 import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
-import com.giannoules.proxstor.exception.ProxStorGraphNonExistentObjectID;
 import com.giannoules.proxstor.exception.UserAlreadyKnowsUser;
 import com.giannoules.proxstor.api.User;
+import com.giannoules.proxstor.checkin.FriendsView;
+import com.giannoules.proxstor.query.QueryCache;
+import com.giannoules.proxstor.query.StandingQueries;
 import com.giannoules.proxstor.user.UserDao;
 import static com.tinkerpop.blueprints.Compare.GREATER_THAN_EQUAL;
 import com.tinkerpop.blueprints.Direction;
+import static com.tinkerpop.blueprints.Direction.IN;
 import static com.tinkerpop.blueprints.Direction.OUT;
 import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.VertexQuery;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,6 +36,16 @@ public enum KnowsDao {
 
     instance;
 
+    /**
+     * Maximum number of hops traverse() follows.
+     */
+    public static final int MAX_DEPTH = 3;
+
+    /**
+     * Maximum number of Users one traverse() reaches, whatever its budget.
+     */
+    public static final int MAX_NODES = 4096;
+
     /**
      * Returns all users with knows relationship to userId 
      * results controlled by:
@@ -43,25 +65,212 @@ public enum KnowsDao {
      * @throws InvalidUserId If the userID is invalid
      */
     public Collection<User> getUserKnows(String userId, Integer strengthVal, Direction direction, int limit) throws InvalidUserId {
-       UserDao.instance.validOrException(userId);
-       if (strengthVal != null) {
-            List<User> knows = new ArrayList<>();
-            try {
-                VertexQuery vq = ProxStorGraph.instance.getVertex(userId).query();
-                vq.direction(direction);
+        if (strengthVal != null) {
+            return getUserKnows(userId, strengthVal, direction, 0, limit);
+        }
+        UserDao.instance.validOrException(userId);
+        return null;
+    }
+
+    /**
+     * Returns one page of the Users which userId knows (or is known by) with
+     * strength >= strengthVal: count Users after skipping the first offset.
+     *
+     * @param userId
+     * @param strengthVal
+     * @param direction
+     * @param offset number of matching Users to skip
+     * @param count maximum number of Users returned
+     * @return List of User objects, empty if no (more) matches
+     *
+     * @throws InvalidUserId If the userID is invalid
+     */
+    public List<User> getUserKnows(String userId, Integer strengthVal, Direction direction, int offset, int count) throws InvalidUserId {
+        List<User> knows = new ArrayList<>();
+        for (Vertex v : ProxStorPage.window(knowsQuery(userId, strengthVal, direction, offset, count).vertices(), offset, count)) {
+            knows.add(UserDao.instance.get(v));
+        }
+        return knows;
+    }
+
+    /**
+     * Returns the ids of all Users which userId knows (or is known by) with
+     * strength >= strengthVal. Only the ids are read, no User is materialized.
+     *
+     * @param userId
+     * @param strengthVal
+     * @param direction
+     * @return List of User ids, empty if no matches
+     *
+     * @throws InvalidUserId If the userID is invalid
+     */
+    public List<String> getUserKnowsIds(String userId, Integer strengthVal, Direction direction) throws InvalidUserId {
+        List<String> ids = new ArrayList<>();
+        for (Vertex v : knowsQuery(userId, strengthVal, direction, 0, Integer.MAX_VALUE).vertices()) {
+            ids.add(v.getId().toString());
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the ids of all Users which userId knows (or is known by),
+     * each with the strength of the relationship. No User is materialized.
+     *
+     * @param userId
+     * @param direction
+     * @return Map of User id to strength, empty if no matches
+     *
+     * @throws InvalidUserId If the userID is invalid
+     */
+    public Map<String, Integer> getUserKnowsStrengths(String userId, Direction direction) throws InvalidUserId {
+        Map<String, Integer> strengths = new HashMap<>();
+        for (Edge e : knowsQuery(userId, null, direction, 0, Integer.MAX_VALUE).edges()) {
+            Integer strength = e.getProperty("strength");
+            strengths.put(e.getVertex(direction.opposite()).getId().toString(), (strength == null) ? 0 : strength);
+        }
+        return strengths;
+    }
+
+    /**
+     * Returns the number of Users userId knows with strength >= strengthVal,
+     * counting no further than limit. Cheaper than getUserKnows() as no User
+     * is materialized.
+     *
+     * @param userId
+     * @param strengthVal
+     * @param direction
+     * @param limit
+     * @return count of matching knows relationships, at most limit
+     *
+     * @throws InvalidUserId If the userID is invalid
+     */
+    public long getUserKnowsCount(String userId, Integer strengthVal, Direction direction, int limit) throws InvalidUserId {
+        return knowsQuery(userId, strengthVal, direction, 0, limit).count();
+    }
+
+    /**
+     * Breadth first traversal of the knows relationships out of userId, up
+     * to depth hops. The strength of a path combines the strengths of its
+     * edges as given by mode; a path weaker than strengthVal is pruned at
+     * the level it drops below, and since neither mode lets a path grow
+     * stronger, edges weaker than strengthVal are not read at all.
+     *
+     * At most budget Users (capped at MAX_NODES) are reached; once the
+     * budget is spent the traversal stops and the result is marked
+     * truncated, so hub Users cost no more than a bounded amount of work.
+     *
+     * @param userId origin of the traversal, never reported itself
+     * @param depth maximum number of hops, 1..MAX_DEPTH
+     * @param strengthVal minimum path strength, null for any
+     * @param mode how edge strengths combine along a path
+     * @param budget maximum number of Users reached
+     * @return KnowsTraversal
+     *
+     * @throws InvalidUserId If the userID is invalid
+     */
+    public KnowsTraversal traverse(String userId, int depth, Integer strengthVal, KnowsTraversal.PathStrength mode, int budget) throws InvalidUserId {
+        Vertex origin = UserDao.instance.resolve(userId);
+        int min = (strengthVal == null) ? 0 : strengthVal;
+        int remaining = Math.min(budget, MAX_NODES);
+        KnowsTraversal t = new KnowsTraversal();
+        // native vertex ids of the Users reached at an earlier level
+        Set<Object> visited = new HashSet<>();
+        visited.add(origin.getId());
+        Map<Object, Vertex> frontier = new HashMap<>();
+        Map<Object, Integer> strengths = new HashMap<>();
+        frontier.put(origin.getId(), origin);
+        strengths.put(origin.getId(), 100);
+        for (int degree = 1; (degree <= Math.min(depth, MAX_DEPTH)) && !frontier.isEmpty(); degree++) {
+            Map<Object, Vertex> next = new HashMap<>();
+            Map<Object, Integer> nextStrengths = new HashMap<>();
+            for (Map.Entry<Object, Vertex> f : frontier.entrySet()) {
+                int path = strengths.get(f.getKey());
+                t.expanded();
+                VertexQuery vq = f.getValue().query();
+                vq.direction(OUT);
                 vq.labels("knows");
-                vq.has("strength", GREATER_THAN_EQUAL, strengthVal);
-                vq.limit(limit);                               
-                for (Vertex v : vq.vertices()) {
-                    knows.add(UserDao.instance.get(v));
+                if (min > 0) {
+                    vq.has("strength", GREATER_THAN_EQUAL, min);
+                }
+                for (Edge e : vq.edges()) {
+                    t.edge();
+                    Integer edge = e.getProperty("strength");
+                    if (edge == null) {
+                        continue;
+                    }
+                    int s = mode.combine(path, edge);
+                    if (s < min) {
+                        continue;
+                    }
+                    Vertex v = e.getVertex(IN);
+                    Object id = v.getId();
+                    if (visited.contains(id)) {
+                        continue;
+                    }
+                    Integer best = nextStrengths.get(id);
+                    if (best == null) {
+                        if (remaining == 0) {
+                            t.truncate();
+                            break;
+                        }
+                        remaining--;
+                        next.put(id, v);
+                        nextStrengths.put(id, s);
+                    } else if (s > best) {
+                        nextStrengths.put(id, s);
+                    }
+                }
+                if (t.isTruncated()) {
+                    break;
                 }
-            } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-                Logger.getLogger(KnowsDao.class.getName()).log(Level.SEVERE, null, ex);
-                return null;
             }
-            return knows;
+            final Map<Object, Integer> ranked = nextStrengths;
+            List<Object> level = new ArrayList<>(next.keySet());
+            Collections.sort(level, new Comparator<Object>() {
+                @Override
+                public int compare(Object a, Object b) {
+                    int sa = ranked.get(a);
+                    int sb = ranked.get(b);
+                    if (sa != sb) {
+                        return (sa > sb) ? -1 : 1;
+                    }
+                    return a.toString().compareTo(b.toString());
+                }
+            });
+            // expand the strongest paths first, so a budget running out
+            // drops the weakest
+            frontier = new LinkedHashMap<>();
+            for (Object id : level) {
+                t.add(new KnowsTraversal.Reach(id.toString(), degree, ranked.get(id)));
+                frontier.put(id, next.get(id));
+            }
+            if (t.isTruncated()) {
+                break;
+            }
+            visited.addAll(level);
+            strengths = nextStrengths;
         }
-        return null;
+        return t;
+    }
+
+    /**
+     * Returns true if fromUser knows toUser with strength >= strengthVal.
+     *
+     * @param fromUser String representation of user establishing the 'knows' relationship
+     * @param toUser String representation of user receiving the 'knows' relationship
+     * @param strengthVal minimum strength
+     * @return true if such a relationship exists; false otherwise
+     *
+     * @throws InvalidUserId If either of the user id parameters are invalid
+     * @throws InvalidModel If multiple knows relationships exist from fromUser to toUser
+     */
+    public boolean knowsWithStrength(String fromUser, String toUser, Integer strengthVal) throws InvalidUserId, InvalidModel {
+        Edge e = getKnows(fromUser, toUser);
+        if (e == null) {
+            return false;
+        }
+        Integer strength = e.getProperty("strength");
+        return (strength != null) && ((strengthVal == null) || (strength >= strengthVal));
     }
 
     /**
@@ -82,7 +291,8 @@ public enum KnowsDao {
         if ((strength > 100) || (strength < 1)) {
             return false;
         }
-        UserDao.instance.validOrException(fromUser, toUser);
+        Vertex out = UserDao.instance.resolve(fromUser);
+        Vertex in = UserDao.instance.resolve(toUser);
         if (strength == null) {
             return false;
         }
@@ -90,18 +300,14 @@ public enum KnowsDao {
             throw new UserAlreadyKnowsUser();
         }
         try {
-            if (getKnows(fromUser, toUser) != null) {
+            if (getKnows(out, toUser) != null) {
                 throw new UserAlreadyKnowsUser();
             }
         } catch (InvalidModel ex) {
             return false;
         }
-        Vertex out;
-        Vertex in;
         Edge e;
         try {
-            out = ProxStorGraph.instance.getVertex(fromUser);
-            in = ProxStorGraph.instance.getVertex(toUser);
             e = ProxStorGraph.instance.addEdge(out, in, "knows");
             e.setProperty("strength", strength);
             /* 
@@ -110,7 +316,11 @@ public enum KnowsDao {
              */
             e.setProperty("_target", toUser);
             ProxStorGraph.instance.commit();
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+            ProxStorEdgeIndex.instance.put("knows", fromUser, toUser, e);
+            QueryCache.instance.knowsChanged(fromUser);
+            FriendsView.instance.knowsChanged(fromUser, toUser, strength);
+            StandingQueries.instance.knowsChanged(fromUser, toUser, strength);
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(KnowsDao.class.getName()).log(Level.SEVERE, null, ex);
             return false;
         } 
@@ -127,26 +337,39 @@ public enum KnowsDao {
      * throws InvalidModel if multiple knows relationships found between users
      */
     public Edge getKnows(String fromUser, String toUser) throws InvalidUserId, InvalidModel {
-        UserDao.instance.validOrException(fromUser, toUser);
-        try {
-            // this is painful without Gremlin
-            VertexQuery vq = ProxStorGraph.instance.getVertex(fromUser).query();
-            vq.direction(OUT);
-            vq.labels("knows");
-            vq.has("_target", toUser);
-            long c = vq.count();
-            if (c == 1) {
-                return vq.edges().iterator().next();
+        UserDao.instance.validOrException(toUser);
+        return getKnows(UserDao.instance.resolve(fromUser), toUser);
+    }
+
+    /*
+     * retrieves Knows relationship (Edge) from already resolved fromUser
+     * vertex to toUser
+     */
+    private Edge getKnows(Vertex fromUser, String toUser) throws InvalidModel {
+        boolean indexed = ProxStorEdgeIndex.instance.isWarm();
+        if (indexed) {
+            Edge e = ProxStorEdgeIndex.instance.get("knows", fromUser.getId().toString(), toUser);
+            if (e != null) {
+                return e;
             }
-            if (c > 1) {
+            // not authoritative: confirm the miss in the graph below
+        }
+        // this is painful without Gremlin
+        VertexQuery vq = fromUser.query();
+        vq.direction(OUT);
+        vq.labels("knows");
+        vq.has("_target", toUser);
+        Edge found = null;
+        for (Edge e : vq.edges()) {
+            if (found != null) {
                 throw new InvalidModel();
-
             }
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(KnowsDao.class
-                    .getName()).log(Level.SEVERE, null, ex);
+            found = e;
         }
-        return null;
+        if (indexed && (found != null)) {
+            ProxStorEdgeIndex.instance.put("knows", fromUser.getId().toString(), toUser, found);
+        }
+        return found;
     }
 
     /*
@@ -160,13 +383,15 @@ public enum KnowsDao {
         if ((strength > 100) || (strength < 1)) {
             return false;
         }
-        UserDao.instance.validOrException(fromUser, toUser);
         Edge e;
         try {
             e = getKnows(fromUser, toUser);
             if (e != null) {
                 e.setProperty("strength", strength);
                 ProxStorGraph.instance.commit();
+                QueryCache.instance.knowsChanged(fromUser);
+                FriendsView.instance.knowsChanged(fromUser, toUser, strength);
+                StandingQueries.instance.knowsChanged(fromUser, toUser, strength);
                 return true;
             }
         } catch (InvalidModel | ProxStorGraphDatabaseNotRunningException ex) {
@@ -190,6 +415,10 @@ public enum KnowsDao {
             if (e != null) {
                 e.remove();
                 ProxStorGraph.instance.commit();
+                ProxStorEdgeIndex.instance.remove("knows", fromUser, toUser);
+                QueryCache.instance.knowsChanged(fromUser);
+                FriendsView.instance.knowsChanged(fromUser, toUser, null);
+                StandingQueries.instance.knowsChanged(fromUser, toUser, null);
                 return true;
             }
         } catch (InvalidModel | ProxStorGraphDatabaseNotRunningException ex) {
@@ -199,4 +428,18 @@ public enum KnowsDao {
         return false;
     }
 
+    /*
+     * knows relationships of userId with strength >= strengthVal (if given),
+     * limited to those up to offset + count
+     */
+    private VertexQuery knowsQuery(String userId, Integer strengthVal, Direction direction, int offset, int count) throws InvalidUserId {
+        VertexQuery vq = UserDao.instance.resolve(userId).query();
+        vq.direction(direction);
+        vq.labels("knows");
+        if (strengthVal != null) {
+            vq.has("strength", GREATER_THAN_EQUAL, strengthVal);
+        }
+        vq.limit((int) Math.min(Integer.MAX_VALUE, (long) offset + count));
+        return vq;
+    }
 }
@@ -1,14 +1,19 @@
 package com.giannoules.proxstor.knows;
 
 import com.giannoules.proxstor.ProxStorDebug;
+import com.giannoules.proxstor.ProxStorPage;
+import com.giannoules.proxstor.exception.InvalidParameter;
 import com.giannoules.proxstor.exception.InvalidUserId;
 import com.giannoules.proxstor.exception.UserAlreadyKnowsUser;
+import com.giannoules.proxstor.api.KnownUser;
 import com.giannoules.proxstor.api.User;
+import com.giannoules.proxstor.user.UserDao;
 import static com.tinkerpop.blueprints.Direction.IN;
 import static com.tinkerpop.blueprints.Direction.OUT;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ws.rs.DELETE;
@@ -18,6 +23,7 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -26,6 +32,12 @@ import javax.ws.rs.core.Response;
  */
 public class KnowsStrengthResource {
 
+    /**
+     * Response header set when a traversal ran out of budget before it
+     * completed.
+     */
+    public static final String TRUNCATED = "ProxStor-Truncated";
+
     private final String userIdA;        // always within context of a user
     private final Integer strengthVal;  // strength meaning varies by request
 
@@ -36,50 +48,117 @@ public class KnowsStrengthResource {
     }
 
     /*
-     * return all Users which userId knows with strength >= strengthVal
+     * return all Users which userId knows with strength >= strengthVal, one
+     * page at a time (see ProxStorPage)
      *
      * returns 200 (Ok) with array of Users if matches found
      * returns 204 (No Content) if no knows relationships match criteria
+     * returns 400 (Bad Request) if limit or cursor is invalid
      * returns 404 (Not Found) if userId is invalid
      */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getKnownUsers() {
-        Collection<User> users;
+    public Response getKnownUsers(@QueryParam(ProxStorPage.LIMIT) Integer limit,
+            @QueryParam(ProxStorPage.CURSOR) String cursor) {
+        List<User> users;
         try {
-            users = KnowsDao.instance.getUserKnows(userIdA, strengthVal, OUT, 1024); // max 1024 users returned
+            ProxStorPage p = ProxStorPage.of("knows|OUT|" + userIdA + "|" + strengthVal, limit, cursor);
+            users = KnowsDao.instance.getUserKnows(userIdA, strengthVal, OUT, p.getOffset(), p.getFetch());
+            if (users.isEmpty()) {
+                return Response.noContent().build();
+            }
+            return p.ok(users, new User[0]);
         } catch (InvalidUserId ex) {
             Logger.getLogger(KnowsStrengthResource.class.getName()).log(Level.SEVERE, null, ex);
             return Response.status(404).build();
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(KnowsStrengthResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
         }
-        if (users == null) {
-            return Response.noContent().build();
-        }
-        return Response.ok((User[]) users.toArray(new User[users.size()])).build();
     }
 
     /*
-     * returns all Users who know userId with at least minimum strength
+     * returns all Users who know userId with at least minimum strength, one
+     * page at a time (see ProxStorPage)
      *
      * returns 204 (No Content) if no knows relatioships match
      * returns 200 (Ok) with array of Users if matches found
+     * returns 400 (Bad Request) if limit or cursor is invalid
      * returns 404 (Not Found) if userId is invalid
      */
     @Path("reverse")
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getKnowsUsers() {
-        Collection<User> users;
+    public Response getKnowsUsers(@QueryParam(ProxStorPage.LIMIT) Integer limit,
+            @QueryParam(ProxStorPage.CURSOR) String cursor) {
+        List<User> users;
         try {
-            users = KnowsDao.instance.getUserKnows(userIdA, strengthVal, IN, 1024); // max 1024 users returned
+            ProxStorPage p = ProxStorPage.of("knows|IN|" + userIdA + "|" + strengthVal, limit, cursor);
+            users = KnowsDao.instance.getUserKnows(userIdA, strengthVal, IN, p.getOffset(), p.getFetch());
+            if (users.isEmpty()) {
+                return Response.noContent().build();
+            }
+            return p.ok(users, new User[0]);
         } catch (InvalidUserId ex) {
             Logger.getLogger(KnowsStrengthResource.class.getName()).log(Level.SEVERE, null, ex);
             return Response.status(404).build();
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(KnowsStrengthResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
         }
-        if (users == null) {
-            return Response.noContent().build();
+    }
+
+    /*
+     * returns the Users reached from userId over up to depth knows
+     * relationships, along paths of strength >= strengthVal, one page at a
+     * time (see ProxStorPage). path strength is the "minimum" (default) or
+     * "product" of the edge strengths. at most budget Users are reached (see
+     * KnowsDao.traverse); the TRUNCATED header is set when the budget ran out
+     *
+     * returns 200 (Ok) with array of KnownUsers if matches found
+     * returns 204 (No Content) if no Users are reached
+     * returns 400 (Bad Request) if path, budget, limit or cursor is invalid
+     * returns 404 (Not Found) if userId is invalid
+     */
+    @Path("depth/{depth: [1-3]}")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getKnownUsersToDepth(@PathParam("depth") Integer depth,
+            @QueryParam("path") String path, @QueryParam("budget") Integer budget,
+            @QueryParam(ProxStorPage.LIMIT) Integer limit, @QueryParam(ProxStorPage.CURSOR) String cursor) {
+        KnowsTraversal.PathStrength mode = KnowsTraversal.PathStrength.parse(path);
+        int b = (budget == null) ? KnowsDao.MAX_NODES : budget;
+        if ((mode == null) || (b < 1) || (b > KnowsDao.MAX_NODES)) {
+            return Response.status(400).build();
+        }
+        try {
+            ProxStorPage p = ProxStorPage.of("knows|depth|" + userIdA + "|" + strengthVal + "|" + depth + "|" + mode + "|" + b, limit, cursor);
+            KnowsTraversal t = KnowsDao.instance.traverse(userIdA, depth, strengthVal, mode, b);
+            List<KnowsTraversal.Reach> reached = t.getReached();
+            List<KnownUser> users = new ArrayList<>();
+            int offset = p.getOffset();
+            for (KnowsTraversal.Reach r : reached.subList(Math.min(offset, reached.size()), Math.min(offset + p.getFetch(), reached.size()))) {
+                try {
+                    users.add(new KnownUser(UserDao.instance.get(r.userId), r.degree, r.strength));
+                } catch (InvalidUserId ex) {
+                    // deleted since it was reached
+                }
+            }
+            if (users.isEmpty()) {
+                return Response.noContent().build();
+            }
+            Response ok = p.ok(users, new KnownUser[0]);
+            if (t.isTruncated()) {
+                return Response.fromResponse(ok).header(TRUNCATED, "true").build();
+            }
+            return ok;
+        } catch (InvalidUserId ex) {
+            Logger.getLogger(KnowsStrengthResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(404).build();
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(KnowsStrengthResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
         }
-        return Response.ok((User[]) users.toArray(new User[users.size()])).build();
     }
 
     @Path("user/{otheruser}")
@@ -0,0 +1,125 @@
+package com.giannoules.proxstor.knows;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of KnowsDao.traverse(): the Users reached over knows relationships
+ * from one User, in order of degree (hops), then descending path strength,
+ * then id.
+ *
+ * A User is reported once, at the lowest degree it was reached at, with the
+ * strongest path of that degree. Truncated is set when the node budget ran
+ * out before the traversal completed; the Users reached up to then are
+ * still reported.
+ *
+ * @author Jim Giannoules
+ */
+public class KnowsTraversal {
+
+    /**
+     * How the strengths of the edges along a path combine into the strength
+     * of the path.
+     */
+    public enum PathStrength {
+        MINIMUM, PRODUCT;
+
+        /**
+         * @param path strength of the path so far (100 at the origin)
+         * @param edge strength of the next edge
+         * @return strength of the path extended by the edge
+         */
+        int combine(int path, int edge) {
+            if (this == PRODUCT) {
+                return (path * edge) / 100;
+            }
+            return Math.min(path, edge);
+        }
+
+        /**
+         * @param s "minimum" or "product" (any case), null for MINIMUM
+         * @return PathStrength, or null if s names neither
+         */
+        public static PathStrength parse(String s) {
+            if (s == null) {
+                return MINIMUM;
+            }
+            for (PathStrength p : values()) {
+                if (p.name().equalsIgnoreCase(s)) {
+                    return p;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * One User reached.
+     */
+    public static class Reach {
+        public final String userId;
+        public final int degree;
+        public final int strength;
+
+        Reach(String userId, int degree, int strength) {
+            this.userId = userId;
+            this.degree = degree;
+            this.strength = strength;
+        }
+    }
+
+    private final List<Reach> reached = new ArrayList<>();
+    private boolean truncated;
+    private int expanded;
+    private int edges;
+
+    public List<Reach> getReached() {
+        return Collections.unmodifiableList(reached);
+    }
+
+    /**
+     * @return ids of the Users reached, in traversal order
+     */
+    public List<String> getUserIds() {
+        List<String> ids = new ArrayList<>(reached.size());
+        for (Reach r : reached) {
+            ids.add(r.userId);
+        }
+        return ids;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return number of Users whose knows relationships were read
+     */
+    public int getExpanded() {
+        return expanded;
+    }
+
+    /**
+     * @return number of knows relationships read
+     */
+    public int getEdges() {
+        return edges;
+    }
+
+    void add(Reach r) {
+        reached.add(r);
+    }
+
+    void truncate() {
+        truncated = true;
+    }
+
+    void expanded() {
+        expanded++;
+    }
+
+    void edge() {
+        edges++;
+    }
+}
@@ -2,6 +2,7 @@ package com.giannoules.proxstor.locality;
 
 import com.giannoules.proxstor.ProxStorGraph;
 import com.giannoules.proxstor.api.Locality;
+import com.giannoules.proxstor.checkin.CurrentLocalityIndex;
 import com.giannoules.proxstor.device.DeviceDao;
 import com.giannoules.proxstor.exception.InvalidDeviceId;
 import com.giannoules.proxstor.exception.InvalidLocalityId;
@@ -12,6 +13,7 @@ import com.giannoules.proxstor.exception.ProxStorGraphNonExistentObjectID;
 import com.giannoules.proxstor.exception.EnvironmentalNotContainedWithinLocation;
 import com.giannoules.proxstor.location.LocationDao;
 import com.giannoules.proxstor.environmental.EnvironmentalDao;
+import com.giannoules.proxstor.query.QueryCache;
 import com.tinkerpop.blueprints.GraphQuery;
 import com.tinkerpop.blueprints.Vertex;
 import java.util.ArrayList;
@@ -245,6 +247,8 @@ public enum LocalityDao {
         try {
             boolean updated = false;
             Vertex v = ProxStorGraph.instance.getVertex(l.getLocalityId());
+            String userId = v.getProperty("userId");
+            String locId = v.getProperty("locationId");
             if (l.getArrival() != null) {
                 v.setProperty("arrrival", (new DateTime(l.getArrival())).toString());
                 updated = true;
@@ -271,6 +275,9 @@ public enum LocalityDao {
             }
             if (updated) {
                 ProxStorGraph.instance.commit();
+                CurrentLocalityIndex.instance.refresh(toLocality(v));
+                QueryCache.instance.localityChanged(userId, locId, null);
+                QueryCache.instance.localityChanged(l.getUserId(), l.getLocationId(), null);
                 return true;
             }
         } catch (ProxStorGraphDatabaseNotRunningException| ProxStorGraphNonExistentObjectID ex) {
@@ -289,8 +296,15 @@ public enum LocalityDao {
     public boolean delete(String localityId) throws InvalidLocalityId {
         validOrException(localityId);        
         try {
-            ProxStorGraph.instance.getVertex(localityId).remove();
+            Vertex v = ProxStorGraph.instance.getVertex(localityId);
+            String userId = v.getProperty("userId");
+            String locId = v.getProperty("locationId");
+            v.remove();
             ProxStorGraph.instance.commit();
+            if (userId != null) {
+                CurrentLocalityIndex.instance.remove(userId, localityId);
+            }
+            QueryCache.instance.localityChanged(userId, locId, null);
             return true;
         } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
             Logger.getLogger(LocalityDao.class.getName()).log(Level.SEVERE, null, ex);
@@ -1,12 +1,17 @@
 package com.giannoules.proxstor.location;
 
 import com.giannoules.proxstor.ProxStorDebug;
+import com.giannoules.proxstor.ProxStorCache;
 import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.ProxStorPage;
 import com.giannoules.proxstor.api.Location;
 import com.giannoules.proxstor.api.LocationType;
+import com.giannoules.proxstor.checkin.FriendsView;
 import com.giannoules.proxstor.exception.InvalidLocationId;
 import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
 import com.giannoules.proxstor.exception.ProxStorGraphNonExistentObjectID;
+import com.giannoules.proxstor.query.QueryCache;
+import com.tinkerpop.blueprints.Element;
 import com.tinkerpop.blueprints.GraphQuery;
 import com.tinkerpop.blueprints.Vertex;
 import java.util.ArrayList;
@@ -45,7 +50,7 @@ public enum LocationDao {
         }
         try {
             for (String id : ids) {
-                if ((id == null) || !valid(ProxStorGraph.instance.getVertex(id))) {
+                if ((id == null) || !valid(ProxStorCache.instance.get(id))) {
                     return false;
                 }
             }
@@ -63,12 +68,12 @@ public enum LocationDao {
      * 
      * no exceptions thrown
      */
-    public boolean valid(Vertex... vertices) {
+    public boolean valid(Element... vertices) {
         if (vertices == null) {
             return false;
         }
         String type;
-        for (Vertex v : vertices) {
+        for (Element v : vertices) {
             type = v.getProperty("_type");
             if ((type == null) || (!type.equals("location"))) {
                 return false;
@@ -87,8 +92,8 @@ public enum LocationDao {
      */
     public Location get(String locId) throws InvalidLocationId {
         try {
-            Vertex v;
-            v = ProxStorGraph.instance.getVertex(locId);
+            Element v;
+            v = ProxStorCache.instance.get(locId);
             if (!valid(v)) {
                 throw new InvalidLocationId();
             }
@@ -127,11 +132,21 @@ public enum LocationDao {
      * used by SearchResource @POST
      */
     public Collection<Location> getMatching(Location partial) {
+        return getMatching(partial, 0, Integer.MAX_VALUE);
+    }
+
+    /*
+     * one page of getMatching(): count Locations after skipping the first offset
+     */
+    public List<Location> getMatching(Location partial, int offset, int count) {
         List<Location> locations = new ArrayList<>();
         if ((partial.getLocId() != null) && (!partial.getLocId().isEmpty())) {
             // invalid locId is not an exception, it is just no match condition
             try {
-                locations.add(LocationDao.this.get(partial.getLocId()));
+                Location l = LocationDao.this.get(partial.getLocId());
+                if (offset == 0) {
+                    locations.add(l);
+                }
                 return locations;
             } catch (InvalidLocationId ex) {
                 Logger.getLogger(LocationDao.class.getName()).log(Level.SEVERE, null, ex);
@@ -149,7 +164,7 @@ public enum LocationDao {
         if ((partial.getDescription() != null) && (!partial.getDescription().isEmpty())) {
             q.has("description", partial.getDescription());
         }
-        for (Vertex v : q.vertices()) {
+        for (Vertex v : ProxStorPage.window(q.vertices(), offset, count)) {
             if (LocationDao.this.valid(v)) {
                 locations.add(toLocation(v));
             }
@@ -202,9 +217,8 @@ public enum LocationDao {
      * used by LocationResource @PUT
      */
     public boolean update(Location l) throws InvalidLocationId {
-       validOrException(l.getLocId());
+        Vertex v = resolve(l.getLocId());
         try {
-            Vertex v = ProxStorGraph.instance.getVertex(l.getLocId());
             if (l.getDescription() != null) {
                 v.setProperty("description", l.getDescription());
             }
@@ -221,8 +235,11 @@ public enum LocationDao {
                 v.setProperty("longitude", l.getLongitude());
             }
             ProxStorGraph.instance.commit();
+            ProxStorCache.instance.invalidate(l.getLocId());
+            QueryCache.instance.locationChanged(l.getLocId());
+            FriendsView.instance.locationChanged(l.getLocId());
             return true;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(LocationDao.class.getName()).log(Level.SEVERE, null, ex);
             return false;
         }        
@@ -237,12 +254,15 @@ public enum LocationDao {
      * used by LocationResource @DELETE
      */
     public boolean delete(String locId) throws InvalidLocationId {
-        validOrException(locId);
+        Vertex v = resolve(locId);
         try {
-            ProxStorGraph.instance.getVertex(locId).remove();
+            v.remove();
             ProxStorGraph.instance.commit();
+            ProxStorCache.instance.invalidate(locId);
+            QueryCache.instance.locationChanged(locId);
+            FriendsView.instance.locationChanged(locId);
             return true;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(LocationDao.class.getName()).log(Level.SEVERE, null, ex);
             return false;
         }
@@ -254,6 +274,29 @@ public enum LocationDao {
         }
     }
     
+    /**
+     * Resolve locId to its Location Vertex with a single back-end lookup.
+     * Methods which go on to use the Vertex should call this rather than
+     * validOrException() followed by ProxStorGraph.getVertex().
+     *
+     * @param locId The location id (object id) to resolve
+     * @return Vertex of the Location
+     * @throws InvalidLocationId If locId is not a valid Location, or the database is not available
+     */
+    public Vertex resolve(String locId) throws InvalidLocationId {
+        if (locId != null) {
+            try {
+                Vertex v = ProxStorGraph.instance.getVertex(locId);
+                if (valid(v)) {
+                    return v;
+                }
+            } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+                Logger.getLogger(LocationDao.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        throw new InvalidLocationId();
+    }
+    
     /*
      * 2**64-1 = 18,446,744,073,709,551,615
      * 18,446,744,073,709,551,615 meters = 1,949.822 light years
@@ -286,7 +329,7 @@ public enum LocationDao {
      *
      * no exceptions thrown
      */
-    private Location toLocation(Vertex v) {
+    private Location toLocation(Element v) {
         if (v == null) {
             return null;
         }
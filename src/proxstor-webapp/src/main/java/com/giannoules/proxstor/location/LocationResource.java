@@ -1,6 +1,7 @@
 package com.giannoules.proxstor.location;
 
 import com.giannoules.proxstor.api.Location;
+import com.giannoules.proxstor.checkin.OccupantsResource;
 import com.giannoules.proxstor.exception.InvalidLocationId;
 import com.giannoules.proxstor.knows.NearbyResource;
 import com.giannoules.proxstor.environmental.EnvironmentalsResource;
@@ -110,5 +111,13 @@ public class LocationResource {
     public NearbyResource getNearbyResource(@PathParam("distance") Double distance) {
         return new NearbyResource(locId, distance);
     }
+    
+    /*
+     * return OccupantsResource handle for this location
+     */
+    @Path("occupants")
+    public OccupantsResource getOccupantsResource() {
+        return new OccupantsResource(locId, false);
+    }
 
 }
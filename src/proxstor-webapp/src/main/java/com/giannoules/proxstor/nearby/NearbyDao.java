@@ -1,12 +1,13 @@
 package com.giannoules.proxstor.nearby;
 
 import com.giannoules.proxstor.ProxStorDebug;
+import com.giannoules.proxstor.ProxStorEdgeIndex;
 import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.ProxStorPage;
 import com.giannoules.proxstor.exception.InvalidLocationId;
 import com.giannoules.proxstor.exception.InvalidModel;
 import com.giannoules.proxstor.exception.LocationAlreadyNearbyLocation;
 import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
-import com.giannoules.proxstor.exception.ProxStorGraphNonExistentObjectID;
 import com.giannoules.proxstor.api.Location;
 import com.giannoules.proxstor.location.LocationDao;
 import static com.tinkerpop.blueprints.Compare.GREATER_THAN_EQUAL;
@@ -44,6 +45,14 @@ public enum NearbyDao {
      * @throws InvalidLocationId If the locID is invalid
      */
     public Collection<Location> getLocationsNearby(String locId, Double distanceVal) throws InvalidLocationId {
+        return getLocationsNearby(locId, distanceVal, 0, Integer.MAX_VALUE);
+    }
+
+    /*
+     * one page of getLocationsNearby(): count Locations after skipping the
+     * first offset
+     */
+    public List<Location> getLocationsNearby(String locId, Double distanceVal, int offset, int count) throws InvalidLocationId {
         ProxStorDebug.println("getLocationsNearby(" + locId + ", " + distanceVal + ")");
         Location l = LocationDao.instance.get(locId);
         if (distanceVal != null) {
@@ -52,7 +61,7 @@ public enum NearbyDao {
                 GraphQuery gq = ProxStorGraph.instance._query();
                 gq.has("_type", "location");
                 gq = queryDistanceBoundingBox(gq, l.getLatitude(), l.getLongitude(), distanceVal);
-                for (Vertex v : gq.vertices()) {
+                for (Vertex v : ProxStorPage.window(gq.vertices(), offset, count)) {
                     nearby.add(LocationDao.instance.get(v));
                 }
             } catch (ProxStorGraphDatabaseNotRunningException ex) {
@@ -79,7 +88,8 @@ public enum NearbyDao {
      * between locations, or if the location ids are the same.
      */
     public boolean addNearby(String locIdA, String locIdB, Double distance) throws InvalidLocationId, LocationAlreadyNearbyLocation {
-        LocationDao.instance.validOrException(locIdA, locIdB);        
+        Vertex out = LocationDao.instance.resolve(locIdA);
+        Vertex in = LocationDao.instance.resolve(locIdB);
         if (distance == null) {
             return false;
         }
@@ -87,18 +97,14 @@ public enum NearbyDao {
             throw new LocationAlreadyNearbyLocation();
         }
         try {
-            if (getNearby(locIdA, locIdB) != null) {
+            if (getNearby(out, locIdB) != null) {
                 throw new LocationAlreadyNearbyLocation();
             }
         } catch (InvalidModel ex) {
             return false;
         }
-        Vertex out;
-        Vertex in;
         Edge e;
         try {
-            out = ProxStorGraph.instance.getVertex(locIdA);
-            in = ProxStorGraph.instance.getVertex(locIdB);
             e = ProxStorGraph.instance.addEdge(out, in, "nearby");
             e.setProperty("distance", distance);
             /* 
@@ -107,7 +113,8 @@ public enum NearbyDao {
              */
             e.setProperty("_target", locIdB);
             ProxStorGraph.instance.commit();
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+            ProxStorEdgeIndex.instance.put("nearby", locIdA, locIdB, e);
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(NearbyDao.class.getName()).log(Level.SEVERE, null, ex);
             return false;
         } 
@@ -124,25 +131,39 @@ public enum NearbyDao {
      * throws InvalidModel if multiple nearby relationships found between locations
      */
     public Edge getNearby(String locIdA, String locIdB) throws InvalidLocationId, InvalidModel {
-        LocationDao.instance.validOrException(locIdA, locIdB);
-        try {
-            // this is painful without Gremlin
-            VertexQuery vq = ProxStorGraph.instance.getVertex(locIdA).query();
-            vq.direction(BOTH);
-            vq.labels("nearby");
-            vq.has("_target", locIdB);
-            long c = vq.count();
-            if (c == 1) {
-                return vq.edges().iterator().next();
+        LocationDao.instance.validOrException(locIdB);
+        return getNearby(LocationDao.instance.resolve(locIdA), locIdB);
+    }
+
+    /*
+     * retrieves Nearby relationship (Edge) between already resolved location
+     * vertex locA and locIdB
+     */
+    private Edge getNearby(Vertex locA, String locIdB) throws InvalidModel {
+        boolean indexed = ProxStorEdgeIndex.instance.isWarm();
+        if (indexed) {
+            Edge e = ProxStorEdgeIndex.instance.get("nearby", locA.getId().toString(), locIdB);
+            if (e != null) {
+                return e;
             }
-            if (c > 1) {
+            // not authoritative: confirm the miss in the graph below
+        }
+        // this is painful without Gremlin
+        VertexQuery vq = locA.query();
+        vq.direction(BOTH);
+        vq.labels("nearby");
+        vq.has("_target", locIdB);
+        Edge found = null;
+        for (Edge e : vq.edges()) {
+            if (found != null) {
                 throw new InvalidModel();
             }
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(NearbyDao.class
-                    .getName()).log(Level.SEVERE, null, ex);
+            found = e;
         }
-        return null;
+        if (indexed && (found != null)) {
+            ProxStorEdgeIndex.instance.put("nearby", locA.getId().toString(), locIdB, found);
+        }
+        return found;
     }
 
     /*
@@ -151,7 +172,6 @@ public enum NearbyDao {
      * returns true if relationship is updated 
      */
     public boolean updateNearby(String locIdA, String locIdB, Double distance) throws InvalidLocationId {
-        LocationDao.instance.validOrException(locIdA, locIdB);
         Edge e;
         try {
             e = getNearby(locIdA, locIdB);
@@ -184,6 +204,7 @@ public enum NearbyDao {
             if (e != null) {
                 e.remove();
                 ProxStorGraph.instance.commit();                
+                ProxStorEdgeIndex.instance.remove("nearby", locIdA, locIdB);
                 return true;
             }
         } catch (InvalidModel | ProxStorGraphDatabaseNotRunningException ex) {
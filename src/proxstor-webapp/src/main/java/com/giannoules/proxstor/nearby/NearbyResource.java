@@ -1,15 +1,18 @@
 package com.giannoules.proxstor.knows;
 
+import com.giannoules.proxstor.ProxStorPage;
 import com.giannoules.proxstor.exception.InvalidLocationId;
+import com.giannoules.proxstor.exception.InvalidParameter;
 import com.giannoules.proxstor.api.Location;
 import com.giannoules.proxstor.nearby.NearbyDao;
-import java.util.Collection;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -27,26 +30,33 @@ public class NearbyResource {
     }
 
     /*
-     * return all Locations involving locId with distance >= distanceVal
+     * return all Locations involving locId with distance >= distanceVal, one
+     * page at a time (see ProxStorPage)
      *
      * returns 200 (Ok) with array of Location if matches found
      * returns 204 (No Content) if no nearby relationships match criteria
+     * returns 400 (Bad Request) if limit or cursor is invalid
      * returns 404 (Not Found) if locId is invalid
      */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getNearbylocations() {
-        Collection<Location> locations;
+    public Response getNearbylocations(@QueryParam(ProxStorPage.LIMIT) Integer limit,
+            @QueryParam(ProxStorPage.CURSOR) String cursor) {
+        List<Location> locations;
         try {
-            locations = NearbyDao.instance.getLocationsNearby(locIdA, distanceVal);
+            ProxStorPage p = ProxStorPage.of("nearby|" + locIdA + "|" + distanceVal, limit, cursor);
+            locations = NearbyDao.instance.getLocationsNearby(locIdA, distanceVal, p.getOffset(), p.getFetch());
+            if (locations == null) {
+                return Response.noContent().build();
+            }
+            return p.ok(locations, new Location[0]);
         } catch (InvalidLocationId ex) {
             Logger.getLogger(NearbyResource.class.getName()).log(Level.SEVERE, null, ex);
             return Response.status(404).build();
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(NearbyResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
         }
-        if (locations == null) {
-            return Response.noContent().build();
-        }
-        return Response.ok((Location[]) locations.toArray(new Location[locations.size()])).build();
     }
 
     @Path("location/{otherloc}")
@@ -0,0 +1,457 @@
+package com.giannoules.proxstor.notification;
+
+import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.api.Locality;
+import com.giannoules.proxstor.api.Location;
+import com.giannoules.proxstor.api.Notification;
+import com.giannoules.proxstor.checkin.CheckinDao;
+import com.giannoules.proxstor.exception.InvalidLocationId;
+import com.giannoules.proxstor.exception.InvalidUserId;
+import com.giannoules.proxstor.location.LocationDao;
+import com.giannoules.proxstor.nearby.NearbyDao;
+import com.giannoules.proxstor.user.UserDao;
+import static com.tinkerpop.blueprints.Direction.IN;
+import static com.tinkerpop.blueprints.Direction.OUT;
+import com.tinkerpop.blueprints.Edge;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Internal event bus carrying locality changes from CheckinDao to the Users
+ * subscribed for Notifications.
+ *
+ * CheckinDao publishes once a check-in or checkout has committed. publish()
+ * never blocks: the event is offered to a bounded queue and dropped if the
+ * queue is full. A single dispatcher thread takes each event, finds the
+ * subscribed Users who know the event's User with at least their strength
+ * threshold and within their distance, and offers it to each such
+ * Subscriber's own bounded buffer (see Subscriber for its drop policy).
+ * Buffers are written to clients by a small pool of writer threads, so a slow
+ * client delays only its own Notifications and never a check-in.
+ *
+ * A client going away is only noticed when writing to its stream fails, so
+ * every HEARTBEAT milliseconds the dispatcher sends each stream a comment and
+ * drops the Subscribers whose streams have closed.
+ *
+ * Internal Listeners (standing queries, for one) are handed every event on
+ * the dispatcher thread before the Subscribers, and are told when events have
+ * been dropped so they can recover.
+ *
+ * Stopped (the default until the graph is started) publish() does nothing.
+ *
+ * @author Jim Giannoules
+ */
+public enum LocalityEventBus {
+    instance;
+
+    /**
+     * Configuration key giving the capacity of the bus queue.
+     */
+    public static final String QUEUE = "proxstor.notification.queue";
+
+    /**
+     * Configuration key giving the capacity of each Subscriber's buffer.
+     */
+    public static final String BUFFER = "proxstor.notification.buffer";
+
+    /**
+     * Configuration key giving the interval, in milliseconds, at which idle
+     * streams are written to and closed ones dropped. 0 disables it.
+     */
+    public static final String HEARTBEAT = "proxstor.notification.heartbeat";
+
+    public static final int DEFAULT_QUEUE = 4096;
+    public static final int DEFAULT_BUFFER = 64;
+    public static final long DEFAULT_HEARTBEAT = 30000;
+
+    private static final int WRITERS = 4;
+
+    /**
+     * Internal consumer of every published Notification, called on the
+     * dispatcher thread.
+     */
+    public interface Listener {
+
+        /**
+         * @return true while the Listener wants Notifications published
+         */
+        boolean isListening();
+
+        void changed(Notification n);
+
+        /**
+         * Notifications have been dropped since the last one delivered.
+         */
+        void lost();
+    }
+
+    private final Collection<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // subscribing userId to its Subscribers (one per open stream)
+    private final ConcurrentMap<String, Collection<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private volatile BlockingQueue<Notification> queue;
+    private volatile Thread dispatcher;
+    private volatile ExecutorService writers;
+    private int bufferSize = DEFAULT_BUFFER;
+    private volatile long heartbeat = DEFAULT_HEARTBEAT;
+
+    // stats emitted in toString()
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+    // set when publish() drops, cleared when Listeners have been told
+    private final AtomicBoolean lost = new AtomicBoolean();
+
+    /**
+     * Size the queues from the graph configuration and start the dispatcher
+     * and writer threads.
+     *
+     * @param conf Configuration Map the graph was started with
+     */
+    public synchronized void start(Map<String, String> conf) {
+        stop();
+        int queueSize = DEFAULT_QUEUE;
+        bufferSize = DEFAULT_BUFFER;
+        heartbeat = DEFAULT_HEARTBEAT;
+        try {
+            if (conf.containsKey(QUEUE)) {
+                queueSize = Integer.parseInt(conf.get(QUEUE));
+            }
+            if (conf.containsKey(BUFFER)) {
+                bufferSize = Integer.parseInt(conf.get(BUFFER));
+            }
+            if (conf.containsKey(HEARTBEAT)) {
+                heartbeat = Math.max(0, Long.parseLong(conf.get(HEARTBEAT)));
+            }
+        } catch (NumberFormatException ex) {
+            Logger.getLogger(LocalityEventBus.class.getName()).log(Level.WARNING, "using default notification queue sizes", ex);
+            queueSize = DEFAULT_QUEUE;
+            bufferSize = DEFAULT_BUFFER;
+            heartbeat = DEFAULT_HEARTBEAT;
+        }
+        published.set(0);
+        dropped.set(0);
+        delivered.set(0);
+        closed.set(0);
+        queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        writers = Executors.newFixedThreadPool(WRITERS);
+        dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchLoop();
+            }
+        }, "proxstor-notification");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Stop dispatching and close every subscribed stream.
+     */
+    public synchronized void stop() {
+        Thread t = dispatcher;
+        if (t == null) {
+            return;
+        }
+        dispatcher = null;
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        writers.shutdownNow();
+        writers = null;
+        for (Collection<Subscriber> subs : subscribers.values()) {
+            for (Subscriber s : subs) {
+                s.close();
+            }
+        }
+        subscribers.clear();
+        queue = null;
+    }
+
+    public boolean isRunning() {
+        return dispatcher != null;
+    }
+
+    /**
+     * Returns true if anybody is subscribed. Publishers may test this before
+     * building a Notification.
+     *
+     * @return true if there is at least one Subscriber
+     */
+    public boolean hasSubscribers() {
+        if (!subscribers.isEmpty()) {
+            return true;
+        }
+        for (Listener l : listeners) {
+            if (l.isListening()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Register an internal Listener. Listeners survive stop() and start().
+     *
+     * @param l Listener
+     */
+    public void addListener(Listener l) {
+        if (!listeners.contains(l)) {
+            listeners.add(l);
+        }
+    }
+
+    /**
+     * Publish a committed locality change. Never blocks; the Notification is
+     * dropped if the bus is stopped, nobody is subscribed or listening, or the
+     * queue is full.
+     *
+     * @param n Notification with type and locality set
+     */
+    public void publish(Notification n) {
+        BlockingQueue<Notification> q = queue;
+        if ((q == null) || !hasSubscribers()) {
+            return;
+        }
+        published.incrementAndGet();
+        if (!q.offer(n)) {
+            dropped.incrementAndGet();
+            lost.set(true);
+        }
+    }
+
+    /**
+     * Register a new Subscriber.
+     *
+     * @param userId Object ID of the subscribing User
+     * @param strength least strength of the knows relationship to notify for
+     * @param distance greatest distance to notify for, null for any
+     * @return the Subscriber, whose EventOutput is to be returned to the
+     * client
+     * @throws IllegalStateException if the bus is not running
+     */
+    Subscriber subscribe(String userId, int strength, Double distance) {
+        if (!isRunning()) {
+            throw new IllegalStateException("notifications not running");
+        }
+        Subscriber s = new Subscriber(userId, strength, distance, bufferSize);
+        Collection<Subscriber> subs = subscribers.get(userId);
+        if (subs == null) {
+            Collection<Subscriber> created = new CopyOnWriteArrayList<>();
+            subs = subscribers.putIfAbsent(userId, created);
+            if (subs == null) {
+                subs = created;
+            }
+        }
+        subs.add(s);
+        return s;
+    }
+
+    /**
+     * Drop a Subscriber whose stream has closed.
+     *
+     * @param s Subscriber
+     */
+    void unsubscribe(Subscriber s) {
+        Collection<Subscriber> subs = subscribers.get(s.getUserId());
+        if (subs != null) {
+            if (subs.remove(s)) {
+                closed.incrementAndGet();
+            }
+            if (subs.isEmpty()) {
+                subscribers.remove(s.getUserId(), subs);
+            }
+        }
+    }
+
+    /**
+     * Count a Notification written to a client.
+     */
+    void delivered() {
+        delivered.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Notifications: ");
+        if (!isRunning()) {
+            sb.append("stopped\n");
+            return sb.toString();
+        }
+        int streams = 0;
+        long overflow = 0;
+        for (Collection<Subscriber> subs : subscribers.values()) {
+            for (Subscriber s : subs) {
+                streams++;
+                overflow += s.getDropped();
+            }
+        }
+        sb.append(subscribers.size()).append(" users, ").append(streams).append(" streams\n");
+        sb.append("\tpublished: ").append(published.get());
+        sb.append(", dropped at bus: ").append(dropped.get());
+        sb.append(", dropped at subscribers: ").append(overflow);
+        sb.append(", delivered: ").append(delivered.get());
+        sb.append(", closed streams: ").append(closed.get()).append("\n");
+        return sb.toString();
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    private void dispatchLoop() {
+        BlockingQueue<Notification> q = queue;
+        long nextBeat = System.currentTimeMillis() + heartbeat;
+        while (dispatcher == Thread.currentThread()) {
+            Notification n;
+            try {
+                if (heartbeat > 0) {
+                    n = q.poll(Math.max(1, nextBeat - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } else {
+                    n = q.take();
+                }
+            } catch (InterruptedException ex) {
+                break;
+            }
+            if ((heartbeat > 0) && (System.currentTimeMillis() >= nextBeat)) {
+                beat();
+                nextBeat = System.currentTimeMillis() + heartbeat;
+            }
+            if (n == null) {
+                continue;
+            }
+            boolean missed = lost.getAndSet(false);
+            for (Listener l : listeners) {
+                try {
+                    if (missed) {
+                        l.lost();
+                    }
+                    l.changed(n);
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(LocalityEventBus.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            try {
+                dispatch(n);
+            } catch (InvalidUserId | InvalidLocationId ex) {
+                // deleted since the event was published
+                Logger.getLogger(LocalityEventBus.class.getName()).log(Level.FINE, null, ex);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(LocalityEventBus.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                ProxStorGraph.instance.release();
+            }
+        }
+    }
+
+    /*
+     * offer n to every Subscriber knowing n's User strongly and closely enough
+     */
+    private void dispatch(Notification n) throws InvalidUserId, InvalidLocationId {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        Location where = null;
+        for (Edge e : UserDao.instance.resolve(n.getUserId()).getEdges(IN, "knows")) {
+            String subscriberId = e.getVertex(OUT).getId().toString();
+            Collection<Subscriber> subs = subscribers.get(subscriberId);
+            if (subs == null) {
+                continue;
+            }
+            int strength = (Integer) e.getProperty("strength");
+            Double distance = null;
+            for (Subscriber s : subs) {
+                if (s.isClosed()) {
+                    unsubscribe(s);
+                    continue;
+                }
+                if (strength < s.getStrength()) {
+                    continue;
+                }
+                if ((s.getDistance() != null) && (distance == null)) {
+                    if (where == null) {
+                        where = LocationDao.instance.get(n.getLocality().getLocationId());
+                    }
+                    distance = distanceFrom(subscriberId, where);
+                }
+                if ((s.getDistance() != null) && (distance != null) && (distance > s.getDistance())) {
+                    continue;
+                }
+                Notification copy = new Notification(n.getType(), n.getLocality());
+                copy.setStrength(strength);
+                copy.setDistance(distance);
+                if (s.offer(copy)) {
+                    schedule(s);
+                }
+            }
+        }
+    }
+
+    /*
+     * drop the Subscribers whose streams have closed and have a writer ping
+     * the others, so a client that went away is noticed
+     */
+    private void beat() {
+        for (Collection<Subscriber> subs : subscribers.values()) {
+            for (Subscriber s : subs) {
+                if (s.isClosed()) {
+                    unsubscribe(s);
+                } else if (s.ping()) {
+                    schedule(s);
+                }
+            }
+        }
+    }
+
+    /*
+     * distance from subscriberId's current Location to where, or null if
+     * subscriberId has no current Location
+     */
+    private Double distanceFrom(String subscriberId, Location where) {
+        try {
+            Locality l = CheckinDao.instance.getCurrentLocality(subscriberId);
+            if (l == null) {
+                return null;
+            }
+            return NearbyDao.instance.distanceBetweenLocations(LocationDao.instance.get(l.getLocationId()), where);
+        } catch (InvalidUserId | InvalidLocationId ex) {
+            return null;
+        }
+    }
+
+    /*
+     * have a writer thread drain s
+     */
+    private void schedule(final Subscriber s) {
+        ExecutorService w = writers;
+        if (w == null) {
+            return;
+        }
+        try {
+            w.execute(new Runnable() {
+                @Override
+                public void run() {
+                    s.drain();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // stopping
+        }
+    }
+}
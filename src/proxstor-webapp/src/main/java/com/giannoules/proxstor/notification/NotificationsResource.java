@@ -0,0 +1,56 @@
+package com.giannoules.proxstor.notification;
+
+import com.giannoules.proxstor.exception.InvalidUserId;
+import com.giannoules.proxstor.user.UserDao;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.SseFeature;
+
+/*
+ * push channel of friends' locality changes: /user/{userid}/notifications
+ */
+public class NotificationsResource {
+
+    private final String userId;
+
+    public NotificationsResource(String userId) {
+        this.userId = userId;
+    }
+
+    /*
+     * open a Server-Sent Events stream of Notifications of arrivals and
+     * departures of users this user knows with at least strength (0-100),
+     * optionally only those within distance of this user's current location
+     *
+     * success - return 200 (Ok) and an event stream, one event per
+     *           Notification named by its type
+     * failure - return 400 (Bad Request) if strength is out of range
+     * failure - return 404 (Not Found) if the user is invalid
+     * failure - return 503 (Service Unavailable) if the graph is not running
+     */
+    @GET
+    @Produces(SseFeature.SERVER_SENT_EVENTS)
+    public EventOutput getNotifications(@DefaultValue("0") @QueryParam("strength") int strength,
+            @QueryParam("distance") Double distance) {
+        if ((strength < 0) || (strength > 100) || ((distance != null) && (distance < 0))) {
+            throw new WebApplicationException(400);
+        }
+        try {
+            UserDao.instance.validOrException(userId);
+        } catch (InvalidUserId ex) {
+            Logger.getLogger(NotificationsResource.class.getName()).log(Level.SEVERE, null, ex);
+            throw new WebApplicationException(404);
+        }
+        try {
+            return LocalityEventBus.instance.subscribe(userId, strength, distance).getOutput();
+        } catch (IllegalStateException ex) {
+            throw new WebApplicationException(503);
+        }
+    }
+}
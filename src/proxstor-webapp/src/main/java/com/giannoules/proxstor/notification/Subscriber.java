@@ -0,0 +1,130 @@
+package com.giannoules.proxstor.notification;
+
+import com.giannoules.proxstor.api.Notification;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ws.rs.core.MediaType;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+
+/**
+ * One open Notification stream of a subscribed User, with its filter and a
+ * bounded buffer of Notifications not yet written.
+ *
+ * When the buffer is full the oldest Notification is dropped to make room, on
+ * the basis that a client which has fallen behind wants where its friends are
+ * now rather than where they were. At most one writer thread drains a
+ * Subscriber at a time, writing a pending heartbeat comment before the
+ * buffered Notifications.
+ *
+ * @author Jim Giannoules
+ */
+class Subscriber {
+
+    private final String userId;
+    private final int strength;
+    private final Double distance;
+    private final EventOutput output = new EventOutput();
+    private final BlockingQueue<Notification> buffer;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean ping = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+
+    Subscriber(String userId, int strength, Double distance, int capacity) {
+        this.userId = userId;
+        this.strength = strength;
+        this.distance = distance;
+        this.buffer = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    String getUserId() {
+        return userId;
+    }
+
+    int getStrength() {
+        return strength;
+    }
+
+    Double getDistance() {
+        return distance;
+    }
+
+    EventOutput getOutput() {
+        return output;
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    boolean isClosed() {
+        return output.isClosed();
+    }
+
+    /*
+     * buffer n, dropping the oldest Notification if full. returns true if the
+     * caller must schedule drain()
+     */
+    boolean offer(Notification n) {
+        while (!buffer.offer(n)) {
+            if (buffer.poll() != null) {
+                dropped.incrementAndGet();
+            }
+        }
+        return draining.compareAndSet(false, true);
+    }
+
+    /*
+     * ask for a heartbeat comment to be written. returns true if the caller
+     * must schedule drain()
+     */
+    boolean ping() {
+        ping.set(true);
+        return draining.compareAndSet(false, true);
+    }
+
+    /*
+     * write a pending heartbeat and buffered Notifications until the buffer
+     * is empty
+     */
+    void drain() {
+        try {
+            while (true) {
+                if (ping.getAndSet(false)) {
+                    output.write(new OutboundEvent.Builder().comment("heartbeat").build());
+                }
+                Notification n;
+                while ((n = buffer.poll()) != null) {
+                    output.write(new OutboundEvent.Builder()
+                            .name(n.getType())
+                            .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                            .data(Notification.class, n)
+                            .build());
+                    LocalityEventBus.instance.delivered();
+                }
+                draining.set(false);
+                // an offer() or ping() may have raced in after the last poll()
+                if ((buffer.isEmpty() && !ping.get()) || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Subscriber.class.getName()).log(Level.FINE, "notification stream closed", ex);
+            LocalityEventBus.instance.unsubscribe(this);
+            close();
+        }
+    }
+
+    void close() {
+        try {
+            output.close();
+        } catch (IOException ex) {
+            Logger.getLogger(Subscriber.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.giannoules.proxstor.query;
+
+import com.giannoules.proxstor.api.Colocation;
+import java.util.List;
+
+/**
+ * One page of a co-location Query's result, and the position of the next
+ * page (null if this page is the last).
+ *
+ * @author Jim Giannoules
+ */
+public class ColocationPage {
+
+    private final List<Colocation> colocations;
+    private final String next;
+
+    ColocationPage(List<Colocation> colocations, String next) {
+        this.colocations = colocations;
+        this.next = next;
+    }
+
+    public List<Colocation> getColocations() {
+        return colocations;
+    }
+
+    public String getNext() {
+        return next;
+    }
+}
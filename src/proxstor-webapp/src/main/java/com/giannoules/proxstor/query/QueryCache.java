@@ -0,0 +1,462 @@
+package com.giannoules.proxstor.query;
+
+import com.giannoules.proxstor.api.Query;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded cache of query result pages, keyed by the normalized Query plus
+ * the page position and size.
+ *
+ * Every entry records what its page was computed from, and is evicted only
+ * by writes to those:
+ * <ul>
+ * <li>the localities of the Users looked up for the page (friends, occupants
+ * or visitors, and the submitter for own locality and distance queries)
+ * <li>the submitter's knows relationships, for strength queries, and those
+ * of every friend traversed for queries with a depth over 1
+ * <li>the occupants or visitors of the Location, for location first plans
+ * <li>the Location of a query, and the coordinates of any Location for
+ * distance queries
+ * </ul>
+ * Only queries over current localities, and date range queries whose end
+ * date has passed, are cached. A change to the history of a User arriving
+ * after the end date of a date range entry leaves that entry alone.
+ *
+ * Writers call the changed methods once their change has committed. A page
+ * evaluated while one of its dependencies changed is not cached, since it
+ * may have read the graph before the write. Changes are remembered only as
+ * long as a page still being evaluated could have overlapped them.
+ *
+ * Disabled unless the graph is started with ENTRIES greater than 0.
+ *
+ * @author Jim Giannoules
+ */
+public enum QueryCache {
+    instance;
+
+    /**
+     * Configuration key giving the maximum number of cached pages. 0 (the
+     * default) disables the cache.
+     */
+    public static final String ENTRIES = "proxstor.query.cache";
+
+    // dependency key prefixes
+    private static final String USER = "u:";
+    private static final String KNOWS = "k:";
+    private static final String OCCUPANCY = "o:";
+    private static final String LOCATION = "l:";
+    private static final String GEOMETRY = "g";
+
+    private static final int MIN_PRUNE = 1024;
+
+    // access ordered so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private final Map<String, Set<Entry>> byDependency = new HashMap<>();
+    // dependency to the sequence number of its last change
+    private final Map<String, Long> changed = new HashMap<>();
+    // begun sequence number to the number of outstanding Tickets begun then
+    private final TreeMap<Long, Integer> live = new TreeMap<>();
+    // size of changed which triggers the next prune
+    private int pruneAt = MIN_PRUNE;
+    private long sequence;
+    private volatile int capacity;
+
+    // stats emitted in toString()
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong invalidated = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * One cached page and the dependencies it was computed from.
+     */
+    private static class Entry {
+        final String key;
+        final QueryPage page;
+        final Set<String> dependencies;
+        final long end;
+
+        Entry(Ticket t, QueryPage page) {
+            this.key = t.key;
+            this.page = page;
+            this.dependencies = t.dependencies;
+            this.end = t.end;
+        }
+    }
+
+    /**
+     * Handed out by begin() for a cacheable page; collects the page's
+     * dependencies while it is evaluated.
+     */
+    static class Ticket {
+        private final String key;
+        private final long begun;
+        private final long end;
+        private final Set<String> dependencies = new HashSet<>();
+        private boolean ended;
+
+        private Ticket(String key, long begun, long end) {
+            this.key = key;
+            this.begun = begun;
+            this.end = end;
+        }
+
+        /**
+         * Record the dependencies following from how the query is planned.
+         *
+         * @param plan QueryPlan the page is evaluated with
+         */
+        void planned(QueryPlan plan) {
+            if (plan.type >= 2) {
+                dependencies.add(KNOWS + plan.userId);
+                for (String id : plan.expanded) {
+                    dependencies.add(KNOWS + id);
+                }
+            }
+            if (((plan.type == 2) || (plan.type == 4)) && (plan.distance != null)) {
+                dependencies.add(USER + plan.userId);
+                dependencies.add(GEOMETRY);
+            }
+            if (plan.locId != null) {
+                dependencies.add(LOCATION + plan.locId);
+                if (plan.strategy == QueryPlan.Strategy.LOCATION_FIRST) {
+                    dependencies.add(OCCUPANCY + plan.locId);
+                }
+            }
+        }
+
+        /**
+         * Record that the page depends on the localities of userIds.
+         *
+         * @param userIds Object IDs of the Users looked up
+         */
+        void lookedUp(Collection<String> userIds) {
+            for (String id : userIds) {
+                dependencies.add(USER + id);
+            }
+        }
+    }
+
+    /**
+     * Set the capacity from the graph configuration and empty the cache.
+     *
+     * @param conf Configuration Map the graph was started with
+     */
+    public void configure(Map<String, String> conf) {
+        int c = 0;
+        if (conf.containsKey(ENTRIES)) {
+            try {
+                c = Math.max(0, Integer.parseInt(conf.get(ENTRIES)));
+            } catch (NumberFormatException ex) {
+                Logger.getLogger(QueryCache.class.getName()).log(Level.WARNING, "ignoring invalid " + ENTRIES, ex);
+            }
+        }
+        capacity = c;
+        clear();
+    }
+
+    /**
+     * Empty the cache and reset its stats.
+     */
+    public void clear() {
+        synchronized (this) {
+            entries.clear();
+            byDependency.clear();
+            changed.clear();
+            pruneAt = MIN_PRUNE;
+            sequence++;
+        }
+        hits.set(0);
+        misses.set(0);
+        stale.set(0);
+        changes.set(0);
+        invalidated.set(0);
+        evictions.set(0);
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Start evaluating a page of q. Must be called before the graph is read,
+     * and followed by end() however the evaluation finishes.
+     *
+     * @param q Query
+     * @param position position of the page, null for the first
+     * @param count page size
+     * @return Ticket, or null if the page cannot be cached
+     */
+    Ticket begin(Query q, String position, int count) {
+        if (!isEnabled() || (q.getUserId() == null)) {
+            return null;
+        }
+        long end = Long.MAX_VALUE;
+        if (q.getDateStart() != null) {
+            // an open or future range still changes as time passes
+            if ((q.getDateEnd() == null) || (q.getDateEnd().getTime() >= System.currentTimeMillis())) {
+                return null;
+            }
+            end = q.getDateEnd().getTime();
+        } else if (q.getDateEnd() != null) {
+            return null;
+        }
+        synchronized (this) {
+            Integer n = live.get(sequence);
+            live.put(sequence, (n == null) ? 1 : n + 1);
+            return new Ticket(key(q, position, count), sequence, end);
+        }
+    }
+
+    /**
+     * Finish with a Ticket, cached or not.
+     *
+     * @param t Ticket from begin(), may be null
+     */
+    synchronized void end(Ticket t) {
+        if ((t == null) || t.ended) {
+            return;
+        }
+        t.ended = true;
+        int n = live.get(t.begun);
+        if (n == 1) {
+            live.remove(t.begun);
+        } else {
+            live.put(t.begun, n - 1);
+        }
+    }
+
+    /**
+     * @param t Ticket from begin()
+     * @return the cached page, or null if there is none
+     */
+    QueryPage get(Ticket t) {
+        Entry e;
+        synchronized (this) {
+            e = entries.get(t.key);
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return e.page;
+    }
+
+    /**
+     * Cache page unless one of its dependencies changed since begin().
+     *
+     * @param t Ticket from begin()
+     * @param page evaluated page
+     */
+    synchronized void put(Ticket t, QueryPage page) {
+        if (!isEnabled()) {
+            return;
+        }
+        for (String d : t.dependencies) {
+            Long seq = changed.get(d);
+            if ((seq != null) && (seq > t.begun)) {
+                stale.incrementAndGet();
+                return;
+            }
+        }
+        Entry e = new Entry(t, page);
+        remove(entries.put(e.key, e));
+        for (String d : e.dependencies) {
+            Set<Entry> s = byDependency.get(d);
+            if (s == null) {
+                s = new HashSet<>();
+                byDependency.put(d, s);
+            }
+            s.add(e);
+        }
+        Iterator<Entry> it = entries.values().iterator();
+        while ((entries.size() > capacity) && it.hasNext()) {
+            Entry old = it.next();
+            it.remove();
+            unindex(old);
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * A Locality of userId at locId was added, changed or removed.
+     *
+     * @param userId Object ID of the User, may be null
+     * @param locId Object ID of the Location, may be null
+     * @param arrival arrival of the Locality, null if unknown
+     */
+    public void localityChanged(String userId, String locId, Date arrival) {
+        if (!isEnabled()) {
+            return;
+        }
+        long a = (arrival == null) ? Long.MIN_VALUE : arrival.getTime();
+        synchronized (this) {
+            if (userId != null) {
+                changed(USER + userId, a);
+            }
+            if (locId != null) {
+                changed(OCCUPANCY + locId, a);
+            }
+        }
+    }
+
+    /**
+     * The knows relationships from userId changed.
+     *
+     * @param userId Object ID of the User
+     */
+    public void knowsChanged(String userId) {
+        if (isEnabled()) {
+            synchronized (this) {
+                changed(KNOWS + userId, Long.MIN_VALUE);
+            }
+        }
+    }
+
+    /**
+     * userId was deleted, along with its localities and relationships.
+     *
+     * @param userId Object ID of the User
+     */
+    public void userChanged(String userId) {
+        if (isEnabled()) {
+            synchronized (this) {
+                changed(USER + userId, Long.MIN_VALUE);
+                changed(KNOWS + userId, Long.MIN_VALUE);
+            }
+        }
+    }
+
+    /**
+     * locId was updated or deleted.
+     *
+     * @param locId Object ID of the Location
+     */
+    public void locationChanged(String locId) {
+        if (isEnabled()) {
+            synchronized (this) {
+                changed(LOCATION + locId, Long.MIN_VALUE);
+                changed(OCCUPANCY + locId, Long.MIN_VALUE);
+                changed(GEOMETRY, Long.MIN_VALUE);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Query cache: ");
+        if (!isEnabled()) {
+            sb.append("disabled\n");
+            return sb.toString();
+        }
+        long h = hits.get();
+        long m = misses.get();
+        long c = changes.get();
+        synchronized (this) {
+            sb.append(entries.size()).append(" of ").append(capacity).append(" pages\n");
+        }
+        sb.append("\thits: ").append(h);
+        sb.append(", misses: ").append(m);
+        sb.append(", hit ratio: ").append(String.format("%.3f", (h + m == 0) ? 0.0 : (double) h / (h + m)));
+        sb.append(", stale: ").append(stale.get());
+        sb.append(", evictions: ").append(evictions.get()).append("\n");
+        sb.append("\tchanges: ").append(c);
+        sb.append(", invalidated: ").append(invalidated.get());
+        sb.append(", fan-out: ").append(String.format("%.3f", (c == 0) ? 0.0 : (double) invalidated.get() / c)).append("\n");
+        return sb.toString();
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    /*
+     * caller holds this. drop the entries depending on d, except date range
+     * entries ending before arrival
+     */
+    private void changed(String d, long arrival) {
+        changes.incrementAndGet();
+        changed.put(d, ++sequence);
+        if (changed.size() >= pruneAt) {
+            prune();
+        }
+        Set<Entry> s = byDependency.get(d);
+        if (s == null) {
+            return;
+        }
+        for (Entry e : s.toArray(new Entry[s.size()])) {
+            if (arrival <= e.end) {
+                entries.remove(e.key);
+                unindex(e);
+                invalidated.incrementAndGet();
+            }
+        }
+    }
+
+    /*
+     * caller holds this. forget the changes no outstanding Ticket can have
+     * overlapped: those at or before the oldest one's begin
+     */
+    private void prune() {
+        long oldest = live.isEmpty() ? sequence : live.firstKey();
+        for (Iterator<Long> it = changed.values().iterator(); it.hasNext();) {
+            if (it.next() <= oldest) {
+                it.remove();
+            }
+        }
+        pruneAt = Math.max(MIN_PRUNE, changed.size() * 2);
+    }
+
+    /*
+     * caller holds this
+     */
+    private void remove(Entry e) {
+        if (e != null) {
+            unindex(e);
+        }
+    }
+
+    /*
+     * caller holds this
+     */
+    private void unindex(Entry e) {
+        for (String d : e.dependencies) {
+            Set<Entry> s = byDependency.get(d);
+            if (s != null) {
+                s.remove(e);
+                if (s.isEmpty()) {
+                    byDependency.remove(d);
+                }
+            }
+        }
+    }
+
+    /*
+     * distance only matters to the strength queries over current localities
+     */
+    private static String key(Query q, String position, int count) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(q.getUserId()).append('|').append(q.getLocationId());
+        sb.append('|').append(q.getStrength());
+        sb.append('|').append(q.getDepth()).append('|').append(q.getPathStrength());
+        boolean current = (q.getDateStart() == null) && (q.getDateEnd() == null);
+        sb.append('|').append((current && (q.getStrength() != null)) ? q.getDistance() : null);
+        sb.append('|').append((q.getDateStart() == null) ? null : q.getDateStart().getTime());
+        sb.append('|').append((q.getDateEnd() == null) ? null : q.getDateEnd().getTime());
+        sb.append('|').append(position).append('|').append(count);
+        return sb.toString();
+    }
+}
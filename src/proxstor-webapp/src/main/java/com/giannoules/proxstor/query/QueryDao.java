@@ -1,14 +1,21 @@
 package com.giannoules.proxstor.query;
 
 import com.giannoules.proxstor.ProxStorDebug;
+import com.giannoules.proxstor.api.Colocation;
 import com.giannoules.proxstor.api.Locality;
 import com.giannoules.proxstor.api.Location;
 import com.giannoules.proxstor.api.Query;
-import com.giannoules.proxstor.api.User;
 import com.giannoules.proxstor.checkin.CheckinDao;
+import com.giannoules.proxstor.checkin.CheckinHistory;
+import com.giannoules.proxstor.checkin.CurrentLocalityIndex;
+import com.giannoules.proxstor.checkin.FriendsView;
 import com.giannoules.proxstor.exception.InvalidLocationId;
+import com.giannoules.proxstor.exception.InvalidModel;
+import com.giannoules.proxstor.exception.InvalidParameter;
 import com.giannoules.proxstor.exception.InvalidUserId;
+import com.giannoules.proxstor.exception.QueryIncomplete;
 import com.giannoules.proxstor.knows.KnowsDao;
+import com.giannoules.proxstor.knows.KnowsTraversal;
 import com.giannoules.proxstor.locality.LocalityDao;
 import com.giannoules.proxstor.location.LocationDao;
 import com.giannoules.proxstor.nearby.NearbyDao;
@@ -16,8 +23,13 @@ import com.giannoules.proxstor.user.UserDao;
 import static com.tinkerpop.blueprints.Direction.OUT;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public enum QueryDao {
 
@@ -26,8 +38,333 @@ public enum QueryDao {
     private QueryDao() {
     }
 
-    public Collection<Locality> getMatching(Query q) throws InvalidUserId, InvalidLocationId {
+    /**
+     * Cost of looking up one friend's localities, relative to probing one
+     * knows relationship through ProxStorEdgeIndex.
+     */
+    private static final int FRIEND_COST = 2;
+
+    /**
+     * Cost of probing one knows relationship by querying the submitter's
+     * edges: always when ProxStorEdgeIndex is cold, and for every candidate
+     * it misses (most of them, those who are not friends) when warm, since a
+     * miss is confirmed in the graph.
+     */
+    private static final int COLD_PROBE_COST = 3;
+
+    /**
+     * Friends are counted no further than this when planning.
+     */
+    private static final int MAX_FRIENDS = 1024;
+
+    /**
+     * Maximum number of localities per User when a query is evaluated in full.
+     */
+    private static final int MAX_LOOKUP = 1024;
+
+    /**
+     * Maximum number of Users looked up at once when evaluating a page.
+     */
+    private static final int MAX_BATCH = 256;
+
+    /**
+     * Users whose localities make up a query's result, in order, and how to
+     * look up each one's localities. A local Source is looked up in memory,
+     * without fan-out; its ids are only the Users already known to match,
+     * so its result depends on all of the watched Users.
+     */
+    private static class Source {
+        final List<String> ids;
+        final QueryFanout.Lookup lookup;
+        final Collection<String> watched;
+
+        Source(List<String> ids, QueryFanout.Lookup lookup) {
+            this(ids, lookup, null);
+        }
+
+        Source(List<String> ids, QueryFanout.Lookup lookup, Collection<String> watched) {
+            this.ids = ids;
+            this.lookup = lookup;
+            this.watched = watched;
+        }
+
+        boolean isLocal() {
+            return watched != null;
+        }
+
+        /*
+         * Users the localities of ids[from, to) depend on
+         */
+        Collection<String> dependencies(int from, int to) {
+            if (isLocal()) {
+                return watched;
+            }
+            return ids.subList(Math.min(from, ids.size()), Math.min(to, ids.size()));
+        }
+    }
+
+    /**
+     * Evaluates q in full. Each User's localities are capped at MAX_LOOKUP.
+     *
+     * @param q Query
+     * @return matching Localities, or null if q is not a supported query
+     * @throws InvalidUserId
+     * @throws InvalidLocationId
+     * @throws QueryIncomplete if the fan-out deadline passed before every
+     * User was looked up
+     */
+    public Collection<Locality> getMatching(Query q) throws InvalidUserId, InvalidLocationId, QueryIncomplete {
         ProxStorDebug.println("getMatching");
+        QueryPlan plan = plan(q);
+        if (plan == null) {
+            return null;
+        }
+        ProxStorDebug.println(plan.toString());
+        Source src = source(plan);
+        if (src.isLocal()) {
+            Collection<Locality> localities = new ArrayList<>();
+            for (Collection<Locality> c : lookupLocal(src.lookup, src.ids, MAX_LOOKUP)) {
+                localities.addAll(c);
+            }
+            return localities;
+        }
+        return QueryFanout.instance.fanout(src.ids, src.lookup, MAX_LOOKUP);
+    }
+
+    /**
+     * Evaluates one page of q: up to count Localities from position on.
+     * <p>
+     * The result of every query is the concatenation of the localities of a
+     * sorted list of Users (the submitter, friends, occupants or visitors),
+     * so a position is the index of a User in that list plus the number of
+     * that User's localities already returned. Only as many Users are looked
+     * up as are needed to fill the page. The plan strategy is fixed by the
+     * first page and carried in the position.
+     * <p>
+     * Pages are served from QueryCache when it holds them.
+     *
+     * @param q Query
+     * @param position position returned as QueryPage.next, null for the first page
+     * @param count maximum number of Localities returned
+     * @return QueryPage, or null if q is not a supported query
+     * @throws InvalidUserId
+     * @throws InvalidLocationId
+     * @throws InvalidParameter If position is not a position of q
+     */
+    public QueryPage getMatching(Query q, String position, int count) throws InvalidUserId, InvalidLocationId, InvalidParameter {
+        ProxStorDebug.println("getMatching page");
+        QueryCache.Ticket ticket = QueryCache.instance.begin(q, position, count);
+        try {
+            if (ticket != null) {
+                QueryPage cached = QueryCache.instance.get(ticket);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            return evaluate(q, position, count, ticket, null);
+        } finally {
+            QueryCache.instance.end(ticket);
+        }
+    }
+
+    /**
+     * Evaluates one page of q as getMatching() does, bypassing QueryCache,
+     * and reports the plan, the work done in each stage and the time it
+     * took.
+     *
+     * @param q Query
+     * @param position position returned as QueryPage.next, null for the first page
+     * @param count maximum number of Localities returned
+     * @return QueryProfile, or null if q is not a supported query
+     * @throws InvalidUserId
+     * @throws InvalidLocationId
+     * @throws InvalidParameter If position is not a position of q
+     */
+    QueryProfile profile(Query q, String position, int count) throws InvalidUserId, InvalidLocationId, InvalidParameter {
+        QueryProfile prof = new QueryProfile();
+        long started = System.nanoTime();
+        QueryPage page = evaluate(q, position, count, null, prof);
+        if (page == null) {
+            return null;
+        }
+        prof.wall = System.nanoTime() - started;
+        prof.results = page.getLocalities().size();
+        prof.more = (page.getNext() != null);
+        return prof;
+    }
+
+    /*
+     * one page of q, cached through ticket if not null and counted in prof
+     * if not null
+     */
+    private QueryPage evaluate(Query q, String position, int count, QueryCache.Ticket ticket, QueryProfile prof)
+            throws InvalidUserId, InvalidLocationId, InvalidParameter {
+        long t = QueryProfile.start(prof);
+        QueryPlan plan = plan(q);
+        if (plan == null) {
+            return null;
+        }
+        if (prof != null) {
+            prof.add(QueryProfile.Stage.PLAN, (plan.locId == null) ? 1 : 2, Math.max(0, plan.friends), t);
+            prof.plan = plan;
+            plan.profile = prof;
+        }
+        int index = 0;
+        int skip = 0;
+        if (position != null) {
+            try {
+                QueryPlan.Strategy strategy = QueryPlan.Strategy.valueOf(position.substring(0, position.indexOf(':')));
+                int dot = position.indexOf('.');
+                index = Integer.parseInt(position.substring(position.indexOf(':') + 1, dot));
+                skip = Integer.parseInt(position.substring(dot + 1));
+                if ((index < 0) || (skip < 0) || (strategy == QueryPlan.Strategy.SELF) != (plan.strategy == QueryPlan.Strategy.SELF)) {
+                    throw new InvalidParameter("malformed position");
+                }
+                if ((strategy == QueryPlan.Strategy.FRIENDS_VIEW) && (plan.type != 2) && (plan.type != 4)) {
+                    throw new InvalidParameter("malformed position");
+                }
+                if ((strategy != QueryPlan.Strategy.FRIENDS_FIRST) && (plan.depth > 1)) {
+                    throw new InvalidParameter("malformed position");
+                }
+                if ((strategy == QueryPlan.Strategy.LOCATION_FIRST) && (plan.candidates < 0)) {
+                    throw new InvalidParameter("position expired");
+                }
+                plan.strategy = strategy;
+            } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+                throw new InvalidParameter("malformed position");
+            }
+        }
+        ProxStorDebug.println(plan.toString());
+        QueryPlan.Strategy resumed = plan.strategy;
+        Source src = source(plan);
+        if ((position != null) && (plan.strategy != resumed)) {
+            // the friends view is gone; positions in it mean nothing elsewhere
+            throw new InvalidParameter("position expired");
+        }
+        if (ticket != null) {
+            ticket.planned(plan);
+        }
+        QueryFanout.Lookup lookup = src.lookup;
+        if ((prof != null) && !src.isLocal()) {
+            lookup = profiled(lookup, prof);
+        }
+        int first = index;
+        List<Locality> localities = new ArrayList<>();
+        int batch = Math.max(QueryFanout.instance.getParallelism(), Math.min(count, MAX_BATCH));
+        while (index < src.ids.size()) {
+            List<String> ids = src.ids.subList(index, Math.min(src.ids.size(), index + batch));
+            // one more than needed from each, to learn whether a User has more
+            int max = skip + (count - localities.size()) + 1;
+            List<Collection<Locality>> found = src.isLocal()
+                    ? lookupLocal(lookup, ids, max) : QueryFanout.instance.lookupEach(ids, lookup, max);
+            for (int i = 0; i < ids.size(); i++, index++, skip = 0) {
+                if (found.get(i) == null) {
+                    // past the deadline; resume from this User. not cached, the page is short
+                    return new QueryPage(localities, position(plan, index, skip));
+                }
+                List<Locality> l = new ArrayList<>(found.get(i));
+                int room = count - localities.size();
+                if (l.size() - skip > room) {
+                    localities.addAll(l.subList(skip, skip + room));
+                    return cache(ticket, src.dependencies(first, index + 1),
+                            new QueryPage(localities, position(plan, index, skip + room)));
+                }
+                if (l.size() > skip) {
+                    localities.addAll(l.subList(skip, l.size()));
+                }
+            }
+            if (localities.size() == count) {
+                break;
+            }
+        }
+        return cache(ticket, src.dependencies(first, index),
+                new QueryPage(localities, (index < src.ids.size()) ? position(plan, index, 0) : null));
+    }
+
+    /**
+     * Evaluates one page of q as a co-location query: the windows between
+     * dateStart and dateEnd (now if not given) during which another User was
+     * at the same Location as the submitter. strength restricts the other
+     * Users to those the submitter knows with at least that strength,
+     * locationId to one Location, and minOverlap drops windows shorter than
+     * it. Current Localities, the submitter's included, count as lasting
+     * until dateEnd.
+     * <p>
+     * The position records the dateEnd the first page was evaluated with, so
+     * every page of a query without one joins the same range, and the index
+     * of the next co-location in the join. Only the co-locations on the page
+     * are checked for deleted Localities, and skipped if they have one.
+     *
+     * @param q Query
+     * @param position position returned as ColocationPage.next, null for the
+     * first page
+     * @param count maximum number of Colocations returned
+     * @return ColocationPage ordered by start, or null if q is not a
+     * supported co-location query or the checkin history is not available
+     * @throws InvalidUserId
+     * @throws InvalidLocationId
+     * @throws InvalidParameter If position is not a position of q
+     */
+    public ColocationPage getColocated(Query q, String position, int count) throws InvalidUserId, InvalidLocationId, InvalidParameter {
+        UserDao.instance.validOrException(q.getUserId());
+        if (q.getLocationId() != null) {
+            LocationDao.instance.validOrException(q.getLocationId());
+        }
+        if ((q.getDateStart() == null)
+                || ((q.getStrength() != null) && ((q.getStrength() < 0) || (q.getStrength() > 100)))
+                || ((q.getMinOverlap() != null) && (q.getMinOverlap() < 0))
+                || ((q.getDepth() != null) && (q.getDepth() != 1))) {
+            return null;
+        }
+        Date dateEnd = (q.getDateEnd() == null) ? new Date() : q.getDateEnd();
+        int index = 0;
+        if (position != null) {
+            try {
+                int dot = position.indexOf('.');
+                dateEnd = new Date(Long.parseLong(position.substring(0, dot)));
+                index = Integer.parseInt(position.substring(dot + 1));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+                throw new InvalidParameter("malformed position");
+            }
+            if ((index < 0) || ((q.getDateEnd() != null) && !q.getDateEnd().equals(dateEnd))) {
+                throw new InvalidParameter("malformed position");
+            }
+        }
+        long minOverlap = (q.getMinOverlap() == null) ? 0 : q.getMinOverlap();
+        List<Colocation> found = CheckinDao.instance.getColocated(q.getUserId(), q.getDateStart(), dateEnd,
+                q.getLocationId(), q.getStrength(), minOverlap);
+        if (found == null) {
+            return null;
+        }
+        List<Colocation> colocations = new ArrayList<>();
+        Map<String, Boolean> exists = new HashMap<>();
+        while ((index < found.size()) && (colocations.size() < count)) {
+            Colocation c = found.get(index++);
+            if (CheckinDao.instance.exists(c, exists)) {
+                colocations.add(c);
+            }
+        }
+        return new ColocationPage(colocations, (index < found.size()) ? dateEnd.getTime() + "." + index : null);
+    }
+
+    /**
+     * Returns the plan getMatching() would evaluate q with, without
+     * evaluating it.
+     *
+     * @param q Query
+     * @return QueryPlan, or null if q is not a supported query
+     * @throws InvalidUserId
+     * @throws InvalidLocationId
+     */
+    QueryPlan explain(Query q) throws InvalidUserId, InvalidLocationId {
+        return plan(q);
+    }
+
+    /*
+     * derive the query type from which Query fields are set and, for the
+     * types with a choice, pick the cheaper plan
+     */
+    private QueryPlan plan(Query q) throws InvalidUserId, InvalidLocationId {
         String userId;
         String locId = null;
         Integer strength = null;
@@ -68,165 +405,415 @@ public enum QueryDao {
         /*
          * determine appropriate query type handler
          */
+        int type;
         if ((locId == null) && (strength == null) && (dateStart == null) && (dateEnd == null)) {
-            return queryType0(userId);
+            type = 0;
+        } else if ((locId == null) && (strength == null) && (dateStart != null)) {
+            type = 1;
+        } else if ((strength != null) && (locId == null) && (dateStart == null) && (dateEnd == null)) {
+            type = 2;
+        } else if ((strength != null) && (dateStart != null) && (locId == null)) {
+            type = 3;
+        } else if ((locId != null) && (strength != null) && (dateStart == null) && (dateEnd == null)) {
+            type = 4;
+        } else if ((locId != null) && (strength != null) && (dateStart != null)) {
+            type = 5;
+        } else {
+            return null;
         }
 
-        if ((locId == null) && (strength == null) && (dateStart != null)) {
-            return queryType1(userId, dateStart, dateEnd, distance);
+        QueryPlan plan = new QueryPlan(type, userId, locId, strength, distance, dateStart, dateEnd);
+        if (type >= 2) {
+            plan.strategy = QueryPlan.Strategy.FRIENDS_FIRST;
         }
-
-        if ((strength != null) && (locId == null) && (dateStart == null) && (dateEnd == null)) {
-            return queryType2(userId, strength, distance);
+        if ((q.getDepth() != null) && (q.getDepth() != 1)) {
+            if ((type < 2) || (q.getDepth() < 1) || (q.getDepth() > KnowsDao.MAX_DEPTH)) {
+                return null;
+            }
+            plan.depth = q.getDepth();
         }
-
-        if ((strength != null) && (dateStart != null) && (locId == null)) {
-            return queryType3(userId, strength, dateStart, dateEnd);
+        plan.pathStrength = KnowsTraversal.PathStrength.parse(q.getPathStrength());
+        if (plan.pathStrength == null) {
+            return null;
+        }
+        if (plan.depth > 1) {
+            // neither location first nor the friends view know of indirect friends
+            plan.reason = "friends of friends are traversed";
+            return plan;
+        }
+        if (type == 4) {
+            if (CurrentLocalityIndex.instance.isWarm()) {
+                plan.candidates = CheckinDao.instance.getOccupantCount(locId, false);
+                choose(plan);
+            } else {
+                plan.reason = "occupancy unknown (current locality table cold)";
+            }
+        } else if (type == 5) {
+            if (CheckinHistory.instance.isWarm()) {
+                plan.candidates = CheckinHistory.instance.getVisitorCount(locId);
+                choose(plan);
+            } else {
+                plan.reason = "visitors unknown (checkin history cold)";
+            }
+        }
+        if (((type == 2) || (type == 4)) && (plan.strategy == QueryPlan.Strategy.FRIENDS_FIRST)
+                && FriendsView.instance.isEnabled()) {
+            plan.strategy = QueryPlan.Strategy.FRIENDS_VIEW;
         }
+        return plan;
+    }
 
-        if ((locId != null) && (strength != null) && (dateStart == null) && (dateEnd == null)) {
-            return queryType4(userId, strength, distance, locId);
+    /*
+     * friends first costs FRIEND_COST per friend; location first one knows
+     * probe per candidate. friends are only counted as far as needed to
+     * decide, so planning never costs more than expanding the friends would.
+     */
+    private void choose(QueryPlan plan) throws InvalidUserId {
+        plan.locationCost = plan.candidates * COLD_PROBE_COST;
+        long decisive = plan.locationCost / FRIEND_COST + 1;
+        int limit = (int) Math.min(MAX_FRIENDS, decisive);
+        plan.friends = KnowsDao.instance.getUserKnowsCount(plan.userId, plan.strength, OUT, limit);
+        plan.friendsCapped = (plan.friends == limit) && (limit < MAX_FRIENDS);
+        plan.friendCost = plan.friends * FRIEND_COST;
+        if (plan.locationCost < plan.friendCost) {
+            plan.strategy = QueryPlan.Strategy.LOCATION_FIRST;
         }
+    }
 
-        if ((locId != null) && (strength != null) && (dateStart != null)) {
-            return queryType5(userId, strength, locId, dateStart, dateEnd);
+    /*
+     * cache page, which was computed from the localities of users
+     */
+    private static QueryPage cache(QueryCache.Ticket ticket, Collection<String> users, QueryPage page) {
+        if (ticket != null) {
+            ticket.lookedUp(users);
+            QueryCache.instance.put(ticket, page);
         }
+        return page;
+    }
+
+    private static String position(QueryPlan plan, int index, int skip) {
+        return plan.strategy + ":" + index + "." + skip;
+    }
 
-        return null;
+    private Source source(QueryPlan plan) throws InvalidUserId {
+        Date dateEnd = plan.dateEnd;
+        if ((dateEnd == null) && (plan.dateStart != null)) {      // if no dateEnd then assume NOW
+            dateEnd = new Date();
+        }
+        boolean byLocation = (plan.strategy == QueryPlan.Strategy.LOCATION_FIRST);
+        switch (plan.type) {
+            case 0:
+                return queryType0(plan.userId);
+            case 1:
+                return queryType1(plan.userId, plan.dateStart, dateEnd);
+            case 2:
+                if (plan.strategy == QueryPlan.Strategy.FRIENDS_VIEW) {
+                    return queryType2ByView(plan, null);
+                }
+                return queryType2(plan.userId, friends(plan), plan.distance, null, plan.profile);
+            case 3:
+                return queryType3(friends(plan), plan.dateStart, dateEnd);
+            case 4:
+                if (byLocation) {
+                    return queryType4ByLocation(plan.userId, plan.strength, plan.distance, plan.locId, plan.profile);
+                }
+                if (plan.strategy == QueryPlan.Strategy.FRIENDS_VIEW) {
+                    return queryType2ByView(plan, plan.locId);
+                }
+                return queryType2(plan.userId, friends(plan), plan.distance, plan.locId, plan.profile);
+            default:
+                if (byLocation) {
+                    return queryType5ByLocation(plan.userId, plan.strength, plan.locId, plan.dateStart, dateEnd, plan.profile);
+                }
+                return queryType5(friends(plan), plan.locId, plan.dateStart, dateEnd);
+        }
     }
-  
+
     /*
      * type 0 - only userId specified.
      * action - return userId's current active Locality (if any)
      */
-    private Collection<Locality> queryType0(String userId) throws InvalidUserId {
+    private Source queryType0(String userId) {
         ProxStorDebug.println("queryType0");
-        Collection<Locality> localities = new ArrayList<>();
-        Locality l = CheckinDao.instance.getCurrentLocality(userId);
-        if (l != null) {
-            localities.add(l);
-        }
-        return localities;
+        return new Source(Collections.singletonList(userId), new QueryFanout.Lookup() {
+            @Override
+            public Collection<Locality> lookup(String u, int max) throws InvalidUserId {
+                Locality l = CheckinDao.instance.getCurrentLocality(u);
+                return (l == null) ? null : Collections.singletonList(l);
+            }
+        });
     }
     
     /*
      * type 1 - userId and dateStart specified. dateEnd is optional. others null.
-     * action - return userId's previous localities within date range (up to 1024)
-     *          with optional distance constraint
+     * action - return userId's previous localities within date range
      */
-    private Collection<Locality> queryType1(String userId, Date dateStart, Date dateEnd, Double distance) throws InvalidUserId {
+    private Source queryType1(String userId, final Date dateStart, final Date dateEnd) {
         ProxStorDebug.println("queryType1");
-        if (dateEnd == null) {      // if no dateEnd then assume end is current date
-            dateEnd = new Date();
-        }        
-        return CheckinDao.instance.getPreviousLocalitiesDateRange(userId, dateStart, dateEnd, 1024); // NOTE: 1024 limit
+        return new Source(Collections.singletonList(userId), new QueryFanout.Lookup() {
+            @Override
+            public Collection<Locality> lookup(String u, int max) throws InvalidUserId {
+                return CheckinDao.instance.getPreviousLocalitiesDateRange(u, dateStart, dateEnd, max);
+            }
+        });
     }
 
     /*
      * type 2 - userId and strength specified. others null
-     * action - return matching friends' current locality (up to 1024)
+     * action - return matching friends' current locality
      *          optionally specifying distance restricts results to 
      *          distance from submitters current position
+     *
+     * also type 4 friends first, restricting results to locId
      */
-    private Collection<Locality> queryType2(String userId, Integer strength, Double distance) throws InvalidUserId {
+    private Source queryType2(String userId, List<String> friends, final Double distance, final String locId, final QueryProfile prof) throws InvalidUserId {
         ProxStorDebug.println("queryType2");
-        Collection<Locality> localities = new ArrayList<>();
-        Collection<User> users;
-        Location loc = null;
-        Locality l;
-        try {
-            Locality userLocality = CheckinDao.instance.getCurrentLocality(userId);
-            if (userLocality != null) {
-                loc = LocationDao.instance.get(userLocality.getLocationId());
-            }
-        } catch (InvalidLocationId ex) {
-            loc = null;
-        }
-        users = KnowsDao.instance.getUserKnows(userId, strength, OUT, 1024); // NOTE: max 1024 users returned
-        for (User u : users) {
-            ProxStorDebug.println(u.toString());
-            l = CheckinDao.instance.getCurrentLocality(u.getUserId());
-            if (l != null) {
-                if (loc == null) {
-                    localities.add(l);
-                } else {
+        final Location near = currentLocation(userId, prof);
+        return new Source(friends, new QueryFanout.Lookup() {
+            @Override
+            public Collection<Locality> lookup(String u, int max) throws InvalidUserId {
+                Locality l = CheckinDao.instance.getCurrentLocality(u);
+                if ((l == null) || ((locId != null) && !locId.equals(l.getLocationId()))) {
+                    return null;
+                }
+                if ((near != null) && (distance != null)) {
                     try {
-                        Location friendLoc = LocationDao.instance.get(l.getLocationId());
-                        if (NearbyDao.instance.distanceBetweenLocations(loc, friendLoc) <= distance) {
-                            localities.add(l);
+                        Location friendLoc = load(l.getLocationId(), prof);
+                        if (!within(near, friendLoc, distance, prof)) {
+                            return null;
                         }
                     } catch (InvalidLocationId ex) {
+                        return null;
                     }
                 }
+                return Collections.singletonList(l);
             }
+        });
+    }
 
+    /*
+     * type 2 (and type 4) from the submitter's FriendsView - the matching
+     *          friends are found by one scan in memory, so the Source only
+     *          lists them. falls back to friends first if there is no view
+     */
+    private Source queryType2ByView(QueryPlan plan, String locId) throws InvalidUserId {
+        ProxStorDebug.println("queryType2ByView");
+        Location near = (plan.distance == null) ? null : currentLocation(plan.userId, plan.profile);
+        Collection<String> friends = new ArrayList<>();
+        long t = QueryProfile.start(plan.profile);
+        final Map<String, Locality> found = FriendsView.instance.getFriendLocalities(plan.userId, plan.strength, locId, near, plan.distance, friends);
+        if (plan.profile != null) {
+            // in memory, no vertices or edges are read
+            plan.profile.add(QueryProfile.Stage.VIEW, 0, 0, t);
+        }
+        if (found == null) {
+            plan.strategy = QueryPlan.Strategy.FRIENDS_FIRST;
+            plan.reason = "friends view unavailable";
+            return queryType2(plan.userId, friends(plan), plan.distance, locId, plan.profile);
         }
-        return localities;
+        return new Source(new ArrayList<>(found.keySet()), new QueryFanout.Lookup() {
+            @Override
+            public Collection<Locality> lookup(String u, int max) {
+                return Collections.singletonList(found.get(u));
+            }
+        }, friends);
     }
 
     /*
      * type 3 - userId, strength, and dateStart specified. dateEnd optional. others null
-     * action - return matching friends' localities in date range (1048576 max)
+     * action - return matching friends' localities in date range
      */
-    private Collection<Locality> queryType3(String userId, Integer strength, Date dateStart, Date dateEnd) throws InvalidUserId {
+    private Source queryType3(List<String> friends, final Date dateStart, final Date dateEnd) {
         ProxStorDebug.println("queryType3");
-        Collection<Locality> localities = new ArrayList<>();
-        if (dateEnd == null) {      // if no dateEnd then assume NOW
-            dateEnd = new Date();
-        }
-        Collection<User> friends;
-        friends = KnowsDao.instance.getUserKnows(userId, strength, OUT, 1024); // NOTE: max 1024 users returned
-        for (User u : friends) {
-            List<Locality> friendLocalities;
-            friendLocalities = CheckinDao.instance.getPreviousLocalitiesDateRange(u.getUserId(), dateStart, dateEnd, 1024); // NOTE: 1024 max
-            if ((friendLocalities != null) && (!friendLocalities.isEmpty())) {
-                for (Locality l : friendLocalities) {
-                    localities.add(l);
-                }
+        return new Source(friends, new QueryFanout.Lookup() {
+            @Override
+            public Collection<Locality> lookup(String u, int max) throws InvalidUserId {
+                return CheckinDao.instance.getPreviousLocalitiesDateRange(u, dateStart, dateEnd, max);
             }
-        }
-        return localities;
+        });
     }
 
     /*
-     * type 4 - userId, locId, and strength specified. others null
-     * action - return matching friends currently in specified location
-     *          optionally specifying distance restricts results to 
-     *          distance from submitters chosen position
+     * type 4, location first - the occupants of locId the submitter knows
+     *          with at least strength. every occupant is at locId, so the
+     *          optional distance constraint is tested once for all of them
      */
-    private Collection<Locality> queryType4(String userId, Integer strength, Double distance, String locId) throws InvalidUserId {
-        ProxStorDebug.println("queryType4");
-        Collection<Locality> candidates = queryType2(userId, strength, distance);
-        Collection<Locality> localities = new ArrayList<>();
-        for (Locality l : candidates) {
-            if (l.getLocationId().equals(locId)) {
-                localities.add(l);
+    private Source queryType4ByLocation(final String userId, final Integer strength, Double distance, final String locId, final QueryProfile prof) throws InvalidUserId {
+        ProxStorDebug.println("queryType4ByLocation");
+        List<String> occupants = new ArrayList<>();
+        try {
+            Location near = currentLocation(userId, prof);
+            if ((near == null) || (distance == null) || within(near, load(locId, prof), distance, prof)) {
+                occupants.addAll(CheckinDao.instance.getOccupants(locId, false));
+                Collections.sort(occupants);
             }
+        } catch (InvalidLocationId ex) {
+            Logger.getLogger(QueryDao.class.getName()).log(Level.SEVERE, null, ex);
         }
-        return localities;
+        return new Source(occupants, new QueryFanout.Lookup() {
+            @Override
+            public Collection<Locality> lookup(String u, int max) throws InvalidUserId {
+                if (!knows(userId, u, strength, prof)) {
+                    return null;
+                }
+                Locality l = CheckinDao.instance.getCurrentLocality(u);
+                if ((l == null) || !locId.equals(l.getLocationId())) {
+                    return null;
+                }
+                return Collections.singletonList(l);
+            }
+        });
     }
 
     /*
      * type 5 - userId, locId, strength, and dateStart specified. dateEnd optional
      * action - return all those matching friends who were in location in date range
      */
-    private Collection<Locality> queryType5(String userId, Integer strength, String locId, Date dateStart, Date dateEnd) throws InvalidUserId {
+    private Source queryType5(List<String> friends, final String locId, final Date dateStart, final Date dateEnd) {
         ProxStorDebug.println("queryType5");
-        Collection<Locality> localities = new ArrayList<>();
-        if (dateEnd == null) {      // if no dateEnd then assume NOW
-            dateEnd = new Date();
+        return new Source(friends, new QueryFanout.Lookup() {
+            @Override
+            public Collection<Locality> lookup(String u, int max) throws InvalidUserId {
+                return CheckinDao.instance.getPreviousLocalitiesDateRangeLocation(u, dateStart, dateEnd, locId, max);
+            }
+        });
+    }
+
+    /*
+     * type 5, location first - the previous localities at locId in the date
+     *          range of those with any history at locId the submitter knows
+     *          with at least strength
+     */
+    private Source queryType5ByLocation(final String userId, final Integer strength, final String locId, final Date dateStart, final Date dateEnd, final QueryProfile prof) {
+        ProxStorDebug.println("queryType5ByLocation");
+        List<String> visitors = new ArrayList<>(CheckinHistory.instance.getVisitors(locId));
+        Collections.sort(visitors);
+        return new Source(visitors, new QueryFanout.Lookup() {
+            @Override
+            public Collection<Locality> lookup(String u, int max) throws InvalidUserId {
+                if (!knows(userId, u, strength, prof)) {
+                    return null;
+                }
+                return CheckinDao.instance.getPreviousLocalitiesDateRangeLocation(u, dateStart, dateEnd, locId, max);
+            }
+        });
+    }
+
+    /*
+     * look up ids of a local Source on the calling thread
+     */
+    private static List<Collection<Locality>> lookupLocal(QueryFanout.Lookup lookup, List<String> ids, int max) throws InvalidUserId {
+        List<Collection<Locality>> found = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            found.add(lookup.lookup(id, max));
+        }
+        return found;
+    }
+
+    /*
+     * lookup, counting each call as reading the User and the Localities found
+     */
+    private static QueryFanout.Lookup profiled(final QueryFanout.Lookup lookup, final QueryProfile prof) {
+        return new QueryFanout.Lookup() {
+            @Override
+            public Collection<Locality> lookup(String u, int max) throws InvalidUserId {
+                long t = System.nanoTime();
+                Collection<Locality> found = lookup.lookup(u, max);
+                int n = (found == null) ? 0 : found.size();
+                prof.add(QueryProfile.Stage.LOOKUP, 1 + n, n, t);
+                return found;
+            }
+        };
+    }
+
+    private static Location load(String locId, QueryProfile prof) throws InvalidLocationId {
+        long t = QueryProfile.start(prof);
+        Location l = LocationDao.instance.get(locId);
+        if (prof != null) {
+            prof.add(QueryProfile.Stage.LOCATION, 1, 0, t);
         }
-        Collection<User> friends;
-        friends = KnowsDao.instance.getUserKnows(userId, strength, OUT, 1024); // NOTE: max 1024 users returned
-        for (User u : friends) {
-            List<Locality> friendLocalities;
-            friendLocalities = CheckinDao.instance.getPreviousLocalitiesDateRangeLocation(u.getUserId(), dateStart, dateEnd, locId, 1024); // NOTE: 1024 max
-            if ((friendLocalities != null) && (!friendLocalities.isEmpty())) {
-                for (Locality l : friendLocalities) {
-                    localities.add(l);
+        return l;
+    }
+
+    private static boolean within(Location a, Location b, double distance, QueryProfile prof) {
+        long t = QueryProfile.start(prof);
+        boolean in = NearbyDao.instance.distanceBetweenLocations(a, b) <= distance;
+        if (prof != null) {
+            prof.add(QueryProfile.Stage.DISTANCE, 0, 0, t);
+        }
+        return in;
+    }
+
+    /*
+     * ids of the Users the submitter knows with at least strength, sorted so
+     * that positions stay put from one page to the next. beyond depth 1 the
+     * Users reached over paths of at least strength, as far as the traversal
+     * budget allows
+     */
+    private List<String> friends(QueryPlan plan) throws InvalidUserId {
+        long started = QueryProfile.start(plan.profile);
+        List<String> ids;
+        if (plan.depth > 1) {
+            KnowsTraversal t = KnowsDao.instance.traverse(plan.userId, plan.depth, plan.strength, plan.pathStrength, KnowsDao.MAX_NODES);
+            ids = t.getUserIds();
+            if (plan.profile != null) {
+                plan.profile.add(QueryProfile.Stage.KNOWS, t.getExpanded() + ids.size(), t.getEdges(), started);
+            }
+            List<String> expanded = new ArrayList<>();
+            for (KnowsTraversal.Reach r : t.getReached()) {
+                if (r.degree < plan.depth) {
+                    expanded.add(r.userId);
                 }
             }
+            plan.expanded = expanded;
+            if (t.isTruncated()) {
+                plan.reason = "traversal stopped after " + ids.size() + " users";
+            }
+        } else {
+            ids = KnowsDao.instance.getUserKnowsIds(plan.userId, plan.strength, OUT);
+            if (plan.profile != null) {
+                plan.profile.add(QueryProfile.Stage.KNOWS, 1 + ids.size(), ids.size(), started);
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /*
+     * the submitter's current Location, if any
+     */
+    private Location currentLocation(String userId, QueryProfile prof) throws InvalidUserId {
+        Locality userLocality = CheckinDao.instance.getCurrentLocality(userId);
+        if (userLocality == null) {
+            return null;
+        }
+        try {
+            return load(userLocality.getLocationId(), prof);
+        } catch (InvalidLocationId ex) {
+            return null;
+        }
+    }
+
+    /*
+     * false for Users deleted since they were indexed
+     */
+    private boolean knows(String userId, String otherId, Integer strength, QueryProfile prof) throws InvalidUserId {
+        if (userId.equals(otherId)) {
+            return false;
+        }
+        long t = QueryProfile.start(prof);
+        try {
+            return KnowsDao.instance.knowsWithStrength(userId, otherId, strength);
+        } catch (InvalidUserId ex) {
+            UserDao.instance.validOrException(userId);
+            return false;
+        } catch (InvalidModel ex) {
+            Logger.getLogger(QueryDao.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        } finally {
+            if (prof != null) {
+                prof.add(QueryProfile.Stage.KNOWS, 1, 1, t);
+            }
         }
-        return localities;
     }
 }
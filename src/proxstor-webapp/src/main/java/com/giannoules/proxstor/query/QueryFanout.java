@@ -0,0 +1,353 @@
+package com.giannoules.proxstor.query;
+
+import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.api.Locality;
+import com.giannoules.proxstor.exception.InvalidUserId;
+import com.giannoules.proxstor.exception.QueryIncomplete;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dedicated, bounded executor running the per-User lookups of QueryDao
+ * (friends, or the occupants or visitors of a Location) concurrently.
+ *
+ * A query is split into at most PARALLELISM tasks which pull friends off a
+ * shared cursor; the calling request thread runs one of them itself, so a
+ * query always makes progress even when the pool is saturated and its
+ * tasks are rejected. Every task collects into its own List and the calling
+ * thread merges them in friend order once they are done.
+ *
+ * Once DEADLINE milliseconds have passed the query stops handing out
+ * friends and cancels any task not yet started. The friends not looked up
+ * are reported as such, so a paged query can resume from them; a full
+ * evaluation fails with QueryIncomplete rather than return a partial result.
+ *
+ * Lookups run sequentially (exactly as before) when the graph is started
+ * with THREADS of 0, when there is only one friend, or when the caller has
+ * a unit of work open, since pool threads would not see its pending writes.
+ *
+ * @author Jim Giannoules
+ */
+public enum QueryFanout {
+    instance;
+
+    /**
+     * Configuration key giving the number of pool threads shared by all
+     * queries. 0 disables parallel fan-out.
+     */
+    public static final String THREADS = "proxstor.query.threads";
+
+    /**
+     * Configuration key giving the maximum number of tasks (including the
+     * calling thread) one query may run at once.
+     */
+    public static final String PARALLELISM = "proxstor.query.parallelism";
+
+    /**
+     * Configuration key giving the time limit of one query's fan-out in
+     * milliseconds. 0 means no limit.
+     */
+    public static final String DEADLINE = "proxstor.query.deadline";
+
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final long DEFAULT_DEADLINE = 5000;
+
+    /**
+     * Lookup of one friend's matching localities.
+     */
+    interface Lookup {
+
+        /**
+         * @param userId Object ID of the friend
+         * @param max maximum number of localities wanted
+         * @return the friend's matching localities, null or empty if none
+         */
+        Collection<Locality> lookup(String userId, int max) throws InvalidUserId;
+    }
+
+    private volatile ThreadPoolExecutor executor;
+    private volatile int parallelism = DEFAULT_PARALLELISM;
+    private volatile long deadline = DEFAULT_DEADLINE;
+
+    // stats emitted in toString()
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong parallel = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * Lookups done by one task, each tagged with the friend's position.
+     */
+    private static class Part {
+        final int index;
+        final Collection<Locality> localities;
+
+        Part(int index, Collection<Locality> localities) {
+            this.index = index;
+            this.localities = localities;
+        }
+    }
+
+    /**
+     * Size the pool from the graph configuration and start it.
+     *
+     * @param conf Configuration Map the graph was started with
+     */
+    public synchronized void start(Map<String, String> conf) {
+        stop();
+        int threads = DEFAULT_THREADS;
+        parallelism = DEFAULT_PARALLELISM;
+        deadline = DEFAULT_DEADLINE;
+        try {
+            if (conf.containsKey(THREADS)) {
+                threads = Integer.parseInt(conf.get(THREADS));
+            }
+            if (conf.containsKey(PARALLELISM)) {
+                parallelism = Math.max(1, Integer.parseInt(conf.get(PARALLELISM)));
+            }
+            if (conf.containsKey(DEADLINE)) {
+                deadline = Math.max(0, Long.parseLong(conf.get(DEADLINE)));
+            }
+        } catch (NumberFormatException ex) {
+            Logger.getLogger(QueryFanout.class.getName()).log(Level.WARNING, "using default query fan-out settings", ex);
+            threads = DEFAULT_THREADS;
+            parallelism = DEFAULT_PARALLELISM;
+            deadline = DEFAULT_DEADLINE;
+        }
+        queries.set(0);
+        parallel.set(0);
+        lookups.set(0);
+        rejected.set(0);
+        timedOut.set(0);
+        if (threads > 0) {
+            final AtomicInteger n = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(threads * parallelism),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "proxstor-query-" + n.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Stop the pool. Queries run sequentially until start() is called.
+     */
+    public synchronized void stop() {
+        ThreadPoolExecutor ex = executor;
+        if (ex == null) {
+            return;
+        }
+        executor = null;
+        ex.shutdownNow();
+    }
+
+    public boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * Run lookup for every friend and merge the results in friend order.
+     *
+     * @param friends ids of the Users to look up
+     * @param lookup per-friend lookup
+     * @param max maximum localities per friend
+     * @return merged localities
+     * @throws QueryIncomplete if any friend was not looked up before the
+     * deadline
+     */
+    Collection<Locality> fanout(List<String> friends, Lookup lookup, int max) throws QueryIncomplete {
+        List<Collection<Locality>> byFriend = lookupEach(friends, lookup, max);
+        Collection<Locality> localities = new ArrayList<>();
+        int missed = 0;
+        for (Collection<Locality> c : byFriend) {
+            if (c == null) {
+                missed++;
+            } else {
+                localities.addAll(c);
+            }
+        }
+        if (missed > 0) {
+            throw new QueryIncomplete(missed + " of " + friends.size() + " users not looked up before the deadline");
+        }
+        return localities;
+    }
+
+    /**
+     * Run lookup for every friend.
+     *
+     * @param friends ids of the Users to look up
+     * @param lookup per-friend lookup
+     * @param max maximum localities per friend
+     * @return each friend's localities in friend order: empty for a friend
+     * without any, null for a friend not looked up before the deadline
+     */
+    List<Collection<Locality>> lookupEach(List<String> friends, final Lookup lookup, final int max) {
+        queries.incrementAndGet();
+        ThreadPoolExecutor ex = executor;
+        if ((ex == null) || (friends.size() < 2) || ProxStorGraph.instance.inUnitOfWork()) {
+            return sequential(friends, lookup, max);
+        }
+        parallel.incrementAndGet();
+        final long end = (deadline > 0) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline) : Long.MAX_VALUE;
+        final List<String> work = friends;
+        final AtomicInteger cursor = new AtomicInteger();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        int tasks = Math.min(parallelism, friends.size());
+        List<Future<List<Part>>> futures = new ArrayList<>(tasks - 1);
+        for (int i = 1; i < tasks; i++) {
+            try {
+                futures.add(ex.submit(new Callable<List<Part>>() {
+                    @Override
+                    public List<Part> call() {
+                        try {
+                            return drain(work, lookup, max, cursor, cancelled, end);
+                        } finally {
+                            ProxStorGraph.instance.release();
+                        }
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                break;      // pool busy, the calling thread does the rest
+            }
+        }
+        List<List<Part>> done = new ArrayList<>(tasks);
+        done.add(drain(work, lookup, max, cursor, cancelled, end));
+        boolean late = false;
+        for (Future<List<Part>> f : futures) {
+            try {
+                if (late) {
+                    f.cancel(false);
+                    if (!f.isDone() || f.isCancelled()) {
+                        continue;
+                    }
+                    done.add(f.get());
+                } else if (end == Long.MAX_VALUE) {
+                    done.add(f.get());
+                } else {
+                    done.add(f.get(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS));
+                }
+            } catch (TimeoutException e) {
+                late = true;
+                cancelled.set(true);
+                f.cancel(false);
+            } catch (InterruptedException e) {
+                late = true;
+                cancelled.set(true);
+                f.cancel(false);
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Logger.getLogger(QueryFanout.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+        if (late || cancelled.get()) {
+            timedOut.incrementAndGet();
+        }
+        return merge(friends.size(), done);
+    }
+
+    /**
+     * @return maximum number of friends one query looks up at once
+     */
+    int getParallelism() {
+        return (executor == null) ? 1 : parallelism;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Query fan-out: ");
+        ThreadPoolExecutor ex = executor;
+        if (ex == null) {
+            sb.append("sequential\n");
+            return sb.toString();
+        }
+        sb.append(ex.getMaximumPoolSize()).append(" threads, parallelism ").append(parallelism);
+        sb.append(", deadline ").append(deadline).append("ms\n");
+        sb.append("\tqueries: ").append(queries.get());
+        sb.append(", parallel: ").append(parallel.get());
+        sb.append(", lookups: ").append(lookups.get());
+        sb.append(", rejected tasks: ").append(rejected.get());
+        sb.append(", past deadline: ").append(timedOut.get()).append("\n");
+        return sb.toString();
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    private List<Collection<Locality>> sequential(List<String> friends, Lookup lookup, int max) {
+        List<Collection<Locality>> byFriend = new ArrayList<>(friends.size());
+        for (String id : friends) {
+            byFriend.add(lookupOne(id, lookup, max));
+        }
+        return byFriend;
+    }
+
+    /*
+     * one task: look up friends off the shared cursor until none are left,
+     * the query is cancelled or its deadline passes
+     */
+    private List<Part> drain(List<String> friends, Lookup lookup, int max, AtomicInteger cursor, AtomicBoolean cancelled, long end) {
+        List<Part> parts = new ArrayList<>();
+        int i;
+        while (!cancelled.get() && ((i = cursor.getAndIncrement()) < friends.size())) {
+            if (System.nanoTime() - end > 0) {
+                cancelled.set(true);
+                break;
+            }
+            parts.add(new Part(i, lookupOne(friends.get(i), lookup, max)));
+        }
+        return parts;
+    }
+
+    /*
+     * never null; a friend deleted since the knows edges were read has none
+     */
+    private Collection<Locality> lookupOne(String friend, Lookup lookup, int max) {
+        lookups.incrementAndGet();
+        try {
+            Collection<Locality> found = lookup.lookup(friend, max);
+            if (found != null) {
+                return found;
+            }
+        } catch (InvalidUserId ex) {
+        }
+        return Collections.emptyList();
+    }
+
+    /*
+     * put the tasks' parts back into friend order
+     */
+    private static List<Collection<Locality>> merge(int size, List<List<Part>> done) {
+        List<Collection<Locality>> byFriend = new ArrayList<>(Collections.<Collection<Locality>>nCopies(size, null));
+        for (List<Part> parts : done) {
+            for (Part p : parts) {
+                byFriend.set(p.index, p.localities);
+            }
+        }
+        return byFriend;
+    }
+}
@@ -0,0 +1,29 @@
+package com.giannoules.proxstor.query;
+
+import com.giannoules.proxstor.api.Locality;
+import java.util.List;
+
+/**
+ * One page of a Query's result, and the position of the next page (null if
+ * this page is the last).
+ *
+ * @author Jim Giannoules
+ */
+public class QueryPage {
+
+    private final List<Locality> localities;
+    private final String next;
+
+    QueryPage(List<Locality> localities, String next) {
+        this.localities = localities;
+        this.next = next;
+    }
+
+    public List<Locality> getLocalities() {
+        return localities;
+    }
+
+    public String getNext() {
+        return next;
+    }
+}
@@ -0,0 +1,89 @@
+package com.giannoules.proxstor.query;
+
+import com.giannoules.proxstor.knows.KnowsTraversal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+
+/**
+ * How QueryDao will evaluate one Query: the query type, derived from which
+ * Query fields are set, and for the friend queries restricted to a Location
+ * (types 4 and 5) whether friends or the Location are expanded first.
+ *
+ * FRIENDS_FIRST expands the submitter's friends and looks up each friend's
+ * localities, keeping those at the Location. LOCATION_FIRST starts from the
+ * Users at the Location (current occupants for type 4, anyone with history
+ * there for type 5) and keeps those the submitter knows with the required
+ * strength. FRIENDS_VIEW scans the submitter's FriendsView in memory instead
+ * of expanding friends, for the queries over current localities (types 2
+ * and 4) whenever the view is enabled and location first is not cheaper.
+ * A query with a depth over 1 reaches friends of friends by traversing the
+ * knows relationships, and is always evaluated friends first.
+ * The estimates the choice was made on are kept for explain.
+ *
+ * @author Jim Giannoules
+ */
+class QueryPlan {
+
+    enum Strategy {
+        SELF, FRIENDS_FIRST, LOCATION_FIRST, FRIENDS_VIEW
+    }
+
+    final int type;
+    final String userId;
+    final String locId;
+    final Integer strength;
+    final Double distance;
+    final Date dateStart;
+    final Date dateEnd;
+    int depth = 1;
+    KnowsTraversal.PathStrength pathStrength = KnowsTraversal.PathStrength.MINIMUM;
+
+    Strategy strategy = Strategy.SELF;
+    long friends = -1;          // friends counted, -1 if not estimated
+    boolean friendsCapped;      // counting stopped early, friends is a lower bound
+    long candidates = -1;       // occupants or visitors of locId, -1 if not estimated
+    long friendCost;
+    long locationCost;
+    String reason;
+    // Users other than userId whose knows relationships were traversed
+    Collection<String> expanded = Collections.emptyList();
+    QueryProfile profile;       // null unless the query is profiled
+
+    QueryPlan(int type, String userId, String locId, Integer strength, Double distance, Date dateStart, Date dateEnd) {
+        this.type = type;
+        this.userId = userId;
+        this.locId = locId;
+        this.strength = strength;
+        this.distance = distance;
+        this.dateStart = dateStart;
+        this.dateEnd = dateEnd;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Query plan: type ").append(type).append(", ");
+        sb.append(strategy.toString().toLowerCase().replace('_', ' ')).append("\n");
+        if (depth > 1) {
+            sb.append("\tdepth: ").append(depth).append(", path strength: ");
+            sb.append(pathStrength.toString().toLowerCase()).append("\n");
+        }
+        if (friends >= 0) {
+            sb.append("\tfriends (strength >= ").append(strength).append("): ");
+            sb.append(friendsCapped ? ">= " : "").append(friends);
+            if (candidates >= 0) {
+                sb.append(", ").append((type == 4) ? "occupants" : "visitors").append(": ").append(candidates);
+            }
+            sb.append("\n");
+        }
+        if ((friendCost > 0) || (locationCost > 0)) {
+            sb.append("\tcost friends first: ").append(friendsCapped ? ">= " : "").append(friendCost);
+            sb.append(", location first: ").append(locationCost).append("\n");
+        }
+        if (reason != null) {
+            sb.append("\t").append(reason).append("\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package com.giannoules.proxstor.query;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-stage counters of one profiled evaluation of a query page, for
+ * QueryDao.profile(). For every Stage it counts the calls made, the
+ * vertices and edges touched and the time spent in them; besides those,
+ * the wall time of the whole page and the number of Localities returned.
+ *
+ * Lookups run on QueryFanout pool threads add into the same profile, so a
+ * stage's time is the sum over all threads and may exceed the wall time.
+ * The LOCATION and DISTANCE work done inside a lookup is counted in those
+ * stages and in LOOKUP.
+ *
+ * A QueryPlan only carries a QueryProfile when the query is profiled;
+ * otherwise every stage is skipped by a null check and nothing is
+ * allocated or timed.
+ *
+ * @author Jim Giannoules
+ */
+class QueryProfile {
+
+    enum Stage {
+        PLAN("planning"),
+        KNOWS("knows expansion"),
+        VIEW("friends view scan"),
+        LOOKUP("locality lookups"),
+        LOCATION("location loads"),
+        DISTANCE("distance filter");
+
+        final String description;
+
+        Stage(String description) {
+            this.description = description;
+        }
+    }
+
+    private static final int STAGES = Stage.values().length;
+
+    private final AtomicLongArray calls = new AtomicLongArray(STAGES);
+    private final AtomicLongArray vertices = new AtomicLongArray(STAGES);
+    private final AtomicLongArray edges = new AtomicLongArray(STAGES);
+    private final AtomicLongArray nanos = new AtomicLongArray(STAGES);
+
+    QueryPlan plan;
+    long wall;
+    int results;
+    boolean more;
+
+    /**
+     * @param profile QueryProfile, may be null
+     * @return start time for add(), 0 if profile is null
+     */
+    static long start(QueryProfile profile) {
+        return (profile == null) ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Count one call of stage, begun at started.
+     *
+     * @param stage Stage
+     * @param v vertices touched
+     * @param e edges touched
+     * @param started value of start() when the call began
+     */
+    void add(Stage stage, long v, long e, long started) {
+        int i = stage.ordinal();
+        calls.incrementAndGet(i);
+        vertices.addAndGet(i, v);
+        edges.addAndGet(i, e);
+        nanos.addAndGet(i, System.nanoTime() - started);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (plan != null) {
+            sb.append(plan.toString());
+        }
+        sb.append("Query profile: ").append(results).append(" localities");
+        sb.append(more ? " (more follow)" : "").append(", ").append(millis(wall)).append("ms\n");
+        for (Stage s : Stage.values()) {
+            int i = s.ordinal();
+            if (calls.get(i) == 0) {
+                continue;
+            }
+            sb.append("\t").append(s.description).append(": ").append(calls.get(i)).append(" calls");
+            sb.append(", vertices: ").append(vertices.get(i));
+            sb.append(", edges: ").append(edges.get(i));
+            sb.append(", ").append(millis(nanos.get(i))).append("ms\n");
+        }
+        return sb.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", (double) nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -1,19 +1,23 @@
 package com.giannoules.proxstor.query;
 
 import com.giannoules.proxstor.ProxStorDebug;
+import com.giannoules.proxstor.ProxStorPage;
+import com.giannoules.proxstor.api.Colocation;
 import com.giannoules.proxstor.api.Locality;
 import com.giannoules.proxstor.api.Query;
 import com.giannoules.proxstor.api.User;
+import com.giannoules.proxstor.checkin.CheckinHistory;
 import com.giannoules.proxstor.exception.InvalidLocationId;
+import com.giannoules.proxstor.exception.InvalidParameter;
 import com.giannoules.proxstor.exception.InvalidUserId;
 import com.giannoules.proxstor.user.UserDao;
-import java.util.Collection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -21,29 +25,133 @@ import javax.ws.rs.core.Response;
 public class QueryResource {
     
     /*
-     * returns all localities matching criteria in partially expressed User JSON
+     * returns localities matching criteria in partially expressed User JSON,
+     * one page at a time (see ProxStorPage)
      */
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getMatchingLocalities(Query q) {
+    public Response getMatchingLocalities(Query q, @QueryParam(ProxStorPage.LIMIT) Integer limit,
+            @QueryParam(ProxStorPage.CURSOR) String cursor) {
         long start = ProxStorDebug.startTimer();
-        Collection<Locality> localities;  
+        QueryPage page;
+        ProxStorPage p;
         try {
-            localities = QueryDao.instance.getMatching(q);
+            p = ProxStorPage.of("query|" + q, limit, cursor);
+            page = QueryDao.instance.getMatching(q, p.getPosition(), p.getLimit());
         } catch (InvalidUserId | InvalidLocationId ex) {
             Logger.getLogger(QueryResource.class.getName()).log(Level.SEVERE, null, ex);
             ProxStorDebug.endTimer("getMatchingLocalities404", start);
             return Response.status(404).build();
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(QueryResource.class.getName()).log(Level.SEVERE, null, ex);
+            ProxStorDebug.endTimer("getMatchingLocalities400", start);
+            return Response.status(400).build();
         }
-        if (localities == null || localities.isEmpty()) {
+        if ((page == null) || (page.getLocalities().isEmpty() && (page.getNext() == null))) {
             ProxStorDebug.endTimer("getMatchingLocalities204", start);
             return Response.noContent().build();
         }
-        /*
-         * ok() will not take Collection directly, so convert to array
-         */
         ProxStorDebug.endTimer("getMatchingLocalities", start);
-        return Response.ok((Locality[]) localities.toArray(new Locality[localities.size()])).build();
+        return p.ok(page.getLocalities(), page.getNext(), new Locality[0]);
+    }
+    
+    /*
+     * returns the plan getMatchingLocalities would evaluate the query with
+     */
+    @POST
+    @Path("explain")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response explain(Query q) {
+        QueryPlan plan;
+        try {
+            plan = QueryDao.instance.explain(q);
+        } catch (InvalidUserId | InvalidLocationId ex) {
+            Logger.getLogger(QueryResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(404).build();
+        }
+        if (plan == null) {
+            return Response.status(400).build();
+        }
+        return Response.ok(plan.toString()).build();
+    }
+
+    /*
+     * evaluates one page of the query as getMatchingLocalities would, without
+     * the query cache, and returns its plan with the calls, vertices, edges
+     * and time of each stage and the number of localities found. takes the
+     * same limit and cursor, so any page of a query can be profiled
+     */
+    @POST
+    @Path("profile")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response profile(Query q, @QueryParam(ProxStorPage.LIMIT) Integer limit,
+            @QueryParam(ProxStorPage.CURSOR) String cursor) {
+        QueryProfile profile;
+        try {
+            ProxStorPage p = ProxStorPage.of("query|" + q, limit, cursor);
+            profile = QueryDao.instance.profile(q, p.getPosition(), p.getLimit());
+        } catch (InvalidUserId | InvalidLocationId ex) {
+            Logger.getLogger(QueryResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(404).build();
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(QueryResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
+        }
+        if (profile == null) {
+            return Response.status(400).build();
+        }
+        return Response.ok(profile.toString()).build();
+    }
+
+    /*
+     * returns the co-locations of the submitter in the Query's date range
+     * (see QueryDao.getColocated), one page at a time (see ProxStorPage)
+     *
+     * returns 200 (Ok) with array of Colocations if matches found
+     * returns 204 (No Content) if there are none
+     * returns 400 (Bad Request) if the Query, limit or cursor is invalid
+     * returns 404 (Not Found) if userId or locationId is invalid
+     * returns 503 (Service Unavailable) if the checkin history is not loaded
+     */
+    @POST
+    @Path("colocated")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getColocated(Query q, @QueryParam(ProxStorPage.LIMIT) Integer limit,
+            @QueryParam(ProxStorPage.CURSOR) String cursor) {
+        long start = ProxStorDebug.startTimer();
+        if (!CheckinHistory.instance.isWarm()) {
+            return Response.status(503).build();
+        }
+        try {
+            ProxStorPage p = ProxStorPage.of("colocated|" + q, limit, cursor);
+            ColocationPage page = QueryDao.instance.getColocated(q, p.getPosition(), p.getLimit());
+            if (page == null) {
+                ProxStorDebug.endTimer("getColocated400", start);
+                return Response.status(400).build();
+            }
+            if (page.getColocations().isEmpty() && (page.getNext() == null)) {
+                ProxStorDebug.endTimer("getColocated204", start);
+                return Response.noContent().build();
+            }
+            ProxStorDebug.endTimer("getColocated", start);
+            return p.ok(page.getColocations(), page.getNext(), new Colocation[0]);
+        } catch (InvalidUserId | InvalidLocationId ex) {
+            Logger.getLogger(QueryResource.class.getName()).log(Level.SEVERE, null, ex);
+            ProxStorDebug.endTimer("getColocated404", start);
+            return Response.status(404).build();
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(QueryResource.class.getName()).log(Level.SEVERE, null, ex);
+            ProxStorDebug.endTimer("getColocated400", start);
+            return Response.status(400).build();
+        }
+    }
+
+    @Path("standing")
+    public StandingQueriesResource getStandingQueriesResource() {
+        return new StandingQueriesResource();
     }
 }
@@ -0,0 +1,546 @@
+package com.giannoules.proxstor.query;
+
+import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.api.Locality;
+import com.giannoules.proxstor.api.Notification;
+import com.giannoules.proxstor.api.Query;
+import com.giannoules.proxstor.api.QueryDelta;
+import com.giannoules.proxstor.api.StandingQuery;
+import com.giannoules.proxstor.checkin.CheckinDao;
+import com.giannoules.proxstor.exception.InvalidLocationId;
+import com.giannoules.proxstor.exception.InvalidModel;
+import com.giannoules.proxstor.exception.InvalidParameter;
+import com.giannoules.proxstor.exception.InvalidUserId;
+import com.giannoules.proxstor.exception.QueryIncomplete;
+import com.giannoules.proxstor.knows.KnowsDao;
+import com.giannoules.proxstor.location.LocationDao;
+import com.giannoules.proxstor.nearby.NearbyDao;
+import com.giannoules.proxstor.notification.LocalityEventBus;
+import static com.tinkerpop.blueprints.Direction.OUT;
+import com.tinkerpop.blueprints.Edge;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of standing Queries, kept up to date incrementally as Users check
+ * in and out.
+ *
+ * A registered Query is evaluated once in full by QueryDao. From then on each
+ * committed locality change (delivered by LocalityEventBus) re-evaluates only
+ * the standing Queries it can affect, found through three indexes:
+ * <ul>
+ * <li>by watched User - the subscriber's friends (strength queries) or the
+ * subscriber (own locality queries, and queries with a distance, whose
+ * matches all depend on where the subscriber is)
+ * <li>by watched Location - queries constrained to a Location
+ * <li>by match - queries a User currently matches, so a User leaving is
+ * noticed wherever they go
+ * </ul>
+ * A change by a friend is re-evaluated for that friend alone; a move by the
+ * subscriber of a distance query re-runs the query in full. The resulting
+ * QueryDelta are queued (at most MAX_DELTAS, oldest dropped) for the
+ * subscriber to collect.
+ *
+ * The friends watched by a strength query follow the subscriber's knows
+ * relationships: KnowsDao reports each added, changed or removed one through
+ * knowsChanged(), which re-watches that friend and re-evaluates them.
+ *
+ * A full re-run that misses the QueryFanout deadline keeps the current
+ * matches and is retried in full on the query's next event.
+ *
+ * When Notifications have been dropped every standing query is re-run in
+ * full. That runs on its own thread, not the LocalityEventBus dispatcher, and
+ * losses reported while a recovery is pending or running are coalesced into
+ * one further pass.
+ *
+ * @author Jim Giannoules
+ */
+public enum StandingQueries implements LocalityEventBus.Listener {
+    instance;
+
+    /**
+     * Most QueryDelta queued per standing query; older ones are dropped.
+     */
+    public static final int MAX_DELTAS = 256;
+
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentMap<String, Subscription> queries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<Subscription>> byUser = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<Subscription>> byLocation = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<Subscription>> byMatch = new ConcurrentHashMap<>();
+    // set by lost(), cleared by the recovery pass which honours it
+    private final AtomicBoolean recoveryPending = new AtomicBoolean();
+    private final ExecutorService recovery = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "proxstor-standing-recovery");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // stats emitted in toString()
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong reevaluations = new AtomicLong();
+    private final AtomicLong recoveries = new AtomicLong();
+
+    /**
+     * One registered standing Query with its current matches and pending
+     * deltas.
+     */
+    private static class Subscription {
+        final String id;
+        final Query q;
+        final List<String> watchedUsers = new ArrayList<>();
+        String watchedLocation;
+        // userId to its matching Locality
+        final Map<String, Locality> matches = new HashMap<>();
+        final Deque<QueryDelta> deltas = new ArrayDeque<>();
+        boolean closed;
+        // last full re-run did not finish; matches may be out of date
+        boolean incomplete;
+
+        Subscription(String id, Query q) {
+            this.id = id;
+            this.q = q;
+        }
+
+        boolean isStrengthQuery() {
+            return q.getStrength() != null;
+        }
+
+        /*
+         * a move by the subscriber changes every match
+         */
+        boolean dependsOnSubscriber() {
+            return !isStrengthQuery() || (q.getDistance() != null);
+        }
+
+        void queue(QueryDelta d) {
+            if (deltas.size() == MAX_DELTAS) {
+                deltas.removeFirst();
+            }
+            deltas.addLast(d);
+        }
+    }
+
+    /**
+     * Register q as a standing query and evaluate it.
+     *
+     * @param q Query over current localities (no dateStart or dateEnd)
+     * @return StandingQuery carrying the assigned standingQueryId
+     * @throws InvalidUserId if q's userId is invalid
+     * @throws InvalidLocationId if q's locationId is invalid
+     * @throws InvalidParameter if q cannot stand
+     * @throws QueryIncomplete if the first evaluation did not finish; q is
+     * not registered
+     */
+    public StandingQuery register(Query q) throws InvalidUserId, InvalidLocationId, InvalidParameter, QueryIncomplete {
+        if ((q.getDateStart() != null) || (q.getDateEnd() != null)) {
+            throw new InvalidParameter();
+        }
+        if ((q.getStrength() == null) && (q.getLocationId() != null)) {
+            throw new InvalidParameter();
+        }
+        if ((q.getStrength() != null) && ((q.getStrength() < 0) || (q.getStrength() > 100))) {
+            throw new InvalidParameter();
+        }
+        if ((q.getDepth() != null) && (q.getDepth() != 1)) {
+            // only direct knows relationships are watched
+            throw new InvalidParameter();
+        }
+        LocalityEventBus.instance.addListener(this);
+        Subscription s = new Subscription(Long.toString(nextId.incrementAndGet()), q);
+        if (!s.isStrengthQuery()) {
+            s.watchedUsers.add(q.getUserId());
+        } else {
+            if (q.getLocationId() != null) {
+                s.watchedLocation = q.getLocationId();
+            } else {
+                s.watchedUsers.addAll(KnowsDao.instance.getUserKnowsIds(q.getUserId(), q.getStrength(), OUT));
+            }
+            if (q.getDistance() != null) {
+                s.watchedUsers.add(q.getUserId());
+            }
+        }
+        synchronized (s) {
+            // index first, so no change committed during evaluation is missed
+            for (String userId : s.watchedUsers) {
+                add(byUser, userId, s);
+            }
+            if (s.watchedLocation != null) {
+                add(byLocation, s.watchedLocation, s);
+            }
+            queries.put(s.id, s);
+            try {
+                reevaluate(s);
+            } catch (QueryIncomplete ex) {
+                unregister(s.id);
+                throw ex;
+            }
+            s.deltas.clear();
+        }
+        return new StandingQuery(s.id, q);
+    }
+
+    /**
+     * Remove a standing query.
+     *
+     * @param id standingQueryId
+     * @return true if id was registered
+     */
+    public boolean unregister(String id) {
+        Subscription s = queries.remove(id);
+        if (s == null) {
+            return false;
+        }
+        synchronized (s) {
+            s.closed = true;
+            for (String userId : s.watchedUsers) {
+                remove(byUser, userId, s);
+            }
+            if (s.watchedLocation != null) {
+                remove(byLocation, s.watchedLocation, s);
+            }
+            for (String userId : s.matches.keySet()) {
+                remove(byMatch, userId, s);
+            }
+            s.matches.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the current matches of a standing query.
+     *
+     * @param id standingQueryId
+     * @return matching Localities, or null if id is not registered
+     */
+    public Collection<Locality> getMatches(String id) {
+        Subscription s = queries.get(id);
+        if (s == null) {
+            return null;
+        }
+        synchronized (s) {
+            return new ArrayList<>(s.matches.values());
+        }
+    }
+
+    /**
+     * Returns and clears the deltas queued for a standing query.
+     *
+     * @param id standingQueryId
+     * @return deltas in the order they occurred, or null if id is not
+     * registered
+     */
+    public List<QueryDelta> drainDeltas(String id) {
+        Subscription s = queries.get(id);
+        if (s == null) {
+            return null;
+        }
+        synchronized (s) {
+            List<QueryDelta> drained = new ArrayList<>(s.deltas);
+            s.deltas.clear();
+            return drained;
+        }
+    }
+
+    /**
+     * Drop every standing query. Called when the graph is shut down, since
+     * their ids refer to it.
+     */
+    public void clear() {
+        for (String id : new ArrayList<>(queries.keySet())) {
+            unregister(id);
+        }
+        recoveryPending.set(false);
+        events.set(0);
+        evaluations.set(0);
+        reevaluations.set(0);
+        recoveries.set(0);
+    }
+
+    /**
+     * The knows relationship from ownerId to friendId was added or changed
+     * to strength, or removed if strength is null. The strength queries of
+     * ownerId start or stop watching friendId accordingly, and friendId is
+     * re-evaluated against them.
+     *
+     * @param ownerId Object ID of the knowing User
+     * @param friendId Object ID of the known User
+     * @param strength new strength, null if removed
+     */
+    public void knowsChanged(String ownerId, String friendId, Integer strength) {
+        if (queries.isEmpty()) {
+            return;
+        }
+        Locality now = null;
+        boolean fetched = false;
+        for (Subscription s : queries.values()) {
+            if (!s.isStrengthQuery() || !ownerId.equals(s.q.getUserId()) || ownerId.equals(friendId)) {
+                continue;
+            }
+            if (!fetched) {
+                try {
+                    now = CheckinDao.instance.getCurrentLocality(friendId);
+                } catch (InvalidUserId ex) {
+                    now = null;     // friend deleted
+                }
+                fetched = true;
+            }
+            synchronized (s) {
+                if (s.closed) {
+                    continue;
+                }
+                if (s.watchedLocation == null) {
+                    boolean watch = (strength != null) && (strength >= s.q.getStrength());
+                    if (watch && !s.watchedUsers.contains(friendId)) {
+                        s.watchedUsers.add(friendId);
+                        add(byUser, friendId, s);
+                    } else if (!watch && s.watchedUsers.remove(friendId)) {
+                        remove(byUser, friendId, s);
+                    }
+                }
+                if (s.incomplete) {
+                    reevaluateOrKeep(s);
+                } else {
+                    evaluate(s, friendId, now);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isListening() {
+        return !queries.isEmpty();
+    }
+
+    @Override
+    public void changed(Notification n) {
+        if (queries.isEmpty()) {
+            return;
+        }
+        events.incrementAndGet();
+        String userId = n.getUserId();
+        Locality now = Notification.ARRIVAL.equals(n.getType()) ? n.getLocality() : null;
+        Set<Subscription> affected = new LinkedHashSet<>();
+        collect(affected, byUser, userId);
+        collect(affected, byMatch, userId);
+        if (now != null) {
+            collect(affected, byLocation, now.getLocationId());
+        }
+        for (Subscription s : affected) {
+            synchronized (s) {
+                if (s.closed) {
+                    continue;
+                }
+                if (s.incomplete || (userId.equals(s.q.getUserId()) && s.dependsOnSubscriber())) {
+                    reevaluateOrKeep(s);
+                } else {
+                    evaluate(s, userId, now);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void lost() {
+        if (recoveryPending.getAndSet(true)) {
+            return;     // the pending pass will cover this loss too
+        }
+        recovery.execute(new Runnable() {
+            @Override
+            public void run() {
+                recover();
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Standing queries: ").append(queries.size()).append("\n");
+        sb.append("\tevents: ").append(events.get());
+        sb.append(", incremental evaluations: ").append(evaluations.get());
+        sb.append(", full evaluations: ").append(reevaluations.get());
+        sb.append(", recoveries: ").append(recoveries.get()).append("\n");
+        return sb.toString();
+    }
+
+    // ------------> PRIVATE METHODS BELOW <--------------
+
+    /*
+     * re-run every standing query after Notifications were dropped
+     */
+    private void recover() {
+        if (!recoveryPending.getAndSet(false)) {
+            return;
+        }
+        recoveries.incrementAndGet();
+        try {
+            for (Subscription s : queries.values()) {
+                synchronized (s) {
+                    if (!s.closed) {
+                        reevaluateOrKeep(s);
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            Logger.getLogger(StandingQueries.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            ProxStorGraph.instance.release();
+        }
+    }
+
+    /*
+     * re-evaluate s for userId alone, now at Locality now (null if checked out)
+     */
+    private void evaluate(Subscription s, String userId, Locality now) {
+        evaluations.incrementAndGet();
+        update(s, userId, matches(s, userId, now) ? now : null);
+    }
+
+    /*
+     * reevaluate(), keeping the current matches if it does not finish and
+     * flagging s to be re-run on its next event
+     */
+    private void reevaluateOrKeep(Subscription s) {
+        try {
+            reevaluate(s);
+            s.incomplete = false;
+        } catch (QueryIncomplete ex) {
+            s.incomplete = true;
+            Logger.getLogger(StandingQueries.class.getName()).log(Level.WARNING, "standing query " + s.id + " not re-evaluated", ex);
+        }
+    }
+
+    /*
+     * re-run s in full and diff against its current matches; an incomplete
+     * run is not diffed, as the Users it missed would read as removed
+     */
+    private void reevaluate(Subscription s) throws QueryIncomplete {
+        reevaluations.incrementAndGet();
+        Map<String, Locality> fresh = new HashMap<>();
+        try {
+            Collection<Locality> found = QueryDao.instance.getMatching(s.q);
+            if (found != null) {
+                for (Locality l : found) {
+                    fresh.put(l.getUserId(), l);
+                }
+            }
+        } catch (InvalidUserId | InvalidLocationId ex) {
+            // subscriber or location deleted: nothing matches any more
+            Logger.getLogger(StandingQueries.class.getName()).log(Level.FINE, null, ex);
+        }
+        for (String userId : new ArrayList<>(s.matches.keySet())) {
+            if (!fresh.containsKey(userId)) {
+                update(s, userId, null);
+            }
+        }
+        for (Map.Entry<String, Locality> e : fresh.entrySet()) {
+            update(s, e.getKey(), e.getValue());
+        }
+    }
+
+    /*
+     * record that userId now matches s at l (null if it no longer matches),
+     * queueing the delta if that is a change
+     */
+    private void update(Subscription s, String userId, Locality l) {
+        Locality old = s.matches.get(userId);
+        if (l == null) {
+            if (old != null) {
+                s.matches.remove(userId);
+                remove(byMatch, userId, s);
+                s.queue(new QueryDelta(QueryDelta.REMOVED, old));
+            }
+            return;
+        }
+        if (old == null) {
+            s.matches.put(userId, l);
+            add(byMatch, userId, s);
+            s.queue(new QueryDelta(QueryDelta.ADDED, l));
+        } else if (!old.getLocalityId().equals(l.getLocalityId())) {
+            s.matches.put(userId, l);
+            s.queue(new QueryDelta(QueryDelta.MOVED, l));
+        }
+    }
+
+    /*
+     * does userId at Locality l match s, as QueryDao would decide
+     */
+    private boolean matches(Subscription s, String userId, Locality l) {
+        if (l == null) {
+            return false;
+        }
+        Query q = s.q;
+        if (!s.isStrengthQuery()) {
+            return userId.equals(q.getUserId());
+        }
+        if ((q.getLocationId() != null) && !q.getLocationId().equals(l.getLocationId())) {
+            return false;
+        }
+        try {
+            Edge e = KnowsDao.instance.getKnows(q.getUserId(), userId);
+            if ((e == null) || ((Integer) e.getProperty("strength") < q.getStrength())) {
+                return false;
+            }
+            if (q.getDistance() != null) {
+                Locality mine = CheckinDao.instance.getCurrentLocality(q.getUserId());
+                if ((mine != null) && (NearbyDao.instance.distanceBetweenLocations(
+                        LocationDao.instance.get(mine.getLocationId()),
+                        LocationDao.instance.get(l.getLocationId())) > q.getDistance())) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InvalidUserId | InvalidLocationId | InvalidModel ex) {
+            Logger.getLogger(StandingQueries.class.getName()).log(Level.FINE, null, ex);
+            return false;
+        }
+    }
+
+    private static void collect(Set<Subscription> into, ConcurrentMap<String, Set<Subscription>> index, String key) {
+        Set<Subscription> subs = index.get(key);
+        if (subs != null) {
+            into.addAll(subs);
+        }
+    }
+
+    private static void add(ConcurrentMap<String, Set<Subscription>> index, String key, Subscription s) {
+        Set<Subscription> subs = index.get(key);
+        if (subs == null) {
+            Set<Subscription> created = Collections.newSetFromMap(new ConcurrentHashMap<Subscription, Boolean>());
+            subs = index.putIfAbsent(key, created);
+            if (subs == null) {
+                subs = created;
+            }
+        }
+        subs.add(s);
+    }
+
+    private static void remove(ConcurrentMap<String, Set<Subscription>> index, String key, Subscription s) {
+        Set<Subscription> subs = index.get(key);
+        if (subs != null) {
+            subs.remove(s);
+        }
+    }
+}
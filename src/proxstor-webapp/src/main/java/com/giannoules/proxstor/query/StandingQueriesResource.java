@@ -0,0 +1,63 @@
+package com.giannoules.proxstor.query;
+
+import com.giannoules.proxstor.api.Query;
+import com.giannoules.proxstor.api.StandingQuery;
+import com.giannoules.proxstor.exception.InvalidLocationId;
+import com.giannoules.proxstor.exception.InvalidParameter;
+import com.giannoules.proxstor.exception.InvalidUserId;
+import com.giannoules.proxstor.exception.QueryIncomplete;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/*
+ * standing query registration: /query/standing
+ */
+public class StandingQueriesResource {
+
+    /*
+     * register a Query as a standing query
+     *
+     * success - return 201 (Created) and JSON representation StandingQuery
+     * failure - return 400 (Bad Request) if the Query has a date range or is
+     *           otherwise not a current locality query
+     * failure - return 404 (Not Found) if the userId or locationId is invalid
+     * failure - return 503 (Service Unavailable) if the first evaluation did
+     *           not finish in time
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response postStandingQuery(Query q) {
+        try {
+            StandingQuery sq = StandingQueries.instance.register(q);
+            URI createdUri = new URI("query/standing/" + sq.getStandingQueryId());
+            return Response.created(createdUri).entity(sq).build();
+        } catch (InvalidUserId | InvalidLocationId ex) {
+            Logger.getLogger(StandingQueriesResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(404).build();
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(StandingQueriesResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
+        } catch (QueryIncomplete ex) {
+            Logger.getLogger(StandingQueriesResource.class.getName()).log(Level.WARNING, null, ex);
+            return Response.status(503).build();
+        } catch (URISyntaxException ex) {
+            Logger.getLogger(StandingQueriesResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.serverError().build();
+        }
+    }
+
+    @Path("{standingid}")
+    public StandingQueryResource getStandingQueryResource(@PathParam("standingid") String id) {
+        return new StandingQueryResource(id);
+    }
+}
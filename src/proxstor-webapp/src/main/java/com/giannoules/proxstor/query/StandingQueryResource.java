@@ -0,0 +1,79 @@
+package com.giannoules.proxstor.query;
+
+import com.giannoules.proxstor.api.Locality;
+import com.giannoules.proxstor.api.QueryDelta;
+import java.util.Collection;
+import java.util.List;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/*
+ * a single standing query: /query/standing/{standingid}
+ */
+public class StandingQueryResource {
+
+    private final String id;
+
+    public StandingQueryResource(String id) {
+        this.id = id;
+    }
+
+    /*
+     * return the current matches of the standing query
+     *
+     * success - return 200 (Ok) and JSON array of Locality
+     * success - return 204 (No Content) if nothing matches
+     * failure - return 404 (Not Found) if the standing query does not exist
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getMatches() {
+        Collection<Locality> localities = StandingQueries.instance.getMatches(id);
+        if (localities == null) {
+            return Response.status(404).build();
+        }
+        if (localities.isEmpty()) {
+            return Response.noContent().build();
+        }
+        return Response.ok((Locality[]) localities.toArray(new Locality[localities.size()])).build();
+    }
+
+    /*
+     * return, and forget, the changes to the matches since the last call
+     *
+     * success - return 200 (Ok) and JSON array of QueryDelta, oldest first
+     * success - return 204 (No Content) if nothing has changed
+     * failure - return 404 (Not Found) if the standing query does not exist
+     */
+    @GET
+    @Path("deltas")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getDeltas() {
+        List<QueryDelta> deltas = StandingQueries.instance.drainDeltas(id);
+        if (deltas == null) {
+            return Response.status(404).build();
+        }
+        if (deltas.isEmpty()) {
+            return Response.noContent().build();
+        }
+        return Response.ok((QueryDelta[]) deltas.toArray(new QueryDelta[deltas.size()])).build();
+    }
+
+    /*
+     * remove the standing query
+     *
+     * success - return 204 (No Content)
+     * failure - return 404 (Not Found)
+     */
+    @DELETE
+    public Response deleteStandingQuery() {
+        if (StandingQueries.instance.unregister(id)) {
+            return Response.noContent().build();
+        }
+        return Response.status(404).build();
+    }
+}
@@ -1,24 +1,33 @@
 package com.giannoules.proxstor.search;
 
+import com.giannoules.proxstor.ProxStorPage;
 import com.giannoules.proxstor.api.Device;
 import com.giannoules.proxstor.device.DeviceDao;
 import com.giannoules.proxstor.api.Location;
 import com.giannoules.proxstor.location.LocationDao;
 import com.giannoules.proxstor.api.Environmental;
 import com.giannoules.proxstor.environmental.EnvironmentalDao;
+import com.giannoules.proxstor.exception.InvalidParameter;
 import com.giannoules.proxstor.api.User;
 import com.giannoules.proxstor.user.UserDao;
-import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 @Path("search")
 public class SearchResource {
 
+    /*
+     * every search returns its matches one page at a time (see ProxStorPage)
+     */
+
     /*
      * returns all users matching criteria in partially expressed User JSON
      */
@@ -26,15 +35,19 @@ public class SearchResource {
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getMatchingUsers(User u) {
-        Collection<User> users = UserDao.instance.getMatching(u);  
-        if (users == null || users.isEmpty()) {
-            return Response.noContent().build();
+    public Response getMatchingUsers(User u, @QueryParam(ProxStorPage.LIMIT) Integer limit,
+            @QueryParam(ProxStorPage.CURSOR) String cursor) {
+        try {
+            ProxStorPage p = ProxStorPage.of("search/users|" + u, limit, cursor);
+            List<User> users = UserDao.instance.getMatching(u, p.getOffset(), p.getFetch());
+            if (users == null || users.isEmpty()) {
+                return Response.noContent().build();
+            }
+            return p.ok(users, new User[0]);
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(SearchResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
         }
-        /*
-         * ok() will not take Collection directly, so convert to array
-         */
-        return Response.ok((User[]) users.toArray(new User[users.size()])).build();
     }
 
     /*
@@ -44,15 +57,19 @@ public class SearchResource {
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getMatchingDevices(Device d) {
-        Collection<Device> devices = DeviceDao.instance.getMatching(d);      
-        if (devices == null || devices.isEmpty()) {
-            return Response.noContent().build();
+    public Response getMatchingDevices(Device d, @QueryParam(ProxStorPage.LIMIT) Integer limit,
+            @QueryParam(ProxStorPage.CURSOR) String cursor) {
+        try {
+            ProxStorPage p = ProxStorPage.of("search/devices|" + d, limit, cursor);
+            List<Device> devices = DeviceDao.instance.getMatching(d, p.getOffset(), p.getFetch());
+            if (devices == null || devices.isEmpty()) {
+                return Response.noContent().build();
+            }
+            return p.ok(devices, new Device[0]);
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(SearchResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
         }
-        /*
-         * ok() will not take Collection directly, so convert to array
-         */
-        return Response.ok((Device[]) devices.toArray(new Device[devices.size()])).build();
     }
 
     /*
@@ -62,15 +79,19 @@ public class SearchResource {
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getMatchingLocations(Location l) {
-        Collection<Location> locations = LocationDao.instance.getMatching(l);
-        if (locations == null || locations.isEmpty()) {
-            return Response.noContent().build();
+    public Response getMatchingLocations(Location l, @QueryParam(ProxStorPage.LIMIT) Integer limit,
+            @QueryParam(ProxStorPage.CURSOR) String cursor) {
+        try {
+            ProxStorPage p = ProxStorPage.of("search/locations|" + l, limit, cursor);
+            List<Location> locations = LocationDao.instance.getMatching(l, p.getOffset(), p.getFetch());
+            if (locations == null || locations.isEmpty()) {
+                return Response.noContent().build();
+            }
+            return p.ok(locations, new Location[0]);
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(SearchResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
         }
-        /*
-         * ok() will not take Collection directly, so convert to array
-         */
-        return Response.ok((Location[]) locations.toArray(new Location[locations.size()])).build();
     }
     
     /*
@@ -80,15 +101,19 @@ public class SearchResource {
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getMatchingEnvironmentals(Environmental s) {
-        Collection<Environmental> environmentals = EnvironmentalDao.instance.getMatching(s);
-        if (environmentals == null || environmentals.isEmpty()) {
-            return Response.noContent().build();
+    public Response getMatchingEnvironmentals(Environmental s, @QueryParam(ProxStorPage.LIMIT) Integer limit,
+            @QueryParam(ProxStorPage.CURSOR) String cursor) {
+        try {
+            ProxStorPage p = ProxStorPage.of("search/environmentals|" + s, limit, cursor);
+            List<Environmental> environmentals = EnvironmentalDao.instance.getMatching(s, p.getOffset(), p.getFetch());
+            if (environmentals == null || environmentals.isEmpty()) {
+                return Response.noContent().build();
+            }
+            return p.ok(environmentals, new Environmental[0]);
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(SearchResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
         }
-        /*
-         * ok() will not take Collection directly, so convert to array
-         */
-        return Response.ok((Environmental[]) environmentals.toArray(new Environmental[environmentals.size()])).build();
     }
 
 }
\ No newline at end of file
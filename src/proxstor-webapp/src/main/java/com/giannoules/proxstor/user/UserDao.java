@@ -1,10 +1,20 @@
 package com.giannoules.proxstor.user;
 
 import com.giannoules.proxstor.api.User;
+import com.giannoules.proxstor.ProxStorCache;
 import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.ProxStorPage;
+import com.giannoules.proxstor.checkin.DetectionWindow;
+import com.giannoules.proxstor.checkin.FriendsView;
+import com.giannoules.proxstor.device.DeviceOwnerIndex;
 import com.giannoules.proxstor.exception.InvalidUserId;
 import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
 import com.giannoules.proxstor.exception.ProxStorGraphNonExistentObjectID;
+import com.giannoules.proxstor.query.QueryCache;
+import com.giannoules.proxstor.query.StandingQueries;
+import static com.tinkerpop.blueprints.Direction.IN;
+import static com.tinkerpop.blueprints.Direction.OUT;
+import com.tinkerpop.blueprints.Element;
 import com.tinkerpop.blueprints.GraphQuery;
 import com.tinkerpop.blueprints.Vertex;
 import java.util.ArrayList;
@@ -43,7 +53,7 @@ public enum UserDao {
         }
         try {
             for (String id : userIds) {
-                if (!UserDao.this.valid(ProxStorGraph.instance.getVertex(id))) {
+                if (!UserDao.this.valid(ProxStorCache.instance.get(id))) {
                     return false;
                 }
             }
@@ -61,12 +71,12 @@ public enum UserDao {
      * 
      * no exceptions thrown
      */
-    public boolean valid(Vertex... vertices) {        
+    public boolean valid(Element... vertices) {        
         if (vertices == null) {
             return false;
         }
         String type;
-        for (Vertex v : vertices) {
+        for (Element v : vertices) {
             type = v.getProperty("_type");
             if ((type == null) || (!type.equals("user"))) {
                 return false;
@@ -87,8 +97,8 @@ public enum UserDao {
      */
     public User get(String userId) throws InvalidUserId {
         try {            
-            Vertex v;
-            v = ProxStorGraph.instance.getVertex(userId);
+            Element v;
+            v = ProxStorCache.instance.get(userId);
             if (!valid(v)) {
                 throw new InvalidUserId();
             }
@@ -127,11 +137,21 @@ public enum UserDao {
      * used by SearchResource @POST
      */
     public Collection<User> getMatching(User partial) {
+        return getMatching(partial, 0, Integer.MAX_VALUE);
+    }
+
+    /*
+     * one page of getMatching(): count Users after skipping the first offset
+     */
+    public List<User> getMatching(User partial, int offset, int count) {
         List<User> users = new ArrayList<>();
         if ((partial.getUserId() != null) && (!partial.getUserId().isEmpty())) {
             // invalid userID is not an exception, it is just no match condition
             try { 
-                users.add(UserDao.this.get(partial.getUserId()));
+                User u = UserDao.this.get(partial.getUserId());
+                if (offset == 0) {
+                    users.add(u);
+                }
                 return users;
             } catch (InvalidUserId ex) {
                 Logger.getLogger(UserDao.class.getName()).log(Level.SEVERE, null, ex);
@@ -155,7 +175,7 @@ public enum UserDao {
         if ((partial.getEmail() != null) && (!partial.getEmail().isEmpty())) {
             q.has("email", partial.getEmail());
         }
-        for (Vertex v : q.vertices()) {
+        for (Vertex v : ProxStorPage.window(q.vertices(), offset, count)) {
             if (UserDao.this.valid(v)) {
                 users.add(toUser(v));
             }
@@ -201,10 +221,9 @@ public enum UserDao {
      * used by UserResource @PUT
      */
     public boolean update(User u) throws InvalidUserId {
-        validOrException(u.getUserId());
+        Vertex v = resolve(u.getUserId());
         try {
             boolean updated = false;
-            Vertex v = ProxStorGraph.instance.getVertex(u.getUserId());
             if (u.getFirstName() != null) {
                 v.setProperty("firstName", u.getFirstName());
                 updated = true;
@@ -219,9 +238,10 @@ public enum UserDao {
             }
             if (updated) {
                 ProxStorGraph.instance.commit();
+                ProxStorCache.instance.invalidate(u.getUserId());
                 return true;
             }
-        } catch (ProxStorGraphDatabaseNotRunningException| ProxStorGraphNonExistentObjectID ex) {
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(UserDao.class.getName()).log(Level.SEVERE, null, ex);            
         }        
         return false;
@@ -236,12 +256,35 @@ public enum UserDao {
      * used by UserResource @DELETE
      */
     public boolean delete(String userId) throws InvalidUserId {
-        validOrException(userId);        
+        Vertex v = resolve(userId);
+        List<String> devIds = new ArrayList<>();
+        for (Vertex d : v.getVertices(OUT, "uses")) {
+            devIds.add(d.getId().toString());
+        }
+        // Users knowing this one lose a friend
+        List<String> knownBy = new ArrayList<>();
+        if (QueryCache.instance.isEnabled() || StandingQueries.instance.isListening()) {
+            for (Vertex k : v.getVertices(IN, "knows")) {
+                knownBy.add(k.getId().toString());
+            }
+        }
         try {
-            ProxStorGraph.instance.getVertex(userId).remove();
+            v.remove();
             ProxStorGraph.instance.commit();
+            ProxStorCache.instance.invalidate(userId);
+            QueryCache.instance.userChanged(userId);
+            FriendsView.instance.userRemoved(userId);
+            for (String id : knownBy) {
+                QueryCache.instance.knowsChanged(id);
+                StandingQueries.instance.knowsChanged(id, userId, null);
+            }
+            // the User's Devices remain, but no longer have a User
+            for (String devId : devIds) {
+                DeviceOwnerIndex.instance.remove(devId);
+                DetectionWindow.instance.forget(devId);
+            }
             return true;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(UserDao.class.getName()).log(Level.SEVERE, null, ex);
             return false;
         }        
@@ -253,6 +296,29 @@ public enum UserDao {
         }
     }
     
+    /**
+     * Resolve userId to its User Vertex with a single back-end lookup.
+     * Methods which go on to use the Vertex should call this rather than
+     * validOrException() followed by ProxStorGraph.getVertex().
+     *
+     * @param userId The user id (object id) to resolve
+     * @return Vertex of the User
+     * @throws InvalidUserId If userId is not a valid User, or the database is not available
+     */
+    public Vertex resolve(String userId) throws InvalidUserId {
+        if (userId != null) {
+            try {
+                Vertex v = ProxStorGraph.instance.getVertex(userId);
+                if (valid(v)) {
+                    return v;
+                }
+            } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+                Logger.getLogger(UserDao.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        throw new InvalidUserId();
+    }
+    
     // ----> BEGIN private methods <----
     
     
@@ -265,7 +331,7 @@ public enum UserDao {
      *
      * no exceptions thrown
      */
-    private User toUser(Vertex v) {        
+    private User toUser(Element v) {        
         if (v == null) {
             return null;
         }
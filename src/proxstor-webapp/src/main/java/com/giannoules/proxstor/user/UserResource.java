@@ -4,6 +4,7 @@ import com.giannoules.proxstor.api.User;
 import com.giannoules.proxstor.device.DevicesResource;
 import com.giannoules.proxstor.exception.InvalidUserId;
 import com.giannoules.proxstor.knows.KnowsResource;
+import com.giannoules.proxstor.notification.NotificationsResource;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ws.rs.Consumes;
@@ -109,4 +110,12 @@ public class UserResource {
         return new KnowsResource(userId);
     }
     
+    /*
+     * return NotificationsResource handler for specified user
+     */
+    @Path("notifications")
+    public NotificationsResource getNotificationsResource() {
+        return new NotificationsResource(userId);
+    }
+    
 }
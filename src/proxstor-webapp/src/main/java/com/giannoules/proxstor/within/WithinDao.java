@@ -1,12 +1,14 @@
 package com.giannoules.proxstor.within;
 
+import com.giannoules.proxstor.ProxStorEdgeIndex;
 import com.giannoules.proxstor.ProxStorGraph;
+import com.giannoules.proxstor.ProxStorPage;
 import com.giannoules.proxstor.exception.InvalidLocationId;
 import com.giannoules.proxstor.exception.LocationAlreadyWithinLocation;
 import com.giannoules.proxstor.exception.ProxStorGraphDatabaseNotRunningException;
-import com.giannoules.proxstor.exception.ProxStorGraphNonExistentObjectID;
 import com.giannoules.proxstor.api.Location;
 import com.giannoules.proxstor.location.LocationDao;
+import com.tinkerpop.blueprints.Direction;
 import static com.tinkerpop.blueprints.Direction.IN;
 import static com.tinkerpop.blueprints.Direction.OUT;
 import com.tinkerpop.blueprints.Edge;
@@ -23,39 +25,25 @@ public enum WithinDao {
     instance;
 
     public Collection<Location> getWithin(String locId) throws InvalidLocationId {
-        LocationDao.instance.validOrException(locId);
-        VertexQuery vq;
-        try {
-            vq = ProxStorGraph.instance.getVertex(locId).query();
-            vq.direction(OUT);
-            vq.labels("within");
-            List<Location> locations = new ArrayList<>();
-            for (Vertex v : vq.vertices()) {
-                locations.add(LocationDao.instance.get(v));
-            }
-            return locations;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(WithinDao.class.getName()).log(Level.SEVERE, null, ex);
-            return null;
-        }
+        return getWithin(locId, 0, Integer.MAX_VALUE);
+    }
+
+    /*
+     * one page of getWithin(): count Locations after skipping the first offset
+     */
+    public List<Location> getWithin(String locId, int offset, int count) throws InvalidLocationId {
+        return adjacent(locId, OUT, offset, count);
     }
 
     public Collection<Location> getContaining(String locId) throws InvalidLocationId {
-        LocationDao.instance.validOrException(locId);
-        VertexQuery vq;
-        try {
-            vq = ProxStorGraph.instance.getVertex(locId).query();
-            vq.direction(IN);
-            vq.labels("within");
-            List<Location> locations = new ArrayList<>();
-            for (Vertex v : vq.vertices()) {
-                locations.add(LocationDao.instance.get(v));
-            }
-            return locations;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(WithinDao.class.getName()).log(Level.SEVERE, null, ex);
-            return null;
-        }
+        return getContaining(locId, 0, Integer.MAX_VALUE);
+    }
+
+    /*
+     * one page of getContaining(): count Locations after skipping the first offset
+     */
+    public List<Location> getContaining(String locId, int offset, int count) throws InvalidLocationId {
+        return adjacent(locId, IN, offset, count);
     }
 
     /*
@@ -63,17 +51,18 @@ public enum WithinDao {
      * @TODO don't recreate within if already exists
      */
     public boolean addWithin(String innerLocId, String outerLocId) throws InvalidLocationId, LocationAlreadyWithinLocation {
-        LocationDao.instance.validOrException(innerLocId, outerLocId);        
-        if (locationWithinLocation(innerLocId, outerLocId)) {
+        Vertex outVertex = LocationDao.instance.resolve(innerLocId);
+        Vertex inVertex = LocationDao.instance.resolve(outerLocId);
+        if (locationWithinLocation(outVertex, outerLocId)) {
             throw new LocationAlreadyWithinLocation();
         }
         try {
-            Vertex outVertex = ProxStorGraph.instance.getVertex(innerLocId);
-            Vertex inVertex = ProxStorGraph.instance.getVertex(outerLocId);
-            ProxStorGraph.instance.addEdge(outVertex, inVertex, "within").setProperty("_target", outerLocId);
+            Edge e = ProxStorGraph.instance.addEdge(outVertex, inVertex, "within");
+            e.setProperty("_target", outerLocId);
             ProxStorGraph.instance.commit();
+            ProxStorEdgeIndex.instance.put("within", innerLocId, outerLocId, e);
             return true;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(LocationDao.class.getName()).log(Level.SEVERE, null, ex);
             return false;
         }
@@ -87,23 +76,17 @@ public enum WithinDao {
      * was not already established 
      */
     public boolean removeWithin(String innerLocId, String outerLocId) throws InvalidLocationId  {
-        if (!locationWithinLocation(innerLocId, outerLocId)) {
+        LocationDao.instance.validOrException(outerLocId);
+        Edge e = getWithinEdge(LocationDao.instance.resolve(innerLocId), outerLocId);
+        if (e == null) {
             return false;
         }
-        Vertex v;
         try {
-            v = ProxStorGraph.instance.getVertex(innerLocId);
-            VertexQuery vq = v.query();
-            vq.direction(OUT);
-            vq.labels("within");
-            vq.has("_target", outerLocId);
-            for (Edge e : vq.edges()) {
-                e.remove();
-                ProxStorGraph.instance.commit();
-                return true;
-            }
+            e.remove();
+            ProxStorGraph.instance.commit();
+            ProxStorEdgeIndex.instance.remove("within", innerLocId, outerLocId);
             return true;
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
+        } catch (ProxStorGraphDatabaseNotRunningException ex) {
             Logger.getLogger(LocationDao.class.getName()).log(Level.SEVERE, null, ex);
             return false;
         }       
@@ -118,19 +101,55 @@ public enum WithinDao {
      *       edges
      */
     public boolean locationWithinLocation(String innerLocId, String outerLocId) throws InvalidLocationId {
-        LocationDao.instance.validOrException(innerLocId, outerLocId);
-        Vertex v;
-        try {
-            v = ProxStorGraph.instance.getVertex(innerLocId);
-            VertexQuery vq = v.query();
-            vq.direction(OUT);
-            vq.labels("within");
-            vq.has("_target", outerLocId);
-            return (vq.count() == 1);
-        } catch (ProxStorGraphDatabaseNotRunningException | ProxStorGraphNonExistentObjectID ex) {
-            Logger.getLogger(WithinDao.class.getName()).log(Level.SEVERE, null, ex);
-            return false;
-        }                
+        LocationDao.instance.validOrException(outerLocId);
+        return locationWithinLocation(LocationDao.instance.resolve(innerLocId), outerLocId);
     }    
     
+    /*
+     * tests for location within relationship from already resolved inner
+     * location vertex to outerLocId
+     */
+    private boolean locationWithinLocation(Vertex inner, String outerLocId) {
+        return (getWithinEdge(inner, outerLocId) != null);
+    }
+    
+    /*
+     * retrieves the within relationship (Edge) from already resolved inner
+     * location vertex to outerLocId, or null if there is none
+     */
+    private Edge getWithinEdge(Vertex inner, String outerLocId) {
+        boolean indexed = ProxStorEdgeIndex.instance.isWarm();
+        if (indexed) {
+            Edge e = ProxStorEdgeIndex.instance.get("within", inner.getId().toString(), outerLocId);
+            if (e != null) {
+                return e;
+            }
+            // not authoritative: confirm the miss in the graph below
+        }
+        VertexQuery vq = inner.query();
+        vq.direction(OUT);
+        vq.labels("within");
+        vq.has("_target", outerLocId);
+        for (Edge e : vq.edges()) {
+            if (indexed) {
+                ProxStorEdgeIndex.instance.put("within", inner.getId().toString(), outerLocId, e);
+            }
+            return e;
+        }
+        return null;
+    }
+
+    /*
+     * Locations at the other end of locId's within relationships in direction
+     */
+    private List<Location> adjacent(String locId, Direction direction, int offset, int count) throws InvalidLocationId {
+        VertexQuery vq = LocationDao.instance.resolve(locId).query();
+        vq.direction(direction);
+        vq.labels("within");
+        List<Location> locations = new ArrayList<>();
+        for (Vertex v : ProxStorPage.window(vq.vertices(), offset, count)) {
+            locations.add(LocationDao.instance.get(v));
+        }
+        return locations;
+    }
 }
@@ -1,17 +1,23 @@
 package com.giannoules.proxstor.within;
 
+import com.giannoules.proxstor.ProxStorPage;
 import com.giannoules.proxstor.exception.InvalidLocationId;
+import com.giannoules.proxstor.exception.InvalidParameter;
 import com.giannoules.proxstor.api.Location;
-import java.util.Collection;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+/*
+ * within lists are returned one page at a time (see ProxStorPage)
+ */
 public class WithinResource {
 
     private final String locId;
@@ -22,34 +28,38 @@ public class WithinResource {
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getLocationsWithin() {
-        Collection<Location> locations;
+    public Response getLocationsWithin(@QueryParam(ProxStorPage.LIMIT) Integer limit,
+            @QueryParam(ProxStorPage.CURSOR) String cursor) {
+        List<Location> locations;
         try {
-            locations = WithinDao.instance.getWithin(locId);
-            if (locations == null) {
-                return Response.noContent().build();
-            }
-            return Response.ok((Location[]) locations.toArray(new Location[locations.size()])).build();
+            ProxStorPage p = ProxStorPage.of("within|" + locId, limit, cursor);
+            locations = WithinDao.instance.getWithin(locId, p.getOffset(), p.getFetch());
+            return p.ok(locations, new Location[0]);
         } catch (InvalidLocationId ex) {
             Logger.getLogger(WithinResource.class.getName()).log(Level.SEVERE, null, ex);
             return Response.status(404).build();
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(WithinResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
         }
     }
 
     @Path("reverse")
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getContainingLocations() {
-        Collection<Location> locations;
+    public Response getContainingLocations(@QueryParam(ProxStorPage.LIMIT) Integer limit,
+            @QueryParam(ProxStorPage.CURSOR) String cursor) {
+        List<Location> locations;
         try {
-            locations = WithinDao.instance.getContaining(locId);
-            if (locations == null) {
-                return Response.noContent().build();
-            }
-            return Response.ok((Location[]) locations.toArray(new Location[locations.size()])).build();
+            ProxStorPage p = ProxStorPage.of("within/reverse|" + locId, limit, cursor);
+            locations = WithinDao.instance.getContaining(locId, p.getOffset(), p.getFetch());
+            return p.ok(locations, new Location[0]);
         } catch (InvalidLocationId ex) {
             Logger.getLogger(WithinResource.class.getName()).log(Level.SEVERE, null, ex);
             return Response.status(404).build();
+        } catch (InvalidParameter ex) {
+            Logger.getLogger(WithinResource.class.getName()).log(Level.SEVERE, null, ex);
+            return Response.status(400).build();
         }
     }
 